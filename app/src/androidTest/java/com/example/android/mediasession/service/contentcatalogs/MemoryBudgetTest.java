@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.R;
+import com.example.android.mediasession.catalog.PlayQueue;
+import com.example.android.mediasession.catalog.TrackCatalog;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how much heap the app retains per track, on a device, for catalogs of the
+ * MediaMetadataCompat {@link MusicLibrary} builds, the QueueItem queue a session holds for them,
+ * and the MediaItems a browser is sent, against a budget of bytes per track. Each is measured as
+ * the growth of the used heap between garbage collections, before and after building it, while
+ * it's still referenced. They're built in isolation rather than in the live catalog, so nothing
+ * else grows meanwhile. Sizes that wouldn't fit in half the heap are skipped.
+ *
+ * <p>Album art is held per drawable rather than per track, so the {@link AlbumArtCache} is
+ * checked for not growing with the number of tracks that share one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoryBudgetTest {
+
+    private static final String TAG = "MS_MemoryBudgetTest";
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+    private static final int GC_PASSES = 4;
+
+    // The metadata and its Bundle, its strings (the two art uris are built per track), the
+    // description it caches once browsed, and the catalog's own share: its maps and journal.
+    private static final long CATALOG_BUDGET_BYTES_PER_TRACK = 2560;
+    // A QueueItem sharing the catalog's description, a slot of the list and an entry in the
+    // counts.
+    private static final long QUEUE_BUDGET_BYTES_PER_TRACK = 160;
+    // A MediaItem sharing the catalog's description, and a slot of the list.
+    private static final long CHILDREN_BUDGET_BYTES_PER_TRACK = 48;
+
+    @Test
+    public void catalogStaysWithinBudget() {
+        List<String> failures = new ArrayList<>();
+        for (int tracks : SIZES) {
+            if (!fits(tracks, CATALOG_BUDGET_BYTES_PER_TRACK)) {
+                continue;
+            }
+            long before = usedHeap();
+            TrackCatalog<MediaMetadataCompat> catalog = newCatalog(tracks);
+            long after = usedHeap();
+            check(failures, tracks, "catalog", before, after, CATALOG_BUDGET_BYTES_PER_TRACK);
+            // Keeps the catalog reachable until it's been measured.
+            assertEquals(tracks, catalog.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void queueStaysWithinBudget() {
+        List<String> failures = new ArrayList<>();
+        for (int tracks : SIZES) {
+            if (!fits(tracks, CATALOG_BUDGET_BYTES_PER_TRACK + QUEUE_BUDGET_BYTES_PER_TRACK)) {
+                continue;
+            }
+            TrackCatalog<MediaMetadataCompat> catalog = newCatalog(tracks);
+            long before = usedHeap();
+            // As the session queues a whole catalog.
+            PlayQueue<MediaSessionCompat.QueueItem> queue =
+                    new PlayQueue<>(new PlayQueue.MediaIds<MediaSessionCompat.QueueItem>() {
+                        @Override
+                        public String getMediaId(MediaSessionCompat.QueueItem item) {
+                            return item.getDescription().getMediaId();
+                        }
+                    });
+            long queueId = 0;
+            for (MediaMetadataCompat metadata : catalog.getTracks()) {
+                queue.addIfAbsent(
+                        new MediaSessionCompat.QueueItem(metadata.getDescription(), queueId++));
+            }
+            long after = usedHeap();
+            check(failures, tracks, "queue", before, after, QUEUE_BUDGET_BYTES_PER_TRACK);
+            assertEquals(tracks, queue.size());
+            assertEquals(tracks, catalog.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void childrenStayWithinBudget() {
+        List<String> failures = new ArrayList<>();
+        for (int tracks : SIZES) {
+            if (!fits(tracks,
+                      CATALOG_BUDGET_BYTES_PER_TRACK + CHILDREN_BUDGET_BYTES_PER_TRACK)) {
+                continue;
+            }
+            TrackCatalog<MediaMetadataCompat> catalog = newCatalog(tracks);
+            long before = usedHeap();
+            // As the root node lists the catalog.
+            List<MediaBrowserCompat.MediaItem> children =
+                    MusicLibrary.toMediaItems(catalog.getTracks());
+            long after = usedHeap();
+            check(failures, tracks, "children", before, after, CHILDREN_BUDGET_BYTES_PER_TRACK);
+            assertEquals(tracks, children.size());
+            assertEquals(tracks, catalog.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void albumArtIsHeldOncePerDrawable() {
+        Resources resources = InstrumentationRegistry.getTargetContext().getResources();
+        Bitmap albumArt = AlbumArtCache.decode(resources, R.drawable.album_jazz_blues);
+        assertNotNull(albumArt);
+        int sizeBytes = AlbumArtCache.getSizeBytes();
+        Log.i(TAG, "albumArt.bytes=" + albumArt.getByteCount() + ", cache.bytes=" + sizeBytes
+                   + " (max " + AlbumArtCache.getMaxCacheBytes() + ")");
+        assertTrue(sizeBytes <= AlbumArtCache.getMaxCacheBytes());
+
+        // As for every test track, which all share the drawable.
+        for (int i = 0; i < SIZES[0]; i++) {
+            AlbumArtCache.decode(resources, R.drawable.album_jazz_blues);
+        }
+        assertEquals(sizeBytes, AlbumArtCache.getSizeBytes());
+    }
+
+    // Like the tracks MusicLibrary.addTestTracks() adds, each one holding its description as
+    // it does once it's been browsed.
+    private static TrackCatalog<MediaMetadataCompat> newCatalog(int tracks) {
+        TrackCatalog<MediaMetadataCompat> catalog = new TrackCatalog<>(0);
+        catalog.beginBatch();
+        for (int i = 0; i < tracks; i++) {
+            MediaMetadataCompat metadata = MusicLibrary.createMediaMetadataCompat(
+                    "Test_Track_" + i,
+                    "Test Track " + i,
+                    "Test Artist " + (i % 100),
+                    "Test Album " + (i % 1000),
+                    "Test",
+                    103,
+                    TimeUnit.SECONDS,
+                    "album_jazz_blues");
+            catalog.put(metadata.getDescription().getMediaId(), "jazz_in_paris.mp3", metadata);
+        }
+        catalog.endBatch();
+        return catalog;
+    }
+
+    private static boolean fits(int tracks, long budget) {
+        boolean fits = tracks * budget <= Runtime.getRuntime().maxMemory() / 2;
+        if (!fits) {
+            Log.i(TAG, tracks + " tracks skipped, they don't fit in half the heap");
+        }
+        return fits;
+    }
+
+    private static void check(List<String> failures, int tracks, String structure, long before,
+                              long after, long budget) {
+        long bytesPerTrack = Math.max(0, after - before) / tracks;
+        Log.i(TAG, tracks + "." + structure + ".bytes_per_track=" + bytesPerTrack
+                   + " (budget " + budget + ")");
+        if (bytesPerTrack > budget) {
+            failures.add(tracks + "." + structure + ": " + bytesPerTrack
+                         + " bytes per track, over the budget of " + budget);
+        }
+    }
+
+    // After collecting whatever is garbage, so that only what's retained is left.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_PASSES; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
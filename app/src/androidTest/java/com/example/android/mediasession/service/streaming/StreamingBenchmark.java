@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Streams a bundled track from a {@link ThrottledHttpServer} through a {@link StreamBuffer},
+ * under a few scripted bandwidth profiles, and plays it back with a simulated player that
+ * consumes it at its byte rate. Reports, per profile, how long playback took to start and how
+ * much of the time it spent stalled.
+ * <p>
+ * To keep the runs short, the track is played {@link #TIME_SCALE} times faster than real time,
+ * by telling the buffer it's that much shorter. The bandwidth is scaled along with it, so the
+ * ratio of bandwidth to byte rate the buffer sees is the real one, but the policy's fixed
+ * buffering targets are worth that many times more of the track. Takes a couple of minutes, so
+ * it has to be run off the main thread.
+ */
+final class StreamingBenchmark {
+
+    private static final String TAG = "MS_StreamingBenchmark";
+
+    /**
+     * Result keys, prefixed with the name of the profile and a dot.
+     */
+    public static final String KEY_STARTUP_DELAY_MS = "startup_delay_ms";
+    public static final String KEY_REBUFFERS = "rebuffers";
+    public static final String KEY_REBUFFER_MS = "rebuffer_ms";
+    // A double, the time spent stalled over the time spent playing or stalled.
+    public static final String KEY_REBUFFER_RATIO = "rebuffer_ratio";
+    public static final String KEY_MAX_BUFFERED_MS = "max_buffered_ms";
+    public static final String KEY_CONNECTIONS = "connections";
+
+    private static final int TIME_SCALE = 5;
+    // The simulated player consumes the stream in steps of this much.
+    private static final long TICK_MS = 20;
+    // Like a player's output buffer, absorbs the jitter of scheduling the ticks.
+    private static final long OUTPUT_BUFFER_MS = 100;
+
+    static final ThrottledHttpServer.Profile[] PROFILES = {
+            new ThrottledHttpServer.Profile("fast").then(0, 8),
+            new ThrottledHttpServer.Profile("steady").then(0, 1.5),
+            new ThrottledHttpServer.Profile("drop").then(3000, 4).then(6000, 0.6).then(0, 4),
+            new ThrottledHttpServer.Profile("outage").then(3000, 3).then(4000, 0).then(0, 3),
+            new ThrottledHttpServer.Profile("slow").then(0, 0.8),
+    };
+
+    private StreamingBenchmark() {
+    }
+
+    /**
+     * @param filename   of the asset to stream.
+     * @param durationMs of the asset.
+     */
+    static Bundle run(Context context, String filename, long durationMs)
+            throws IOException {
+        byte[] content = readAsset(context, filename);
+        File directory = new File(context.getCacheDir(), "stream_benchmark");
+        long scaledDurationMs = durationMs / TIME_SCALE;
+        long byteRate = content.length * 1000L / scaledDurationMs;
+
+        Bundle result = new Bundle();
+        for (ThrottledHttpServer.Profile profile : PROFILES) {
+            ThrottledHttpServer server = new ThrottledHttpServer(content, profile, byteRate);
+            // A fresh estimate, so that one profile doesn't start out with what another left.
+            StreamBuffer stream = new StreamBuffer(
+                    new URL(server.getUrl()), scaledDurationMs, directory,
+                    new BandwidthEstimator());
+            try {
+                play(stream, content.length, byteRate, profile.mName, result);
+            } finally {
+                stream.close();
+                server.release();
+            }
+        }
+        Log.d(TAG, "run: " + result);
+        return result;
+    }
+
+    private static void play(StreamBuffer stream,
+                             long length,
+                             long byteRate,
+                             String name,
+                             Bundle result) throws IOException {
+        byte[] tick = new byte[(int) (byteRate * TICK_MS / 1000)];
+        long startMs = SystemClock.elapsedRealtime();
+        stream.start();
+
+        long startupDelayMs = -1;
+        long rebufferMs = 0;
+        long maxBufferedMs = 0;
+        // When the simulated player needs the next tick's worth.
+        long dueMs = 0;
+        long position = 0;
+        while (position < length) {
+            int count = stream.read(position, tick, 0, tick.length);
+            if (count < 0) {
+                break;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (startupDelayMs < 0) {
+                startupDelayMs = now - startMs;
+                dueMs = now;
+            } else if (now > dueMs + OUTPUT_BUFFER_MS) {
+                // Too late, so the player ran dry.
+                rebufferMs += now - dueMs;
+                dueMs = now;
+            }
+            position += count;
+            dueMs += count * 1000 / byteRate;
+            maxBufferedMs = Math.max(maxBufferedMs, stream.getBufferedMs());
+            SystemClock.sleep(Math.max(0, dueMs - SystemClock.elapsedRealtime()));
+        }
+        long playedMs = length * 1000 / byteRate;
+
+        result.putLong(name + '.' + KEY_STARTUP_DELAY_MS, startupDelayMs);
+        result.putInt(name + '.' + KEY_REBUFFERS, stream.getRebuffers());
+        result.putLong(name + '.' + KEY_REBUFFER_MS, rebufferMs);
+        result.putDouble(name + '.' + KEY_REBUFFER_RATIO,
+                         (double) rebufferMs / (playedMs + rebufferMs));
+        result.putLong(name + '.' + KEY_MAX_BUFFERED_MS, maxBufferedMs);
+        result.putInt(name + '.' + KEY_CONNECTIONS, stream.getConnections());
+    }
+
+    private static byte[] readAsset(Context context, String filename) throws IOException {
+        InputStream input = context.getAssets().open(filename);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
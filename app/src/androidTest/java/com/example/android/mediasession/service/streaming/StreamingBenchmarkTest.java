@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.streaming;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link StreamingBenchmark} on the first bundled track. Its numbers are logged, and only
+ * checked for being there, since they depend on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StreamingBenchmarkTest {
+
+    @Test
+    public void reportsEveryProfile() throws IOException {
+        String mediaId = null;
+        for (MediaBrowserCompat.MediaItem item : MusicLibrary.getMediaItems()) {
+            if (!MusicLibrary.isStreamed(MusicLibrary.getMusicFilename(item.getMediaId()))) {
+                mediaId = item.getMediaId();
+                break;
+            }
+        }
+        assertNotNull("No bundled track", mediaId);
+        long durationMs = MusicLibrary.getMetadata(mediaId, null)
+                .getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+
+        Bundle result = StreamingBenchmark.run(InstrumentationRegistry.getTargetContext(),
+                                               MusicLibrary.getMusicFilename(mediaId),
+                                               durationMs);
+
+        for (ThrottledHttpServer.Profile profile : StreamingBenchmark.PROFILES) {
+            String prefix = profile.mName + '.';
+            assertTrue(profile.mName,
+                       result.getLong(prefix + StreamingBenchmark.KEY_STARTUP_DELAY_MS, -1) >= 0);
+            assertTrue(profile.mName,
+                       result.getInt(prefix + StreamingBenchmark.KEY_CONNECTIONS) >= 1);
+        }
+    }
+}
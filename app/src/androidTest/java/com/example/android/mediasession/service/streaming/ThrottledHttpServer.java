@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stands in for a media server in {@link StreamingBenchmark}: serves one file over HTTP on the
+ * loopback interface, with range requests, at the bandwidth a scripted {@link Profile} gives at
+ * each point in time, and with a fixed latency per request.
+ */
+final class ThrottledHttpServer {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String RANGE_PREFIX = "range: bytes=";
+    private static final long LATENCY_MS = 100;
+    // Small enough to pace smoothly.
+    private static final int SLICE_SIZE = 4 * 1024;
+    // How often to check whether an outage is over.
+    private static final long OUTAGE_POLL_MS = 50;
+
+    /**
+     * Bandwidth over time, as multiples of a byte rate.
+     */
+    static final class Profile {
+
+        final String mName;
+        private final List<Long> mDurations = new ArrayList<>();
+        private final List<Double> mMultiples = new ArrayList<>();
+
+        Profile(String name) {
+            mName = name;
+        }
+
+        /**
+         * Adds a step of {@code durationMs}, in which the bandwidth is {@code multiple} times
+         * the byte rate. The last step lasts for as long as needed.
+         */
+        Profile then(long durationMs, double multiple) {
+            mDurations.add(durationMs);
+            mMultiples.add(multiple);
+            return this;
+        }
+
+        double getMultiple(long elapsedMs) {
+            for (int i = 0; i < mDurations.size() - 1; i++) {
+                elapsedMs -= mDurations.get(i);
+                if (elapsedMs < 0) {
+                    return mMultiples.get(i);
+                }
+            }
+            return mMultiples.get(mMultiples.size() - 1);
+        }
+    }
+
+    private final byte[] mContent;
+    private final Profile mProfile;
+    private final long mByteRate;
+    private final ServerSocket mServerSocket;
+    private final long mStartMs;
+
+    /**
+     * Starts serving right away. The profile's clock starts now too.
+     */
+    ThrottledHttpServer(byte[] content, Profile profile, long byteRate) throws IOException {
+        mContent = content;
+        mProfile = profile;
+        mByteRate = byteRate;
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mStartMs = SystemClock.elapsedRealtime();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ThrottledHttpServer").start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/stream";
+    }
+
+    void release() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing else to do.
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Released.
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "ThrottledHttpServer-connection").start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            reader.readLine();
+            int position = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                String header = line.toLowerCase(Locale.US);
+                if (header.startsWith(RANGE_PREFIX)) {
+                    String range = header.substring(RANGE_PREFIX.length());
+                    position = Integer.parseInt(range.substring(0, range.indexOf('-')).trim());
+                }
+            }
+            Thread.sleep(LATENCY_MS);
+
+            StringBuilder headers = new StringBuilder();
+            if (position > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                       .append("Content-Range: bytes ").append(position).append('-')
+                       .append(mContent.length - 1).append('/').append(mContent.length)
+                       .append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("Content-Length: ").append(mContent.length - position).append("\r\n")
+                   .append("Connection: close\r\n\r\n");
+            OutputStream output = socket.getOutputStream();
+            output.write(headers.toString().getBytes(ASCII));
+
+            while (position < mContent.length) {
+                long bytesPerSecond = (long) (mByteRate * mProfile.getMultiple(
+                        SystemClock.elapsedRealtime() - mStartMs));
+                if (bytesPerSecond <= 0) {
+                    Thread.sleep(OUTAGE_POLL_MS);
+                    continue;
+                }
+                int count = Math.min(SLICE_SIZE, mContent.length - position);
+                output.write(mContent, position, count);
+                position += count;
+                long nanos = count * 1000000000L / bytesPerSecond;
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+            output.flush();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // The client went away, e.g. because it has buffered enough.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do.
+            }
+        }
+    }
+}
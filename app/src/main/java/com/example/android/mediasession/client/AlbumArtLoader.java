@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads album art into ImageViews for the UI without touching the main thread. Bitmaps come from
+ * an in-memory cache when possible, otherwise they are decoded from the art URI published in the
+ * session's metadata, on a background pool and downsampled to the size of the ImageView. Loading
+ * new art into an ImageView cancels the request still pending for it, so skipping quickly
+ * through tracks only decodes what ends up on screen. Art can also be prefetched into the cache
+ * ahead of time, see {@link QueuePrefetcher}.
+ */
+public class AlbumArtLoader {
+
+    private static final String TAG = "MS_AlbumArtLoader";
+
+    private static final int DECODE_THREADS = 2;
+    private static final long DECODE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<>();
+    // Pending prefetches, by cache key.
+    private final HashMap<String, Request> mPrefetches = new HashMap<>();
+
+    // Keyed by uri and decoded size, since the same art may be shown at different sizes.
+    private final LruCache<String, Bitmap> mCache;
+
+    private final ThreadPoolExecutor mDecodeExecutor =
+            new ThreadPoolExecutor(
+                    DECODE_THREADS,
+                    DECODE_THREADS,
+                    DECODE_THREAD_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "AlbumArtLoader-" + mCount.incrementAndGet());
+                        }
+                    });
+
+    public AlbumArtLoader(Context context) {
+        mContext = context.getApplicationContext();
+        // An eighth of the heap, which holds the art of a good number of tracks at view size.
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Shows the album art of the given metadata in the given view, replacing any request still
+     * pending for it. Must be called on the main thread.
+     */
+    public void load(@NonNull ImageView view, @Nullable MediaMetadataCompat metadata) {
+        load(view, getArtUri(metadata));
+    }
+
+    /**
+     * Shows the image at the given uri in the given view, replacing any request still pending
+     * for it. Must be called on the main thread.
+     */
+    public void load(@NonNull ImageView view, @Nullable String uri) {
+        cancel(view);
+        if (uri == null) {
+            view.setImageBitmap(null);
+            return;
+        }
+
+        int width = getTargetWidth(view);
+        int height = getTargetHeight(view);
+        String key = getKey(uri, width, height);
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        // Clear the previous track's art rather than showing it next to the new title.
+        view.setImageBitmap(null);
+        Request request = mPrefetches.remove(key);
+        if (request != null) {
+            // Being prefetched already, so just wait for it.
+            request.mView = view;
+        } else {
+            request = new Request(view, key, Uri.parse(uri), width, height);
+            request.mFuture = mDecodeExecutor.submit(request);
+        }
+        mRequests.put(view, request);
+    }
+
+    /**
+     * @return true if the image at the given uri is cached at the size of the given view.
+     */
+    public boolean isCached(@NonNull ImageView view, @NonNull String uri) {
+        return mCache.get(getKey(uri, getTargetWidth(view), getTargetHeight(view))) != null;
+    }
+
+    /**
+     * Decodes the image at the given uri into the cache at the size of the given view, without
+     * showing it.
+     *
+     * @return roughly the number of bytes the decoded image will take up, or 0 if it's already
+     * cached or being decoded.
+     */
+    public int prefetch(@NonNull ImageView view, @NonNull String uri) {
+        int width = getTargetWidth(view);
+        int height = getTargetHeight(view);
+        String key = getKey(uri, width, height);
+        if (mCache.get(key) != null || mPrefetches.containsKey(key)) {
+            return 0;
+        }
+        Request request = new Request(null, key, Uri.parse(uri), width, height);
+        mPrefetches.put(key, request);
+        request.mFuture = mDecodeExecutor.submit(request);
+        return width * height * 4;
+    }
+
+    /**
+     * Cancels every pending prefetch.
+     */
+    public void cancelPrefetches() {
+        for (Request request : new ArrayList<>(mPrefetches.values())) {
+            request.cancel();
+        }
+        mPrefetches.clear();
+    }
+
+    /**
+     * Frees part or all of the cache.
+     *
+     * @param maxBytes the most the cache may keep.
+     */
+    public void trimCache(int maxBytes) {
+        mCache.trimToSize(maxBytes);
+    }
+
+    public int getCacheMaxBytes() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * Cancels the request pending for the given view, if any.
+     */
+    public void cancel(@NonNull ImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Cancels every pending request and frees the cache.
+     */
+    public void release() {
+        for (Request request : mRequests.values()) {
+            request.cancel();
+        }
+        mRequests.clear();
+        cancelPrefetches();
+        mCache.evictAll();
+    }
+
+    private static String getKey(String uri, int width, int height) {
+        return uri + "@" + width + "x" + height;
+    }
+
+    private static int getTargetWidth(ImageView view) {
+        int width = view.getWidth();
+        // Not laid out yet, decode for the screen width.
+        return width > 0 ? width : view.getResources().getDisplayMetrics().widthPixels;
+    }
+
+    private static int getTargetHeight(ImageView view) {
+        int height = view.getHeight();
+        return height > 0 ? height : view.getResources().getDisplayMetrics().widthPixels;
+    }
+
+    @Nullable
+    private static String getArtUri(@Nullable MediaMetadataCompat metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        String uri = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+        if (TextUtils.isEmpty(uri)) {
+            uri = metadata.getString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI);
+        }
+        return TextUtils.isEmpty(uri) ? null : uri;
+    }
+
+    private final class Request implements Runnable {
+
+        // Null while prefetching. Only accessed on the main thread.
+        @Nullable
+        private ImageView mView;
+        // Whether it was started as a prefetch, even if a view has been waiting for it since.
+        private final boolean mPrefetch;
+        private final String mKey;
+        private final Uri mUri;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        Request(@Nullable ImageView view, String key, Uri uri, int width, int height) {
+            mView = view;
+            mPrefetch = view == null;
+            mKey = key;
+            mUri = uri;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                // Drops it from the queue if it hasn't started yet.
+                mFuture.cancel(false);
+            }
+        }
+
+        // Runs on the decode pool.
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final Bitmap bitmap = decode(mUri, mWidth, mHeight);
+            if (mCancelled) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (bitmap != null) {
+                        mCache.put(mKey, bitmap);
+                    }
+                    if (mPrefetches.get(mKey) == Request.this) {
+                        mPrefetches.remove(mKey);
+                    }
+                    if (mCancelled || mView == null || mRequests.get(mView) != Request.this) {
+                        return;
+                    }
+                    mRequests.remove(mView);
+                    if (bitmap != null) {
+                        mView.setImageBitmap(bitmap);
+                    } else if (mPrefetch) {
+                        // The view took over a prefetch that failed, so it gets a try of its own.
+                        load(mView, mUri.toString());
+                    }
+                }
+            });
+        }
+
+        @Nullable
+        private Bitmap decode(Uri uri, int width, int height) {
+            ContentResolver resolver = mContext.getContentResolver();
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                InputStream bounds = resolver.openInputStream(uri);
+                if (bounds == null) {
+                    return null;
+                }
+                try {
+                    BitmapFactory.decodeStream(bounds, null, options);
+                } finally {
+                    bounds.close();
+                }
+                if (mCancelled) {
+                    return null;
+                }
+
+                options.inJustDecodeBounds = false;
+                options.inSampleSize =
+                        getSampleSize(options.outWidth, options.outHeight, width, height);
+                InputStream input = resolver.openInputStream(uri);
+                if (input == null) {
+                    return null;
+                }
+                try {
+                    return BitmapFactory.decodeStream(input, null, options);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "decode: Can't load " + uri, e);
+                return null;
+            }
+        }
+    }
+
+    // The largest power of two that keeps the decoded image at least as big as the view.
+    private static int getSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
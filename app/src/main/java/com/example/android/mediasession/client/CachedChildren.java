@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.browse.BrowseManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A client side copy of the children of one browse node, with the version of the node it
+ * matches. It is brought up to date with the answers of
+ * {@link BrowseManager#ACTION_SYNC_CHILDREN}, and can be saved to and read from a file so that
+ * it survives process restarts. The children are kept in the order the service lists them in:
+ * folders first, then tracks by media id. Not thread safe.
+ */
+final class CachedChildren {
+
+    private static final String TAG = "MS_CachedChildren";
+
+    private static final int FILE_MAGIC = 0x42435348; // "BCSH"
+    private static final int FILE_VERSION = 1;
+
+    // The order of BrowseManager's lists. Folders keep their relative order.
+    private static final Comparator<MediaBrowserCompat.MediaItem> ORDER =
+            new Comparator<MediaBrowserCompat.MediaItem>() {
+                @Override
+                public int compare(MediaBrowserCompat.MediaItem a,
+                                   MediaBrowserCompat.MediaItem b) {
+                    if (a.isBrowsable() || b.isBrowsable()) {
+                        return (a.isBrowsable() ? 0 : 1) - (b.isBrowsable() ? 0 : 1);
+                    }
+                    return a.getMediaId().compareTo(b.getMediaId());
+                }
+            };
+
+    private final String mCacheKey;
+    private long mVersion;
+    private final LinkedHashMap<String, MediaBrowserCompat.MediaItem> mItems =
+            new LinkedHashMap<>();
+
+    CachedChildren(@NonNull String cacheKey) {
+        mCacheKey = cacheKey;
+    }
+
+    String getCacheKey() {
+        return mCacheKey;
+    }
+
+    /**
+     * @return the version of the node these children match, or 0 if they are incomplete.
+     */
+    long getVersion() {
+        return mVersion;
+    }
+
+    int size() {
+        return mItems.size();
+    }
+
+    List<MediaBrowserCompat.MediaItem> getItems() {
+        return new ArrayList<>(mItems.values());
+    }
+
+    /**
+     * @return a copy, e.g. to write on another thread while this one keeps changing.
+     */
+    CachedChildren copy() {
+        CachedChildren copy = new CachedChildren(mCacheKey);
+        copy.mVersion = mVersion;
+        copy.mItems.putAll(mItems);
+        return copy;
+    }
+
+    /**
+     * Applies the added, updated and removed children of a delta answer. Updated children keep
+     * their place, and added ones are put where a full answer would have them.
+     */
+    void applyDelta(@NonNull Bundle answer) {
+        List<String> removed = answer.getStringArrayList(BrowseManager.RESULT_REMOVED);
+        if (removed != null) {
+            for (String mediaId : removed) {
+                mItems.remove(mediaId);
+            }
+        }
+        put(answer.<MediaBrowserCompat.MediaItem>getParcelableArrayList(
+                BrowseManager.RESULT_UPDATED));
+        List<MediaBrowserCompat.MediaItem> added =
+                answer.getParcelableArrayList(BrowseManager.RESULT_ADDED);
+        if (added != null && !added.isEmpty()) {
+            put(added);
+            sort();
+        }
+        mVersion = answer.getLong(BrowseManager.RESULT_VERSION);
+    }
+
+    // Added children are appended by the map, so they're moved to where they belong.
+    private void sort() {
+        List<MediaBrowserCompat.MediaItem> items = getItems();
+        Collections.sort(items, ORDER);
+        mItems.clear();
+        put(items);
+    }
+
+    /**
+     * Starts replacing the children with the pages of a full answer.
+     */
+    void clear() {
+        mItems.clear();
+        mVersion = 0;
+    }
+
+    /**
+     * Adds a page of a full answer. The children match the answer's version once the last page
+     * has been added.
+     */
+    void addPage(@NonNull Bundle answer) {
+        put(answer.<MediaBrowserCompat.MediaItem>getParcelableArrayList(
+                BrowseManager.RESULT_ITEMS));
+        if (mItems.size() >= answer.getInt(BrowseManager.RESULT_TOTAL)) {
+            mVersion = answer.getLong(BrowseManager.RESULT_VERSION);
+        }
+    }
+
+    private void put(@Nullable List<MediaBrowserCompat.MediaItem> items) {
+        if (items != null) {
+            for (MediaBrowserCompat.MediaItem item : items) {
+                mItems.put(item.getMediaId(), item);
+            }
+        }
+    }
+
+    /**
+     * Reads children saved by {@link #write(File)}.
+     *
+     * @return null if the file doesn't exist, can't be read, or holds another node's children.
+     */
+    @Nullable
+    static CachedChildren read(@NonNull File file, @NonNull String cacheKey) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION
+                || !cacheKey.equals(input.readUTF())) {
+                return null;
+            }
+            CachedChildren children = new CachedChildren(cacheKey);
+            long version = input.readLong();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                int flags = input.readInt();
+                MediaDescriptionCompat description =
+                        new MediaDescriptionCompat.Builder()
+                                .setMediaId(input.readUTF())
+                                .setTitle(readString(input))
+                                .setSubtitle(readString(input))
+                                .setDescription(readString(input))
+                                .setIconUri(readUri(input))
+                                .setMediaUri(readUri(input))
+                                .build();
+                children.put(description.getMediaId(),
+                             new MediaBrowserCompat.MediaItem(description, flags));
+            }
+            children.mVersion = version;
+            return children;
+        } catch (IOException e) {
+            Log.w(TAG, "read: Can't read " + file, e);
+            return null;
+        } finally {
+            close(input);
+        }
+    }
+
+    /**
+     * Saves the children, replacing the file atomically.
+     */
+    void write(@NonNull File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeUTF(mCacheKey);
+            output.writeLong(mVersion);
+            output.writeInt(mItems.size());
+            for (MediaBrowserCompat.MediaItem item : mItems.values()) {
+                MediaDescriptionCompat description = item.getDescription();
+                output.writeInt(item.getFlags());
+                output.writeUTF(item.getMediaId());
+                writeString(output, description.getTitle());
+                writeString(output, description.getSubtitle());
+                writeString(output, description.getDescription());
+                writeString(output, description.getIconUri());
+                writeString(output, description.getMediaUri());
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: Can't write " + file, e);
+            temp.delete();
+        } finally {
+            close(output);
+        }
+    }
+
+    private void put(String mediaId, MediaBrowserCompat.MediaItem item) {
+        mItems.put(mediaId, item);
+    }
+
+    private static void writeString(DataOutputStream output, @Nullable Object value)
+            throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value.toString());
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    @Nullable
+    private static Uri readUri(DataInputStream input) throws IOException {
+        String uri = readString(input);
+        return uri == null ? null : Uri.parse(uri);
+    }
+
+    private static void close(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing else to do.
+            }
+        }
+    }
+}
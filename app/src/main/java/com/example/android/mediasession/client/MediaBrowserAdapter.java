@@ -17,23 +17,22 @@
 package com.example.android.mediasession.client;
 
 import android.app.Activity;
-import android.content.ComponentName;
-import android.content.Context;
 import android.media.AudioManager;
-import android.os.RemoteException;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
-import com.example.android.mediasession.service.MusicService;
-
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MediaBrowserAdapter {
 
@@ -49,247 +48,211 @@ public class MediaBrowserAdapter {
 
         public void onPlaybackStateChanged(@Nullable PlaybackStateCompat playbackState) {
         }
+
+        public void onQueueChanged(@Nullable List<MediaSessionCompat.QueueItem> queue) {
+        }
     }
 
-    private final InternalState mState;
+    /**
+     * Delivers callbacks on the main thread; directly if already on it, posted otherwise.
+     * Listeners are added with this executor unless they ask for another one.
+     */
+    public static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    private final Context mContext;
-    private final List<MediaBrowserChangeListener> mListeners = new ArrayList<>();
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                mHandler.post(command);
+            }
+        }
+    };
 
-    private final MediaBrowserConnectionCallback mMediaBrowserConnectionCallback =
-            new MediaBrowserConnectionCallback();
-    private final MediaControllerCallback mMediaControllerCallback =
-            new MediaControllerCallback();
-    private final MediaBrowserSubscriptionCallback mMediaBrowserSubscriptionCallback =
-            new MediaBrowserSubscriptionCallback();
+    // Marks an empty ListenerRecord slot, since null is a valid value for every callback.
+    private static final Object NONE = new Object();
 
-    private MediaBrowserCompat mMediaBrowser;
+    private final MediaBrowserConnection mConnection;
+    // Copy-on-write, so dispatch iterates a snapshot and listeners can be removed (even by
+    // themselves) while an event is being dispatched.
+    private final List<ListenerRecord> mListeners = new CopyOnWriteArrayList<>();
 
-    @Nullable
-    private MediaControllerCompat mMediaController;
+    private final MediaBrowserConnection.Callback mConnectionCallback =
+            new MediaBrowserConnection.Callback() {
+                @Override
+                public void onConnected(@NonNull MediaControllerCompat mediaController) {
+                    dispatchConnected(mediaController);
+                }
+
+                @Override
+                public void onMetadataChanged(@Nullable MediaMetadataCompat metadata) {
+                    dispatchMetadataChanged(metadata);
+                }
+
+                @Override
+                public void onPlaybackStateChanged(@Nullable PlaybackStateCompat state) {
+                    dispatchPlaybackStateChanged(state);
+                }
+
+                @Override
+                public void onQueueChanged(@Nullable List<MediaSessionCompat.QueueItem> queue) {
+                    for (ListenerRecord record : mListeners) {
+                        record.post(record.mQueue, queue);
+                    }
+                }
+            };
 
     public MediaBrowserAdapter(Activity context) {
-        mContext = context;
-        mState = new InternalState();
+        mConnection = MediaBrowserConnection.getInstance(context);
         // When audio isn't being played back, pressing the volume buttons will change the volume
         // of media, and not the ringer.
         context.setVolumeControlStream(AudioManager.STREAM_MUSIC);
     }
 
+    /**
+     * Connects to the MusicService, or reuses the connection if it is still warm, in which case
+     * the listeners get the last known state right away.
+     */
     public void onStart() {
-        if (mMediaBrowser == null) {
-            mMediaBrowser =
-                    new MediaBrowserCompat(
-                            mContext,
-                            new ComponentName(mContext, MusicService.class),
-                            mMediaBrowserConnectionCallback,
-                            null);
-            mMediaBrowser.connect();
-        }
-        Log.d(TAG, "onStart: Creating MediaBrowser, and connecting");
-    }
-
-    public void onStop() {
-        if (mMediaController != null) {
-            mMediaController.unregisterCallback(mMediaControllerCallback);
-            mMediaController = null;
-        }
-        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
-            mMediaBrowser.disconnect();
-            mMediaBrowser = null;
-        }
-        resetState();
-        Log.d(TAG, "onStop: Releasing MediaController, Disconnecting from MediaBrowser");
+        mConnection.addCallback(mConnectionCallback);
+        Log.d(TAG, "onStart: ");
     }
 
     /**
-     * The internal state of the app needs to revert to what it looks like when it started before
-     * any connections to the {@link MusicService} happens via the {@link MediaSessionCompat}.
+     * Stops delivering callbacks. The connection stays up for a while in case the activity
+     * comes back.
      */
-    private void resetState() {
-        mState.reset();
-        performOnAllListeners(new ListenerCommand() {
-            @Override
-            public void perform(@NonNull MediaBrowserChangeListener listener) {
-                listener.onPlaybackStateChanged(null);
-            }
-        });
-        Log.d(TAG, "resetState: ");
+    public void onStop() {
+        mConnection.removeCallback(mConnectionCallback);
+        Log.d(TAG, "onStop: ");
     }
 
     public MediaControllerCompat.TransportControls getTransportControls() {
-        if (mMediaController == null) {
+        MediaControllerCompat mediaController = mConnection.getMediaController();
+        if (mediaController == null) {
             Log.d(TAG, "getTransportControls: MediaController is null!");
             throw new IllegalStateException();
         }
-        return mMediaController.getTransportControls();
+        return mediaController.getTransportControls();
     }
 
+    /**
+     * Adds a listener whose callbacks are delivered on the main thread.
+     */
     public void addListener(MediaBrowserChangeListener listener) {
-        if (listener != null) {
-            mListeners.add(listener);
+        addListener(listener, MAIN_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Adds a listener whose callbacks are delivered on the given executor, e.g. a single thread
+     * executor to keep a slow listener off the main thread. The executor should run tasks in
+     * order. If the listener can't keep up, it only gets the latest value of each callback.
+     */
+    public void addListener(MediaBrowserChangeListener listener, @NonNull Executor executor) {
+        if (listener != null && indexOfListener(listener) < 0) {
+            mListeners.add(new ListenerRecord(listener, executor));
         }
     }
 
     public void removeListener(MediaBrowserChangeListener listener) {
         if (listener != null) {
-            if (mListeners.contains(listener)) {
-                mListeners.remove(listener);
+            int index = indexOfListener(listener);
+            if (index >= 0) {
+                removeRecord(mListeners.get(index));
             }
         }
     }
 
-    public void performOnAllListeners(@NonNull ListenerCommand command) {
-        for (MediaBrowserChangeListener listener : mListeners) {
-            if (listener != null) {
-                try {
-                    command.perform(listener);
-                } catch (Exception e) {
-                    removeListener(listener);
-                }
+    private int indexOfListener(MediaBrowserChangeListener listener) {
+        for (int i = 0; i < mListeners.size(); i++) {
+            if (mListeners.get(i).mListener == listener) {
+                return i;
             }
         }
+        return -1;
     }
 
-    public interface ListenerCommand {
-
-        void perform(@NonNull MediaBrowserChangeListener listener);
+    private void removeRecord(ListenerRecord record) {
+        record.mRemoved = true;
+        mListeners.remove(record);
     }
 
-    // Receives callbacks from the MediaBrowser when it has successfully connected to the
-    // MediaBrowserService (MusicService).
-    public class MediaBrowserConnectionCallback extends MediaBrowserCompat.ConnectionCallback {
-
-        // Happens as a result of onStart().
-        @Override
-        public void onConnected() {
-            try {
-                // Get a MediaController for the MediaSession.
-                mMediaController = new MediaControllerCompat(mContext,
-                                                             mMediaBrowser.getSessionToken());
-                mMediaController.registerCallback(mMediaControllerCallback);
-
-                // Sync existing MediaSession state to the UI.
-                mMediaControllerCallback.onMetadataChanged(
-                        mMediaController.getMetadata());
-                mMediaControllerCallback
-                        .onPlaybackStateChanged(mMediaController.getPlaybackState());
-
-                performOnAllListeners(new ListenerCommand() {
-                    @Override
-                    public void perform(@NonNull MediaBrowserChangeListener listener) {
-                        listener.onConnected(mMediaController);
-                    }
-                });
-            } catch (RemoteException e) {
-                Log.d(TAG, String.format("onConnected: Problem: %s", e.toString()));
-                throw new RuntimeException(e);
-            }
+    private void dispatchConnected(MediaControllerCompat mediaController) {
+        for (ListenerRecord record : mListeners) {
+            record.post(record.mConnected, mediaController);
+        }
+    }
 
-            mMediaBrowser.subscribe(mMediaBrowser.getRoot(), mMediaBrowserSubscriptionCallback);
+    private void dispatchMetadataChanged(MediaMetadataCompat metadata) {
+        for (ListenerRecord record : mListeners) {
+            record.post(record.mMetadata, metadata);
         }
     }
 
-    // Receives callbacks from the MediaBrowser when the MediaBrowserService has loaded new media
-    // that is ready for playback.
-    public class MediaBrowserSubscriptionCallback extends MediaBrowserCompat.SubscriptionCallback {
+    private void dispatchPlaybackStateChanged(PlaybackStateCompat state) {
+        for (ListenerRecord record : mListeners) {
+            record.post(record.mPlaybackState, state);
+        }
+    }
 
-        @Override
-        public void onChildrenLoaded(@NonNull String parentId,
-                                     @NonNull List<MediaBrowserCompat.MediaItem> children) {
-            assert mMediaController != null;
+    // A listener and the executor it wants its callbacks on. Each callback has a slot holding the
+    // latest value not yet delivered, so a listener whose executor falls behind gets the latest
+    // state once instead of every intermediate one, and delivery allocates nothing.
+    private final class ListenerRecord implements Runnable {
+
+        private final MediaBrowserChangeListener mListener;
+        private final Executor mExecutor;
+        private final AtomicReference<Object> mConnected = new AtomicReference<>(NONE);
+        private final AtomicReference<Object> mMetadata = new AtomicReference<>(NONE);
+        private final AtomicReference<Object> mPlaybackState = new AtomicReference<>(NONE);
+        private final AtomicReference<Object> mQueue = new AtomicReference<>(NONE);
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private volatile boolean mRemoved;
+
+        ListenerRecord(MediaBrowserChangeListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
 
-            // Queue up all media items for this simple sample.
-            for (final MediaBrowserCompat.MediaItem mediaItem : children) {
-                mMediaController.addQueueItem(mediaItem.getDescription());
+        void post(AtomicReference<Object> slot, Object value) {
+            slot.set(value);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
             }
-
-            // Call "playFromMedia" so the UI is updated.
-            mMediaController.getTransportControls().prepare();
         }
-    }
-
-    // Receives callbacks from the MediaController and updates the UI state,
-    // i.e.: Which is the current item, whether it's playing or paused, etc.
-    public class MediaControllerCallback extends MediaControllerCompat.Callback {
 
         @Override
-        public void onMetadataChanged(final MediaMetadataCompat metadata) {
-            // Filtering out needless updates, given that the metadata has not changed.
-            if (isMediaIdSame(metadata, mState.getMediaMetadata())) {
-                Log.d(TAG, "onMetadataChanged: Filtering out needless onMetadataChanged() update");
+        public void run() {
+            // Cleared first, so that values posted while delivering schedule another run.
+            mScheduled.set(false);
+            if (mRemoved) {
                 return;
-            } else {
-                mState.setMediaMetadata(metadata);
             }
-            performOnAllListeners(new ListenerCommand() {
-                @Override
-                public void perform(@NonNull MediaBrowserChangeListener listener) {
-                    listener.onMetadataChanged(metadata);
+            try {
+                Object connected = mConnected.getAndSet(NONE);
+                if (connected != NONE) {
+                    mListener.onConnected((MediaControllerCompat) connected);
                 }
-            });
-        }
-
-        @Override
-        public void onPlaybackStateChanged(@Nullable final PlaybackStateCompat state) {
-            mState.setPlaybackState(state);
-            performOnAllListeners(new ListenerCommand() {
-                @Override
-                public void perform(@NonNull MediaBrowserChangeListener listener) {
-                    listener.onPlaybackStateChanged(state);
+                Object metadata = mMetadata.getAndSet(NONE);
+                if (metadata != NONE) {
+                    mListener.onMetadataChanged((MediaMetadataCompat) metadata);
                 }
-            });
-        }
-
-        // This might happen if the MusicService is killed while the Activity is in the
-        // foreground and onStart() has been called (but not onStop()).
-        @Override
-        public void onSessionDestroyed() {
-            resetState();
-            onPlaybackStateChanged(null);
-            Log.d(TAG, "onSessionDestroyed: MusicService is dead!!!");
-        }
-
-        private boolean isMediaIdSame(MediaMetadataCompat currentMedia,
-                                     MediaMetadataCompat newMedia) {
-            if (currentMedia == null || newMedia == null) {
-                return false;
+                Object state = mPlaybackState.getAndSet(NONE);
+                if (state != NONE) {
+                    mListener.onPlaybackStateChanged((PlaybackStateCompat) state);
+                }
+                Object queue = mQueue.getAndSet(NONE);
+                if (queue != NONE) {
+                    @SuppressWarnings("unchecked")
+                    List<MediaSessionCompat.QueueItem> queueItems =
+                            (List<MediaSessionCompat.QueueItem>) queue;
+                    mListener.onQueueChanged(queueItems);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "run: Removing listener " + mListener + " that threw", e);
+                removeRecord(this);
             }
-            String newMediaId =
-                    newMedia.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-            String currentMediaId =
-                    currentMedia.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-            return newMediaId.equals(currentMediaId);
-        }
-
-    }
-
-    // A holder class that contains the internal state.
-    public class InternalState {
-
-        private PlaybackStateCompat playbackState;
-        private MediaMetadataCompat mediaMetadata;
-
-        public void reset() {
-            playbackState = null;
-            mediaMetadata = null;
-        }
-
-        public PlaybackStateCompat getPlaybackState() {
-            return playbackState;
-        }
-
-        public void setPlaybackState(PlaybackStateCompat playbackState) {
-            this.playbackState = playbackState;
-        }
-
-        public MediaMetadataCompat getMediaMetadata() {
-            return mediaMetadata;
-        }
-
-        public void setMediaMetadata(MediaMetadataCompat mediaMetadata) {
-            this.mediaMetadata = mediaMetadata;
         }
     }
-
-}
\ No newline at end of file
+}
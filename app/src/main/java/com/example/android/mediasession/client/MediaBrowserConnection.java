@@ -0,0 +1,589 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.MusicService;
+import com.example.android.mediasession.service.browse.BrowseManager;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide connection to {@link MusicService}. It stays connected while any
+ * {@link MediaBrowserAdapter} is started, and for an idle timeout after the last one stops, so
+ * coming back to an activity reuses the connection instead of binding, connecting and syncing
+ * state all over again. It keeps a snapshot of the last known metadata and playback state,
+ * which is handed to every callback as soon as it is added.
+ * <p>
+ * The children of the root are kept in a {@link CachedChildren} that is saved to disk. On
+ * connect the saved copy is used right away, and the subscription to the root only tells that
+ * the children changed; the copy is then brought up to date with
+ * {@link BrowseManager#ACTION_SYNC_CHILDREN}, which sends just the changes when it can. The
+ * tracks among the children are kept queued in the session, in batches of
+ * {@link MusicService#COMMAND_ADD_QUEUE_ITEMS} and {@link MusicService#COMMAND_REMOVE_QUEUE_ITEMS}.
+ * Must be used on the main thread.
+ */
+public final class MediaBrowserConnection {
+
+    private static final String TAG = "MS_BrowserConnection";
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private static final int SYNC_PAGE_SIZE = 500;
+    private static final String CACHE_DIRECTORY = "browse";
+    // Media ids per queue command, which keeps each well under the binder transaction limit.
+    private static final int QUEUE_BATCH_SIZE = 1000;
+
+    private static final Histogram sSyncBytes = Metrics.size("browse.client.sync_bytes");
+    private static final Histogram sFullSyncLatency = Metrics.latency("browse.client.sync_full");
+    private static final Histogram sDeltaSyncLatency =
+            Metrics.latency("browse.client.sync_delta");
+    private static final Histogram sCacheLoadLatency =
+            Metrics.latency("browse.client.cache_load");
+
+    private static MediaBrowserConnection sInstance;
+
+    /**
+     * Receives the state of the connection. The current state is delivered right away when a
+     * callback is added to a connected connection.
+     */
+    public static abstract class Callback {
+
+        public void onConnected(@NonNull MediaControllerCompat mediaController) {
+        }
+
+        public void onDisconnected() {
+        }
+
+        public void onMetadataChanged(@Nullable MediaMetadataCompat metadata) {
+        }
+
+        public void onPlaybackStateChanged(@Nullable PlaybackStateCompat state) {
+        }
+
+        public void onQueueChanged(@Nullable List<MediaSessionCompat.QueueItem> queue) {
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Callback> mCallbacks = new CopyOnWriteArrayList<>();
+
+    private final MediaBrowserConnectionCallback mMediaBrowserConnectionCallback =
+            new MediaBrowserConnectionCallback();
+    private final MediaControllerCallback mMediaControllerCallback =
+            new MediaControllerCallback();
+    private final MediaBrowserSubscriptionCallback mMediaBrowserSubscriptionCallback =
+            new MediaBrowserSubscriptionCallback();
+    // Saving and reading CachedChildren.
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+
+    private MediaBrowserCompat mMediaBrowser;
+    @Nullable
+    private MediaControllerCompat mMediaController;
+
+    // The last known state of the session.
+    @Nullable
+    private MediaMetadataCompat mMetadata;
+    @Nullable
+    private PlaybackStateCompat mPlaybackState;
+    @Nullable
+    private List<MediaSessionCompat.QueueItem> mQueue;
+
+    // Media ids this connection has added to the session's queue.
+    private final Set<String> mQueuedMediaIds = new HashSet<>();
+
+    // The children of the root, and the state of bringing them up to date.
+    @Nullable
+    private String mParentId;
+    @Nullable
+    private CachedChildren mChildren;
+    private boolean mSyncing;
+    private boolean mSyncPending;
+    private long mSyncVersion;
+    private long mSyncStartNanos;
+    private int mSyncBytes;
+    private int mSyncPages;
+
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private final Runnable mIdleDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Idle for " + mIdleTimeoutMs + "ms, disconnecting");
+            disconnect();
+        }
+    };
+
+    public static MediaBrowserConnection getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaBrowserConnection(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MediaBrowserConnection(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Sets how long the connection stays up after the last callback is removed. Zero
+     * disconnects right away.
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Adds a callback, connecting if needed. If already connected, the callback gets
+     * onConnected() and the last known metadata and playback state right away.
+     */
+    public void addCallback(@NonNull Callback callback) {
+        if (mCallbacks.contains(callback)) {
+            return;
+        }
+        mCallbacks.add(callback);
+        mHandler.removeCallbacks(mIdleDisconnect);
+
+        if (mMediaController != null) {
+            Log.d(TAG, "addCallback: Reusing warm connection");
+            callback.onConnected(mMediaController);
+            callback.onMetadataChanged(mMetadata);
+            callback.onPlaybackStateChanged(mPlaybackState);
+            callback.onQueueChanged(mQueue);
+        } else if (mMediaBrowser == null) {
+            Log.d(TAG, "addCallback: Creating MediaBrowser, and connecting");
+            mMediaBrowser =
+                    new MediaBrowserCompat(
+                            mContext,
+                            new ComponentName(mContext, MusicService.class),
+                            mMediaBrowserConnectionCallback,
+                            null);
+            mMediaBrowser.connect();
+        }
+    }
+
+    /**
+     * Removes a callback. Once none are left, the connection is closed after the idle timeout.
+     */
+    public void removeCallback(@NonNull Callback callback) {
+        if (mCallbacks.remove(callback) && mCallbacks.isEmpty()) {
+            if (mIdleTimeoutMs <= 0) {
+                disconnect();
+            } else {
+                mHandler.postDelayed(mIdleDisconnect, mIdleTimeoutMs);
+            }
+        }
+    }
+
+    @Nullable
+    public MediaControllerCompat getMediaController() {
+        return mMediaController;
+    }
+
+    @Nullable
+    public MediaMetadataCompat getMetadata() {
+        return mMetadata;
+    }
+
+    @Nullable
+    public PlaybackStateCompat getPlaybackState() {
+        return mPlaybackState;
+    }
+
+    @Nullable
+    public List<MediaSessionCompat.QueueItem> getQueue() {
+        return mQueue;
+    }
+
+    private void disconnect() {
+        mHandler.removeCallbacks(mIdleDisconnect);
+        if (mMediaController != null) {
+            mMediaController.unregisterCallback(mMediaControllerCallback);
+            mMediaController = null;
+        }
+        if (mMediaBrowser != null) {
+            if (mMediaBrowser.isConnected()) {
+                mMediaBrowser.disconnect();
+            }
+            mMediaBrowser = null;
+        }
+        resetState();
+        Log.d(TAG, "disconnect: Releasing MediaController, Disconnecting from MediaBrowser");
+    }
+
+    /**
+     * The snapshot needs to revert to what it looks like before any connection to the
+     * {@link MusicService} happens via the {@link MediaSessionCompat}.
+     */
+    private void resetState() {
+        mMetadata = null;
+        mPlaybackState = null;
+        mQueue = null;
+        mQueuedMediaIds.clear();
+        mParentId = null;
+        mSyncing = false;
+        mSyncPending = false;
+        for (Callback callback : mCallbacks) {
+            callback.onDisconnected();
+            callback.onPlaybackStateChanged(null);
+            callback.onQueueChanged(null);
+        }
+    }
+
+    // Receives callbacks from the MediaBrowser when it has successfully connected to the
+    // MediaBrowserService (MusicService).
+    private class MediaBrowserConnectionCallback extends MediaBrowserCompat.ConnectionCallback {
+
+        @Override
+        public void onConnected() {
+            try {
+                // Get a MediaController for the MediaSession.
+                mMediaController = new MediaControllerCompat(mContext,
+                                                             mMediaBrowser.getSessionToken());
+                mMediaController.registerCallback(mMediaControllerCallback);
+            } catch (RemoteException e) {
+                Log.d(TAG, String.format("onConnected: Problem: %s", e.toString()));
+                throw new RuntimeException(e);
+            }
+
+            for (Callback callback : mCallbacks) {
+                callback.onConnected(mMediaController);
+            }
+            // Sync existing MediaSession state to the UI.
+            mMediaControllerCallback.onMetadataChanged(mMediaController.getMetadata());
+            mMediaControllerCallback.onPlaybackStateChanged(mMediaController.getPlaybackState());
+            mMediaControllerCallback.onQueueChanged(mMediaController.getQueue());
+
+            loadChildren();
+        }
+
+        @Override
+        public void onConnectionSuspended() {
+            // The service crashed; MediaBrowser reconnects on its own once it is back.
+            if (mMediaController != null) {
+                mMediaController.unregisterCallback(mMediaControllerCallback);
+                mMediaController = null;
+            }
+            resetState();
+        }
+
+        @Override
+        public void onConnectionFailed() {
+            mMediaBrowser = null;
+            Log.d(TAG, "onConnectionFailed: Can't connect to MusicService");
+        }
+    }
+
+    // Shows the saved children of the root right away, then subscribes to learn when they
+    // change.
+    private void loadChildren() {
+        final String parentId = mMediaBrowser.getRoot();
+        Bundle rootExtras = mMediaBrowser.getExtras();
+        String key = rootExtras == null
+                     ? null
+                     : rootExtras.getString(BrowseManager.EXTRA_CACHE_KEY);
+        final String cacheKey = key == null ? parentId : key;
+        mParentId = parentId;
+
+        if (mChildren != null && mChildren.getCacheKey().equals(cacheKey)) {
+            // Still in memory from an earlier connection.
+            onChildrenChanged();
+            subscribe();
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final File file = getCacheFile(cacheKey);
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CachedChildren children = CachedChildren.read(file, cacheKey);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!parentId.equals(mParentId)) {
+                            // Disconnected in the meantime.
+                            return;
+                        }
+                        if (children == null) {
+                            mChildren = new CachedChildren(cacheKey);
+                        } else {
+                            mChildren = children;
+                            onChildrenChanged();
+                            sCacheLoadLatency.recordSince(start);
+                            Log.d(TAG, "loadChildren: " + children.size() + " saved children in "
+                                       + formatMillis(System.nanoTime() - start));
+                        }
+                        subscribe();
+                    }
+                });
+            }
+        });
+    }
+
+    private void subscribe() {
+        Bundle options = new Bundle();
+        options.putBoolean(BrowseManager.OPTION_CHANGE_SIGNAL, true);
+        mMediaBrowser.subscribe(mParentId, options, mMediaBrowserSubscriptionCallback);
+    }
+
+    private File getCacheFile(String cacheKey) {
+        return new File(new File(mContext.getCacheDir(), CACHE_DIRECTORY),
+                        Integer.toHexString(cacheKey.hashCode()) + ".bin");
+    }
+
+    // Brings mChildren up to date, one sync at a time.
+    private void sync() {
+        if (mSyncing) {
+            mSyncPending = true;
+            return;
+        }
+        mSyncing = true;
+        mSyncStartNanos = System.nanoTime();
+        mSyncBytes = 0;
+        mSyncPages = 0;
+        requestSyncPage(0);
+    }
+
+    private void requestSyncPage(final int page) {
+        Bundle extras = new Bundle();
+        extras.putString(BrowseManager.EXTRA_PARENT_ID, mParentId);
+        extras.putString(BrowseManager.EXTRA_CACHE_KEY, mChildren.getCacheKey());
+        extras.putLong(BrowseManager.EXTRA_VERSION, mChildren.getVersion());
+        extras.putInt(BrowseManager.EXTRA_PAGE, page);
+        extras.putInt(BrowseManager.EXTRA_PAGE_SIZE, SYNC_PAGE_SIZE);
+        final String parentId = mParentId;
+        mMediaBrowser.sendCustomAction(
+                BrowseManager.ACTION_SYNC_CHILDREN,
+                extras,
+                new MediaBrowserCompat.CustomActionCallback() {
+                    @Override
+                    public void onResult(String action, Bundle extras, Bundle resultData) {
+                        if (parentId.equals(mParentId) && resultData != null) {
+                            onSyncAnswer(page, resultData);
+                        }
+                    }
+
+                    @Override
+                    public void onError(String action, Bundle extras, Bundle data) {
+                        Log.w(TAG, "sync: Failed for " + parentId);
+                        mSyncing = false;
+                    }
+                });
+    }
+
+    private void onSyncAnswer(int page, Bundle answer) {
+        mSyncBytes += Metrics.parcelSize(answer);
+        mSyncPages++;
+        long version = answer.getLong(BrowseManager.RESULT_VERSION);
+
+        if (answer.getBoolean(BrowseManager.RESULT_FULL)) {
+            if (page == 0) {
+                mChildren.clear();
+                mSyncVersion = version;
+            } else if (version != mSyncVersion) {
+                // Changed between pages, start over.
+                mChildren.clear();
+                requestSyncPage(0);
+                return;
+            }
+            mChildren.addPage(answer);
+            if (mChildren.getVersion() == 0) {
+                List<MediaBrowserCompat.MediaItem> items =
+                        answer.getParcelableArrayList(BrowseManager.RESULT_ITEMS);
+                requestSyncPage(items == null || items.isEmpty() ? 0 : page + 1);
+                return;
+            }
+            finishSync(sFullSyncLatency, "full", true);
+        } else if (answer.containsKey(BrowseManager.RESULT_ADDED)) {
+            mChildren.applyDelta(answer);
+            finishSync(sDeltaSyncLatency, "delta", true);
+        } else {
+            // Already up to date.
+            finishSync(sDeltaSyncLatency, "none", false);
+        }
+    }
+
+    private void finishSync(Histogram latency, String kind, boolean changed) {
+        if (changed) {
+            onChildrenChanged();
+            final File file = getCacheFile(mChildren.getCacheKey());
+            final CachedChildren children = mChildren.copy();
+            mDiskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    children.write(file);
+                }
+            });
+        }
+        long elapsed = System.nanoTime() - mSyncStartNanos;
+        latency.record(elapsed);
+        sSyncBytes.record(mSyncBytes);
+        Log.d(TAG, "sync: " + kind + ", children=" + mChildren.size() + ", pages=" + mSyncPages
+                   + ", bytes=" + mSyncBytes + ", time=" + formatMillis(elapsed));
+
+        mSyncing = false;
+        if (mSyncPending) {
+            mSyncPending = false;
+            sync();
+        }
+    }
+
+    // Queues up what hasn't been queued yet, and dequeues what is no longer among the children,
+    // so calling this again after a change is fine.
+    private void onChildrenChanged() {
+        if (mMediaController == null) {
+            return;
+        }
+
+        // Queue up all media items for this simple sample, skipping the root's folders.
+        Set<String> playable = new HashSet<>();
+        ArrayList<String> added = new ArrayList<>();
+        for (final MediaBrowserCompat.MediaItem mediaItem : mChildren.getItems()) {
+            if (mediaItem.isPlayable()) {
+                playable.add(mediaItem.getMediaId());
+                if (mQueuedMediaIds.add(mediaItem.getMediaId())) {
+                    added.add(mediaItem.getMediaId());
+                }
+            }
+        }
+        ArrayList<String> removed = new ArrayList<>();
+        for (Iterator<String> it = mQueuedMediaIds.iterator(); it.hasNext(); ) {
+            String mediaId = it.next();
+            if (!playable.contains(mediaId)) {
+                it.remove();
+                removed.add(mediaId);
+            }
+        }
+        sendQueueCommand(MusicService.COMMAND_REMOVE_QUEUE_ITEMS, removed);
+        sendQueueCommand(MusicService.COMMAND_ADD_QUEUE_ITEMS, added);
+
+        // Call "playFromMedia" so the UI is updated, unless the session already has
+        // something to show.
+        if (!added.isEmpty() && mMetadata == null) {
+            mMediaController.getTransportControls().prepare();
+        }
+    }
+
+    private void sendQueueCommand(String command, ArrayList<String> mediaIds) {
+        for (int from = 0; from < mediaIds.size(); from += QUEUE_BATCH_SIZE) {
+            Bundle extras = new Bundle();
+            extras.putStringArrayList(
+                    MusicService.EXTRA_MEDIA_IDS,
+                    new ArrayList<>(mediaIds.subList(
+                            from, Math.min(mediaIds.size(), from + QUEUE_BATCH_SIZE))));
+            mMediaController.sendCommand(command, extras, null);
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    // Receives callbacks from the MediaBrowser when the children of the root changed. The list
+    // itself is empty, see BrowseManager.OPTION_CHANGE_SIGNAL.
+    private class MediaBrowserSubscriptionCallback extends MediaBrowserCompat.SubscriptionCallback {
+
+        @Override
+        public void onChildrenLoaded(@NonNull String parentId,
+                                     @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                     @NonNull Bundle options) {
+            if (parentId.equals(mParentId)) {
+                sync();
+            }
+        }
+    }
+
+    // Receives callbacks from the MediaController and updates the snapshot,
+    // i.e.: Which is the current item, whether it's playing or paused, etc.
+    private class MediaControllerCallback extends MediaControllerCompat.Callback {
+
+        @Override
+        public void onMetadataChanged(final MediaMetadataCompat metadata) {
+            // Filtering out needless updates, given that the metadata has not changed.
+            if (isMediaIdSame(metadata, mMetadata)) {
+                Log.d(TAG, "onMetadataChanged: Filtering out needless onMetadataChanged() update");
+                return;
+            }
+            mMetadata = metadata;
+            for (Callback callback : mCallbacks) {
+                callback.onMetadataChanged(metadata);
+            }
+        }
+
+        @Override
+        public void onPlaybackStateChanged(@Nullable final PlaybackStateCompat state) {
+            mPlaybackState = state;
+            for (Callback callback : mCallbacks) {
+                callback.onPlaybackStateChanged(state);
+            }
+        }
+
+        @Override
+        public void onQueueChanged(@Nullable List<MediaSessionCompat.QueueItem> queue) {
+            mQueue = queue;
+            for (Callback callback : mCallbacks) {
+                callback.onQueueChanged(queue);
+            }
+        }
+
+        // This might happen if the MusicService is killed while the connection is up.
+        @Override
+        public void onSessionDestroyed() {
+            Log.d(TAG, "onSessionDestroyed: MusicService is dead!!!");
+            disconnect();
+        }
+
+        private boolean isMediaIdSame(MediaMetadataCompat currentMedia,
+                                      MediaMetadataCompat newMedia) {
+            if (currentMedia == null || newMedia == null) {
+                return false;
+            }
+            String newMediaId =
+                    newMedia.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            String currentMediaId =
+                    currentMedia.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            return newMediaId.equals(currentMediaId);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.List;
+
+/**
+ * Watches the session's queue and its current item, and while the main thread is idle decodes
+ * the art of the items around the active one into the {@link AlbumArtLoader} cache, so that
+ * skipping to them shows their art without waiting for a decode. {@link #peek(int)} gives the
+ * description of those items, so the UI can show the title before the session has even
+ * published the new metadata.
+ * <p>
+ * Prefetched art takes at most a quarter of the loader's cache. Prefetching stops, and the cache
+ * is trimmed, when the system reports memory pressure, and resumes a while later.
+ */
+public class QueuePrefetcher extends MediaBrowserAdapter.MediaBrowserChangeListener
+        implements ComponentCallbacks2 {
+
+    private static final String TAG = "MS_QueuePrefetcher";
+
+    private static final int PREFETCH_AHEAD = 3;
+    private static final int PREFETCH_BEHIND = 1;
+    private static final long MEMORY_PRESSURE_PAUSE_MS = 30 * 1000;
+
+    private final Context mContext;
+    private final AlbumArtLoader mAlbumArtLoader;
+    private final ImageView mAlbumArtView;
+
+    @Nullable
+    private List<MediaSessionCompat.QueueItem> mQueue;
+    private long mActiveQueueItemId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+    // The metadata of a new item is published before the playback state that makes it active,
+    // so its media id is the first sign of a skip.
+    @Nullable
+    private String mCurrentMediaId;
+    private boolean mStarted;
+    private boolean mIdleHandlerAdded;
+    private long mPausedUntil;
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mIdleHandlerAdded = false;
+            prefetch();
+            return false;
+        }
+    };
+
+    /**
+     * @param albumArtView the view the art is shown in, whose size the art is decoded at.
+     */
+    public QueuePrefetcher(@NonNull Context context,
+                           @NonNull AlbumArtLoader albumArtLoader,
+                           @NonNull ImageView albumArtView) {
+        mContext = context.getApplicationContext();
+        mAlbumArtLoader = albumArtLoader;
+        mAlbumArtView = albumArtView;
+    }
+
+    public void onStart() {
+        if (!mStarted) {
+            mStarted = true;
+            mContext.registerComponentCallbacks(this);
+            schedulePrefetch();
+        }
+    }
+
+    public void onStop() {
+        if (mStarted) {
+            mStarted = false;
+            mContext.unregisterComponentCallbacks(this);
+            if (mIdleHandlerAdded) {
+                mIdleHandlerAdded = false;
+                Looper.myQueue().removeIdleHandler(mIdleHandler);
+            }
+            mAlbumArtLoader.cancelPrefetches();
+        }
+    }
+
+    /**
+     * Returns the description of the item the given number of places away from the active one,
+     * wrapping around the ends of the queue like skipping does.
+     *
+     * @return null if the queue or its active item is unknown.
+     */
+    @Nullable
+    public MediaDescriptionCompat peek(int offset) {
+        int index = getActiveIndex();
+        if (index < 0) {
+            return null;
+        }
+        int size = mQueue.size();
+        return mQueue.get(((index + offset) % size + size) % size).getDescription();
+    }
+
+    @Override
+    public void onQueueChanged(@Nullable List<MediaSessionCompat.QueueItem> queue) {
+        mQueue = queue;
+        schedulePrefetch();
+    }
+
+    @Override
+    public void onMetadataChanged(@Nullable MediaMetadataCompat mediaMetadata) {
+        String mediaId = mediaMetadata == null ? null : mediaMetadata.getDescription().getMediaId();
+        if (mediaId != null && !mediaId.equals(mCurrentMediaId)) {
+            mCurrentMediaId = mediaId;
+            schedulePrefetch();
+        }
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@Nullable PlaybackStateCompat playbackState) {
+        long activeQueueItemId = playbackState == null
+                                 ? MediaSessionCompat.QueueItem.UNKNOWN_ID
+                                 : playbackState.getActiveQueueItemId();
+        if (activeQueueItemId != mActiveQueueItemId) {
+            mActiveQueueItemId = activeQueueItemId;
+            schedulePrefetch();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level < TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        Log.d(TAG, "onTrimMemory: Pausing prefetch, level=" + level);
+        mPausedUntil = SystemClock.uptimeMillis() + MEMORY_PRESSURE_PAUSE_MS;
+        mAlbumArtLoader.cancelPrefetches();
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            mAlbumArtLoader.trimCache(0);
+        } else {
+            mAlbumArtLoader.trimCache(mAlbumArtLoader.getCacheMaxBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void schedulePrefetch() {
+        if (mStarted && !mIdleHandlerAdded) {
+            mIdleHandlerAdded = true;
+            Looper.myQueue().addIdleHandler(mIdleHandler);
+        }
+    }
+
+    private void prefetch() {
+        if (SystemClock.uptimeMillis() < mPausedUntil || getActiveIndex() < 0) {
+            return;
+        }
+        int budget = mAlbumArtLoader.getCacheMaxBytes() / 4;
+        int used = 0;
+        // Nearest first: next, previous, then further ahead.
+        for (int distance = 1; distance <= PREFETCH_AHEAD && used < budget; distance++) {
+            used += prefetch(peek(distance));
+            if (distance <= PREFETCH_BEHIND && used < budget) {
+                used += prefetch(peek(-distance));
+            }
+        }
+    }
+
+    private int prefetch(@Nullable MediaDescriptionCompat description) {
+        if (description == null || description.getIconUri() == null) {
+            return 0;
+        }
+        return mAlbumArtLoader.prefetch(mAlbumArtView, description.getIconUri().toString());
+    }
+
+    private int getActiveIndex() {
+        if (mQueue == null) {
+            return -1;
+        }
+        for (int i = 0; i < mQueue.size(); i++) {
+            MediaSessionCompat.QueueItem item = mQueue.get(i);
+            if (mCurrentMediaId != null
+                ? mCurrentMediaId.equals(item.getDescription().getMediaId())
+                : item.getQueueId() == mActiveQueueItemId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -18,52 +18,299 @@ package com.example.android.mediasession.service;
 
 import android.app.Notification;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.example.android.mediasession.BuildConfig;
+import com.example.android.mediasession.catalog.PlayQueue;
+import com.example.android.mediasession.catalog.SessionTransport;
+import com.example.android.mediasession.service.analysis.AnalysisManager;
+import com.example.android.mediasession.service.analysis.TrackAnalysis;
+import com.example.android.mediasession.service.analytics.PlaybackEventLog;
+import com.example.android.mediasession.service.browse.BrowseManager;
+import com.example.android.mediasession.service.contentcatalogs.AlbumArtCache;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Gauge;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+import com.example.android.mediasession.service.diagnostics.PlaybackJitterMonitor;
+import com.example.android.mediasession.service.diagnostics.ResourceSnapshot;
+import com.example.android.mediasession.service.diagnostics.SkipBenchmark;
+import com.example.android.mediasession.service.diagnostics.StartupTrace;
 import com.example.android.mediasession.service.notifications.MediaNotificationManager;
 import com.example.android.mediasession.service.players.MediaPlayerAdapter;
+import com.example.android.mediasession.service.playlists.PlaylistImporter;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class MusicService extends MediaBrowserServiceCompat {
 
     private static final String TAG = "MS_MusicService";
 
-    private MediaSessionCompat mSession;
-    private PlayerAdapter mPlayback;
+    /**
+     * The zone that owns the session whose token is returned to MediaBrowsers.
+     */
+    public static final int PRIMARY_ZONE_ID = 0;
+
+    /**
+     * Session command that adds a playback zone. The result contains {@link #EXTRA_ZONE_ID} and
+     * {@link #EXTRA_SESSION_TOKEN} of the new zone. Fails once there are {@link #MAX_ZONES}.
+     */
+    public static final String COMMAND_ADD_ZONE =
+            "com.example.android.mediasession.COMMAND_ADD_ZONE";
+
+    /**
+     * Session command that removes the playback zone given by {@link #EXTRA_ZONE_ID}.
+     */
+    public static final String COMMAND_REMOVE_ZONE =
+            "com.example.android.mediasession.COMMAND_REMOVE_ZONE";
+
+    /**
+     * The most zones there can be, including the primary one. Each zone holds a session and, once
+     * it plays, a player, and any controller can add them.
+     */
+    public static final int MAX_ZONES = 8;
+
+    /**
+     * Session command that appends the M3U, PLS or JSON playlist at {@link #EXTRA_PLAYLIST_URI}
+     * to the zone's queue, and starts playing it once the first entries are in if
+     * {@link #EXTRA_PLAY} is true. Entries that aren't in the catalog are skipped. The result is
+     * sent once the whole playlist is in, and holds the PlaylistImporter.KEY_ values.
+     */
+    public static final String COMMAND_IMPORT_PLAYLIST =
+            "com.example.android.mediasession.COMMAND_IMPORT_PLAYLIST";
+    public static final String EXTRA_PLAYLIST_URI =
+            "com.example.android.mediasession.EXTRA_PLAYLIST_URI";
+    public static final String EXTRA_PLAY = "com.example.android.mediasession.EXTRA_PLAY";
+
+    /**
+     * Session command that appends the tracks with the media ids in {@link #EXTRA_MEDIA_IDS} to
+     * the zone's queue, skipping those that are queued already or aren't in the catalog. Lets
+     * clients queue a large node in a few calls rather than one addQueueItem() per track.
+     */
+    public static final String COMMAND_ADD_QUEUE_ITEMS =
+            "com.example.android.mediasession.COMMAND_ADD_QUEUE_ITEMS";
+
+    /**
+     * Session command that removes the tracks with the media ids in {@link #EXTRA_MEDIA_IDS} from
+     * the zone's queue.
+     */
+    public static final String COMMAND_REMOVE_QUEUE_ITEMS =
+            "com.example.android.mediasession.COMMAND_REMOVE_QUEUE_ITEMS";
+    public static final String EXTRA_MEDIA_IDS =
+            "com.example.android.mediasession.EXTRA_MEDIA_IDS";
+
+    public static final String EXTRA_ZONE_ID = "com.example.android.mediasession.EXTRA_ZONE_ID";
+    public static final String EXTRA_SESSION_TOKEN =
+            "com.example.android.mediasession.EXTRA_SESSION_TOKEN";
+
+    /**
+     * Custom browse action, in debug builds only, that adds {@link #EXTRA_TEST_TRACK_COUNT}
+     * generated tracks to the catalog, to benchmark browsing large catalogs.
+     */
+    public static final String ACTION_ADD_TEST_TRACKS =
+            "com.example.android.mediasession.ACTION_ADD_TEST_TRACKS";
+    public static final String EXTRA_TEST_TRACK_COUNT =
+            "com.example.android.mediasession.EXTRA_TEST_TRACK_COUNT";
+
+    // Analysing the catalog waits until the service has settled after starting.
+    private static final long ANALYSIS_START_DELAY_MS = 10000;
+
+    /**
+     * Session command, in debug builds only, that runs a {@link SkipBenchmark} on the zone: 50
+     * skips to the next track within a second. The result holds the SkipBenchmark.KEY_ values.
+     */
+    public static final String COMMAND_SKIP_BENCHMARK =
+            "com.example.android.mediasession.COMMAND_SKIP_BENCHMARK";
+
+    // While a playlist is being imported, the queue is published at most this often, since
+    // every time it's published it's sent whole.
+    private static final long IMPORT_QUEUE_PUBLISH_INTERVAL_MS = 2000;
+
+    private static final int RESULT_OK = 0;
+    private static final int RESULT_ERROR = -1;
+
+    private static final int PARCEL_SIZE_SAMPLE_INTERVAL = 16;
+
+    private static final Gauge sZoneCount = Metrics.gauge("service.zones");
+    private static final Counter sPlaybackStatePublished =
+            Metrics.counter("session.playback_state.published");
+    private static final Histogram sPlaybackStateSize =
+            Metrics.size("session.playback_state.parcel");
+    private static final Counter sMetadataPublished =
+            Metrics.counter("session.metadata.published");
+    // Excludes the album art.
+    private static final Histogram sMetadataSize = Metrics.size("session.metadata.parcel");
+    private static final Counter sQueuePublished = Metrics.counter("session.queue.published");
+
+    private static final Histogram sCommandLatency = Metrics.latency("transport.command");
+    private static final Histogram sPrepareLatency = Metrics.latency("transport.prepare");
+    private static final Histogram sPlayLatency = Metrics.latency("transport.play");
+    private static final Histogram sPauseLatency = Metrics.latency("transport.pause");
+    private static final Histogram sStopLatency = Metrics.latency("transport.stop");
+    private static final Histogram sSkipLatency = Metrics.latency("transport.skip");
+    private static final Histogram sSeekLatency = Metrics.latency("transport.seek");
+    private static final Histogram sQueueEditLatency = Metrics.latency("transport.queue_edit");
+
+    private static final PlayQueue.MediaIds<MediaSessionCompat.QueueItem> QUEUE_ITEM_MEDIA_IDS =
+            new PlayQueue.MediaIds<MediaSessionCompat.QueueItem>() {
+                @Override
+                public String getMediaId(MediaSessionCompat.QueueItem item) {
+                    return item.getDescription().getMediaId();
+                }
+            };
+    private static final PlayQueue.MediaIds<MediaMetadataCompat> METADATA_MEDIA_IDS =
+            new PlayQueue.MediaIds<MediaMetadataCompat>() {
+                @Override
+                public String getMediaId(MediaMetadataCompat metadata) {
+                    return metadata.getDescription().getMediaId();
+                }
+            };
+
+    private final SparseArray<PlaybackZone> mZones = new SparseArray<>();
+    private PlaybackZone mPrimaryZone;
+    private int mNextZoneId = PRIMARY_ZONE_ID;
     private MediaNotificationManager mMediaNotificationManager;
-    public MediaSessionCallback mCallback;
+    private BrowseManager mBrowseManager;
+    private PlaybackEventLog mEventLog;
+    private AnalysisManager mAnalysisManager;
+    // Debug builds only.
+    private PlaybackJitterMonitor mJitterMonitor;
+    private final ServiceManager mServiceManager = new ServiceManager();
     private boolean mServiceInStartedState;
+    private final StartupTrace mStartupTrace = new StartupTrace();
+    // Debug builds only, as reading /proc isn't free.
+    private ResourceSnapshot mBaselineResources;
+
+    // Drops removed tracks from the queues of the zones, and shows updated ones in the
+    // notifications.
+    private final MusicLibrary.OnCatalogChangedListener mCatalogListener =
+            new MusicLibrary.OnCatalogChangedListener() {
+                @Override
+                public void onCatalogChanged(long version, Collection<String> mediaIds) {
+                    for (int i = 0; i < mZones.size(); i++) {
+                        mZones.valueAt(i).mCallback.onCatalogChanged(mediaIds);
+                    }
+                    if (mMediaNotificationManager != null) {
+                        mMediaNotificationManager.onCatalogChanged(mediaIds);
+                    }
+                }
+            };
 
     @Override
     public void onCreate() {
+        mStartupTrace.markCreate();
         super.onCreate();
+        if (BuildConfig.DEBUG) {
+            mBaselineResources = ResourceSnapshot.capture();
+        }
 
-        // Create a new MediaSession.
-        mSession = new MediaSessionCompat(this, "MusicService");
-        mCallback = new MediaSessionCallback();
-        mSession.setCallback(mCallback);
-        mSession.setFlags(
-                MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
-                MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
-                MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
-        setSessionToken(mSession.getSessionToken());
+        // Create the primary zone and its MediaSession. The session is the only component that
+        // is created eagerly, since its token has to be available before onGetRoot() can answer
+        // a connecting MediaBrowser. The MediaNotificationManager and the PlayerAdapter are
+        // created on demand, once playback actually needs them.
+        mPrimaryZone = addZone();
+        setSessionToken(mPrimaryZone.getSessionToken());
 
-        mMediaNotificationManager = new MediaNotificationManager(this);
+        mBrowseManager = new BrowseManager(this);
+        MusicLibrary.addOnCatalogChangedListener(mCatalogListener);
+        mAnalysisManager = new AnalysisManager(this, new AnalysisManager.Listener() {
+            @Override
+            public void onTrackAnalyzed(@NonNull String filename,
+                                        @NonNull TrackAnalysis analysis) {
+                for (int i = 0; i < mZones.size(); i++) {
+                    mZones.valueAt(i).mCallback.onTrackAnalyzed(filename, analysis);
+                }
+            }
+        });
+        mAnalysisManager.start(ANALYSIS_START_DELAY_MS);
+        if (BuildConfig.DEBUG) {
+            mJitterMonitor = new PlaybackJitterMonitor(getMainLooper());
+        }
+        Log.d(TAG, "onCreate: MusicService creating MediaSession");
+    }
 
-        mPlayback = new MediaPlayerAdapter(this, new MediaPlayerListener());
-        Log.d(TAG, "onCreate: MusicService creating MediaSession, and MediaNotificationManager");
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Handles media button events that woke up this service, or that were sent by the
+        // notification of a zone.
+        PlaybackZone zone = intent == null
+                            ? null
+                            : mZones.get(intent.getIntExtra(EXTRA_ZONE_ID, PRIMARY_ZONE_ID));
+        MediaButtonReceiver.handleIntent(
+                (zone != null ? zone : mPrimaryZone).mSession, intent);
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    private MediaNotificationManager getMediaNotificationManager() {
+        if (mMediaNotificationManager == null) {
+            mMediaNotificationManager = new MediaNotificationManager(this);
+            Log.d(TAG, "getMediaNotificationManager: Creating MediaNotificationManager");
+        }
+        return mMediaNotificationManager;
+    }
+
+    private PlaybackEventLog getEventLog() {
+        if (mEventLog == null) {
+            mEventLog = new PlaybackEventLog(new File(getFilesDir(), "playback_events"));
+        }
+        return mEventLog;
+    }
+
+    private PlaybackZone addZone() {
+        PlaybackZone zone = new PlaybackZone(mNextZoneId++);
+        mZones.put(zone.mZoneId, zone);
+        sZoneCount.set(mZones.size());
+        logZoneResources("addZone");
+        return zone;
+    }
+
+    private boolean removeZone(int zoneId) {
+        PlaybackZone zone = mZones.get(zoneId);
+        if (zone == null || zone == mPrimaryZone) {
+            return false;
+        }
+        zone.release();
+        mZones.remove(zoneId);
+        sZoneCount.set(mZones.size());
+        if (mMediaNotificationManager != null) {
+            mMediaNotificationManager.removeZone(zoneId);
+        }
+        onPlaybackActivityChanged();
+        logZoneResources("removeZone");
+        return true;
+    }
+
+    private void logZoneResources(String event) {
+        if (mBaselineResources == null) {
+            return;
+        }
+        ResourceSnapshot snapshot = ResourceSnapshot.capture();
+        Log.d(TAG, event + ": zones=" + mZones.size() + ", " + snapshot + ", "
+                   + snapshot.describeGrowthPer(mBaselineResources, mZones.size(), "zone")
+                   + ", albumArtCache=" + AlbumArtCache.getSizeBytes() / 1024 + "KB");
     }
 
     @Override
@@ -74,170 +321,777 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     @Override
     public void onDestroy() {
-        mMediaNotificationManager.onDestroy();
-        mPlayback.stop();
-        mSession.release();
-        Log.d(TAG, "onDestroy: MediaPlayerAdapter stopped, and MediaSession released");
+        logZoneResources("onDestroy");
+        for (int i = 0; i < mZones.size(); i++) {
+            mZones.valueAt(i).release();
+        }
+        mZones.clear();
+        if (mMediaNotificationManager != null) {
+            mMediaNotificationManager.onDestroy();
+        }
+        if (mEventLog != null) {
+            mEventLog.close();
+        }
+        MusicLibrary.removeOnCatalogChangedListener(mCatalogListener);
+        mBrowseManager.onDestroy();
+        mAnalysisManager.release();
+        if (mJitterMonitor != null) {
+            mJitterMonitor.stop();
+        }
+        Log.d(TAG, "onDestroy: MediaPlayerAdapters stopped, and MediaSessions released. "
+                   + mStartupTrace);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("MusicService");
+        writer.println("Startup: " + mStartupTrace);
+        writer.println("Zones: " + mZones.size() + ", " + ResourceSnapshot.capture()
+                       + ", albumArtCache=" + AlbumArtCache.getSizeBytes() / 1024 + "KB");
+        writer.println("Browse: " + mBrowseManager);
+        writer.println("Analysis: " + mAnalysisManager);
+        if (mMediaNotificationManager != null) {
+            writer.println("Notifications: " + mMediaNotificationManager.getStats());
+        }
+        Metrics.dump(writer);
+    }
+
+    private void onPlaybackActivityChanged() {
+        boolean playing = isAnyZonePlaying();
+        mAnalysisManager.setPlaybackActive(playing);
+        if (mJitterMonitor != null) {
+            if (playing) {
+                mJitterMonitor.start();
+            } else {
+                mJitterMonitor.stop();
+            }
+        }
+    }
+
+    private boolean isAnyZonePlaying() {
+        for (int i = 0; i < mZones.size(); i++) {
+            if (mZones.valueAt(i).isInState(PlaybackStateCompat.STATE_PLAYING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Every PlaybackStateCompat and MediaMetadataCompat is parceled to each controller, so
+    // count them and keep track of how big they are. Parceling one again to measure it costs as
+    // much as publishing it, so only one in PARCEL_SIZE_SAMPLE_INTERVAL is measured.
+    private static void publishPlaybackState(MediaSessionCompat session,
+                                             PlaybackStateCompat state) {
+        session.setPlaybackState(state);
+        sPlaybackStatePublished.increment();
+        if (sPlaybackStatePublished.get() % PARCEL_SIZE_SAMPLE_INTERVAL == 1) {
+            sPlaybackStateSize.record(Metrics.parcelSize(state));
+        }
+    }
+
+    private static void publishMetadata(MediaSessionCompat session,
+                                        MediaMetadataCompat metadata) {
+        session.setMetadata(metadata);
+        sMetadataPublished.increment();
+        if (sMetadataPublished.get() % PARCEL_SIZE_SAMPLE_INTERVAL == 1) {
+            // Without the album art, which would be copied whole just to be measured.
+            sMetadataSize.record(Metrics.parcelSize(
+                    new MediaMetadataCompat.Builder(metadata)
+                            .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, null)
+                            .build()));
+        }
     }
 
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                  int clientUid,
                                  Bundle rootHints) {
-        return new BrowserRoot(MusicLibrary.getRoot(), null);
+        mStartupTrace.markGetRoot();
+        return mBrowseManager.onGetRoot(clientPackageName, clientUid, rootHints);
     }
 
     @Override
     public void onLoadChildren(
             @NonNull final String parentMediaId,
             @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(MusicLibrary.getMediaItems());
+        mBrowseManager.onLoadChildren(parentMediaId, result);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentMediaId,
+                               @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                               @NonNull Bundle options) {
+        if (!mBrowseManager.onLoadChildren(parentMediaId, result, options)) {
+            super.onLoadChildren(parentMediaId, result, options);
+        }
+    }
+
+    @Override
+    public void onCustomAction(@NonNull String action,
+                               Bundle extras,
+                               @NonNull Result<Bundle> result) {
+        if (mBrowseManager.onCustomAction(action, extras, result)) {
+            return;
+        }
+        if (BuildConfig.DEBUG && ACTION_ADD_TEST_TRACKS.equals(action)) {
+            int count = extras == null ? 0 : extras.getInt(EXTRA_TEST_TRACK_COUNT);
+            MusicLibrary.addTestTracks(count);
+            result.sendResult(null);
+            return;
+        }
+        super.onCustomAction(action, extras, result);
+    }
+
+    /**
+     * One independent playback zone: a MediaSession with its own queue, player and
+     * notification. All zones share the catalog, the album art cache and its decode pool.
+     */
+    public final class PlaybackZone {
+
+        private final int mZoneId;
+        private final MediaSessionCompat mSession;
+        private final MediaSessionCallback mCallback;
+        private PlayerAdapter mPlayback;
+        private PlaybackStateCompat mPlaybackState;
+
+        PlaybackZone(int zoneId) {
+            mZoneId = zoneId;
+            mSession = new MediaSessionCompat(
+                    MusicService.this,
+                    zoneId == PRIMARY_ZONE_ID ? "MusicService" : "MusicService-zone" + zoneId);
+            mCallback = new MediaSessionCallback(this);
+            mSession.setCallback(mCallback);
+            mSession.setFlags(
+                    MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
+                    MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
+                    MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+        }
+
+        public int getZoneId() {
+            return mZoneId;
+        }
+
+        public MediaSessionCompat.Token getSessionToken() {
+            return mSession.getSessionToken();
+        }
+
+        private PlayerAdapter getPlayback() {
+            if (mPlayback == null) {
+                mPlayback = new MediaPlayerAdapter(MusicService.this,
+                                                   new MediaPlayerListener(this));
+                mPlayback.setEventLog(getEventLog());
+                Log.d(TAG, "getPlayback: Creating MediaPlayerAdapter for zone " + mZoneId);
+            }
+            return mPlayback;
+        }
+
+        private boolean isInState(int state) {
+            return mPlaybackState != null && mPlaybackState.getState() == state;
+        }
+
+        private boolean isActive() {
+            return isInState(PlaybackStateCompat.STATE_PLAYING)
+                   || isInState(PlaybackStateCompat.STATE_PAUSED);
+        }
+
+        private void release() {
+            if (mPlayback != null) {
+                mPlayback.stop();
+            }
+            mCallback.release();
+            mSession.release();
+        }
     }
 
-    // MediaSession Callback: Transport Controls -> MediaPlayerAdapter
+    // MediaSession Callback: Transport Controls -> SessionTransport -> MediaPlayerAdapter
     public class MediaSessionCallback extends MediaSessionCompat.Callback {
-        private final List<MediaSessionCompat.QueueItem> mPlaylist = new ArrayList<>();
-        private int mQueueIndex = -1;
-        private MediaMetadataCompat mPreparedMedia;
+        private final PlaybackZone mZone;
+        private final Handler mHandler = new Handler();
+
+        private final SessionTransport.Scheduler mScheduler = new SessionTransport.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                mHandler.removeCallbacks(task);
+                mHandler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                mHandler.removeCallbacks(task);
+            }
+        };
+
+        private final SessionTransport.Session<MediaSessionCompat.QueueItem, MediaMetadataCompat>
+                mTransportSession =
+                new SessionTransport.Session<MediaSessionCompat.QueueItem, MediaMetadataCompat>() {
+                    @Override
+                    public boolean isInCatalog(String mediaId) {
+                        return MusicLibrary.getDescription(mediaId) != null;
+                    }
+
+                    @Override
+                    public MediaSessionCompat.QueueItem refreshQueueItem(
+                            MediaSessionCompat.QueueItem item) {
+                        return new MediaSessionCompat.QueueItem(
+                                MusicLibrary.getDescription(item.getDescription().getMediaId()),
+                                item.getQueueId());
+                    }
+
+                    @Override
+                    public MediaMetadataCompat prepareMedia(String mediaId) {
+                        // Publish the metadata right away, and add the album art once the shared
+                        // decode pool has decoded it (unless it's already cached).
+                        Bitmap albumArt = AlbumArtCache.getCached(mediaId);
+                        MediaMetadataCompat metadata = getMetadata(mediaId, albumArt);
+                        publishMetadata(mZone.mSession, metadata);
+                        if (albumArt == null) {
+                            AlbumArtCache.load(MusicService.this, mediaId, mAlbumArtCallback);
+                        }
+                        if (!mZone.mSession.isActive()) {
+                            mZone.mSession.setActive(true);
+                        }
+                        return metadata;
+                    }
+
+                    @Override
+                    public void onSkipping(String mediaId, boolean toPrevious) {
+                        // Without the album art bitmap, which controllers can load from its uri.
+                        publishMetadata(mZone.mSession, getMetadata(mediaId, null));
+                        if (mZone.mPlaybackState != null) {
+                            publishPlaybackState(
+                                    mZone.mSession,
+                                    new PlaybackStateCompat.Builder(mZone.mPlaybackState)
+                                            .setState(toPrevious
+                                                      ? PlaybackStateCompat
+                                                              .STATE_SKIPPING_TO_PREVIOUS
+                                                      : PlaybackStateCompat
+                                                              .STATE_SKIPPING_TO_NEXT,
+                                                      0, 1.0f, SystemClock.elapsedRealtime())
+                                            .setActiveQueueItemId(getActiveQueueItemId())
+                                            .build());
+                        }
+                    }
+
+                    @Override
+                    public void publishQueue(List<MediaSessionCompat.QueueItem> queue) {
+                        mZone.mSession.setQueue(queue);
+                        sQueuePublished.increment();
+                    }
+                };
+
+        // The player is created once something is prepared or played.
+        private final SessionTransport.Player<MediaMetadataCompat> mTransportPlayer =
+                new SessionTransport.Player<MediaMetadataCompat>() {
+                    @Override
+                    public void prepareFromMedia(MediaMetadataCompat media) {
+                        mZone.getPlayback().prepareFromMedia(media);
+                    }
+
+                    @Override
+                    public void playFromMedia(MediaMetadataCompat media) {
+                        mZone.getPlayback().setGain(getNormalizationGain(media));
+                        mZone.getPlayback().playFromMedia(media);
+                        Log.d(TAG, "onPlayFromMediaId: MediaSession active");
+                    }
+
+                    @Override
+                    public void pause() {
+                        if (mZone.mPlayback != null) {
+                            mZone.mPlayback.pause();
+                        }
+                    }
+
+                    @Override
+                    public void stop() {
+                        if (mZone.mPlayback != null) {
+                            mZone.mPlayback.stop();
+                        }
+                    }
+
+                    @Override
+                    public void seekTo(long positionMs) {
+                        if (mZone.mPlayback != null) {
+                            mZone.mPlayback.seekTo(positionMs);
+                        }
+                    }
+
+                    @Override
+                    public boolean isPlaying(String mediaId) {
+                        PlayerAdapter playback = mZone.mPlayback;
+                        return playback != null && playback.isPlaying()
+                               && playback.getCurrentMedia() != null
+                               && mediaId.equals(
+                                       playback.getCurrentMedia().getDescription().getMediaId());
+                    }
+                };
+
+        private final SessionTransport<MediaSessionCompat.QueueItem, MediaMetadataCompat>
+                mTransport = new SessionTransport<>(QUEUE_ITEM_MEDIA_IDS, METADATA_MEDIA_IDS,
+                                                    mTransportSession, mTransportPlayer,
+                                                    mScheduler);
+        private final PlayQueue<MediaSessionCompat.QueueItem> mQueue = mTransport.getQueue();
+
+        private SkipBenchmark mSkipBenchmark;
+
+        @Nullable
+        private PlaylistImporter mPlaylistImporter;
+        // Imported items can appear more than once, so they get ids of their own, above the
+        // range of the hash codes the ids of added items are.
+        private long mNextImportedQueueId = Integer.MAX_VALUE + 1L;
+
+        private final AlbumArtCache.Callback mAlbumArtCallback = new AlbumArtCache.Callback() {
+            @Override
+            public void onAlbumArtLoaded(@NonNull String mediaId, @Nullable Bitmap albumArt) {
+                // Only update the metadata if the track hasn't changed in the meantime.
+                MediaMetadataCompat prepared = mTransport.getPreparedMedia();
+                if (albumArt == null || prepared == null
+                    || !mediaId.equals(prepared.getDescription().getMediaId())) {
+                    return;
+                }
+                MediaMetadataCompat metadata = getMetadata(mediaId, albumArt);
+                if (metadata != null && mTransport.updatePreparedMedia(metadata)) {
+                    publishMetadata(mZone.mSession, metadata);
+                }
+            }
+        };
+
+        MediaSessionCallback(PlaybackZone zone) {
+            mZone = zone;
+        }
+
+        private void release() {
+            mTransport.release();
+            if (mSkipBenchmark != null) {
+                mSkipBenchmark.cancel();
+            }
+            if (mPlaylistImporter != null) {
+                mPlaylistImporter.cancel();
+            }
+        }
+
+        @Override
+        public void onCommand(String command, Bundle extras, ResultReceiver cb) {
+            final long start = System.nanoTime();
+            if (Metrics.COMMAND_GET_METRICS.equals(command)) {
+                if (cb != null) {
+                    cb.send(RESULT_OK, Metrics.toBundle());
+                }
+            } else if (COMMAND_ADD_ZONE.equals(command)) {
+                PlaybackZone zone = mZones.size() < MAX_ZONES ? addZone() : null;
+                if (cb != null && zone == null) {
+                    cb.send(RESULT_ERROR, null);
+                } else if (cb != null) {
+                    Bundle result = new Bundle();
+                    result.putInt(EXTRA_ZONE_ID, zone.mZoneId);
+                    result.putParcelable(EXTRA_SESSION_TOKEN, zone.getSessionToken());
+                    cb.send(RESULT_OK, result);
+                }
+            } else if (COMMAND_REMOVE_ZONE.equals(command)) {
+                boolean removed = extras != null
+                                  && removeZone(extras.getInt(EXTRA_ZONE_ID, PRIMARY_ZONE_ID));
+                if (cb != null) {
+                    cb.send(removed ? RESULT_OK : RESULT_ERROR, null);
+                }
+            } else if (COMMAND_IMPORT_PLAYLIST.equals(command)) {
+                importPlaylist(extras, cb);
+            } else if (COMMAND_ADD_QUEUE_ITEMS.equals(command)) {
+                List<String> mediaIds =
+                        extras == null ? null : extras.getStringArrayList(EXTRA_MEDIA_IDS);
+                if (mediaIds != null) {
+                    addQueueItems(mediaIds);
+                }
+            } else if (COMMAND_REMOVE_QUEUE_ITEMS.equals(command)) {
+                List<String> mediaIds =
+                        extras == null ? null : extras.getStringArrayList(EXTRA_MEDIA_IDS);
+                if (mediaIds != null) {
+                    removeQueueItems(mediaIds);
+                }
+            } else if (BuildConfig.DEBUG && COMMAND_SKIP_BENCHMARK.equals(command)) {
+                runSkipBenchmark(cb);
+            }
+            sCommandLatency.recordSince(start);
+        }
+
+        private void importPlaylist(@Nullable Bundle extras, @Nullable final ResultReceiver cb) {
+            String uri = extras == null ? null : extras.getString(EXTRA_PLAYLIST_URI);
+            if (uri == null) {
+                if (cb != null) {
+                    cb.send(RESULT_ERROR, null);
+                }
+                return;
+            }
+            if (mPlaylistImporter != null) {
+                mPlaylistImporter.cancel();
+            }
+            final boolean play = extras.getBoolean(EXTRA_PLAY);
+            mPlaylistImporter = new PlaylistImporter(
+                    MusicService.this,
+                    Uri.parse(uri),
+                    new PlaylistImporter.Callback() {
+                        private boolean mFirstChunk = true;
+
+                        @Override
+                        public void onChunk(@NonNull List<String> mediaIds) {
+                            appendToQueue(mediaIds, mFirstChunk, play);
+                            mFirstChunk = false;
+                        }
+
+                        @Override
+                        public void onFinished(@NonNull Bundle result) {
+                            mPlaylistImporter = null;
+                            // Publish what's still pending right away.
+                            mTransport.publishPendingQueue();
+                            if (cb != null) {
+                                cb.send(RESULT_OK, result);
+                            }
+                        }
+                    });
+            mPlaylistImporter.start();
+        }
+
+        private void appendToQueue(List<String> mediaIds, boolean firstChunk, boolean play) {
+            final long start = System.nanoTime();
+            int firstIndex = mQueue.size();
+            List<MediaSessionCompat.QueueItem> items = new ArrayList<>(mediaIds.size());
+            for (String mediaId : mediaIds) {
+                // Shares the catalog's description, so an item only costs the QueueItem.
+                MediaDescriptionCompat description = MusicLibrary.getDescription(mediaId);
+                if (description != null) {
+                    items.add(
+                            new MediaSessionCompat.QueueItem(description, mNextImportedQueueId++));
+                }
+            }
+            if (items.isEmpty()) {
+                return;
+            }
+
+            // The first chunk is published right away, so that it shows up in controllers.
+            mTransport.appendToQueue(items, firstChunk ? 0 : IMPORT_QUEUE_PUBLISH_INTERVAL_MS);
+            if (firstChunk) {
+                if (play) {
+                    mTransport.playFrom(firstIndex);
+                } else if (firstIndex == 0) {
+                    mTransport.prepareWithoutLoading();
+                }
+            }
+            sQueueEditLatency.recordSince(start);
+        }
+
+        private void runSkipBenchmark(@Nullable ResultReceiver cb) {
+            if (!isReadyToPlay()) {
+                if (cb != null) {
+                    cb.send(RESULT_ERROR, null);
+                }
+                return;
+            }
+            if (mSkipBenchmark != null) {
+                mSkipBenchmark.cancel();
+            }
+            mSkipBenchmark = new SkipBenchmark(
+                    mHandler,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            onSkipToNext();
+                        }
+                    },
+                    SkipBenchmark.DEFAULT_SKIPS,
+                    SkipBenchmark.DEFAULT_DURATION_MS,
+                    cb,
+                    RESULT_OK,
+                    RESULT_ERROR);
+            mSkipBenchmark.start();
+        }
+
+        // Called when the player of the zone started playing.
+        void onPlaying() {
+            if (mSkipBenchmark == null || mTransport.isSkipPending()
+                || !mSkipBenchmark.isWaitingForAudio()) {
+                return;
+            }
+            MediaMetadataCompat media = mZone.mPlayback.getCurrentMedia();
+            if (media != null && !mQueue.isEmpty() && media.getDescription().getMediaId().equals(
+                    mQueue.getCurrent().getDescription().getMediaId())) {
+                mSkipBenchmark.onAudible();
+                mSkipBenchmark = null;
+            }
+        }
 
         @Override
         public void onAddQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.add(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mQueueIndex == -1) ? 0 : mQueueIndex;
+            final long start = System.nanoTime();
+            // Clients add the whole catalog again when they resubscribe, which mustn't
+            // duplicate the queue. Tracks that aren't in the catalog (any more) can't be played.
+            mTransport.addQueueItem(
+                    new MediaSessionCompat.QueueItem(description, description.hashCode()));
+            sQueueEditLatency.recordSince(start);
+        }
+
+        private void addQueueItems(List<String> mediaIds) {
+            final long start = System.nanoTime();
+            List<MediaSessionCompat.QueueItem> items = new ArrayList<>(mediaIds.size());
+            for (String mediaId : mediaIds) {
+                // Shares the catalog's description, like imported items.
+                MediaDescriptionCompat description = MusicLibrary.getDescription(mediaId);
+                if (description != null) {
+                    items.add(
+                            new MediaSessionCompat.QueueItem(description, description.hashCode()));
+                }
+            }
+            mTransport.addQueueItems(items);
+            sQueueEditLatency.recordSince(start);
+        }
+
+        private void removeQueueItems(List<String> mediaIds) {
+            final long start = System.nanoTime();
+            mTransport.removeQueueItems(mediaIds);
+            sQueueEditLatency.recordSince(start);
+        }
+
+        // Removes the tracks that are no longer in the catalog from the queue, and gives the
+        // items of updated tracks their new description.
+        void onCatalogChanged(Collection<String> mediaIds) {
+            mTransport.onCatalogChanged(mediaIds);
+        }
+
+        /**
+         * @return the queue id of the current item, or UNKNOWN_ID if the queue is empty.
+         */
+        long getActiveQueueItemId() {
+            MediaSessionCompat.QueueItem current = mQueue.getCurrent();
+            return current == null
+                   ? MediaSessionCompat.QueueItem.UNKNOWN_ID
+                   : current.getQueueId();
         }
 
         @Override
         public void onRemoveQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.remove(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mPlaylist.isEmpty()) ? -1 : mQueueIndex;
+            final long start = System.nanoTime();
+            // QueueItem doesn't implement equals(), so the item is looked up by its media id.
+            mTransport.removeQueueItem(description.getMediaId());
+            sQueueEditLatency.recordSince(start);
         }
 
         @Override
         public void onPrepare() {
-            if (mQueueIndex < 0 && mPlaylist.isEmpty()) {
-                // Nothing to play.
-                return;
+            final long start = System.nanoTime();
+            try {
+                mTransport.prepare();
+            } finally {
+                sPrepareLatency.recordSince(start);
             }
+        }
 
-            final String mediaId = mPlaylist.get(mQueueIndex).getDescription().getMediaId();
-            mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
-            mSession.setMetadata(mPreparedMedia);
-
-            if (!mSession.isActive()) {
-                mSession.setActive(true);
+        // Adds the waveform of the track, once it has been analysed. Null if the track isn't in
+        // the catalog.
+        @Nullable
+        private MediaMetadataCompat getMetadata(String mediaId, @Nullable Bitmap albumArt) {
+            MediaMetadataCompat metadata = MusicLibrary.getMetadata(mediaId, albumArt);
+            if (metadata == null) {
+                return null;
             }
+            TrackAnalysis analysis = mAnalysisManager.getAnalysis(mediaId);
+            return analysis == null ? metadata : analysis.addTo(metadata);
         }
 
-        @Override
-        public void onPlay() {
-            if (!isReadyToPlay()) {
-                // Nothing to play.
+        private float getNormalizationGain(MediaMetadataCompat metadata) {
+            TrackAnalysis analysis =
+                    mAnalysisManager.getAnalysis(metadata.getDescription().getMediaId());
+            return analysis == null ? 1f : analysis.getNormalizationGain();
+        }
+
+        void onTrackAnalyzed(String filename, TrackAnalysis analysis) {
+            MediaMetadataCompat prepared = mTransport.getPreparedMedia();
+            if (prepared == null) {
                 return;
             }
-
-            if (mPreparedMedia == null) {
-                onPrepare();
+            String mediaId = prepared.getDescription().getMediaId();
+            if (!filename.equals(MusicLibrary.getMusicFilename(mediaId))) {
+                return;
+            }
+            prepared = analysis.addTo(prepared);
+            mTransport.updatePreparedMedia(prepared);
+            publishMetadata(mZone.mSession, prepared);
+            PlayerAdapter playback = mZone.mPlayback;
+            if (playback != null && playback.getCurrentMedia() != null
+                && mediaId.equals(playback.getCurrentMedia().getDescription().getMediaId())) {
+                playback.setGain(analysis.getNormalizationGain());
             }
+        }
 
-            mPlayback.playFromMedia(mPreparedMedia);
-            Log.d(TAG, "onPlayFromMediaId: MediaSession active");
+        @Override
+        public void onPlay() {
+            final long start = System.nanoTime();
+            try {
+                mTransport.play();
+            } finally {
+                sPlayLatency.recordSince(start);
+            }
         }
 
         @Override
         public void onPause() {
-            mPlayback.pause();
+            final long start = System.nanoTime();
+            mTransport.pause();
+            sPauseLatency.recordSince(start);
         }
 
         @Override
         public void onStop() {
-            mPlayback.stop();
+            final long start = System.nanoTime();
+            mTransport.stop();
+            sStopLatency.recordSince(start);
         }
 
         @Override
         public void onSkipToNext() {
-            mQueueIndex = (++mQueueIndex % mPlaylist.size());
-            mPreparedMedia = null;
-            onPlay();
+            final long start = System.nanoTime();
+            mTransport.skipToNext();
+            sSkipLatency.recordSince(start);
         }
 
         @Override
         public void onSkipToPrevious() {
-            mQueueIndex = mQueueIndex > 0 ? mQueueIndex - 1 : mPlaylist.size() - 1;
-            mPreparedMedia = null;
-            onPlay();
+            final long start = System.nanoTime();
+            mTransport.skipToPrevious();
+            sSkipLatency.recordSince(start);
         }
 
         @Override
         public void onSeekTo(long pos) {
-            mPlayback.seekTo(pos);
+            final long start = System.nanoTime();
+            mTransport.seekTo(pos);
+            sSeekLatency.recordSince(start);
         }
 
         private boolean isReadyToPlay() {
-            return (!mPlaylist.isEmpty());
+            return (!mQueue.isEmpty());
         }
     }
 
     // MediaPlayerAdapter Callback: MediaPlayerAdapter state -> MusicService.
     public class MediaPlayerListener extends PlaybackInfoListener {
 
-        private final ServiceManager mServiceManager;
+        private final PlaybackZone mZone;
 
-        MediaPlayerListener() {
-            mServiceManager = new ServiceManager();
+        MediaPlayerListener(PlaybackZone zone) {
+            mZone = zone;
         }
 
         @Override
         public void onPlaybackStateChange(PlaybackStateCompat state) {
-            // Report the state to the MediaSession.
-            mSession.setPlaybackState(state);
+            // Report the state to the MediaSession, along with the item of the queue it's about.
+            state = new PlaybackStateCompat.Builder(state)
+                    .setActiveQueueItemId(mZone.mCallback.getActiveQueueItemId())
+                    .build();
+            mZone.mPlaybackState = state;
+            publishPlaybackState(mZone.mSession, state);
 
             // Manage the started state of this service.
             switch (state.getState()) {
                 case PlaybackStateCompat.STATE_PLAYING:
-                    mServiceManager.moveServiceToStartedState(state);
+                    mStartupTrace.markFirstAudio();
+                    mServiceManager.moveServiceToStartedState(mZone, state);
+                    mZone.mCallback.onPlaying();
                     break;
                 case PlaybackStateCompat.STATE_PAUSED:
-                    mServiceManager.updateNotificationForPause(state);
+                    mServiceManager.updateNotificationForPause(mZone, state);
                     break;
                 case PlaybackStateCompat.STATE_STOPPED:
-                    mServiceManager.moveServiceOutOfStartedState(state);
+                    mServiceManager.moveServiceOutOfStartedState(mZone);
                     break;
             }
+            onPlaybackActivityChanged();
         }
 
-        class ServiceManager {
+        @Override
+        public void onMediaStarted(MediaMetadataCompat media) {
+            mBrowseManager.onPlayed(media.getDescription().getMediaId());
+        }
+    }
 
-            private void moveServiceToStartedState(PlaybackStateCompat state) {
-                Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mPlayback.getCurrentMedia(), state, getSessionToken());
+    // Manages the started and foreground state of this service across all zones. The service is
+    // in the foreground while any zone is playing, using the notification of one of them.
+    class ServiceManager {
 
-                if (!mServiceInStartedState) {
-                    ContextCompat.startForegroundService(
-                            MusicService.this,
-                            new Intent(MusicService.this, MusicService.class));
-                    mServiceInStartedState = true;
-                }
+        private static final int NO_ZONE = -1;
 
-                startForeground(MediaNotificationManager.NOTIFICATION_ID, notification);
+        private int mForegroundZoneId = NO_ZONE;
+
+        private void moveServiceToStartedState(PlaybackZone zone, PlaybackStateCompat state) {
+            if (!mServiceInStartedState) {
+                ContextCompat.startForegroundService(
+                        MusicService.this,
+                        new Intent(MusicService.this, MusicService.class));
+                mServiceInStartedState = true;
             }
 
-            private void updateNotificationForPause(PlaybackStateCompat state) {
-                stopForeground(false);
-                Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mPlayback.getCurrentMedia(), state, getSessionToken());
-                mMediaNotificationManager.getNotificationManager()
-                        .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+            if (mForegroundZoneId == NO_ZONE) {
+                enterForeground(zone, state);
+            } else {
+                // Already in the foreground, only post the notification if it changed.
+                getMediaNotificationManager().updateNotification(
+                        zone.mZoneId,
+                        zone.mPlayback.getCurrentMedia(),
+                        state,
+                        zone.getSessionToken());
             }
+        }
 
-            private void moveServiceOutOfStartedState(PlaybackStateCompat state) {
-                stopForeground(true);
-                stopSelf();
-                mServiceInStartedState = false;
+        private void updateNotificationForPause(PlaybackZone zone, PlaybackStateCompat state) {
+            if (mForegroundZoneId == zone.mZoneId) {
+                leaveForeground(zone, false);
             }
+            getMediaNotificationManager().updateNotification(
+                    zone.mZoneId, zone.mPlayback.getCurrentMedia(), state, zone.getSessionToken());
         }
 
+        private void moveServiceOutOfStartedState(PlaybackZone zone) {
+            if (mForegroundZoneId == zone.mZoneId) {
+                leaveForeground(zone, true);
+            }
+            if (mMediaNotificationManager != null) {
+                mMediaNotificationManager.cancel(zone.mZoneId);
+            }
+
+            for (int i = 0; i < mZones.size(); i++) {
+                if (mZones.valueAt(i).isActive()) {
+                    // Other zones are still in use.
+                    return;
+                }
+            }
+            stopSelf();
+            mServiceInStartedState = false;
+        }
+
+        private void enterForeground(PlaybackZone zone, PlaybackStateCompat state) {
+            Notification notification =
+                    getMediaNotificationManager().getNotification(
+                            zone.mZoneId,
+                            zone.mPlayback.getCurrentMedia(),
+                            state,
+                            zone.getSessionToken());
+            startForeground(
+                    MediaNotificationManager.getNotificationId(zone.mZoneId), notification);
+            mForegroundZoneId = zone.mZoneId;
+        }
+
+        // Hands the foreground over to another playing zone if there is one, otherwise takes the
+        // service out of the foreground.
+        private void leaveForeground(PlaybackZone zone, boolean removeNotification) {
+            for (int i = 0; i < mZones.size(); i++) {
+                PlaybackZone other = mZones.valueAt(i);
+                if (other != zone && other.isInState(PlaybackStateCompat.STATE_PLAYING)) {
+                    enterForeground(other, other.mPlaybackState);
+                    return;
+                }
+            }
+            stopForeground(removeNotification);
+            if (removeNotification && mMediaNotificationManager != null) {
+                mMediaNotificationManager.reset(zone.mZoneId);
+            }
+            mForegroundZoneId = NO_ZONE;
+        }
     }
 
-}
\ No newline at end of file
+}
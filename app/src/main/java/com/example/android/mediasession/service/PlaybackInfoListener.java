@@ -17,6 +17,7 @@
 package com.example.android.mediasession.service;
 
 import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
 public abstract class PlaybackInfoListener {
@@ -24,6 +25,12 @@ public abstract class PlaybackInfoListener {
     public void onPlaybackCompleted() {
     }
 
+    /**
+     * Called the first time newly loaded media starts playing, as opposed to when it's resumed.
+     */
+    public void onMediaStarted(MediaMetadataCompat media) {
+    }
+
     public abstract void onPlaybackStateChange(PlaybackStateCompat state);
 
 }
\ No newline at end of file
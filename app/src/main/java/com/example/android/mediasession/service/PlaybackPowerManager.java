@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Gauge;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the device awake for a player while its audio is flowing, and no longer: a partial wake
+ * lock (unless the player holds one itself), and a Wi-Fi lock if it streams. Both are released
+ * as soon as playback pauses or stops. Reports how long each lock was held, and how often the
+ * threads of this process woke up per minute while any player was playing. Only used on the main
+ * thread.
+ */
+public final class PlaybackPowerManager {
+
+    private static final String TAG = "MS_PlaybackPowerManager";
+
+    private static final Counter sWakeLockMillis = Metrics.counter("power.wake_lock_ms");
+    private static final Counter sWifiLockMillis = Metrics.counter("power.wifi_lock_ms");
+    private static final Counter sPlaybackMillis = Metrics.counter("power.playback_ms");
+    private static final Gauge sWakeupsPerMinute = Metrics.gauge("power.wakeups_per_minute");
+
+    private static final long NOT_HELD = -1;
+
+    // Shared by the players, since the wakeups it counts are those of the whole process.
+    private static final WakeupSampler sWakeupSampler = new WakeupSampler();
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final WifiManager.WifiLock mWifiLock;
+
+    private long mFlowingSince = NOT_HELD;
+    private long mWakeLockSince = NOT_HELD;
+    private long mWifiLockSince = NOT_HELD;
+
+    PlaybackPowerManager(Context context) {
+        Context appContext = context.getApplicationContext();
+        PowerManager powerManager =
+                (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+        WifiManager wifiManager = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE);
+        mWifiLock = wifiManager == null
+                    ? null
+                    : wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+        if (mWifiLock != null) {
+            mWifiLock.setReferenceCounted(false);
+        }
+    }
+
+    /**
+     * @param flowing         whether audio is playing, or being buffered to play.
+     * @param streaming       whether the audio comes over the network.
+     * @param playerWakeLock  whether the player keeps the CPU awake itself while playing.
+     */
+    void update(boolean flowing, boolean streaming, boolean playerWakeLock) {
+        long now = SystemClock.elapsedRealtime();
+        if (flowing && mFlowingSince == NOT_HELD) {
+            mFlowingSince = now;
+            sWakeupSampler.onStartedFlowing(now);
+        } else if (!flowing && mFlowingSince != NOT_HELD) {
+            onStoppedFlowing(now);
+        }
+
+        if (flowing && !playerWakeLock) {
+            if (mWakeLockSince == NOT_HELD) {
+                mWakeLock.acquire();
+                mWakeLockSince = now;
+            }
+        } else if (mWakeLockSince != NOT_HELD) {
+            mWakeLock.release();
+            sWakeLockMillis.add(now - mWakeLockSince);
+            mWakeLockSince = NOT_HELD;
+        }
+
+        if (flowing && streaming && mWifiLock != null) {
+            if (mWifiLockSince == NOT_HELD) {
+                mWifiLock.acquire();
+                mWifiLockSince = now;
+            }
+        } else if (mWifiLockSince != NOT_HELD) {
+            mWifiLock.release();
+            sWifiLockMillis.add(now - mWifiLockSince);
+            mWifiLockSince = NOT_HELD;
+        }
+    }
+
+    /**
+     * Releases both locks.
+     */
+    void release() {
+        update(false, false, false);
+    }
+
+    private void onStoppedFlowing(long now) {
+        long playedMillis = now - mFlowingSince;
+        mFlowingSince = NOT_HELD;
+        sPlaybackMillis.add(playedMillis);
+        sWakeupSampler.onStoppedFlowing(now);
+        Log.d(TAG, "onStoppedFlowing: played " + playedMillis + "ms, wake lock "
+                   + describeHeld(mWakeLockSince, now)
+                   + ", wifi lock " + describeHeld(mWifiLockSince, now));
+    }
+
+    private static String describeHeld(long since, long now) {
+        return since == NOT_HELD ? "not held" : "held " + (now - since) + "ms";
+    }
+
+    // Counts the wakeups of this process from when the first player starts playing until the
+    // last one stops. Counting them reads a file per thread, so it's done on a thread of its own,
+    // which only exists while it has something to count.
+    private static final class WakeupSampler {
+
+        private static final long KEEP_ALIVE_SECONDS = 10;
+
+        private final ThreadPoolExecutor mExecutor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(final Runnable runnable) {
+                                return new Thread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(
+                                                Process.THREAD_PRIORITY_BACKGROUND);
+                                        runnable.run();
+                                    }
+                                }, "WakeupSampler");
+                            }
+                        });
+
+        // Only used on the main thread.
+        private int mFlowing;
+        private long mFlowingSince;
+
+        // Only used on the executor.
+        private long mWakeupsAtStart;
+
+        WakeupSampler() {
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        void onStartedFlowing(long now) {
+            if (mFlowing++ > 0) {
+                return;
+            }
+            mFlowingSince = now;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mWakeupsAtStart = countWakeups();
+                }
+            });
+        }
+
+        void onStoppedFlowing(long now) {
+            if (--mFlowing > 0) {
+                return;
+            }
+            final long playedMillis = now - mFlowingSince;
+            if (playedMillis < TimeUnit.SECONDS.toMillis(1)) {
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long wakeups = countWakeups() - mWakeupsAtStart;
+                    if (mWakeupsAtStart < 0 || wakeups < 0) {
+                        return;
+                    }
+                    long perMinute = wakeups * TimeUnit.MINUTES.toMillis(1) / playedMillis;
+                    sWakeupsPerMinute.set(perMinute);
+                    Log.d(TAG, "onStoppedFlowing: played " + playedMillis + "ms, "
+                               + perMinute + " wakeups/min");
+                }
+            });
+        }
+    }
+
+    // The voluntary context switches of every thread of this process, i.e. how many times they
+    // went to sleep and were woken up again. -1 if they can't be read.
+    private static long countWakeups() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return -1;
+        }
+        long total = 0;
+        for (File task : tasks) {
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new FileReader(new File(task, "status")));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("voluntary_ctxt_switches:")) {
+                            total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                            break;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException | NumberFormatException e) {
+                // The thread exited meanwhile.
+            }
+        }
+        return total;
+    }
+}
@@ -21,11 +21,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
-import android.net.wifi.WifiManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
+import com.example.android.mediasession.service.analytics.PlaybackEventLog;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
 /**
  * Abstract player implementation that handles playing music with proper handling of headphones
  * and audio focus.
@@ -35,6 +39,13 @@ public abstract class PlayerAdapter {
     private static final float MEDIA_VOLUME_DEFAULT = 1.0f;
     private static final float MEDIA_VOLUME_DUCK = 0.2f;
 
+    private static final Counter sFocusRequestDenied = Metrics.counter("audiofocus.denied");
+    private static final Counter sFocusGain = Metrics.counter("audiofocus.gain");
+    private static final Counter sFocusLoss = Metrics.counter("audiofocus.loss");
+    private static final Counter sFocusLossTransient =
+            Metrics.counter("audiofocus.loss_transient");
+    private static final Counter sFocusDuck = Metrics.counter("audiofocus.duck");
+
     private static final IntentFilter AUDIO_NOISY_INTENT_FILTER =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 
@@ -54,21 +65,68 @@ public abstract class PlayerAdapter {
     private final Context mApplicationContext;
     private final AudioManager mAudioManager;
     private final AudioFocusHelper mAudioFocusHelper;
+    private final PlaybackPowerManager mPowerManager;
 
     private boolean mPlayOnAudioFocus = false;
 
+    // The volume is the focus volume (ducked or not) times the loudness normalization gain.
+    private float mFocusVolume = MEDIA_VOLUME_DEFAULT;
+    private float mGain = 1.0f;
+
+    @Nullable
+    private PlaybackEventLog mEventLog;
+
     public PlayerAdapter(@NonNull Context context) {
         mApplicationContext = context.getApplicationContext();
         mAudioManager = (AudioManager) mApplicationContext.getSystemService(Context.AUDIO_SERVICE);
         mAudioFocusHelper = new AudioFocusHelper();
+        mPowerManager = new PlaybackPowerManager(mApplicationContext);
     }
 
     public abstract void playFromMedia(MediaMetadataCompat metadata);
 
+    /**
+     * Loads media ahead of a {@link #playFromMedia(MediaMetadataCompat)} of it, without playing
+     * it, so that playing it only has to start it. Playing or preparing other media cancels the
+     * loading. It's only a hint: implementations may skip media that is costly to load ahead
+     * (e.g. streamed media), and let go of what they loaded if it isn't played for a while. Does
+     * nothing by default.
+     */
+    public void prepareFromMedia(MediaMetadataCompat metadata) {
+    }
+
     public abstract MediaMetadataCompat getCurrentMedia();
 
     public abstract boolean isPlaying();
 
+    /**
+     * Sets the log that playback events of this player are written to.
+     */
+    public void setEventLog(@Nullable PlaybackEventLog eventLog) {
+        mEventLog = eventLog;
+    }
+
+    /**
+     * Writes an event about the current media to the event log, if there is one. Doesn't
+     * allocate, so it's safe to call on the playback path.
+     *
+     * @param type one of the PlaybackEventLog.EVENT_ constants.
+     */
+    protected final void logEvent(int type, long positionMs) {
+        if (mEventLog != null) {
+            MediaMetadataCompat media = getCurrentMedia();
+            String mediaId = media == null ? null : media.getDescription().getMediaId();
+            mEventLog.write(type, mediaId == null ? 0 : mediaId.hashCode(), positionMs);
+        }
+    }
+
+    /**
+     * @return the current playback position, used for event logging.
+     */
+    protected long getCurrentPosition() {
+        return 0;
+    }
+
     public final void play() {
         if (mAudioFocusHelper.requestAudioFocus()) {
             registerAudioNoisyReceiver();
@@ -85,6 +143,7 @@ public abstract class PlayerAdapter {
         mAudioFocusHelper.abandonAudioFocus();
         unregisterAudioNoisyReceiver();
         onPause();
+        setAudioFlowing(false);
     }
 
     /**
@@ -96,6 +155,7 @@ public abstract class PlayerAdapter {
         mAudioFocusHelper.abandonAudioFocus();
         unregisterAudioNoisyReceiver();
         onStop();
+        mPowerManager.release();
     }
 
     /**
@@ -106,8 +166,55 @@ public abstract class PlayerAdapter {
 
     public abstract void seekTo(long position);
 
+    /**
+     * Tells whether audio is playing, or being buffered to play, which keeps the device awake.
+     * Players call this whenever that changes.
+     */
+    protected final void setAudioFlowing(boolean flowing) {
+        mPowerManager.update(flowing, isStreaming(), holdsWakeLock());
+    }
+
+    /**
+     * @return true if the media comes over the network, which keeps Wi-Fi awake while the audio
+     * is flowing.
+     */
+    protected boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * @return true if the player keeps the CPU awake by itself while it plays, like a
+     * MediaPlayer with a wake mode set.
+     */
+    protected boolean holdsWakeLock() {
+        return false;
+    }
+
+    /**
+     * Sets the volume of the player, see {@link #getVolume()}.
+     */
     public abstract void setVolume(float volume);
 
+    /**
+     * Sets the gain that normalizes the loudness of the current media, from 0 to 1.
+     */
+    public final void setGain(float gain) {
+        mGain = Math.max(0f, Math.min(1f, gain));
+        setVolume(getVolume());
+    }
+
+    /**
+     * @return the volume the player should be at, for players to apply when they're created.
+     */
+    protected final float getVolume() {
+        return mFocusVolume * mGain;
+    }
+
+    private void setFocusVolume(float volume) {
+        mFocusVolume = volume;
+        setVolume(getVolume());
+    }
+
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
             mApplicationContext.registerReceiver(mAudioNoisyReceiver, AUDIO_NOISY_INTENT_FILTER);
@@ -132,7 +239,11 @@ public abstract class PlayerAdapter {
             final int result = mAudioManager.requestAudioFocus(this,
                     AudioManager.STREAM_MUSIC,
                     AudioManager.AUDIOFOCUS_GAIN);
-            return result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+            if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+                sFocusRequestDenied.increment();
+                return false;
+            }
+            return true;
         }
 
         /* package */ void abandonAudioFocus() {
@@ -143,22 +254,30 @@ public abstract class PlayerAdapter {
         public void onAudioFocusChange(int focusChange) {
             switch (focusChange) {
                 case AudioManager.AUDIOFOCUS_GAIN:
+                    sFocusGain.increment();
+                    logEvent(PlaybackEventLog.EVENT_FOCUS_GAIN, getCurrentPosition());
                     if (mPlayOnAudioFocus && !isPlaying()) {
                         play();
-                    } else if (isPlaying()) {
-                        setVolume(MEDIA_VOLUME_DEFAULT);
                     }
+                    // Also when not playing, so that a player created later isn't ducked.
+                    setFocusVolume(MEDIA_VOLUME_DEFAULT);
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    setVolume(MEDIA_VOLUME_DUCK);
+                    sFocusDuck.increment();
+                    logEvent(PlaybackEventLog.EVENT_FOCUS_DUCK, getCurrentPosition());
+                    setFocusVolume(MEDIA_VOLUME_DUCK);
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                    sFocusLossTransient.increment();
+                    logEvent(PlaybackEventLog.EVENT_FOCUS_LOSS_TRANSIENT, getCurrentPosition());
                     if (isPlaying()) {
                         mPlayOnAudioFocus = true;
                         pause();
                     }
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS:
+                    sFocusLoss.increment();
+                    logEvent(PlaybackEventLog.EVENT_FOCUS_LOSS, getCurrentPosition());
                     mAudioManager.abandonAudioFocus(this);
                     stop();
                     break;
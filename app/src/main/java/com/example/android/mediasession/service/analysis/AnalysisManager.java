@@ -0,0 +1,436 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.analysis;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Gauge;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyses every track of the catalog in the background, once: decodes it and works out its
+ * waveform peaks, integrated loudness and true peak, see {@link TrackAnalysis}. Tracks are
+ * analysed in parallel on a small fork/join pool of low priority threads, and each result is
+ * saved to a sidecar file named after the hash of the track's content. Tracks that already
+ * have one are skipped, so analysis picks up where it left off after the service is restarted,
+ * and tracks added to the catalog later are analysed as they come.
+ */
+public final class AnalysisManager implements MusicLibrary.OnCatalogChangedListener {
+
+    private static final String TAG = "MS_AnalysisManager";
+
+    /**
+     * Notified on the main thread when a track has been analysed, or its analysis was loaded.
+     */
+    public interface Listener {
+
+        void onTrackAnalyzed(@NonNull String filename, @NonNull TrackAnalysis analysis);
+    }
+
+    private static final String DIRECTORY = "analysis";
+    private static final String SIDECAR_SUFFIX = ".bin";
+
+    private static final float DEFAULT_DUTY_CYCLE = 0.5f;
+
+    private static final Counter sTracksAnalyzed = Metrics.counter("analysis.tracks");
+    private static final Counter sTracksCached = Metrics.counter("analysis.tracks_cached");
+    private static final Counter sFailures = Metrics.counter("analysis.failures");
+    private static final Histogram sTrackLatency = Metrics.latency("analysis.track");
+    private static final Gauge sTracksPerMinute = Metrics.gauge("analysis.tracks_per_minute");
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    @Nullable
+    private final Listener mListener;
+
+    // Keyed by filename, since test tracks share the files of the real ones.
+    private final ConcurrentHashMap<String, TrackAnalysis> mAnalyses = new ConcurrentHashMap<>();
+    // Filenames that have been handed to the pool, whether or not they're done.
+    private final Set<String> mScheduled =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ForkJoinPool mPool;
+    private int mParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final Object mPauseLock = new Object();
+    private volatile float mDutyCycle = DEFAULT_DUTY_CYCLE;
+    private volatile boolean mPauseWhilePlaying = true;
+    private volatile boolean mPlaybackActive;
+    private volatile boolean mReleased;
+
+    // For working out throughput, over the tracks decoded since the pool last went idle.
+    private final AtomicInteger mBatchTracks = new AtomicInteger();
+    private volatile long mBatchStartNanos;
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            MusicLibrary.addOnCatalogChangedListener(AnalysisManager.this);
+            List<String> mediaIds = new ArrayList<>();
+            for (MediaBrowserCompat.MediaItem item : MusicLibrary.getMediaItems()) {
+                mediaIds.add(item.getMediaId());
+            }
+            schedule(mediaIds);
+        }
+    };
+
+    public AnalysisManager(@NonNull Context context, @Nullable Listener listener) {
+        mContext = context.getApplicationContext();
+        mDirectory = new File(mContext.getFilesDir(), DIRECTORY);
+        mListener = listener;
+    }
+
+    /**
+     * Sets how many tracks are analysed at once. Only takes effect before {@link #start(long)}.
+     */
+    public void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sets the share of the time each analysis thread spends working, from 0.05 to 1, sleeping
+     * the rest of the time.
+     */
+    public void setDutyCycle(float dutyCycle) {
+        mDutyCycle = Math.max(0.05f, Math.min(1f, dutyCycle));
+    }
+
+    /**
+     * Sets whether analysis is paused while anything is playing. On by default.
+     */
+    public void setPauseWhilePlaying(boolean pauseWhilePlaying) {
+        mPauseWhilePlaying = pauseWhilePlaying;
+        wakeUp();
+    }
+
+    /**
+     * Tells whether anything is playing, which pauses analysis unless it was told otherwise.
+     */
+    public void setPlaybackActive(boolean playbackActive) {
+        if (mPlaybackActive != playbackActive) {
+            mPlaybackActive = playbackActive;
+            wakeUp();
+        }
+    }
+
+    /**
+     * Starts analysing the catalog after the given delay, so that it doesn't get in the way of
+     * the service starting up.
+     */
+    public void start(long delayMs) {
+        mMainHandler.postDelayed(mStart, delayMs);
+    }
+
+    /**
+     * @return the analysis of the given track, or null if it hasn't been analysed yet.
+     */
+    @Nullable
+    public TrackAnalysis getAnalysis(@Nullable String mediaId) {
+        String filename = mediaId == null ? null : MusicLibrary.getMusicFilename(mediaId);
+        return filename == null ? null : mAnalyses.get(filename);
+    }
+
+    /**
+     * Stops analysing. Tracks that were being analysed will be analysed again next time.
+     */
+    public void release() {
+        mReleased = true;
+        mMainHandler.removeCallbacks(mStart);
+        MusicLibrary.removeOnCatalogChangedListener(this);
+        wakeUp();
+        if (mPool != null) {
+            mPool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onCatalogChanged(long version, @NonNull Collection<String> mediaIds) {
+        schedule(mediaIds);
+    }
+
+    @Override
+    public String toString() {
+        return "analysed=" + mAnalyses.size() + ", scheduled=" + mScheduled.size()
+               + ", tracksPerMinute=" + sTracksPerMinute.get()
+               + (isPaused() ? ", paused" : "");
+    }
+
+    private void schedule(Collection<String> mediaIds) {
+        if (mReleased) {
+            return;
+        }
+        List<String> filenames = new ArrayList<>();
+        for (String mediaId : mediaIds) {
+            String filename = MusicLibrary.getMusicFilename(mediaId);
+            // Streamed tracks would have to be downloaded just for this.
+            if (filename != null
+                && !MusicLibrary.isStreamed(filename)
+                && mScheduled.add(filename)) {
+                filenames.add(filename);
+            }
+        }
+        if (filenames.isEmpty()) {
+            return;
+        }
+        if (mPool == null) {
+            mPool = new ForkJoinPool(mParallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    return new AnalysisThread(pool);
+                }
+            }, null, false);
+        }
+        if (mPool.isQuiescent()) {
+            mBatchTracks.set(0);
+            mBatchStartNanos = System.nanoTime();
+        }
+        mPool.execute(new AnalyzeTracks(filenames, 0, filenames.size()));
+    }
+
+    private boolean isPaused() {
+        return mPauseWhilePlaying && mPlaybackActive && !mReleased;
+    }
+
+    private void wakeUp() {
+        synchronized (mPauseLock) {
+            mPauseLock.notifyAll();
+        }
+    }
+
+    // Splits the tracks in halves until there's one left, so that idle workers steal them.
+    private final class AnalyzeTracks extends RecursiveAction {
+
+        private final List<String> mFilenames;
+        private final int mFrom;
+        private final int mTo;
+
+        AnalyzeTracks(List<String> filenames, int from, int to) {
+            mFilenames = filenames;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new AnalyzeTracks(mFilenames, mFrom, middle),
+                          new AnalyzeTracks(mFilenames, middle, mTo));
+            } else if (!mReleased) {
+                analyzeTrack(mFilenames.get(mFrom));
+            }
+        }
+    }
+
+    // Runs on the pool.
+    private void analyzeTrack(String filename) {
+        final long start = System.nanoTime();
+        try {
+            String contentHash = hash(filename);
+            File sidecar = new File(mDirectory, contentHash + SIDECAR_SUFFIX);
+            TrackAnalysis analysis = readSidecar(sidecar);
+            if (analysis != null) {
+                sTracksCached.increment();
+            } else {
+                AssetFileDescriptor file = mContext.getAssets().openFd(filename);
+                try {
+                    analysis = AudioAnalyzer.analyze(file, contentHash, mThrottle);
+                } finally {
+                    file.close();
+                }
+                if (analysis == null) {
+                    // Cancelled.
+                    mScheduled.remove(filename);
+                    return;
+                }
+                writeSidecar(sidecar, analysis);
+                sTracksAnalyzed.increment();
+                sTrackLatency.recordSince(start);
+                updateThroughput();
+                Log.d(TAG, "analyzeTrack: " + filename + " " + analysis + " in "
+                           + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+            onAnalyzed(filename, analysis);
+        } catch (IOException | RuntimeException e) {
+            sFailures.increment();
+            Log.w(TAG, "analyzeTrack: Can't analyse " + filename, e);
+        } catch (InterruptedException e) {
+            mScheduled.remove(filename);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onAnalyzed(final String filename, final TrackAnalysis analysis) {
+        mAnalyses.put(filename, analysis);
+        if (mListener != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mReleased) {
+                        mListener.onTrackAnalyzed(filename, analysis);
+                    }
+                }
+            });
+        }
+    }
+
+    private void updateThroughput() {
+        int tracks = mBatchTracks.incrementAndGet();
+        long elapsedNanos = System.nanoTime() - mBatchStartNanos;
+        if (elapsedNanos > 0) {
+            sTracksPerMinute.set(tracks * TimeUnit.MINUTES.toNanos(1) / elapsedNanos);
+        }
+        if (mPool.getQueuedTaskCount() == 0 && mPool.getActiveThreadCount() <= 1) {
+            Log.d(TAG, "updateThroughput: Analysed " + tracks + " tracks in "
+                       + TimeUnit.NANOSECONDS.toSeconds(elapsedNanos) + "s, "
+                       + sTracksPerMinute.get() + " tracks/min");
+        }
+    }
+
+    private final AudioAnalyzer.Throttle mThrottle = new AudioAnalyzer.Throttle() {
+        @Override
+        public boolean onBuffer(long busyNanos) throws InterruptedException {
+            synchronized (mPauseLock) {
+                while (isPaused()) {
+                    mPauseLock.wait();
+                }
+            }
+            if (mReleased) {
+                return false;
+            }
+            float dutyCycle = mDutyCycle;
+            if (dutyCycle < 1f) {
+                long sleepNanos = (long) (busyNanos * (1f - dutyCycle) / dutyCycle);
+                SystemClock.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos));
+            }
+            return true;
+        }
+    };
+
+    private String hash(String filename) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream input = mContext.getAssets().open(filename);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Nullable
+    private static TrackAnalysis readSidecar(File sidecar) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream input =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            try {
+                return TrackAnalysis.read(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "readSidecar: Can't read " + sidecar, e);
+            return null;
+        }
+    }
+
+    private void writeSidecar(File sidecar, TrackAnalysis analysis) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        // Written aside and renamed, so that a half written file is never read back.
+        File temp = new File(mDirectory, sidecar.getName() + ".tmp");
+        DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            analysis.write(output);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(sidecar)) {
+            throw new IOException("Can't rename " + temp);
+        }
+    }
+
+    private static final class AnalysisThread extends ForkJoinWorkerThread {
+
+        private static final AtomicInteger sCount = new AtomicInteger();
+
+        AnalysisThread(ForkJoinPool pool) {
+            super(pool);
+            setName("AudioAnalysis-" + sCount.incrementAndGet());
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        }
+    }
+}
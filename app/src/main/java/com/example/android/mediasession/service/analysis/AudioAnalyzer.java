@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.analysis;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes one track with MediaCodec and measures it with a {@link LoudnessMeter}. Runs on an
+ * analysis worker, and sleeps as the {@link Throttle} says between buffers so that it doesn't
+ * compete with playback.
+ */
+final class AudioAnalyzer {
+
+    interface Throttle {
+
+        /**
+         * Called between buffers. Blocks while analysis is paused.
+         *
+         * @param busyNanos how long the last buffer took to decode and measure.
+         * @return false if analysis was cancelled.
+         */
+        boolean onBuffer(long busyNanos) throws InterruptedException;
+    }
+
+    static final int PEAK_COUNT = 512;
+
+    private static final long TIMEOUT_US = 10000;
+    // Spread the peaks over this long if the track doesn't say how long it is.
+    private static final long DEFAULT_DURATION_US = 10 * 60 * 1000000L;
+
+    private AudioAnalyzer() {
+    }
+
+    /**
+     * @return the analysis, or null if it was cancelled.
+     */
+    static TrackAnalysis analyze(AssetFileDescriptor file, String contentHash, Throttle throttle)
+            throws IOException, InterruptedException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(
+                    file.getFileDescriptor(), file.getStartOffset(), file.getLength());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                throw new IOException("No audio track");
+            }
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                              ? format.getLong(MediaFormat.KEY_DURATION)
+                              : DEFAULT_DURATION_US;
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            LoudnessMeter meter = decode(extractor, codec, format, durationUs, throttle);
+            if (meter == null) {
+                return null;
+            }
+            return new TrackAnalysis(contentHash,
+                                     durationUs / 1000,
+                                     meter.getIntegratedLoudness(),
+                                     meter.getTruePeak(),
+                                     meter.getPeaks());
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static LoudnessMeter decode(MediaExtractor extractor,
+                                        MediaCodec codec,
+                                        MediaFormat inputFormat,
+                                        long durationUs,
+                                        Throttle throttle) throws InterruptedException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        LoudnessMeter meter = null;
+        int sampleRate = inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = inputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        boolean inputDone = false;
+        long busyStart = System.nanoTime();
+        while (true) {
+            if (!inputDone) {
+                int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    ByteBuffer input = codec.getInputBuffer(inputIndex);
+                    int size = extractor.readSampleData(input, 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(
+                                inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(
+                                inputIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // The decoder knows the actual rate and channels, which may differ from the
+                // container's.
+                MediaFormat outputFormat = codec.getOutputFormat();
+                sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            } else if (outputIndex >= 0) {
+                if (meter == null) {
+                    meter = new LoudnessMeter(sampleRate, channels,
+                                              durationUs * sampleRate / 1000000, PEAK_COUNT);
+                }
+                ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                if (output != null && info.size > 0) {
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    meter.process(output.order(ByteOrder.nativeOrder()).asShortBuffer());
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return meter != null
+                           ? meter
+                           : new LoudnessMeter(sampleRate, channels, 1, PEAK_COUNT);
+                }
+                if (!throttle.onBuffer(System.nanoTime() - busyStart)) {
+                    return null;
+                }
+                busyStart = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.analysis;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures a track from its decoded 16 bit PCM, fed in order: the integrated loudness and the
+ * true peak as in ITU-R BS.1770 (with every channel weighted equally, and the true peak
+ * approximated by cubic interpolation at 4x), and the peak level of each of a number of equal
+ * slices of the track, for drawing its waveform.
+ */
+final class LoudnessMeter {
+
+    static final float SILENCE_LUFS = -70f;
+
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final int SUB_BLOCKS_PER_BLOCK = 4; // 400ms blocks, overlapping by 75%.
+
+    private final int mChannels;
+    private final long mExpectedFrames;
+    private final int mSubBlockFrames;
+
+    // K-weighting filter, two biquads, with state per channel.
+    private final double mB0, mB1, mB2, mA1, mA2;
+    private final double mHpA1, mHpA2;
+    private final double[] mShelfZ1, mShelfZ2, mHighPassZ1, mHighPassZ2;
+
+    // The energy of each 100ms of the track, summed over channels.
+    private double[] mSubBlocks = new double[64];
+    private int mSubBlockCount;
+    private double mSubBlockEnergy;
+    private int mSubBlockFrameCount;
+
+    // The last three samples of each channel, for interpolating between them.
+    private final float[] mHistory;
+    private float mTruePeak;
+
+    private final float[] mPeaks;
+    private long mFrame;
+
+    /**
+     * @param expectedFrames how many frames the track has, which the peaks are spread over.
+     * @param peakCount      how many peaks to compute.
+     */
+    LoudnessMeter(int sampleRate, int channels, long expectedFrames, int peakCount) {
+        mChannels = channels;
+        mExpectedFrames = Math.max(1, expectedFrames);
+        mSubBlockFrames = Math.max(1, sampleRate / 10);
+
+        // Stage 1, a high shelf modelling the head.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double q = 0.7071752369554196;
+        double a0 = 1 + k / q + k * k;
+        mB0 = (vh + vb * k / q + k * k) / a0;
+        mB1 = 2 * (k * k - vh) / a0;
+        mB2 = (vh - vb * k / q + k * k) / a0;
+        mA1 = 2 * (k * k - 1) / a0;
+        mA2 = (1 - k / q + k * k) / a0;
+
+        // Stage 2, a high pass.
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mHpA1 = 2 * (k * k - 1) / a0;
+        mHpA2 = (1 - k / q + k * k) / a0;
+
+        mShelfZ1 = new double[channels];
+        mShelfZ2 = new double[channels];
+        mHighPassZ1 = new double[channels];
+        mHighPassZ2 = new double[channels];
+        mHistory = new float[channels * 3];
+        mPeaks = new float[peakCount];
+    }
+
+    /**
+     * Processes interleaved samples, from the buffer's position to its limit.
+     */
+    void process(ShortBuffer samples) {
+        int end = samples.limit();
+        for (int i = samples.position(); i + mChannels <= end; i += mChannels) {
+            int peakIndex =
+                    (int) Math.min(mPeaks.length - 1, mFrame * mPeaks.length / mExpectedFrames);
+            for (int channel = 0; channel < mChannels; channel++) {
+                float sample = samples.get(i + channel) / 32768f;
+                mSubBlockEnergy += square(kWeight(channel, sample));
+                updateTruePeak(channel, sample);
+                float level = Math.abs(sample);
+                if (level > mPeaks[peakIndex]) {
+                    mPeaks[peakIndex] = level;
+                }
+            }
+            mFrame++;
+            if (++mSubBlockFrameCount == mSubBlockFrames) {
+                addSubBlock();
+            }
+        }
+    }
+
+    /**
+     * @return the peak level of each slice of the track, from 0 to 255.
+     */
+    byte[] getPeaks() {
+        byte[] peaks = new byte[mPeaks.length];
+        for (int i = 0; i < peaks.length; i++) {
+            peaks[i] = (byte) Math.round(Math.min(1f, mPeaks[i]) * 255);
+        }
+        return peaks;
+    }
+
+    /**
+     * @return the true peak in dBTP.
+     */
+    float getTruePeak() {
+        return mTruePeak == 0 ? SILENCE_LUFS : (float) (20 * Math.log10(mTruePeak));
+    }
+
+    /**
+     * @return the gated integrated loudness in LUFS, or {@link #SILENCE_LUFS} for silence.
+     */
+    float getIntegratedLoudness() {
+        if (mSubBlockCount < SUB_BLOCKS_PER_BLOCK) {
+            // Shorter than one block, so measure what there is.
+            double energy = mSubBlockEnergy;
+            long frames = mSubBlockFrameCount;
+            for (int i = 0; i < mSubBlockCount; i++) {
+                energy += mSubBlocks[i];
+                frames += mSubBlockFrames;
+            }
+            return frames == 0 ? SILENCE_LUFS : toLufs(energy / frames);
+        }
+
+        int blockCount = mSubBlockCount - SUB_BLOCKS_PER_BLOCK + 1;
+        double[] powers = new double[blockCount];
+        double blockEnergy = 0;
+        for (int i = 0; i < mSubBlockCount; i++) {
+            blockEnergy += mSubBlocks[i];
+            if (i >= SUB_BLOCKS_PER_BLOCK) {
+                blockEnergy -= mSubBlocks[i - SUB_BLOCKS_PER_BLOCK];
+            }
+            if (i >= SUB_BLOCKS_PER_BLOCK - 1) {
+                powers[i - SUB_BLOCKS_PER_BLOCK + 1] =
+                        blockEnergy / (SUB_BLOCKS_PER_BLOCK * (double) mSubBlockFrames);
+            }
+        }
+
+        double relativeGate = toLufs(meanAbove(powers, ABSOLUTE_GATE_LUFS)) + RELATIVE_GATE_LU;
+        float loudness = toLufs(meanAbove(powers, Math.max(ABSOLUTE_GATE_LUFS, relativeGate)));
+        return Math.max(SILENCE_LUFS, loudness);
+    }
+
+    private double kWeight(int channel, double x) {
+        // Transposed direct form II.
+        double y = mB0 * x + mShelfZ1[channel];
+        mShelfZ1[channel] = mB1 * x - mA1 * y + mShelfZ2[channel];
+        mShelfZ2[channel] = mB2 * x - mA2 * y;
+
+        double z = y + mHighPassZ1[channel];
+        mHighPassZ1[channel] = -2 * y - mHpA1 * z + mHighPassZ2[channel];
+        mHighPassZ2[channel] = y - mHpA2 * z;
+        return z;
+    }
+
+    // Interpolates between the middle two of the last four samples, where inter-sample peaks of
+    // the reconstructed signal show up.
+    private void updateTruePeak(int channel, float sample) {
+        int base = channel * 3;
+        float p0 = mHistory[base];
+        float p1 = mHistory[base + 1];
+        float p2 = mHistory[base + 2];
+        for (int step = 1; step < 4; step++) {
+            float t = step / 4f;
+            // Catmull-Rom spline through p0, p1, p2 and the new sample.
+            float value = 0.5f * ((2 * p1)
+                                  + (-p0 + p2) * t
+                                  + (2 * p0 - 5 * p1 + 4 * p2 - sample) * t * t
+                                  + (-p0 + 3 * p1 - 3 * p2 + sample) * t * t * t);
+            mTruePeak = Math.max(mTruePeak, Math.abs(value));
+        }
+        mTruePeak = Math.max(mTruePeak, Math.abs(sample));
+        mHistory[base] = p1;
+        mHistory[base + 1] = p2;
+        mHistory[base + 2] = sample;
+    }
+
+    private void addSubBlock() {
+        if (mSubBlockCount == mSubBlocks.length) {
+            mSubBlocks = Arrays.copyOf(mSubBlocks, mSubBlocks.length * 2);
+        }
+        mSubBlocks[mSubBlockCount++] = mSubBlockEnergy;
+        mSubBlockEnergy = 0;
+        mSubBlockFrameCount = 0;
+    }
+
+    private static double meanAbove(double[] powers, double gateLufs) {
+        double sum = 0;
+        int count = 0;
+        for (double power : powers) {
+            if (toLufs(power) > gateLufs) {
+                sum += power;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    private static float toLufs(double power) {
+        return power <= 0 ? Float.NEGATIVE_INFINITY : (float) (-0.691 + 10 * Math.log10(power));
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
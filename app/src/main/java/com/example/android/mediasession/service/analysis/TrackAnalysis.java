@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.analysis;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Base64;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The result of analysing one track: its waveform peaks, integrated loudness and true peak.
+ */
+public final class TrackAnalysis {
+
+    /**
+     * Metadata key with the waveform peaks of the track, Base64 encoded, see
+     * {@link #getPeaks(MediaMetadataCompat)}.
+     */
+    public static final String METADATA_KEY_PEAKS =
+            "com.example.android.mediasession.METADATA_KEY_PEAKS";
+
+    // Loudness that playback is normalized to. Tracks are only ever turned down, since the
+    // player can't go louder than full volume.
+    private static final float TARGET_LOUDNESS_LUFS = -16f;
+    private static final float MAX_TRUE_PEAK_DBTP = -1f;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final String mContentHash;
+    private final long mDurationMs;
+    private final float mLoudness;
+    private final float mTruePeak;
+    private final byte[] mPeaks;
+
+    TrackAnalysis(String contentHash, long durationMs, float loudness, float truePeak,
+                  byte[] peaks) {
+        mContentHash = contentHash;
+        mDurationMs = durationMs;
+        mLoudness = loudness;
+        mTruePeak = truePeak;
+        mPeaks = peaks;
+    }
+
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @return the integrated loudness in LUFS.
+     */
+    public float getLoudness() {
+        return mLoudness;
+    }
+
+    /**
+     * @return the true peak in dBTP.
+     */
+    public float getTruePeak() {
+        return mTruePeak;
+    }
+
+    /**
+     * @return the peak level, from 0 to 255 (as unsigned bytes), of equal slices of the track.
+     */
+    public byte[] getPeaks() {
+        return mPeaks;
+    }
+
+    /**
+     * @return the gain (at most 1) that brings the track to the target loudness without its true
+     * peak going over the ceiling.
+     */
+    public float getNormalizationGain() {
+        if (mLoudness <= LoudnessMeter.SILENCE_LUFS) {
+            return 1f;
+        }
+        float gainDb = Math.min(TARGET_LOUDNESS_LUFS - mLoudness, MAX_TRUE_PEAK_DBTP - mTruePeak);
+        return (float) Math.min(1, Math.pow(10, gainDb / 20));
+    }
+
+    /**
+     * Adds the waveform peaks to a copy of the given metadata.
+     */
+    public MediaMetadataCompat addTo(@NonNull MediaMetadataCompat metadata) {
+        return new MediaMetadataCompat.Builder(metadata)
+                .putString(METADATA_KEY_PEAKS, Base64.encodeToString(mPeaks, Base64.NO_WRAP))
+                .build();
+    }
+
+    /**
+     * @return the waveform peaks added by {@link #addTo(MediaMetadataCompat)}, or null.
+     */
+    @Nullable
+    public static byte[] getPeaks(@Nullable MediaMetadataCompat metadata) {
+        String peaks = metadata == null ? null : metadata.getString(METADATA_KEY_PEAKS);
+        if (peaks == null) {
+            return null;
+        }
+        try {
+            return Base64.decode(peaks, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(FORMAT_VERSION);
+        output.writeUTF(mContentHash);
+        output.writeLong(mDurationMs);
+        output.writeFloat(mLoudness);
+        output.writeFloat(mTruePeak);
+        output.writeShort(mPeaks.length);
+        output.write(mPeaks);
+    }
+
+    /**
+     * @return null if the data was written by another version.
+     */
+    @Nullable
+    static TrackAnalysis read(DataInputStream input) throws IOException {
+        if (input.readInt() != FORMAT_VERSION) {
+            return null;
+        }
+        String contentHash = input.readUTF();
+        long durationMs = input.readLong();
+        float loudness = input.readFloat();
+        float truePeak = input.readFloat();
+        byte[] peaks = new byte[input.readUnsignedShort()];
+        input.readFully(peaks);
+        return new TrackAnalysis(contentHash, durationMs, loudness, truePeak, peaks);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.1f LUFS, %.1f dBTP, gain %.2f",
+                             mContentHash, mLoudness, mTruePeak, getNormalizationGain());
+    }
+}
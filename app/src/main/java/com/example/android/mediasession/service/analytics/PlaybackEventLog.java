@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.analytics;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-listen analytics log (start, pause, seek, skip, completion, audio focus changes).
+ * <p>
+ * Events are written into a fixed size ring buffer of preallocated primitive arrays by a single
+ * writer (the main thread, which runs every player). Writing an event is a few array stores and
+ * one ordered write, without locks, allocation or I/O. A background thread drains the buffer in
+ * batches into a compact binary file, and rotates the file once it gets too big. If the writer
+ * gets a whole buffer ahead of the flusher, new events are dropped and counted.
+ * <p>
+ * File format: a header of {@link #FILE_MAGIC} (int), {@link #FILE_VERSION} (short) and
+ * {@link #RECORD_BYTES} (short), followed by records of wall clock time in ms (long), event type
+ * (byte), hash of the media id (int) and position in ms (int).
+ */
+public final class PlaybackEventLog {
+
+    private static final String TAG = "MS_PlaybackEventLog";
+
+    public static final int EVENT_START = 1;
+    public static final int EVENT_PAUSE = 2;
+    public static final int EVENT_SEEK = 3;
+    public static final int EVENT_SKIP = 4;
+    public static final int EVENT_COMPLETE = 5;
+    public static final int EVENT_STOP = 6;
+    public static final int EVENT_FOCUS_LOSS = 7;
+    public static final int EVENT_FOCUS_LOSS_TRANSIENT = 8;
+    public static final int EVENT_FOCUS_DUCK = 9;
+    public static final int EVENT_FOCUS_GAIN = 10;
+
+    public static final int FILE_MAGIC = 0x504c4f47; // "PLOG"
+    public static final short FILE_VERSION = 1;
+    public static final short RECORD_BYTES = 8 + 1 + 4 + 4;
+
+    private static final int CAPACITY = 4096; // Must be a power of two.
+    private static final int MASK = CAPACITY - 1;
+    private static final String FILE_NAME = "events";
+    private static final String FILE_EXTENSION = ".bin";
+    private static final long MAX_FILE_BYTES = 512 * 1024;
+    private static final int MAX_FILES = 4;
+    // The flusher drains often while events are coming in, and backs off while they aren't.
+    private static final long FLUSH_INTERVAL_ACTIVE_MS = 5000;
+    private static final long FLUSH_INTERVAL_IDLE_MS = 30000;
+
+    private static final Counter sWritten = Metrics.counter("eventlog.written");
+    private static final Counter sDropped = Metrics.counter("eventlog.dropped");
+    private static final Counter sFlushed = Metrics.counter("eventlog.flushed");
+
+    // The ring buffer. Slot i holds the event with sequence number i & MASK.
+    private final long[] mTimes = new long[CAPACITY];
+    private final byte[] mTypes = new byte[CAPACITY];
+    private final int[] mMediaIdHashes = new int[CAPACITY];
+    private final int[] mPositions = new int[CAPACITY];
+
+    // Written by the writer only, read by the flusher.
+    private final AtomicLong mWriteSequence = new AtomicLong();
+    // Written by the flusher only, read by the writer.
+    private final AtomicLong mReadSequence = new AtomicLong();
+    // Written by the writer only.
+    private volatile long mDroppedCount;
+    private long mReportedDroppedCount;
+
+    private final File mDirectory;
+    private final HandlerThread mFlushThread;
+    private final Handler mFlushHandler;
+    private DataOutputStream mOutput;
+    private long mFileBytes;
+    private volatile boolean mClosed;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int flushed = drain();
+            if (!mClosed) {
+                mFlushHandler.postDelayed(
+                        this, flushed > 0 ? FLUSH_INTERVAL_ACTIVE_MS : FLUSH_INTERVAL_IDLE_MS);
+            }
+        }
+    };
+
+    /**
+     * @param directory where the log files are kept.
+     */
+    public PlaybackEventLog(File directory) {
+        mDirectory = directory;
+        mFlushThread = new HandlerThread("PlaybackEventLog", Process.THREAD_PRIORITY_BACKGROUND);
+        mFlushThread.start();
+        mFlushHandler = new Handler(mFlushThread.getLooper());
+        mFlushHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_ACTIVE_MS);
+    }
+
+    /**
+     * Appends an event. Must only be called from a single thread.
+     *
+     * @param type        one of the EVENT_ constants.
+     * @param mediaIdHash the hash code of the media id the event is about.
+     * @param positionMs  the playback position when the event happened.
+     */
+    public void write(int type, int mediaIdHash, long positionMs) {
+        long sequence = mWriteSequence.get();
+        if (sequence - mReadSequence.get() >= CAPACITY) {
+            // The flusher has fallen a whole buffer behind.
+            mDroppedCount++;
+            sDropped.increment();
+            return;
+        }
+        int slot = (int) (sequence & MASK);
+        mTimes[slot] = System.currentTimeMillis();
+        mTypes[slot] = (byte) type;
+        mMediaIdHashes[slot] = mediaIdHash;
+        mPositions[slot] = (int) positionMs;
+        // Publishes the slot to the flusher.
+        mWriteSequence.lazySet(sequence + 1);
+        sWritten.increment();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Flushes the remaining events on the background thread, then stops it.
+     */
+    public void close() {
+        mClosed = true;
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                closeOutput();
+                mFlushThread.quit();
+            }
+        });
+    }
+
+    // Runs on the flush thread. Writes every published event to the file in one batch.
+    private int drain() {
+        long read = mReadSequence.get();
+        long write = mWriteSequence.get();
+        int count = (int) (write - read);
+        if (count > 0) {
+            try {
+                DataOutputStream output = getOutput();
+                for (long sequence = read; sequence < write; sequence++) {
+                    int slot = (int) (sequence & MASK);
+                    output.writeLong(mTimes[slot]);
+                    output.writeByte(mTypes[slot]);
+                    output.writeInt(mMediaIdHashes[slot]);
+                    output.writeInt(mPositions[slot]);
+                }
+                output.flush();
+                mFileBytes += (long) count * RECORD_BYTES;
+                sFlushed.add(count);
+            } catch (IOException e) {
+                Log.e(TAG, "drain: Failed to write " + count + " events", e);
+                closeOutput();
+            }
+            // Free the slots even if writing failed, so that the writer isn't blocked forever.
+            mReadSequence.lazySet(write);
+        }
+
+        long dropped = mDroppedCount;
+        if (dropped != mReportedDroppedCount) {
+            Log.w(TAG, "drain: Dropped " + (dropped - mReportedDroppedCount)
+                       + " events, writer outran flusher (" + dropped + " in total)");
+            mReportedDroppedCount = dropped;
+        }
+        return count;
+    }
+
+    private DataOutputStream getOutput() throws IOException {
+        if (mOutput != null && mFileBytes >= MAX_FILE_BYTES) {
+            closeOutput();
+            rotate();
+        }
+        if (mOutput == null) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Can't create " + mDirectory);
+            }
+            File file = getFile(0);
+            boolean isNew = !file.exists() || file.length() == 0;
+            mOutput = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true)));
+            mFileBytes = file.length();
+            if (isNew) {
+                mOutput.writeInt(FILE_MAGIC);
+                mOutput.writeShort(FILE_VERSION);
+                mOutput.writeShort(RECORD_BYTES);
+                mFileBytes = 8;
+            }
+        }
+        return mOutput;
+    }
+
+    // events.bin -> events.1.bin -> ... -> events.<MAX_FILES - 1>.bin, dropping the oldest.
+    private void rotate() {
+        File oldest = getFile(MAX_FILES - 1);
+        if (oldest.exists() && !oldest.delete()) {
+            Log.w(TAG, "rotate: Failed to delete " + oldest);
+        }
+        for (int i = MAX_FILES - 2; i >= 0; i--) {
+            File file = getFile(i);
+            if (file.exists() && !file.renameTo(getFile(i + 1))) {
+                Log.w(TAG, "rotate: Failed to rename " + file);
+            }
+        }
+    }
+
+    private File getFile(int index) {
+        return new File(mDirectory,
+                        index == 0
+                        ? FILE_NAME + FILE_EXTENSION
+                        : FILE_NAME + "." + index + FILE_EXTENSION);
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closeOutput: ", e);
+            }
+            mOutput = null;
+        }
+    }
+}
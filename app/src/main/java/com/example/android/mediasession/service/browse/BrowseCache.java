@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.browse;
+
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches built child lists per view of a node, i.e. per node id and {@link BrowseProfile}, so
+ * that all clients with identical views share one list.
+ * <p>
+ * Every node has a version stamp, and every cached list remembers the version of its node when
+ * it was built. Invalidating a node only bumps its version, which makes the lists of that node
+ * stale without touching the lists of any other node.
+ */
+final class BrowseCache {
+
+    private static final int MAX_ENTRIES = 32;
+
+    interface Builder {
+
+        List<MediaBrowserCompat.MediaItem> build(String node, BrowseProfile profile);
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final HashMap<String, Long> mNodeVersions = new HashMap<>();
+
+    private int mHits;
+    private int mMisses;
+    private long mRebuildNanos;
+    private long mMaxRebuildNanos;
+
+    /**
+     * Returns the cached list for the given view, building it with {@code builder} if there's no
+     * list for the current version of the node.
+     */
+    List<MediaBrowserCompat.MediaItem> get(String viewId,
+                                           String node,
+                                           BrowseProfile profile,
+                                           Builder builder) {
+        long version = getNodeVersion(node);
+        Entry entry = mEntries.get(viewId);
+        if (entry != null && entry.mVersion == version) {
+            mHits++;
+            return entry.mChildren;
+        }
+
+        mMisses++;
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<MediaBrowserCompat.MediaItem> children = builder.build(node, profile);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        mRebuildNanos += elapsed;
+        mMaxRebuildNanos = Math.max(mMaxRebuildNanos, elapsed);
+
+        mEntries.put(viewId, new Entry(children, version));
+        return children;
+    }
+
+    long getNodeVersion(String node) {
+        Long version = mNodeVersions.get(node);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Makes every cached view of the given node stale, by moving the node to a new version.
+     */
+    void invalidate(String node, long version) {
+        mNodeVersions.put(node, version);
+    }
+
+    float getHitRate() {
+        int requests = mHits + mMisses;
+        return requests == 0 ? 0 : mHits / (float) requests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "entries=%d, hits=%d, misses=%d, hitRate=%.1f%%, avgRebuild=%.3fms, "
+                + "maxRebuild=%.3fms",
+                mEntries.size(),
+                mHits,
+                mMisses,
+                getHitRate() * 100,
+                mMisses == 0 ? 0 : mRebuildNanos / (double) mMisses / 1000000,
+                mMaxRebuildNanos / 1000000.0);
+    }
+
+    private static final class Entry {
+
+        final List<MediaBrowserCompat.MediaItem> mChildren;
+        final long mVersion;
+
+        Entry(List<MediaBrowserCompat.MediaItem> children, long version) {
+            mChildren = children;
+            mVersion = version;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.browse;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaBrowserServiceCompat.BrowserRoot;
+import android.support.v4.media.MediaBrowserServiceCompat.Result;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.catalog.CatalogDelta;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers onGetRoot() and onLoadChildren() for {@link
+ * com.example.android.mediasession.service.MusicService}.
+ * <p>
+ * Every client gets a root id of the form {@code node?view#client}, where {@code view} is the
+ * key of the {@link BrowseProfile} built from its root hints, and {@code client} identifies the
+ * connecting package and uid. Child lists are cached per {@code node?view}, so clients with
+ * identical views share them, and are stamped with the version of their node. When the catalog
+ * changes, only the nodes that contain the changed tracks are invalidated, and only the clients
+ * that loaded those nodes are told via notifyChildrenChanged(). Requests are rate limited per
+ * client, and requests over the limit are deferred instead of being handled right away on the
+ * main thread.
+ * <p>
+ * The root also contains a "Recently played" and a "Most played" folder, built from a
+ * {@link PlayHistory} of what was actually played. Their ids carry the view and client of the
+ * root they're listed in, like the root's id does, so that loading them is limited and rate
+ * limited in the same way. The history is read back in the background when the service starts,
+ * and until it's there the recent root and the folders only hold what was played since.
+ */
+public final class BrowseManager implements MusicLibrary.OnCatalogChangedListener {
+
+    private static final String TAG = "MS_BrowseManager";
+
+    public static final String NODE_RECENT = "__RECENT__";
+    public static final String NODE_RECENTLY_PLAYED = "__RECENTLY_PLAYED__";
+    public static final String NODE_MOST_PLAYED = "__MOST_PLAYED__";
+
+    /**
+     * Root extra with a key that identifies the children of the root across connections and
+     * service restarts, under which a client can cache them.
+     */
+    public static final String EXTRA_CACHE_KEY =
+            "com.example.android.mediasession.browse.CACHE_KEY";
+
+    /**
+     * Subscription option. If true, the subscription is only used to learn that the children
+     * changed and is answered with an empty list; the children are fetched with
+     * {@link #ACTION_SYNC_CHILDREN}.
+     */
+    public static final String OPTION_CHANGE_SIGNAL =
+            "com.example.android.mediasession.browse.CHANGE_SIGNAL";
+
+    /**
+     * Custom action that brings a client's copy of a node's children up to date. Takes
+     * {@link #EXTRA_PARENT_ID}, plus the {@link #EXTRA_CACHE_KEY} and {@link #EXTRA_VERSION} of
+     * what the client holds, if anything. Answers with {@link #RESULT_VERSION} and either the
+     * added, updated and removed children, or if the client is too far behind, with a page
+     * ({@link #EXTRA_PAGE}, {@link #EXTRA_PAGE_SIZE}) of the full list.
+     */
+    public static final String ACTION_SYNC_CHILDREN =
+            "com.example.android.mediasession.browse.SYNC_CHILDREN";
+    public static final String EXTRA_PARENT_ID = "parent_id";
+    public static final String EXTRA_VERSION = "version";
+    public static final String EXTRA_PAGE = "page";
+    public static final String EXTRA_PAGE_SIZE = "page_size";
+    public static final String RESULT_CACHE_KEY = "cache_key";
+    public static final String RESULT_VERSION = "version";
+    public static final String RESULT_FULL = "full";
+    public static final String RESULT_TOTAL = "total";
+    public static final String RESULT_ITEMS = "items";
+    public static final String RESULT_ADDED = "added";
+    public static final String RESULT_UPDATED = "updated";
+    public static final String RESULT_REMOVED = "removed";
+
+    // Keeps each answer well under the binder transaction limit.
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final char VIEW_SEPARATOR = '?';
+    private static final char CLIENT_SEPARATOR = '#';
+    private static final int NO_CLIENT = -1;
+
+    private static final int MAX_CLIENTS = 64;
+    // Each client can make one request per REQUEST_INTERVAL_MS, with bursts of up to
+    // REQUEST_BURST_MS / REQUEST_INTERVAL_MS requests.
+    private static final long REQUEST_INTERVAL_MS = 100;
+    private static final long REQUEST_BURST_MS = 1000;
+
+    private static final String PLAY_HISTORY_FILE = "play_history";
+
+    private final MediaBrowserServiceCompat mService;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final BrowseCache mCache = new BrowseCache();
+    private final BrowseCache.Builder mChildrenBuilder = new BrowseCache.Builder() {
+        @Override
+        public List<MediaBrowserCompat.MediaItem> build(String node, BrowseProfile profile) {
+            return Collections.unmodifiableList(buildChildren(node, profile));
+        }
+    };
+    // The parent ids that have been loaded, per node.
+    private final HashMap<String, Set<String>> mLoadedParentIds = new HashMap<>();
+    private final LinkedHashMap<String, Client> mClients =
+            new LinkedHashMap<String, Client>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Client> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+    private int mNextClientId;
+    private int mDeferredCount;
+
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+    private final PlayHistory mPlayHistory;
+
+    public BrowseManager(MediaBrowserServiceCompat service) {
+        mService = service;
+        mPlayHistory = new PlayHistory(new File(service.getFilesDir(), PLAY_HISTORY_FILE),
+                                       mDiskExecutor);
+        mCache.invalidate(MusicLibrary.getRoot(), MusicLibrary.getVersion());
+        // Other nodes count up from the catalog's version too, so that no version is ever
+        // reused, even across service restarts.
+        mCache.invalidate(NODE_RECENT, MusicLibrary.getVersion());
+        mCache.invalidate(NODE_RECENTLY_PLAYED, MusicLibrary.getVersion());
+        mCache.invalidate(NODE_MOST_PLAYED, MusicLibrary.getVersion());
+        MusicLibrary.addOnCatalogChangedListener(this);
+        mPlayHistory.load(new Runnable() {
+            @Override
+            public void run() {
+                invalidateNode(NODE_RECENT);
+                invalidateNode(NODE_RECENTLY_PLAYED);
+                invalidateNode(NODE_MOST_PLAYED);
+            }
+        });
+    }
+
+    @Nullable
+    public BrowserRoot onGetRoot(@NonNull String clientPackageName,
+                                 int clientUid,
+                                 @Nullable Bundle rootHints) {
+        BrowseProfile profile = BrowseProfile.fromRootHints(rootHints);
+        String node = MusicLibrary.getRoot();
+        if (profile.isRecent()) {
+            // Only from what's in memory, since onGetRoot() has to answer right away.
+            if (mPlayHistory.getMostRecent() == null) {
+                // Nothing has been played yet, so there's nothing to resume.
+                return null;
+            }
+            node = NODE_RECENT;
+        }
+        Client client = getClient(clientPackageName, clientUid);
+        Log.d(TAG, "onGetRoot: " + clientPackageName + " view=" + profile.getViewKey());
+        String viewId = node + VIEW_SEPARATOR + profile.getViewKey();
+        Bundle extras = profile.getRootExtras();
+        extras.putString(EXTRA_CACHE_KEY, viewId);
+        return new BrowserRoot(viewId + CLIENT_SEPARATOR + client.mId, extras);
+    }
+
+    /**
+     * Handles subscriptions with options. Returns false for those that should be handled as
+     * plain subscriptions.
+     */
+    public boolean onLoadChildren(@NonNull String parentId,
+                                  @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                                  @Nullable Bundle options) {
+        if (options == null || !options.getBoolean(OPTION_CHANGE_SIGNAL)) {
+            return false;
+        }
+        addLoadedParentId(parentId);
+        result.sendResult(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+        return true;
+    }
+
+    /**
+     * @return true if the action was handled.
+     */
+    public boolean onCustomAction(@NonNull String action,
+                                  @Nullable Bundle extras,
+                                  @NonNull Result<Bundle> result) {
+        if (!ACTION_SYNC_CHILDREN.equals(action)) {
+            return false;
+        }
+        String parentId = extras == null ? null : extras.getString(EXTRA_PARENT_ID);
+        if (parentId == null) {
+            result.sendError(null);
+        } else {
+            result.sendResult(syncChildren(parentId, extras));
+        }
+        return true;
+    }
+
+    public void onLoadChildren(@NonNull final String parentId,
+                               @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
+        addLoadedParentId(parentId);
+        Client client = findClient(getClientId(parentId));
+        long delay = client == null ? 0 : client.reserve(SystemClock.elapsedRealtime());
+        if (delay == 0) {
+            result.sendResult(getChildren(parentId));
+            return;
+        }
+
+        // This client is over its limit, so let other (e.g. playback) work run first.
+        mDeferredCount++;
+        result.detach();
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                result.sendResult(getChildren(parentId));
+            }
+        }, delay);
+    }
+
+    /**
+     * Records that the given item started playing. The most recently played item is what the
+     * recent root contains.
+     */
+    public void onPlayed(@NonNull String mediaId) {
+        boolean changed = !mediaId.equals(mPlayHistory.getMostRecent());
+        boolean reordered = mPlayHistory.onPlayed(mediaId);
+        if (changed) {
+            invalidateNode(NODE_RECENT);
+            invalidateNode(NODE_RECENTLY_PLAYED);
+        }
+        if (reordered) {
+            invalidateNode(NODE_MOST_PLAYED);
+        }
+    }
+
+    @Override
+    public void onCatalogChanged(long version, @NonNull Collection<String> mediaIds) {
+        // Every track is a child of the root.
+        invalidateNode(MusicLibrary.getRoot(), version);
+        boolean recentChanged = false;
+        boolean recentlyPlayedChanged = false;
+        boolean mostPlayedChanged = false;
+        for (String mediaId : mediaIds) {
+            // Removed tracks are forgotten, the others may have new metadata. Either way, only
+            // the lists that hold the track change.
+            recentChanged |= mediaId.equals(mPlayHistory.getMostRecent());
+            recentlyPlayedChanged |= mPlayHistory.isRecent(mediaId);
+            mostPlayedChanged |= mPlayHistory.isCounted(mediaId);
+            if (MusicLibrary.getDescription(mediaId) == null) {
+                mPlayHistory.remove(mediaId);
+            }
+        }
+        if (recentChanged) {
+            invalidateNode(NODE_RECENT);
+        }
+        if (recentlyPlayedChanged) {
+            invalidateNode(NODE_RECENTLY_PLAYED);
+        }
+        if (mostPlayedChanged) {
+            invalidateNode(NODE_MOST_PLAYED);
+        }
+    }
+
+    public void onDestroy() {
+        MusicLibrary.removeOnCatalogChangedListener(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mPlayHistory.flush();
+        // Lets the last write finish.
+        mDiskExecutor.shutdown();
+        Log.d(TAG, "onDestroy: " + this);
+    }
+
+    @Override
+    public String toString() {
+        return "clients=" + mClients.size() + ", deferred=" + mDeferredCount + ", cache={"
+               + mCache + "}";
+    }
+
+    private List<MediaBrowserCompat.MediaItem> getChildren(String parentId) {
+        String viewId = getViewId(parentId);
+        List<MediaBrowserCompat.MediaItem> children =
+                mCache.get(viewId,
+                           getNode(viewId),
+                           BrowseProfile.fromViewKey(getViewKey(viewId)),
+                           mChildrenBuilder);
+        int clientId = getClientId(parentId);
+        return clientId == NO_CLIENT ? children : addClient(children, clientId);
+    }
+
+    // The cached lists are shared by the clients of a view, so the folders in them only carry
+    // the view, and get the client of the request added here.
+    private static List<MediaBrowserCompat.MediaItem> addClient(
+            List<MediaBrowserCompat.MediaItem> children, int clientId) {
+        List<MediaBrowserCompat.MediaItem> result = null;
+        for (int i = 0; i < children.size(); i++) {
+            MediaBrowserCompat.MediaItem child = children.get(i);
+            if (!child.isBrowsable()) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(children);
+            }
+            MediaDescriptionCompat description = child.getDescription();
+            result.set(i, new MediaBrowserCompat.MediaItem(
+                    new MediaDescriptionCompat.Builder()
+                            .setMediaId(child.getMediaId() + CLIENT_SEPARATOR + clientId)
+                            .setTitle(description.getTitle())
+                            .build(),
+                    child.getFlags()));
+        }
+        return result == null ? children : result;
+    }
+
+    private Bundle syncChildren(String parentId, Bundle extras) {
+        String viewId = getViewId(parentId);
+        String node = getNode(viewId);
+        BrowseProfile profile = BrowseProfile.fromViewKey(getViewKey(viewId));
+        List<MediaBrowserCompat.MediaItem> children = getChildren(parentId);
+        long version = mCache.getNodeVersion(node);
+        // A version from another view doesn't mean anything here.
+        long clientVersion = viewId.equals(extras.getString(EXTRA_CACHE_KEY))
+                             ? extras.getLong(EXTRA_VERSION)
+                             : 0;
+
+        Bundle answer = new Bundle();
+        answer.putString(RESULT_CACHE_KEY, viewId);
+        answer.putLong(RESULT_VERSION, version);
+        if (clientVersion == version) {
+            return answer;
+        }
+
+        // The root's version is the catalog's, so the catalog's changes are the root's, unless
+        // the view truncates it.
+        CatalogDelta delta =
+                clientVersion > 0
+                && MusicLibrary.getRoot().equals(node)
+                && profile.getMaxChildren() == 0
+                ? MusicLibrary.getChangesSince(clientVersion)
+                : null;
+        if (delta != null && delta.size() <= Math.min(MAX_PAGE_SIZE, children.size() / 2)) {
+            answer.putParcelableArrayList(RESULT_ADDED, toMediaItems(delta.getAdded()));
+            answer.putParcelableArrayList(RESULT_UPDATED, toMediaItems(delta.getUpdated()));
+            answer.putStringArrayList(RESULT_REMOVED, new ArrayList<>(delta.getRemoved()));
+            return answer;
+        }
+
+        int pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE,
+                                            extras.getInt(EXTRA_PAGE_SIZE, DEFAULT_PAGE_SIZE)));
+        int from = Math.min(children.size(), Math.max(0, extras.getInt(EXTRA_PAGE)) * pageSize);
+        int to = Math.min(children.size(), from + pageSize);
+        answer.putBoolean(RESULT_FULL, true);
+        answer.putInt(RESULT_TOTAL, children.size());
+        answer.putParcelableArrayList(RESULT_ITEMS, new ArrayList<>(children.subList(from, to)));
+        return answer;
+    }
+
+    private static ArrayList<MediaBrowserCompat.MediaItem> toMediaItems(List<String> mediaIds,
+                                                                        boolean offline) {
+        ArrayList<MediaBrowserCompat.MediaItem> items = new ArrayList<>(mediaIds.size());
+        for (String mediaId : mediaIds) {
+            MediaBrowserCompat.MediaItem item = MusicLibrary.getMediaItem(mediaId);
+            if (item != null && !(offline && isStreamed(mediaId))) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static boolean isStreamed(String mediaId) {
+        return MusicLibrary.isStreamed(MusicLibrary.getMusicFilename(mediaId));
+    }
+
+    private void addLoadedParentId(String parentId) {
+        String node = getNode(parentId);
+        Set<String> parentIds = mLoadedParentIds.get(node);
+        if (parentIds == null) {
+            parentIds = new LinkedHashSet<>();
+            mLoadedParentIds.put(node, parentIds);
+        }
+        if (parentIds.add(parentId) && parentIds.size() > MAX_CLIENTS) {
+            // Forget the oldest one, its client has most likely gone away.
+            parentIds.remove(parentIds.iterator().next());
+        }
+    }
+
+    private void invalidateNode(String node) {
+        invalidateNode(node, mCache.getNodeVersion(node) + 1);
+    }
+
+    // Moves the node to a new version and tells the clients that loaded it.
+    private void invalidateNode(String node, long version) {
+        mCache.invalidate(node, version);
+        Set<String> parentIds = mLoadedParentIds.get(node);
+        if (parentIds != null) {
+            for (String parentId : parentIds) {
+                mService.notifyChildrenChanged(parentId);
+            }
+        }
+    }
+
+    private List<MediaBrowserCompat.MediaItem> buildChildren(String node, BrowseProfile profile) {
+        List<MediaBrowserCompat.MediaItem> children;
+        // The history nodes are only built from as many ids as the view shows.
+        int maxHistory = profile.getMaxChildren() > 0
+                         ? Math.min(profile.getMaxChildren(), PlayHistory.MAX_RECENT)
+                         : PlayHistory.MAX_RECENT;
+        if (NODE_RECENT.equals(node)) {
+            children = toMediaItems(mPlayHistory.getRecent(1), profile.isOffline());
+        } else if (NODE_RECENTLY_PLAYED.equals(node)) {
+            children = toMediaItems(mPlayHistory.getRecent(maxHistory), profile.isOffline());
+        } else if (NODE_MOST_PLAYED.equals(node)) {
+            children = toMediaItems(mPlayHistory.getMostPlayed(maxHistory), profile.isOffline());
+        } else if (MusicLibrary.getRoot().equals(node)) {
+            List<MediaBrowserCompat.MediaItem> items = MusicLibrary.getMediaItems();
+            children = new ArrayList<>(items.size() + 2);
+            children.add(createFolder(NODE_RECENTLY_PLAYED, profile, "Recently played"));
+            children.add(createFolder(NODE_MOST_PLAYED, profile, "Most played"));
+            for (MediaBrowserCompat.MediaItem item : items) {
+                // Offline views leave out the tracks that are streamed.
+                if (!(profile.isOffline() && isStreamed(item.getMediaId()))) {
+                    children.add(item);
+                }
+            }
+        } else {
+            children = new ArrayList<>();
+        }
+
+        int maxChildren = profile.getMaxChildren();
+        if (maxChildren > 0 && children.size() > maxChildren) {
+            children = new ArrayList<>(children.subList(0, maxChildren));
+        }
+        return children;
+    }
+
+    // The folder's id is "node?view", so that it's listed with the same profile.
+    private static MediaBrowserCompat.MediaItem createFolder(String node,
+                                                             BrowseProfile profile,
+                                                             String title) {
+        return new MediaBrowserCompat.MediaItem(
+                new MediaDescriptionCompat.Builder()
+                        .setMediaId(node + VIEW_SEPARATOR + profile.getViewKey())
+                        .setTitle(title)
+                        .build(),
+                MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
+    private Client getClient(String packageName, int uid) {
+        String key = packageName + ':' + uid;
+        Client client = mClients.get(key);
+        if (client == null) {
+            client = new Client(mNextClientId++);
+            mClients.put(key, client);
+        }
+        return client;
+    }
+
+    @Nullable
+    private Client findClient(int clientId) {
+        if (clientId == NO_CLIENT) {
+            return null;
+        }
+        for (Client client : mClients.values()) {
+            if (client.mId == clientId) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the node id part of a parent id (or of a view id).
+     */
+    private static String getNode(String parentId) {
+        int end = parentId.indexOf(VIEW_SEPARATOR);
+        if (end < 0) {
+            end = parentId.indexOf(CLIENT_SEPARATOR);
+        }
+        return end < 0 ? parentId : parentId.substring(0, end);
+    }
+
+    // The parent id without the client part, i.e. "node?view".
+    private static String getViewId(String parentId) {
+        int end = parentId.indexOf(CLIENT_SEPARATOR);
+        return end < 0 ? parentId : parentId.substring(0, end);
+    }
+
+    private static String getViewKey(String viewId) {
+        int start = viewId.indexOf(VIEW_SEPARATOR);
+        return start < 0 ? "" : viewId.substring(start + 1);
+    }
+
+    private static int getClientId(String parentId) {
+        int start = parentId.indexOf(CLIENT_SEPARATOR);
+        if (start < 0) {
+            return NO_CLIENT;
+        }
+        try {
+            return Integer.parseInt(parentId.substring(start + 1));
+        } catch (NumberFormatException e) {
+            return NO_CLIENT;
+        }
+    }
+
+    // Per client rate limit, implemented as a generic cell rate algorithm.
+    private static final class Client {
+
+        private final int mId;
+        private long mTheoreticalArrivalTime;
+
+        Client(int id) {
+            mId = id;
+        }
+
+        /**
+         * Reserves a slot for a request made at {@code now}.
+         *
+         * @return how long the request has to wait for its slot, in milliseconds.
+         */
+        long reserve(long now) {
+            long arrivalTime = Math.max(mTheoreticalArrivalTime, now);
+            mTheoreticalArrivalTime = arrivalTime + REQUEST_INTERVAL_MS;
+            return Math.max(0, arrivalTime - REQUEST_BURST_MS - now);
+        }
+    }
+}
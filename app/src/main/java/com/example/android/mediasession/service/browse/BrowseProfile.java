@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.browse;
+
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaBrowserServiceCompat.BrowserRoot;
+
+/**
+ * The view of the catalog that a client asked for with its root hints. Clients that pass the
+ * same hints get the same profile, and therefore share cached browse results. Only the hints
+ * that change what's listed are part of it; suggested views list the same as the others.
+ */
+public final class BrowseProfile {
+
+    /**
+     * Root hint used by Android Auto and others to limit the number of children per node.
+     */
+    public static final String EXTRA_MAX_CHILDREN =
+            "androidx.media.MediaBrowserCompat.Extras.KEY_ROOT_CHILDREN_LIMIT";
+
+    public static final BrowseProfile DEFAULT = new BrowseProfile(false, false, 0);
+
+    private static final String KEY_RECENT = "recent";
+    private static final String KEY_OFFLINE = "offline";
+    private static final String KEY_MAX = "max=";
+
+    private final boolean mRecent;
+    private final boolean mOffline;
+    private final int mMaxChildren;
+    private final String mViewKey;
+
+    private BrowseProfile(boolean recent, boolean offline, int maxChildren) {
+        mRecent = recent;
+        mOffline = offline;
+        mMaxChildren = maxChildren;
+        mViewKey = buildViewKey();
+    }
+
+    public static BrowseProfile fromRootHints(@Nullable Bundle rootHints) {
+        if (rootHints == null) {
+            return DEFAULT;
+        }
+        return new BrowseProfile(
+                rootHints.getBoolean(BrowserRoot.EXTRA_RECENT),
+                rootHints.getBoolean(BrowserRoot.EXTRA_OFFLINE),
+                Math.max(0, rootHints.getInt(EXTRA_MAX_CHILDREN)));
+    }
+
+    /**
+     * Parses the key returned by {@link #getViewKey()}.
+     */
+    public static BrowseProfile fromViewKey(String viewKey) {
+        if (viewKey.isEmpty()) {
+            return DEFAULT;
+        }
+        boolean recent = false;
+        boolean offline = false;
+        int maxChildren = 0;
+        for (String part : viewKey.split(",")) {
+            if (KEY_RECENT.equals(part)) {
+                recent = true;
+            } else if (KEY_OFFLINE.equals(part)) {
+                offline = true;
+            } else if (part.startsWith(KEY_MAX)) {
+                maxChildren = Integer.parseInt(part.substring(KEY_MAX.length()));
+            }
+        }
+        return new BrowseProfile(recent, offline, maxChildren);
+    }
+
+    public boolean isRecent() {
+        return mRecent;
+    }
+
+    /**
+     * @return true if only what's playable without a network connection is to be listed.
+     */
+    public boolean isOffline() {
+        return mOffline;
+    }
+
+    /**
+     * @return the maximum number of children per node, or 0 if there is no limit.
+     */
+    public int getMaxChildren() {
+        return mMaxChildren;
+    }
+
+    /**
+     * @return a compact, stable key for this profile, e.g. "offline,max=20". Empty for the
+     * default profile.
+     */
+    public String getViewKey() {
+        return mViewKey;
+    }
+
+    /**
+     * @return the extras to return with the {@link BrowserRoot}, echoing the hints that were
+     * honored as the MediaBrowserService contract asks for.
+     */
+    public Bundle getRootExtras() {
+        Bundle extras = new Bundle();
+        if (mRecent) {
+            extras.putBoolean(BrowserRoot.EXTRA_RECENT, true);
+        }
+        if (mOffline) {
+            // Streamed tracks are left out, so everything listed is playable offline.
+            extras.putBoolean(BrowserRoot.EXTRA_OFFLINE, true);
+        }
+        return extras;
+    }
+
+    private String buildViewKey() {
+        StringBuilder key = new StringBuilder();
+        if (mRecent) {
+            key.append(KEY_RECENT).append(',');
+        }
+        if (mOffline) {
+            key.append(KEY_OFFLINE).append(',');
+        }
+        if (mMaxChildren > 0) {
+            key.append(KEY_MAX).append(mMaxChildren).append(',');
+        }
+        if (key.length() > 0) {
+            key.setLength(key.length() - 1);
+        }
+        return key.toString();
+    }
+}
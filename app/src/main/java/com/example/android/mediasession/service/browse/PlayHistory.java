@@ -0,0 +1,413 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.browse;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * What has been played, in bounded space: the {@link #MAX_RECENT} most recently played tracks,
+ * in an LRU, and the most played ones, estimated with the space saving algorithm over
+ * {@link #MAX_COUNTERS} counters, kept in order of their counts. Recording a play and reading
+ * either list take time in the order of the list's size, never of the history's. Saved to a small
+ * binary file shortly after changes, and read back on the disk executor by {@link #load}; until
+ * then it only holds what was played since. Only used on the main thread, and not saved again
+ * after {@link #flush}.
+ */
+final class PlayHistory {
+
+    private static final String TAG = "MS_PlayHistory";
+
+    static final int MAX_RECENT = 50;
+    static final int MAX_COUNTERS = 100;
+
+    private static final int FILE_MAGIC = 0x504c4159; // "PLAY"
+    private static final int FILE_VERSION = 1;
+
+    // Plays tend to come in bursts of skips, so save once they've settled.
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private final File mFile;
+    private final Executor mDiskExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mLoaded;
+    private boolean mFlushed;
+    private boolean mSavePending;
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            if (!mLoaded) {
+                // Saving now would overwrite the file with part of the history.
+                mHandler.postDelayed(this, SAVE_DELAY_MS);
+                return;
+            }
+            save();
+        }
+    };
+
+    // In order of access, least recent first.
+    private final LinkedHashMap<String, Boolean> mRecent =
+            new LinkedHashMap<String, Boolean>(MAX_RECENT, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_RECENT;
+                }
+            };
+    @Nullable
+    private String mMostRecent;
+
+    // Largest count first.
+    private final ArrayList<PlayCount> mCounts = new ArrayList<>(MAX_COUNTERS);
+    private final HashMap<String, PlayCount> mCountsByMediaId = new HashMap<>();
+
+    /**
+     * @param diskExecutor runs one task at a time, in order.
+     */
+    PlayHistory(File file, Executor diskExecutor) {
+        mFile = file;
+        mDiskExecutor = diskExecutor;
+    }
+
+    /**
+     * Records a play of the given track.
+     *
+     * @return true if the order of the most played tracks changed.
+     */
+    boolean onPlayed(@NonNull String mediaId) {
+        mRecent.put(mediaId, Boolean.TRUE);
+        mMostRecent = mediaId;
+        boolean reordered = count(mediaId, 1, 0);
+        scheduleSave();
+        return reordered;
+    }
+
+    /**
+     * Forgets the given track, e.g. because it was removed from the catalog.
+     *
+     * @return true if the track was in either list.
+     */
+    boolean remove(@NonNull String mediaId) {
+        boolean removed = mRecent.remove(mediaId) != null;
+        if (mediaId.equals(mMostRecent)) {
+            mMostRecent = null;
+            for (String recent : mRecent.keySet()) {
+                mMostRecent = recent;
+            }
+        }
+        PlayCount playCount = mCountsByMediaId.remove(mediaId);
+        if (playCount != null) {
+            mCounts.remove(playCount.mIndex);
+            for (int i = playCount.mIndex; i < mCounts.size(); i++) {
+                mCounts.get(i).mIndex = i;
+            }
+            removed = true;
+        }
+        if (removed) {
+            scheduleSave();
+        }
+        return removed;
+    }
+
+    @Nullable
+    String getMostRecent() {
+        return mMostRecent;
+    }
+
+    /**
+     * @return true if the given track is among the most recently played ones.
+     */
+    boolean isRecent(@NonNull String mediaId) {
+        // Unlike get(), doesn't count as an access.
+        return mRecent.containsKey(mediaId);
+    }
+
+    /**
+     * @return true if the given track has a play counter, i.e. may be among the most played.
+     */
+    boolean isCounted(@NonNull String mediaId) {
+        return mCountsByMediaId.containsKey(mediaId);
+    }
+
+    /**
+     * @return up to {@code max} media ids, the most recently played first.
+     */
+    List<String> getRecent(int max) {
+        ArrayList<String> recent = new ArrayList<>(mRecent.keySet());
+        int count = Math.min(max, recent.size());
+        ArrayList<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(recent.get(recent.size() - 1 - i));
+        }
+        return result;
+    }
+
+    /**
+     * @return up to {@code max} media ids, the most played first.
+     */
+    List<String> getMostPlayed(int max) {
+        int count = Math.min(max, mCounts.size());
+        ArrayList<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(mCounts.get(i).mMediaId);
+        }
+        return result;
+    }
+
+    // Adds plays to a track's counter. A track without a counter, once they're all taken, takes
+    // over the smallest one, whose count becomes its error.
+    private boolean count(String mediaId, long plays, long error) {
+        PlayCount playCount = mCountsByMediaId.get(mediaId);
+        boolean reordered = false;
+        if (playCount == null) {
+            if (mCounts.size() < MAX_COUNTERS) {
+                playCount = new PlayCount(mediaId, mCounts.size());
+                mCounts.add(playCount);
+            } else {
+                playCount = mCounts.get(mCounts.size() - 1);
+                mCountsByMediaId.remove(playCount.mMediaId);
+                playCount.mMediaId = mediaId;
+                error = Math.max(error, playCount.mCount);
+            }
+            mCountsByMediaId.put(mediaId, playCount);
+            playCount.mError = error;
+            reordered = true;
+        }
+        playCount.mCount += plays;
+
+        // Move it up past the counters it now exceeds.
+        int index = playCount.mIndex;
+        while (index > 0 && mCounts.get(index - 1).mCount < playCount.mCount) {
+            PlayCount above = mCounts.get(index - 1);
+            above.mIndex = index;
+            mCounts.set(index, above);
+            index--;
+            reordered = true;
+        }
+        playCount.mIndex = index;
+        mCounts.set(index, playCount);
+        return reordered;
+    }
+
+    /**
+     * Reads the saved history on the disk executor, and merges it in on the main thread, under
+     * what has been played since. Then runs {@code onLoaded}.
+     */
+    void load(@NonNull final Runnable onLoaded) {
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Saved saved = read();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFlushed) {
+                            // Nobody's left to show it to.
+                            return;
+                        }
+                        merge(saved);
+                        onLoaded.run();
+                    }
+                });
+            }
+        });
+    }
+
+    private void merge(@Nullable Saved saved) {
+        mLoaded = true;
+        if (saved == null) {
+            return;
+        }
+        // The saved tracks were played before the ones played since, so they go first.
+        ArrayList<String> playedSince = new ArrayList<>(mRecent.keySet());
+        mRecent.clear();
+        for (String mediaId : saved.mRecent) {
+            mRecent.put(mediaId, Boolean.TRUE);
+        }
+        for (String mediaId : playedSince) {
+            mRecent.put(mediaId, Boolean.TRUE);
+        }
+        if (mMostRecent == null && !saved.mRecent.isEmpty()) {
+            mMostRecent = saved.mRecent.get(saved.mRecent.size() - 1);
+        }
+        for (PlayCount playCount : saved.mCounts) {
+            count(playCount.mMediaId, playCount.mCount, playCount.mError);
+        }
+    }
+
+    // Runs on the disk executor.
+    @Nullable
+    private Saved read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                return null;
+            }
+            Saved saved = new Saved();
+            int recentCount = input.readInt();
+            for (int i = 0; i < recentCount; i++) {
+                saved.mRecent.add(input.readUTF());
+            }
+            int counts = input.readInt();
+            for (int i = 0; i < counts; i++) {
+                PlayCount playCount = new PlayCount(input.readUTF(), i);
+                playCount.mCount = input.readLong();
+                playCount.mError = input.readLong();
+                saved.mCounts.add(playCount);
+            }
+            return saved;
+        } catch (IOException e) {
+            Log.w(TAG, "read: Can't read " + mFile, e);
+            return null;
+        } finally {
+            close(input);
+        }
+    }
+
+    /**
+     * Saves pending changes right away, before the service goes away, and stops saving. Plays
+     * recorded before the saved history was loaded aren't saved, since saving them would
+     * overwrite it.
+     */
+    void flush() {
+        mFlushed = true;
+        mHandler.removeCallbacks(mSave);
+        if (mSavePending && mLoaded) {
+            save();
+        }
+        mSavePending = false;
+    }
+
+    private void scheduleSave() {
+        if (!mSavePending && !mFlushed) {
+            mSavePending = true;
+            mHandler.postDelayed(mSave, SAVE_DELAY_MS);
+        }
+    }
+
+    private void save() {
+        mSavePending = false;
+        final byte[] snapshot = toByteArray();
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot);
+            }
+        });
+    }
+
+    // The lists are only touched on the main thread, so they're serialized here, and only the
+    // bytes are written on the disk executor.
+    private byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(mRecent.size());
+            // Least recent first, so that reading them back in order restores the LRU.
+            for (String mediaId : mRecent.keySet()) {
+                output.writeUTF(mediaId);
+            }
+            output.writeInt(mCounts.size());
+            for (PlayCount playCount : mCounts) {
+                output.writeUTF(playCount.mMediaId);
+                output.writeLong(playCount.mCount);
+                output.writeLong(playCount.mError);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Runs on the disk executor.
+    private void write(byte[] snapshot) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            File directory = mFile.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            output = new FileOutputStream(temp);
+            output.write(snapshot);
+            output.close();
+            output = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: Can't write " + mFile, e);
+        } finally {
+            close(output);
+        }
+    }
+
+    private static void close(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing else to do.
+            }
+        }
+    }
+
+    // The history as read from the file, least recent first and most played first.
+    private static final class Saved {
+
+        final ArrayList<String> mRecent = new ArrayList<>();
+        final ArrayList<PlayCount> mCounts = new ArrayList<>();
+    }
+
+    private static final class PlayCount {
+
+        String mMediaId;
+        int mIndex;
+        long mCount;
+        // How much the count may overestimate the track's plays.
+        long mError;
+
+        PlayCount(String mediaId, int index) {
+            mMediaId = mediaId;
+            mIndex = index;
+        }
+    }
+}
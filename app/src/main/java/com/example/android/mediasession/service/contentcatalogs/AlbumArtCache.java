@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide cache of decoded album art, along with the thread pool that decodes it. Shared by
+ * every playback zone and by the notifications, and keyed by drawable rather than by track, so
+ * each bitmap is decoded once however many tracks share it.
+ *
+ * <p>Tracks are mapped to their drawable on the main thread, which the catalog is changed on.
+ */
+public final class AlbumArtCache {
+
+    private static final int DECODE_THREADS = 2;
+    private static final long DECODE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // A drawable's bitmap never goes stale, so nothing is evicted when tracks change.
+    private static final LruCache<Integer, Bitmap> sCache =
+            new LruCache<Integer, Bitmap>(getMaxCacheBytes()) {
+                @Override
+                protected int sizeOf(Integer albumRes, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final ThreadPoolExecutor sDecodeExecutor =
+            new ThreadPoolExecutor(
+                    DECODE_THREADS,
+                    DECODE_THREADS,
+                    DECODE_THREAD_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "AlbumArtDecode-" + mCount.incrementAndGet());
+                        }
+                    });
+
+    static {
+        // Idle zones shouldn't cost any threads.
+        sDecodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface Callback {
+
+        void onAlbumArtLoaded(@NonNull String mediaId, @Nullable Bitmap albumArt);
+    }
+
+    private AlbumArtCache() {
+    }
+
+    /**
+     * @return the album art for the given media id if it has already been decoded, otherwise
+     * null.
+     */
+    @Nullable
+    public static Bitmap getCached(@NonNull String mediaId) {
+        int albumRes = MusicLibrary.getAlbumRes(mediaId);
+        return albumRes == 0 ? null : sCache.get(albumRes);
+    }
+
+    /**
+     * Loads the album art for the given media id on the decode pool, and delivers it on the main
+     * thread. The callback is invoked right away when the album art is already cached, or when
+     * the track has none. Must be called on the main thread.
+     */
+    public static void load(@NonNull Context context,
+                            @NonNull final String mediaId,
+                            @NonNull final Callback callback) {
+        final int albumRes = MusicLibrary.getAlbumRes(mediaId);
+        Bitmap albumArt = albumRes == 0 ? null : sCache.get(albumRes);
+        if (albumRes == 0 || albumArt != null) {
+            callback.onAlbumArtLoaded(mediaId, albumArt);
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        final Resources resources = applicationContext.getResources();
+        sDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap decoded = decode(resources, albumRes);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (MusicLibrary.getAlbumRes(mediaId) != albumRes) {
+                            // The track was given other art meanwhile.
+                            load(applicationContext, mediaId, callback);
+                            return;
+                        }
+                        callback.onAlbumArtLoaded(mediaId, decoded);
+                    }
+                });
+            }
+        });
+    }
+
+    public static int getSizeBytes() {
+        return sCache.size();
+    }
+
+    // Decodes the given drawable into the cache, unless it's there already. Not on the main
+    // thread.
+    @Nullable
+    static Bitmap decode(Resources resources, int albumRes) {
+        Bitmap albumArt = sCache.get(albumRes);
+        if (albumArt == null) {
+            albumArt = BitmapFactory.decodeResource(resources, albumRes);
+            if (albumArt != null) {
+                sCache.put(albumRes, albumArt);
+            }
+        }
+        return albumArt;
+    }
+
+    static int getMaxCacheBytes() {
+        // An eighth of the heap, which is enough for the art of a handful of tracks.
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+    }
+}
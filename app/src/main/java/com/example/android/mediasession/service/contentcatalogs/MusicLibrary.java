@@ -17,55 +17,215 @@
 package com.example.android.mediasession.service.contentcatalogs;
 
 import android.content.ContentResolver;
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.R;
+import com.example.android.mediasession.catalog.CatalogDelta;
+import com.example.android.mediasession.catalog.TrackCatalog;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 
+/**
+ * Adapts the {@link TrackCatalog} of the app to MediaMetadataCompat, and holds the album art
+ * resources of the tracks.
+ */
 public class MusicLibrary {
 
-    private static final TreeMap<String, MediaMetadataCompat> music = new TreeMap<>();
-    private static final HashMap<String, Integer> albumRes = new HashMap<>();
-    private static final HashMap<String, String> musicFileName = new HashMap<>();
-
-    static {
-        createMediaMetadataCompat(
-                "Jazz_In_Paris",
-                "Jazz in Paris",
-                "Media Right Productions",
-                "Jazz & Blues",
-                "Jazz",
-                103,
-                TimeUnit.SECONDS,
-                "jazz_in_paris.mp3",
-                R.drawable.album_jazz_blues,
-                "album_jazz_blues");
-        createMediaMetadataCompat(
-                "The_Coldest_Shoulder",
-                "The Coldest Shoulder",
-                "The 126ers",
-                "Youtube Audio Library Rock 2",
-                "Rock",
-                160,
-                TimeUnit.SECONDS,
-                "the_coldest_shoulder.mp3",
-                R.drawable.album_youtube_audio_library_rock_2,
-                "album_youtube_audio_library_rock_2");
+    private static final String ROOT = "root";
+
+    /**
+     * Notified on the main thread after tracks were added, updated or removed.
+     */
+    public interface OnCatalogChangedListener extends TrackCatalog.Listener {
+    }
+
+    // Versions start at the wall clock time, so that versions from an earlier process (which
+    // clients may have cached) are older than any version of this one.
+    private static final TrackCatalog<MediaMetadataCompat> sTracks =
+            new TrackCatalog<>(System.currentTimeMillis());
+
+    /**
+     * Holds the catalog. The bundled tracks are loaded the first time the catalog is actually
+     * used rather than when {@link MusicLibrary} is first touched, so that answering onGetRoot()
+     * doesn't pay for building every {@link MediaMetadataCompat}. Its version can be read
+     * without loading it.
+     */
+    private static final class Catalog {
+
+        private static final TrackCatalog<MediaMetadataCompat> music = sTracks;
+        private static final HashMap<String, Integer> albumRes = new HashMap<>();
+
+        static {
+            loadBundledTrack(
+                    "Jazz_In_Paris",
+                    "Jazz in Paris",
+                    "Media Right Productions",
+                    "Jazz & Blues",
+                    "Jazz",
+                    103,
+                    TimeUnit.SECONDS,
+                    "jazz_in_paris.mp3",
+                    R.drawable.album_jazz_blues,
+                    "album_jazz_blues");
+            loadBundledTrack(
+                    "The_Coldest_Shoulder",
+                    "The Coldest Shoulder",
+                    "The 126ers",
+                    "Youtube Audio Library Rock 2",
+                    "Rock",
+                    160,
+                    TimeUnit.SECONDS,
+                    "the_coldest_shoulder.mp3",
+                    R.drawable.album_youtube_audio_library_rock_2,
+                    "album_youtube_audio_library_rock_2");
+        }
     }
 
     public static String getRoot() {
-        return "root";
+        return ROOT;
+    }
+
+    /**
+     * @return the version of the catalog, which changes whenever a track is added, updated or
+     * removed.
+     */
+    public static long getVersion() {
+        return sTracks.getVersion();
+    }
+
+    public static void addOnCatalogChangedListener(OnCatalogChangedListener listener) {
+        sTracks.addListener(listener);
+    }
+
+    public static void removeOnCatalogChangedListener(OnCatalogChangedListener listener) {
+        sTracks.removeListener(listener);
+    }
+
+    /**
+     * Starts a batch of mutations, which bumps the version and notifies listeners only once,
+     * in {@link #endBatch()}. Batches can be nested.
+     */
+    public static void beginBatch() {
+        sTracks.beginBatch();
+    }
+
+    public static void endBatch() {
+        sTracks.endBatch();
+    }
+
+    /**
+     * Adds the given number of generated tracks in one batch, to benchmark large catalogs. The
+     * tracks all play the same bundled file.
+     */
+    public static void addTestTracks(int count) {
+        beginBatch();
+        try {
+            int first = Catalog.music.size();
+            for (int i = first; i < first + count; i++) {
+                putTrack("Test_Track_" + i,
+                         "Test Track " + i,
+                         "Test Artist " + (i % 100),
+                         "Test Album " + (i % 1000),
+                         "Test",
+                         103,
+                         TimeUnit.SECONDS,
+                         "jazz_in_paris.mp3",
+                         R.drawable.album_jazz_blues,
+                         "album_jazz_blues");
+            }
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Returns what changed in the catalog since the given version, or null if that is no longer
+     * known, in which case the whole catalog has to be sent.
+     */
+    public static CatalogDelta getChangesSince(long version) {
+        return sTracks.getChangesSince(version);
+    }
+
+    /**
+     * Adds a track to the catalog, or replaces the track with the same media id.
+     */
+    public static void putTrack(
+            String mediaId,
+            String title,
+            String artist,
+            String album,
+            String genre,
+            long duration,
+            TimeUnit durationUnit,
+            String musicFilename,
+            int albumArtResId,
+            String albumArtResName) {
+        Catalog.albumRes.put(mediaId, albumArtResId);
+        // Notifies the listeners, so it comes last.
+        Catalog.music.put(
+                mediaId,
+                musicFilename,
+                createMediaMetadataCompat(
+                        mediaId,
+                        title,
+                        artist,
+                        album,
+                        genre,
+                        duration,
+                        durationUnit,
+                        albumArtResName));
+    }
+
+    // Adds a track the catalog starts with, which doesn't count as a change.
+    private static void loadBundledTrack(
+            String mediaId,
+            String title,
+            String artist,
+            String album,
+            String genre,
+            long duration,
+            TimeUnit durationUnit,
+            String musicFilename,
+            int albumArtResId,
+            String albumArtResName) {
+        Catalog.albumRes.put(mediaId, albumArtResId);
+        Catalog.music.load(
+                mediaId,
+                musicFilename,
+                createMediaMetadataCompat(
+                        mediaId,
+                        title,
+                        artist,
+                        album,
+                        genre,
+                        duration,
+                        durationUnit,
+                        albumArtResName));
+    }
+
+    /**
+     * Removes a track from the catalog.
+     *
+     * @return true if the catalog contained the track.
+     */
+    public static boolean removeTrack(String mediaId) {
+        if (!Catalog.music.contains(mediaId)) {
+            return false;
+        }
+        Catalog.albumRes.remove(mediaId);
+        // Notifies the listeners, so it comes last.
+        Catalog.music.remove(mediaId);
+        return true;
     }
 
     private static String getAlbumArtUri(String albumArtResName) {
@@ -74,21 +234,29 @@ public class MusicLibrary {
     }
 
     public static String getMusicFilename(String mediaId) {
-        return musicFileName.containsKey(mediaId) ? musicFileName.get(mediaId) : null;
+        return Catalog.music.getMusicFileName(mediaId);
     }
 
-    private static int getAlbumRes(String mediaId) {
-        return albumRes.containsKey(mediaId) ? albumRes.get(mediaId) : 0;
+    /**
+     * @return true if the given music file is a http(s) URL to stream, rather than an asset.
+     */
+    public static boolean isStreamed(String musicFilename) {
+        return TrackCatalog.isStreamed(musicFilename);
     }
 
-    public static Bitmap getAlbumBitmap(Context context, String mediaId) {
-        return BitmapFactory.decodeResource(context.getResources(),
-                MusicLibrary.getAlbumRes(mediaId));
+    static int getAlbumRes(String mediaId) {
+        return Catalog.albumRes.containsKey(mediaId) ? Catalog.albumRes.get(mediaId) : 0;
     }
 
     public static List<MediaBrowserCompat.MediaItem> getMediaItems() {
-        List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
-        for (MediaMetadataCompat metadata : music.values()) {
+        return toMediaItems(Catalog.music.getTracks());
+    }
+
+    // The browsable items of the given tracks, as they're listed to browsers.
+    static List<MediaBrowserCompat.MediaItem> toMediaItems(
+            Collection<MediaMetadataCompat> tracks) {
+        List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(tracks.size());
+        for (MediaMetadataCompat metadata : tracks) {
             result.add(
                     new MediaBrowserCompat.MediaItem(
                             metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
@@ -96,9 +264,51 @@ public class MusicLibrary {
         return result;
     }
 
-    public static MediaMetadataCompat getMetadata(Context context, String mediaId) {
-        MediaMetadataCompat metadataWithoutBitmap = music.get(mediaId);
-        Bitmap albumArt = getAlbumBitmap(context, mediaId);
+    /**
+     * @return the browsable item of the given track, or null if it isn't in the catalog.
+     */
+    public static MediaBrowserCompat.MediaItem getMediaItem(String mediaId) {
+        MediaMetadataCompat metadata = Catalog.music.get(mediaId);
+        return metadata == null
+               ? null
+               : new MediaBrowserCompat.MediaItem(
+                       metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+    }
+
+    /**
+     * @return the description of the given track, which is the same instance every time, or null
+     * if it isn't in the catalog.
+     */
+    @Nullable
+    public static MediaDescriptionCompat getDescription(String mediaId) {
+        MediaMetadataCompat metadata = Catalog.music.get(mediaId);
+        return metadata == null ? null : metadata.getDescription();
+    }
+
+    /**
+     * Finds the track a playlist entry refers to, by its media id, its music file (or URL), or
+     * the name of the file at the end of a path.
+     *
+     * @return the media id of the track, or null if it isn't in the catalog.
+     */
+    @Nullable
+    public static String resolve(String location) {
+        return Catalog.music.resolve(location);
+    }
+
+    /**
+     * Returns the metadata for the given media id with the given album art, which may be null if
+     * it hasn't been decoded yet.
+     *
+     * @return the metadata, or null if the track isn't in the catalog (e.g. because it was
+     * removed after it was queued).
+     */
+    @Nullable
+    public static MediaMetadataCompat getMetadata(String mediaId, Bitmap albumArt) {
+        MediaMetadataCompat metadataWithoutBitmap = Catalog.music.get(mediaId);
+        if (metadataWithoutBitmap == null) {
+            return null;
+        }
 
         // Since MediaMetadataCompat is immutable, we need to create a copy to set the album art.
         // We don't set it initially on all items so that they don't take unnecessary memory.
@@ -109,18 +319,23 @@ public class MusicLibrary {
                         MediaMetadataCompat.METADATA_KEY_ALBUM,
                         MediaMetadataCompat.METADATA_KEY_ARTIST,
                         MediaMetadataCompat.METADATA_KEY_GENRE,
-                        MediaMetadataCompat.METADATA_KEY_TITLE
+                        MediaMetadataCompat.METADATA_KEY_TITLE,
+                        MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+                        MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI
                 }) {
             builder.putString(key, metadataWithoutBitmap.getString(key));
         }
         builder.putLong(
                 MediaMetadataCompat.METADATA_KEY_DURATION,
                 metadataWithoutBitmap.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
-        builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt);
+        if (albumArt != null) {
+            builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt);
+        }
         return builder.build();
     }
 
-    private static void createMediaMetadataCompat(
+    // Package-private so that memory budgets can be checked on catalogs of the same metadata.
+    static MediaMetadataCompat createMediaMetadataCompat(
             String mediaId,
             String title,
             String artist,
@@ -128,27 +343,21 @@ public class MusicLibrary {
             String genre,
             long duration,
             TimeUnit durationUnit,
-            String musicFilename,
-            int albumArtResId,
             String albumArtResName) {
-        music.put(
-                mediaId,
-                new MediaMetadataCompat.Builder()
-                        .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
-                        .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                        .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
-                        .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
-                                 TimeUnit.MILLISECONDS.convert(duration, durationUnit))
-                        .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
-                        .putString(
-                                MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
-                                getAlbumArtUri(albumArtResName))
-                        .putString(
-                                MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI,
-                                getAlbumArtUri(albumArtResName))
-                        .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                        .build());
-        albumRes.put(mediaId, albumArtResId);
-        musicFileName.put(mediaId, musicFilename);
-    }
-}
\ No newline at end of file
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
+                         TimeUnit.MILLISECONDS.convert(duration, durationUnit))
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
+                .putString(
+                        MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+                        getAlbumArtUri(albumArtResName))
+                .putString(
+                        MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI,
+                        getAlbumArtUri(albumArtResName))
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .build();
+    }
+}
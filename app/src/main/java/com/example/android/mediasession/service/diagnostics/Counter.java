@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter. Updates are striped by thread over padded cells, so that threads that
+ * increment the same counter don't contend on one cache line. Incrementing doesn't allocate.
+ */
+public final class Counter {
+
+    private static final int STRIPES = 4;
+    // Cells are 8 longs (one cache line) apart.
+    private static final int PADDING = 8;
+
+    private final String mName;
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    Counter(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(cellIndex(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cellIndex() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+}
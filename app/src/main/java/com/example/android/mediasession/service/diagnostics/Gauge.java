@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the latest value of something, e.g. the number of zones.
+ */
+public final class Gauge {
+
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    Gauge(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void set(long value) {
+        mValue.set(value);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide registry of the service's hot path metrics. Metrics are registered once, usually
+ * in a static field next to the code that updates them, and updating them afterwards is lock
+ * free and allocation free. The registry is read by {@code dumpsys activity service
+ * MusicService} and by the {@link #COMMAND_GET_METRICS} session command. When the service runs
+ * in its own process, those only see the metrics of that process, not the ones the UI records.
+ */
+public final class Metrics {
+
+    /**
+     * Session command that returns {@link #toBundle()} through its ResultReceiver.
+     */
+    public static final String COMMAND_GET_METRICS =
+            "com.example.android.mediasession.COMMAND_GET_METRICS";
+
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_MEAN = "mean";
+    public static final String KEY_P50 = "p50";
+    public static final String KEY_P90 = "p90";
+    public static final String KEY_P99 = "p99";
+    public static final String KEY_MAX = "max";
+    public static final String KEY_UNIT = "unit";
+
+    private static final List<Counter> sCounters = new ArrayList<>();
+    private static final List<Gauge> sGauges = new ArrayList<>();
+    private static final List<Histogram> sHistograms = new ArrayList<>();
+
+    private Metrics() {
+    }
+
+    public static synchronized Counter counter(String name) {
+        for (Counter counter : sCounters) {
+            if (counter.getName().equals(name)) {
+                return counter;
+            }
+        }
+        Counter counter = new Counter(name);
+        sCounters.add(counter);
+        return counter;
+    }
+
+    public static synchronized Gauge gauge(String name) {
+        for (Gauge gauge : sGauges) {
+            if (gauge.getName().equals(name)) {
+                return gauge;
+            }
+        }
+        Gauge gauge = new Gauge(name);
+        sGauges.add(gauge);
+        return gauge;
+    }
+
+    /**
+     * @return the histogram of durations in nanoseconds with the given name.
+     */
+    public static Histogram latency(String name) {
+        return histogram(name, Histogram.UNIT_NANOS);
+    }
+
+    /**
+     * @return the histogram of sizes in bytes with the given name.
+     */
+    public static Histogram size(String name) {
+        return histogram(name, Histogram.UNIT_BYTES);
+    }
+
+    private static synchronized Histogram histogram(String name, String unit) {
+        for (Histogram histogram : sHistograms) {
+            if (histogram.getName().equals(name)) {
+                return histogram;
+            }
+        }
+        Histogram histogram = new Histogram(name, unit);
+        sHistograms.add(histogram);
+        return histogram;
+    }
+
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("Counters:");
+        for (Counter counter : sCounters) {
+            writer.println("  " + counter.getName() + "=" + counter.get());
+        }
+        writer.println("Gauges:");
+        for (Gauge gauge : sGauges) {
+            writer.println("  " + gauge.getName() + "=" + gauge.get());
+        }
+        writer.println("Histograms:");
+        for (Histogram histogram : sHistograms) {
+            writer.println(String.format(
+                    "  %s: count=%d, mean=%s, p50=%s, p90=%s, p99=%s, max=%s",
+                    histogram.getName(),
+                    histogram.getCount(),
+                    format(histogram, histogram.getMean()),
+                    format(histogram, histogram.getPercentile(50)),
+                    format(histogram, histogram.getPercentile(90)),
+                    format(histogram, histogram.getPercentile(99)),
+                    format(histogram, histogram.getMax())));
+        }
+    }
+
+    /**
+     * @return a snapshot of every metric, keyed by name. Histograms are nested bundles with
+     * {@link #KEY_COUNT}, {@link #KEY_MEAN}, the percentiles, {@link #KEY_MAX} and
+     * {@link #KEY_UNIT}.
+     */
+    public static synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (Counter counter : sCounters) {
+            bundle.putLong(counter.getName(), counter.get());
+        }
+        for (Gauge gauge : sGauges) {
+            bundle.putLong(gauge.getName(), gauge.get());
+        }
+        for (Histogram histogram : sHistograms) {
+            Bundle values = new Bundle();
+            values.putLong(KEY_COUNT, histogram.getCount());
+            values.putLong(KEY_MEAN, histogram.getMean());
+            values.putLong(KEY_P50, histogram.getPercentile(50));
+            values.putLong(KEY_P90, histogram.getPercentile(90));
+            values.putLong(KEY_P99, histogram.getPercentile(99));
+            values.putLong(KEY_MAX, histogram.getMax());
+            values.putString(KEY_UNIT, histogram.getUnit());
+            bundle.putBundle(histogram.getName(), values);
+        }
+        return bundle;
+    }
+
+    /**
+     * @return the number of bytes {@code parcelable} takes up when it is sent over binder.
+     */
+    public static int parcelSize(Parcelable parcelable) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelable.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static String format(Histogram histogram, long value) {
+        if (Histogram.UNIT_NANOS.equals(histogram.getUnit())) {
+            return String.format("%.1fus", value / 1000.0);
+        }
+        return value + histogram.getUnit();
+    }
+}
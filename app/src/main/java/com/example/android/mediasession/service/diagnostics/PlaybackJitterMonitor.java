@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.mediasession.BuildConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how exposed the thread that drives playback is to garbage collection pauses and other
+ * stalls, while something is playing. A heartbeat posted to the thread every few milliseconds
+ * records how late it runs, and counts the stalls long enough to drain the output buffer of a low
+ * latency player as underruns. Collections in the process are counted as well, on API 23 and
+ * up. Comparing the numbers of a build with {@code -PplaybackProcess} against one without shows
+ * what isolating the service from the UI buys. The heartbeat wakes the CPU up, so it's only
+ * meant for debug builds.
+ */
+public final class PlaybackJitterMonitor {
+
+    private static final String TAG = "MS_PlaybackJitter";
+
+    private static final long HEARTBEAT_INTERVAL_MS = 10;
+    private static final long UNDERRUN_THRESHOLD_MS = 40;
+
+    private static final Histogram sStalls = Metrics.latency("playback.thread_lateness");
+    private static final Counter sUnderruns = Metrics.counter("playback.underruns");
+    private static final Counter sGcCount = Metrics.counter("playback.gc_count");
+    private static final Counter sGcBlockingMillis = Metrics.counter("playback.gc_blocking_ms");
+
+    private final Handler mHandler;
+    private boolean mRunning;
+    private long mExpectedNanos;
+    private long mStartNanos;
+    private long mUnderrunsAtStart;
+    private long mMaxLatenessNanos;
+    private long mGcCountAtStart;
+    private long mGcBlockingMillisAtStart;
+
+    public PlaybackJitterMonitor(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mStartNanos = System.nanoTime();
+        mUnderrunsAtStart = sUnderruns.get();
+        mMaxLatenessNanos = 0;
+        mGcCountAtStart = getRuntimeStat("art.gc.gc-count");
+        mGcBlockingMillisAtStart = getRuntimeStat("art.gc.blocking-gc-time");
+        mExpectedNanos = mStartNanos + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MS);
+        mHandler.postDelayed(mHeartbeat, HEARTBEAT_INTERVAL_MS);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks(mHeartbeat);
+
+        long gcCount = getRuntimeStat("art.gc.gc-count") - mGcCountAtStart;
+        long gcBlockingMillis =
+                getRuntimeStat("art.gc.blocking-gc-time") - mGcBlockingMillisAtStart;
+        sGcCount.add(gcCount);
+        sGcBlockingMillis.add(gcBlockingMillis);
+        Log.d(TAG, "stop: " + (BuildConfig.PLAYBACK_PROCESS ? "isolated" : "shared")
+                   + " process, played "
+                   + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos) + "ms, "
+                   + (sUnderruns.get() - mUnderrunsAtStart) + " underruns, max lateness "
+                   + TimeUnit.NANOSECONDS.toMillis(mMaxLatenessNanos) + "ms, "
+                   + gcCount + " collections, " + gcBlockingMillis + "ms blocking");
+    }
+
+    private final Runnable mHeartbeat = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long lateness = Math.max(0, now - mExpectedNanos);
+            sStalls.record(lateness);
+            mMaxLatenessNanos = Math.max(mMaxLatenessNanos, lateness);
+            if (lateness >= TimeUnit.MILLISECONDS.toNanos(UNDERRUN_THRESHOLD_MS)) {
+                sUnderruns.increment();
+            }
+            mExpectedNanos = now + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MS);
+            mHandler.postDelayed(this, HEARTBEAT_INTERVAL_MS);
+        }
+    };
+
+    // 0 where runtime stats aren't available.
+    private static long getRuntimeStat(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Debug.getRuntimeStat(name));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import android.os.Debug;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Point in time snapshot of the resources used by this process: Java heap, native heap and
+ * threads. Comparing snapshots shows how resource use scales, e.g. with the number of zones.
+ */
+public final class ResourceSnapshot {
+
+    private static final String PROC_STATUS = "/proc/self/status";
+    private static final String THREADS = "Threads:";
+
+    public final long javaHeapBytes;
+    public final long nativeHeapBytes;
+    public final int threadCount;
+
+    private ResourceSnapshot(long javaHeapBytes, long nativeHeapBytes, int threadCount) {
+        this.javaHeapBytes = javaHeapBytes;
+        this.nativeHeapBytes = nativeHeapBytes;
+        this.threadCount = threadCount;
+    }
+
+    public static ResourceSnapshot capture() {
+        Runtime runtime = Runtime.getRuntime();
+        return new ResourceSnapshot(
+                runtime.totalMemory() - runtime.freeMemory(),
+                Debug.getNativeHeapAllocatedSize(),
+                readThreadCount());
+    }
+
+    /**
+     * @return the growth from {@code baseline} to this snapshot, divided by {@code units} (e.g.
+     * the number of zones).
+     */
+    public String describeGrowthPer(ResourceSnapshot baseline, int units, String unitName) {
+        int divisor = Math.max(1, units);
+        return String.format(
+                "per %s: javaHeap=%dKB, nativeHeap=%dKB, threads=%.1f",
+                unitName,
+                (javaHeapBytes - baseline.javaHeapBytes) / divisor / 1024,
+                (nativeHeapBytes - baseline.nativeHeapBytes) / divisor / 1024,
+                (threadCount - baseline.threadCount) / (float) divisor);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "javaHeap=%dKB, nativeHeap=%dKB, threads=%d",
+                javaHeapBytes / 1024,
+                nativeHeapBytes / 1024,
+                threadCount);
+    }
+
+    private static int readThreadCount() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(PROC_STATUS));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(THREADS)) {
+                    return Integer.parseInt(line.substring(THREADS.length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Fall through to the approximation below.
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+        return Thread.activeCount();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Skip storm benchmark: issues a number of skips in quick succession, as holding down a
+ * steering wheel "next" button would, and measures the time until the track skipped to last is
+ * audible. Also counts how many times the player started preparing media along the way.
+ */
+public final class SkipBenchmark {
+
+    private static final String TAG = "MS_SkipBenchmark";
+
+    public static final int DEFAULT_SKIPS = 50;
+    public static final long DEFAULT_DURATION_MS = 1000;
+    private static final long TIMEOUT_MS = 10000;
+
+    /**
+     * Result keys: the number of skips, the time from the first and from the last skip until
+     * the final track was audible, and the number of preparations started.
+     */
+    public static final String KEY_SKIPS = "skips";
+    public static final String KEY_FIRST_SKIP_TO_AUDIO_MS = "first_skip_to_audio_ms";
+    public static final String KEY_LAST_SKIP_TO_AUDIO_MS = "last_skip_to_audio_ms";
+    public static final String KEY_PREPARES = "prepares";
+
+    private static final Histogram sSettleLatency = Metrics.latency("benchmark.skip_to_audio");
+    private static final Counter sPrepares = Metrics.counter("player.prepare");
+
+    private final Handler mHandler;
+    private final Runnable mSkip;
+    private final int mSkips;
+    private final long mIntervalMs;
+    private final ResultReceiver mResultReceiver;
+    private final int mResultOk;
+    private final int mResultError;
+
+    private int mIssued;
+    private long mFirstSkipNanos;
+    private long mLastSkipNanos;
+    private long mPreparesAtStart;
+    private boolean mDone;
+
+    /**
+     * @param skip    skips to the next track.
+     * @param result  sent the result, with the given codes, or the error code on a timeout.
+     */
+    public SkipBenchmark(Handler handler, Runnable skip, int skips, long durationMs,
+                         ResultReceiver result, int resultOk, int resultError) {
+        mHandler = handler;
+        mSkip = skip;
+        mSkips = Math.max(1, skips);
+        mIntervalMs = durationMs / mSkips;
+        mResultReceiver = result;
+        mResultOk = resultOk;
+        mResultError = resultError;
+    }
+
+    public void start() {
+        mPreparesAtStart = sPrepares.get();
+        mHandler.post(mIssueSkip);
+        mHandler.postDelayed(mTimeout, TIMEOUT_MS);
+    }
+
+    /**
+     * @return true once every skip has been issued, from when the final track should play.
+     */
+    public boolean isWaitingForAudio() {
+        return !mDone && mIssued == mSkips;
+    }
+
+    /**
+     * Called when the final track became audible. Finishes the benchmark.
+     */
+    public void onAudible() {
+        if (!isWaitingForAudio()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        mDone = true;
+        mHandler.removeCallbacks(mTimeout);
+        sSettleLatency.record(now - mLastSkipNanos);
+        Bundle result = new Bundle();
+        result.putInt(KEY_SKIPS, mSkips);
+        result.putLong(KEY_FIRST_SKIP_TO_AUDIO_MS,
+                       TimeUnit.NANOSECONDS.toMillis(now - mFirstSkipNanos));
+        result.putLong(KEY_LAST_SKIP_TO_AUDIO_MS,
+                       TimeUnit.NANOSECONDS.toMillis(now - mLastSkipNanos));
+        result.putLong(KEY_PREPARES, sPrepares.get() - mPreparesAtStart);
+        Log.d(TAG, "onAudible: " + result);
+        if (mResultReceiver != null) {
+            mResultReceiver.send(mResultOk, result);
+        }
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Stops issuing skips, without sending a result.
+     */
+    public void cancel() {
+        mDone = true;
+        mHandler.removeCallbacks(mIssueSkip);
+        mHandler.removeCallbacks(mTimeout);
+    }
+
+    private final Runnable mIssueSkip = new Runnable() {
+        @Override
+        public void run() {
+            if (mDone) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (mIssued == 0) {
+                mFirstSkipNanos = now;
+            }
+            mLastSkipNanos = now;
+            mIssued++;
+            mSkip.run();
+            if (mIssued < mSkips) {
+                mHandler.postDelayed(this, mIntervalMs);
+            }
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "timeout: The final track didn't play within " + TIMEOUT_MS + "ms");
+            cancel();
+            if (mResultReceiver != null) {
+                mResultReceiver.send(mResultError, null);
+            }
+        }
+    };
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup benchmark for the service. Records the time from onCreate() to the first onGetRoot()
+ * (a MediaBrowser connect or a media button wake-up) and to the first audible playback, and
+ * logs both once they are known.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = "MS_StartupTrace";
+    private static final long UNSET = -1;
+
+    private static final Gauge sCreateToGetRoot = Metrics.gauge("startup.get_root_ns");
+    private static final Gauge sCreateToFirstAudio = Metrics.gauge("startup.first_audio_ns");
+
+    private long mCreateNanos = UNSET;
+    private long mGetRootNanos = UNSET;
+    private long mFirstAudioNanos = UNSET;
+
+    public void markCreate() {
+        mCreateNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public void markGetRoot() {
+        if (mGetRootNanos == UNSET && mCreateNanos != UNSET) {
+            mGetRootNanos = SystemClock.elapsedRealtimeNanos();
+            sCreateToGetRoot.set(getCreateToGetRootNanos());
+            Log.d(TAG, "startup: onCreate->onGetRoot " + formatMillis(getCreateToGetRootNanos()));
+        }
+    }
+
+    public void markFirstAudio() {
+        if (mFirstAudioNanos == UNSET && mCreateNanos != UNSET) {
+            mFirstAudioNanos = SystemClock.elapsedRealtimeNanos();
+            sCreateToFirstAudio.set(getCreateToFirstAudioNanos());
+            Log.d(TAG,
+                  "startup: onCreate->first-audio " + formatMillis(getCreateToFirstAudioNanos()));
+        }
+    }
+
+    /**
+     * @return nanoseconds from onCreate() to the first onGetRoot(), or -1 if not yet known.
+     */
+    public long getCreateToGetRootNanos() {
+        return mGetRootNanos == UNSET ? UNSET : mGetRootNanos - mCreateNanos;
+    }
+
+    /**
+     * @return nanoseconds from onCreate() to the first audible playback, or -1 if not yet known.
+     */
+    public long getCreateToFirstAudioNanos() {
+        return mFirstAudioNanos == UNSET ? UNSET : mFirstAudioNanos - mCreateNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "onCreate->onGetRoot=" + formatMillis(getCreateToGetRootNanos())
+               + ", onCreate->first-audio=" + formatMillis(getCreateToFirstAudioNanos());
+    }
+
+    private static String formatMillis(long nanos) {
+        if (nanos == UNSET) {
+            return "n/a";
+        }
+        return String.format("%.2fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
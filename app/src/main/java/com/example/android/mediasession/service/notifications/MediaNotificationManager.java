@@ -22,9 +22,14 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
@@ -34,19 +39,35 @@ import android.support.v4.media.app.NotificationCompat.MediaStyle;
 import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
-import android.support.v4.os.BuildCompat;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.KeyEvent;
 
 import com.example.android.mediasession.R;
 import com.example.android.mediasession.service.MusicService;
-import com.example.android.mediasession.service.PlaybackInfoListener;
+import com.example.android.mediasession.service.contentcatalogs.AlbumArtCache;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
 import com.example.android.mediasession.ui.MainActivity;
 
+import java.util.Collection;
+
 
 /**
  * Keeps track of a notification and updates it automatically for a given MediaSession. This is
  * required so that the music service don't get killed during playback.
+ * <p>
+ * Each playback zone of the service has its own notification, with its own id and its own
+ * actions. The channel, the content intent and the album art are shared by all of them. The
+ * parts of a notification that only change with the track (title, subtitle) are taken from the
+ * catalog and cached, until the catalog updates the track.
+ * {@link #updateNotification} compares the new state against the last posted one, skips updates
+ * that wouldn't change anything, and rate limits bursts of updates (e.g. while skipping quickly
+ * through tracks). Album art that isn't decoded yet is loaded on the decode pool of the
+ * {@link AlbumArtCache}, and the notification is posted again once it's there.
  */
 public class MediaNotificationManager {
 
@@ -55,14 +76,21 @@ public class MediaNotificationManager {
     private static final String TAG = MediaNotificationManager.class.getSimpleName();
     private static final String CHANNEL_ID = "com.example.android.musicplayer.channel";
     private static final int REQUEST_CODE = 501;
+    private static final long MIN_UPDATE_INTERVAL_MS = 500;
+
+    private static final Counter sPosted = Metrics.counter("notification.posted");
+    private static final Counter sSkipped = Metrics.counter("notification.skipped");
+    private static final Counter sThrottled = Metrics.counter("notification.throttled");
+    private static final Histogram sBuildLatency = Metrics.latency("notification.build");
 
     private final MusicService mService;
 
-    private final NotificationCompat.Action mPlayAction;
-    private final NotificationCompat.Action mPauseAction;
-    private final NotificationCompat.Action mNextAction;
-    private final NotificationCompat.Action mPrevAction;
     private final NotificationManager mNotificationManager;
+    private final PendingIntent mContentIntent;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final SparseArray<ZoneNotification> mZoneNotifications = new SparseArray<>();
+
+    private boolean mChannelCreated;
 
     public MediaNotificationManager(MusicService service) {
         mService = service;
@@ -70,34 +98,7 @@ public class MediaNotificationManager {
         mNotificationManager =
                 (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
 
-        mPlayAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_play_arrow_white_24dp,
-                        mService.getString(R.string.label_play),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_PLAY));
-        mPauseAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_pause_white_24dp,
-                        mService.getString(R.string.label_pause),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_PAUSE));
-        mNextAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_skip_next_white_24dp,
-                        mService.getString(R.string.label_next),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT));
-        mPrevAction =
-                new NotificationCompat.Action(
-                        R.drawable.ic_skip_previous_white_24dp,
-                        mService.getString(R.string.label_previous),
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
+        mContentIntent = createContentIntent();
 
         // Cancel all notifications to handle the case where the Service was killed and
         // restarted by the system.
@@ -105,31 +106,145 @@ public class MediaNotificationManager {
     }
 
     public void onDestroy() {
-        Log.d(TAG, "onDestroy: ");
+        for (int i = 0; i < mZoneNotifications.size(); i++) {
+            mZoneNotifications.valueAt(i).clearPendingUpdate();
+        }
+        Log.d(TAG, "onDestroy: " + getStats());
     }
 
     public NotificationManager getNotificationManager() {
         return mNotificationManager;
     }
 
-    public Notification getNotification(MediaMetadataCompat metadata,
+    /**
+     * @return the id of the notification for the given zone.
+     */
+    public static int getNotificationId(int zoneId) {
+        return NOTIFICATION_ID + zoneId;
+    }
+
+    /**
+     * Builds the notification for the given state. The caller is expected to post it (e.g. via
+     * startForeground()), so it is recorded as the last posted notification.
+     */
+    public Notification getNotification(int zoneId,
+                                        MediaMetadataCompat metadata,
                                         @NonNull PlaybackStateCompat state,
                                         MediaSessionCompat.Token token) {
-        boolean isPlaying = state.getState() == PlaybackStateCompat.STATE_PLAYING;
-        MediaDescriptionCompat description = metadata.getDescription();
-        NotificationCompat.Builder builder =
-                buildNotification(state, token, isPlaying, description);
-        return builder.build();
+        ZoneNotification zoneNotification = getZoneNotification(zoneId);
+        zoneNotification.clearPendingUpdate();
+        RenderKey key = new RenderKey(metadata, state, zoneNotification.getTrackParts(metadata));
+        Notification notification = buildNotification(zoneNotification, metadata, token, key);
+        zoneNotification.onPosted(key, metadata, state, token);
+        return notification;
+    }
+
+    /**
+     * Posts the notification for the given state, unless it is identical to the last posted one.
+     * Updates that arrive faster than {@link #MIN_UPDATE_INTERVAL_MS} are coalesced, and only the
+     * latest one is posted once the interval has elapsed.
+     */
+    public void updateNotification(int zoneId,
+                                   MediaMetadataCompat metadata,
+                                   @NonNull PlaybackStateCompat state,
+                                   MediaSessionCompat.Token token) {
+        ZoneNotification zoneNotification = getZoneNotification(zoneId);
+        RenderKey key = new RenderKey(metadata, state, zoneNotification.getTrackParts(metadata));
+        if (key.equals(zoneNotification.mPostedKey)) {
+            zoneNotification.clearPendingUpdate();
+            sSkipped.increment();
+            return;
+        }
+
+        long delay = zoneNotification.mLastPostTime + MIN_UPDATE_INTERVAL_MS
+                     - SystemClock.elapsedRealtime();
+        if (delay > 0) {
+            zoneNotification.setPendingUpdate(metadata, state, token, delay);
+            return;
+        }
+
+        zoneNotification.clearPendingUpdate();
+        mNotificationManager.notify(
+                getNotificationId(zoneId),
+                buildNotification(zoneNotification, metadata, token, key));
+        zoneNotification.onPosted(key, metadata, state, token);
+    }
+
+    /**
+     * Posts the notifications that show any of the given tracks again, with what the catalog
+     * holds for them now, e.g. a new title.
+     */
+    public void onCatalogChanged(Collection<String> mediaIds) {
+        for (int i = 0; i < mZoneNotifications.size(); i++) {
+            ZoneNotification zoneNotification = mZoneNotifications.valueAt(i);
+            TrackParts trackParts = zoneNotification.mTrackParts;
+            if (trackParts == null || !mediaIds.contains(trackParts.mediaId)) {
+                continue;
+            }
+            zoneNotification.mTrackParts = null;
+            if (zoneNotification.mPostedKey != null
+                && MusicLibrary.getDescription(trackParts.mediaId) != null) {
+                updateNotification(mZoneNotifications.keyAt(i),
+                                   zoneNotification.mPostedMetadata,
+                                   zoneNotification.mPostedState,
+                                   zoneNotification.mPostedToken);
+            }
+        }
+    }
+
+    /**
+     * Forgets the last posted notification of the given zone, e.g. because it was removed along
+     * with the foreground state of the service.
+     */
+    public void reset(int zoneId) {
+        ZoneNotification zoneNotification = mZoneNotifications.get(zoneId);
+        if (zoneNotification != null) {
+            zoneNotification.clearPendingUpdate();
+            zoneNotification.clearPosted();
+        }
     }
 
-    private NotificationCompat.Builder buildNotification(@NonNull PlaybackStateCompat state,
-                                                         MediaSessionCompat.Token token,
-                                                         boolean isPlaying,
-                                                         MediaDescriptionCompat description) {
+    /**
+     * Removes the notification of the given zone.
+     */
+    public void cancel(int zoneId) {
+        reset(zoneId);
+        mNotificationManager.cancel(getNotificationId(zoneId));
+    }
+
+    /**
+     * Removes the notification of the given zone, and releases everything kept for it.
+     */
+    public void removeZone(int zoneId) {
+        cancel(zoneId);
+        mZoneNotifications.remove(zoneId);
+    }
+
+    public String getStats() {
+        return "posted=" + sPosted.get()
+               + ", skipped=" + sSkipped.get()
+               + ", throttled=" + sThrottled.get();
+    }
+
+    private ZoneNotification getZoneNotification(int zoneId) {
+        ZoneNotification zoneNotification = mZoneNotifications.get(zoneId);
+        if (zoneNotification == null) {
+            zoneNotification = new ZoneNotification(zoneId);
+            mZoneNotifications.put(zoneId, zoneNotification);
+        }
+        return zoneNotification;
+    }
+
+    private Notification buildNotification(ZoneNotification zoneNotification,
+                                           MediaMetadataCompat metadata,
+                                           MediaSessionCompat.Token token,
+                                           RenderKey key) {
+        final long start = System.nanoTime();
 
         // Create the (mandatory) notification channel when running on Android Oreo.
-        if (isAndroidOOrHigher()) {
+        if (isAndroidOOrHigher() && !mChannelCreated) {
             createChannel();
+            mChannelCreated = true;
         }
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
@@ -139,39 +254,38 @@ public class MediaNotificationManager {
                         .setShowActionsInCompactView(0, 1, 2)
                         // For backwards compatibility with Android L and earlier.
                         .setShowCancelButton(true)
-                        .setCancelButtonIntent(
-                                MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                        mService,
-                                        PlaybackStateCompat.ACTION_STOP)))
+                        .setCancelButtonIntent(zoneNotification.mStopIntent))
                 .setColor(ContextCompat.getColor(mService, R.color.notification_bg))
                 .setSmallIcon(R.drawable.ic_stat_image_audiotrack)
                 // Pending intent that is fired when user clicks on notification.
-                .setContentIntent(createContentIntent())
+                .setContentIntent(mContentIntent)
                 // Title - Usually Song name.
-                .setContentTitle(description.getTitle())
+                .setContentTitle(key.title)
                 // Subtitle - Usually Artist name.
-                .setContentText(description.getSubtitle())
-                .setLargeIcon(MusicLibrary.getAlbumBitmap(mService, description.getMediaId()))
+                .setContentText(key.subtitle)
+                .setLargeIcon(key.albumArt)
                 // When notification is deleted (when playback is paused and notification can be
                 // deleted) fire MediaButtonPendingIntent with ACTION_STOP.
-                .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(
-                        mService, PlaybackStateCompat.ACTION_STOP))
+                .setDeleteIntent(zoneNotification.mStopIntent)
                 // Show controls on lock screen even when user hides sensitive content.
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
 
-        // If skip to next action is enabled.
-        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
-            builder.addAction(mPrevAction);
+        // If skip to prev action is enabled.
+        if ((key.actions & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
+            builder.addAction(zoneNotification.mPrevAction);
         }
 
-        builder.addAction(isPlaying ? mPauseAction : mPlayAction);
+        builder.addAction(
+                key.isPlaying ? zoneNotification.mPauseAction : zoneNotification.mPlayAction);
 
-        // If skip to prev action is enabled.
-        if ((state.getActions() & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
-            builder.addAction(mNextAction);
+        // If skip to next action is enabled.
+        if ((key.actions & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
+            builder.addAction(zoneNotification.mNextAction);
         }
 
-        return builder;
+        Notification notification = builder.build();
+        sBuildLatency.recordSince(start);
+        return notification;
     }
 
     // Does nothing on versions of Android earlier than O.
@@ -208,7 +322,246 @@ public class MediaNotificationManager {
         Intent openUI = new Intent(mService, MainActivity.class);
         openUI.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
         return PendingIntent.getActivity(
-                mService, REQUEST_CODE, openUI, PendingIntent.FLAG_CANCEL_CURRENT);
+                mService, REQUEST_CODE, openUI, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * The primary zone uses the {@link MediaButtonReceiver}, which routes the media button to the
+     * primary session. The other zones send it straight to the service, tagged with their zone
+     * id, so that {@link MusicService#onStartCommand} can route it to the right session.
+     */
+    private PendingIntent createMediaButtonIntent(int zoneId, long action) {
+        if (zoneId == MusicService.PRIMARY_ZONE_ID) {
+            return MediaButtonReceiver.buildMediaButtonPendingIntent(mService, action);
+        }
+        int keyCode = PlaybackStateCompat.toKeyCode(action);
+        Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        intent.setClass(mService, MusicService.class);
+        intent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_DOWN, keyCode));
+        intent.putExtra(MusicService.EXTRA_ZONE_ID, zoneId);
+        // The request code has to be unique per zone and key, since extras don't make
+        // PendingIntents distinct.
+        return PendingIntent.getService(
+                mService, zoneId * 1000 + keyCode, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private NotificationCompat.Action createAction(int zoneId, int icon, int label, long action) {
+        return new NotificationCompat.Action(
+                icon, mService.getString(label), createMediaButtonIntent(zoneId, action));
+    }
+
+    // The notification state of one zone.
+    private final class ZoneNotification {
+
+        final NotificationCompat.Action mPlayAction;
+        final NotificationCompat.Action mPauseAction;
+        final NotificationCompat.Action mNextAction;
+        final NotificationCompat.Action mPrevAction;
+        final PendingIntent mStopIntent;
+        private final int mZoneId;
+
+        TrackParts mTrackParts;
+        RenderKey mPostedKey;
+        long mLastPostTime;
+
+        // What the posted notification was built from, to post it again with the album art.
+        private MediaMetadataCompat mPostedMetadata;
+        private PlaybackStateCompat mPostedState;
+        private MediaSessionCompat.Token mPostedToken;
+        // The media id whose album art is being loaded, if any.
+        private String mAlbumArtLoading;
+        private final AlbumArtCache.Callback mAlbumArtCallback = new AlbumArtCache.Callback() {
+            @Override
+            public void onAlbumArtLoaded(@NonNull String mediaId, @Nullable Bitmap albumArt) {
+                if (mediaId.equals(mAlbumArtLoading)) {
+                    mAlbumArtLoading = null;
+                }
+                // Only if the zone is still there, and still shows the track without its art.
+                if (albumArt == null
+                    || mZoneNotifications.get(mZoneId) != ZoneNotification.this
+                    || mPostedKey == null || mPostedKey.albumArt != null
+                    || !mediaId.equals(mPostedKey.mediaId)) {
+                    return;
+                }
+                updateNotification(mZoneId, mPostedMetadata, mPostedState, mPostedToken);
+            }
+        };
+
+        // Pending (throttled) update.
+        private MediaMetadataCompat mPendingMetadata;
+        private PlaybackStateCompat mPendingState;
+        private MediaSessionCompat.Token mPendingToken;
+        private final Runnable mPendingUpdate = new Runnable() {
+            @Override
+            public void run() {
+                MediaMetadataCompat metadata = mPendingMetadata;
+                PlaybackStateCompat state = mPendingState;
+                MediaSessionCompat.Token token = mPendingToken;
+                clearPendingUpdate();
+                updateNotification(mZoneId, metadata, state, token);
+            }
+        };
+
+        ZoneNotification(int zoneId) {
+            mZoneId = zoneId;
+            mPlayAction = createAction(zoneId,
+                                       R.drawable.ic_play_arrow_white_24dp,
+                                       R.string.label_play,
+                                       PlaybackStateCompat.ACTION_PLAY);
+            mPauseAction = createAction(zoneId,
+                                        R.drawable.ic_pause_white_24dp,
+                                        R.string.label_pause,
+                                        PlaybackStateCompat.ACTION_PAUSE);
+            mNextAction = createAction(zoneId,
+                                       R.drawable.ic_skip_next_white_24dp,
+                                       R.string.label_next,
+                                       PlaybackStateCompat.ACTION_SKIP_TO_NEXT);
+            mPrevAction = createAction(zoneId,
+                                       R.drawable.ic_skip_previous_white_24dp,
+                                       R.string.label_previous,
+                                       PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS);
+            mStopIntent = createMediaButtonIntent(zoneId, PlaybackStateCompat.ACTION_STOP);
+        }
+
+        TrackParts getTrackParts(MediaMetadataCompat metadata) {
+            MediaDescriptionCompat description = metadata.getDescription();
+            String mediaId = description.getMediaId();
+            if (mTrackParts == null || !mTrackParts.mediaId.equals(mediaId)) {
+                // The metadata the player was prepared with is out of date once the catalog
+                // updates the track.
+                MediaDescriptionCompat current =
+                        mediaId == null ? null : MusicLibrary.getDescription(mediaId);
+                if (current != null) {
+                    description = current;
+                }
+                mTrackParts = new TrackParts(
+                        mediaId, description.getTitle(), description.getSubtitle());
+            }
+            return mTrackParts;
+        }
+
+        void onPosted(RenderKey key,
+                      MediaMetadataCompat metadata,
+                      PlaybackStateCompat state,
+                      MediaSessionCompat.Token token) {
+            mPostedKey = key;
+            mPostedMetadata = metadata;
+            mPostedState = state;
+            mPostedToken = token;
+            mLastPostTime = SystemClock.elapsedRealtime();
+            sPosted.increment();
+            if (key.albumArt == null && key.mediaId != null) {
+                // Posted without it for now, and again once it has been decoded.
+                loadAlbumArt(key.mediaId);
+            }
+        }
+
+        void clearPosted() {
+            mPostedKey = null;
+            mPostedMetadata = null;
+            mPostedState = null;
+            mPostedToken = null;
+        }
+
+        private void loadAlbumArt(String mediaId) {
+            if (!mediaId.equals(mAlbumArtLoading)) {
+                mAlbumArtLoading = mediaId;
+                AlbumArtCache.load(mService, mediaId, mAlbumArtCallback);
+            }
+        }
+
+        void setPendingUpdate(MediaMetadataCompat metadata,
+                              PlaybackStateCompat state,
+                              MediaSessionCompat.Token token,
+                              long delay) {
+            if (mPendingState == null) {
+                mHandler.postDelayed(mPendingUpdate, delay);
+            } else {
+                sThrottled.increment();
+            }
+            mPendingMetadata = metadata;
+            mPendingState = state;
+            mPendingToken = token;
+        }
+
+        void clearPendingUpdate() {
+            if (mPendingState != null) {
+                mHandler.removeCallbacks(mPendingUpdate);
+                mPendingMetadata = null;
+                mPendingState = null;
+                mPendingToken = null;
+            }
+        }
+    }
+
+    // The text of the notification, which only changes with the track, or when the catalog
+    // updates it.
+    private static final class TrackParts {
+
+        final String mediaId;
+        final CharSequence title;
+        final CharSequence subtitle;
+
+        TrackParts(String mediaId, CharSequence title, CharSequence subtitle) {
+            this.mediaId = mediaId;
+            this.title = title;
+            this.subtitle = subtitle;
+        }
+    }
+
+    // Everything that is rendered into the notification. Two states with equal keys produce the
+    // same notification, e.g. when only the playback position changed after a seek. The album
+    // art is whatever the shared AlbumArtCache holds, compared by identity.
+    private static final class RenderKey {
+
+        private static final long RENDERED_ACTIONS =
+                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+                | PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
+
+        final String mediaId;
+        final CharSequence title;
+        final CharSequence subtitle;
+        final boolean isPlaying;
+        final long actions;
+        @Nullable
+        final Bitmap albumArt;
+
+        RenderKey(MediaMetadataCompat metadata, PlaybackStateCompat state, TrackParts trackParts) {
+            mediaId = metadata.getDescription().getMediaId();
+            title = trackParts.title;
+            subtitle = trackParts.subtitle;
+            isPlaying = state.getState() == PlaybackStateCompat.STATE_PLAYING;
+            actions = state.getActions() & RENDERED_ACTIONS;
+            albumArt = mediaId == null ? null : AlbumArtCache.getCached(mediaId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) o;
+            return isPlaying == other.isPlaying
+                   && actions == other.actions
+                   && albumArt == other.albumArt
+                   && TextUtils.equals(title, other.title)
+                   && TextUtils.equals(subtitle, other.subtitle)
+                   && (mediaId == null ? other.mediaId == null : mediaId.equals(other.mediaId));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mediaId == null ? 0 : mediaId.hashCode();
+            result = 31 * result + (title == null ? 0 : title.toString().hashCode());
+            result = 31 * result + (subtitle == null ? 0 : subtitle.toString().hashCode());
+            result = 31 * result + (isPlaying ? 1 : 0);
+            result = 31 * result + (int) (actions ^ (actions >>> 32));
+            result = 31 * result + System.identityHashCode(albumArt);
+            return result;
+        }
     }
 
-}
\ No newline at end of file
+}
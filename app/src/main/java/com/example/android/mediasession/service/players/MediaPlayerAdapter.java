@@ -19,22 +19,64 @@ package com.example.android.mediasession.service.players;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
+import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.service.PlaybackInfoListener;
 import com.example.android.mediasession.service.PlayerAdapter;
+import com.example.android.mediasession.service.analytics.PlaybackEventLog;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+import com.example.android.mediasession.service.streaming.BandwidthEstimator;
+import com.example.android.mediasession.service.streaming.StreamBuffer;
+import com.example.android.mediasession.service.streaming.StreamingProxy;
 import com.example.android.mediasession.ui.MainActivity;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
- * so that {@link MainActivity} can control music playback.
+ * so that {@link MainActivity} can control music playback. Media is prepared asynchronously, and
+ * switching to other media while it's being prepared abandons the preparation. Media can be
+ * prepared ahead by {@link #prepareFromMedia(MediaMetadataCompat)}, so that playing it only has
+ * to start it; if it isn't played within {@link #PREPARED_AHEAD_IDLE_MS}, the MediaPlayer is
+ * released again. Streamed media isn't prepared ahead, since that would download it without the
+ * user asking for it. It is downloaded ahead by a {@link StreamBuffer} once played, served to the
+ * MediaPlayer by a {@link StreamingProxy}, and reported as buffering while the MediaPlayer waits
+ * for it.
  */
 public final class MediaPlayerAdapter extends PlayerAdapter {
 
+    private static final String TAG = "MS_MediaPlayerAdapter";
+
+    private static final Counter sPrepares = Metrics.counter("player.prepare");
+    private static final Counter sPreparesAborted = Metrics.counter("player.prepare_aborted");
+    // From asking to play media to its position moving, for media that was prepared ahead and
+    // for media that had to be loaded then. Debug builds only, since the position is polled on the
+    // main thread: there's no public MediaPlayer event for audio starting.
+    private static final Histogram sPlayToAudioPrepared =
+            Metrics.latency("player.play_to_audio.prepared");
+    private static final Histogram sPlayToAudioCold = Metrics.latency("player.play_to_audio.cold");
+    private static final long FIRST_AUDIO_POLL_MS = 50;
+    private static final long FIRST_AUDIO_TIMEOUT_MS = 2000;
+    // How long media prepared ahead keeps its MediaPlayer without being played.
+    private static final long PREPARED_AHEAD_IDLE_MS = 30000;
+
+    // The network is shared, so is what's known about it.
+    private static final BandwidthEstimator sBandwidthEstimator = new BandwidthEstimator();
+    private static final String STREAM_DIRECTORY = "streams";
+
     private final Context mContext;
     private MediaPlayer mMediaPlayer;
     private String mFilename;
@@ -42,6 +84,56 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
     private MediaMetadataCompat mCurrentMedia;
     private int mState;
     private boolean mCurrentMediaPlayedToCompletion;
+    // Between prepareAsync() and onPrepared(), when most MediaPlayer calls aren't allowed.
+    private boolean mPreparing;
+    private boolean mPlayWhenPrepared;
+    // Whether the media loaded last has started playing yet.
+    private boolean mStartedCurrentMedia;
+    // Whether the media loaded last was loaded by prepareFromMedia(), and not played since.
+    private boolean mPreparedAhead;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Where the play being timed until its audio is heard is recorded, if there's one.
+    @Nullable
+    private Histogram mPlayToAudio;
+    private long mPlayRequestNanos;
+    private long mFirstAudioDeadline;
+    private int mFirstAudioStartPosition;
+    private final Runnable mFirstAudioCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mPlayToAudio == null || !isPrepared()) {
+                return;
+            }
+            if (mMediaPlayer.getCurrentPosition() > mFirstAudioStartPosition) {
+                mPlayToAudio.recordSince(mPlayRequestNanos);
+                mPlayToAudio = null;
+            } else if (SystemClock.uptimeMillis() < mFirstAudioDeadline) {
+                mHandler.postDelayed(this, FIRST_AUDIO_POLL_MS);
+            } else {
+                mPlayToAudio = null;
+            }
+        }
+    };
+
+    private final Runnable mReleasePreparedAhead = new Runnable() {
+        @Override
+        public void run() {
+            if (mPreparedAhead) {
+                Log.d(TAG, "Releasing " + mFilename + ", prepared ahead but not played");
+                release();
+                // So that playing it loads it again.
+                mFilename = null;
+            }
+        }
+    };
+
+    @Nullable
+    private StreamingProxy mStreamingProxy;
+    @Nullable
+    private StreamBuffer mStream;
+    // Playing, but waiting for the stream.
+    private boolean mStalled;
 
     // Work-around for a MediaPlayer bug related to the behavior of MediaPlayer.seekTo()
     // while not playing.
@@ -63,21 +155,87 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
     private void initializeMediaPlayer() {
         if (mMediaPlayer == null) {
             mMediaPlayer = new MediaPlayer();
+            // Holds a partial wake lock only while started.
+            mMediaPlayer.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
+            mMediaPlayer.setVolume(getVolume(), getVolume());
             mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mediaPlayer) {
+                    logEvent(PlaybackEventLog.EVENT_COMPLETE, getCurrentPosition());
                     mPlaybackInfoListener.onPlaybackCompleted();
                     setNewState(PlaybackStateCompat.STATE_STOPPED);
                 }
             });
+            mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mediaPlayer) {
+                    onMediaPrepared();
+                }
+            });
+            mMediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+                @Override
+                public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                    Log.e(TAG, "onError: Can't play " + mFilename + " (" + what + ", " + extra
+                               + ")");
+                    mPreparing = false;
+                    release();
+                    setNewState(PlaybackStateCompat.STATE_STOPPED);
+                    return true;
+                }
+            });
+            mMediaPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+                @Override
+                public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+                    if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+                        onStalled(true);
+                    } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                        onStalled(false);
+                    }
+                    return false;
+                }
+            });
+        }
+    }
+
+    private void onStalled(boolean stalled) {
+        if (stalled && mState == PlaybackStateCompat.STATE_PLAYING) {
+            mStalled = true;
+            setNewState(PlaybackStateCompat.STATE_BUFFERING);
+        } else if (!stalled && mStalled) {
+            mStalled = false;
+            if (mState == PlaybackStateCompat.STATE_BUFFERING) {
+                setNewState(PlaybackStateCompat.STATE_PLAYING);
+            }
+        }
+    }
+
+    private void onMediaPrepared() {
+        mPreparing = false;
+        mMediaPlayer.setVolume(getVolume(), getVolume());
+        if (mSeekWhileNotPlaying >= 0) {
+            mMediaPlayer.seekTo(mSeekWhileNotPlaying);
+        }
+        if (mPlayWhenPrepared) {
+            mPlayWhenPrepared = false;
+            start();
+        } else if (mState == PlaybackStateCompat.STATE_BUFFERING) {
+            // Didn't get audio focus.
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
         }
     }
 
     // Implements PlaybackControl.
     @Override
     public void playFromMedia(MediaMetadataCompat metadata) {
-        mCurrentMedia = metadata;
         String mediaId = metadata.getDescription().getMediaId();
+        if (mCurrentMedia != null
+            && !mediaId.equals(mCurrentMedia.getDescription().getMediaId())
+            && (mState == PlaybackStateCompat.STATE_PLAYING
+                || mState == PlaybackStateCompat.STATE_PAUSED)) {
+            // Moving on before the current media was played to completion.
+            logEvent(PlaybackEventLog.EVENT_SKIP, getCurrentPosition());
+        }
+        mCurrentMedia = metadata;
         playFile(MusicLibrary.getMusicFilename(mediaId));
     }
 
@@ -98,34 +256,125 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
             if (isPlaying()) {
                 return;
             } else {
+                if (mPreparedAhead) {
+                    mPreparedAhead = false;
+                    mHandler.removeCallbacks(mReleasePreparedAhead);
+                    timePlayToAudio(sPlayToAudioPrepared);
+                }
                 play();
                 return;
             }
-        } else {
-            release();
         }
 
+        load(filename);
+        timePlayToAudio(sPlayToAudioCold);
+        setNewState(PlaybackStateCompat.STATE_BUFFERING);
+
+        play();
+    }
+
+    @Override
+    public void prepareFromMedia(MediaMetadataCompat metadata) {
+        if (mState == PlaybackStateCompat.STATE_PLAYING
+            || mState == PlaybackStateCompat.STATE_BUFFERING) {
+            // Don't cut off what's playing.
+            return;
+        }
+        String filename = MusicLibrary.getMusicFilename(metadata.getDescription().getMediaId());
+        if (filename == null || MusicLibrary.isStreamed(filename)) {
+            // Not worth downloading before the user asks for it.
+            return;
+        }
+        if (mMediaPlayer != null && filename.equals(mFilename)
+            && !mCurrentMediaPlayedToCompletion) {
+            // Already loaded, or being loaded.
+            return;
+        }
+        // Loads quietly: the state stays what it is until the media is played.
+        mCurrentMedia = metadata;
+        load(filename);
+        mPreparedAhead = true;
+        mHandler.postDelayed(mReleasePreparedAhead, PREPARED_AHEAD_IDLE_MS);
+    }
+
+    // Starts preparing the media asynchronously, abandoning whatever was loaded before.
+    private void load(String filename) {
         mFilename = filename;
+        mSeekWhileNotPlaying = -1;
+        mStartedCurrentMedia = false;
+        mCurrentMediaPlayedToCompletion = false;
+        mPreparedAhead = false;
+        mHandler.removeCallbacks(mReleasePreparedAhead);
+        mPlayWhenPrepared = false;
+        cancelPlayToAudio();
 
+        if (mMediaPlayer != null) {
+            // Resetting rather than releasing keeps the player, and abandons a preparation
+            // that's still going on.
+            if (mPreparing) {
+                sPreparesAborted.increment();
+                mPreparing = false;
+            }
+            mMediaPlayer.reset();
+        }
+        closeStream();
         initializeMediaPlayer();
 
         try {
-            AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
-            mMediaPlayer.setDataSource(
-                    assetFileDescriptor.getFileDescriptor(),
-                    assetFileDescriptor.getStartOffset(),
-                    assetFileDescriptor.getLength());
+            if (MusicLibrary.isStreamed(mFilename)) {
+                mMediaPlayer.setDataSource(openStream(mFilename));
+            } else {
+                AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
+                mMediaPlayer.setDataSource(
+                        assetFileDescriptor.getFileDescriptor(),
+                        assetFileDescriptor.getStartOffset(),
+                        assetFileDescriptor.getLength());
+                assetFileDescriptor.close();
+            }
         } catch (Exception e) {
             throw new RuntimeException("Failed to open file: " + mFilename, e);
         }
 
-        try {
-            mMediaPlayer.prepare();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to open file: " + mFilename, e);
+        mPreparing = true;
+        sPrepares.increment();
+        mMediaPlayer.prepareAsync();
+    }
+
+    private void timePlayToAudio(Histogram histogram) {
+        cancelPlayToAudio();
+        if (!BuildConfig.DEBUG) {
+            return;
         }
+        mPlayToAudio = histogram;
+        mPlayRequestNanos = System.nanoTime();
+    }
 
-        play();
+    private void cancelPlayToAudio() {
+        mPlayToAudio = null;
+        mHandler.removeCallbacks(mFirstAudioCheck);
+    }
+
+    // Starts downloading the stream, and returns the URL the MediaPlayer can play it from.
+    private String openStream(String url) throws IOException {
+        if (mStreamingProxy == null) {
+            mStreamingProxy = new StreamingProxy();
+        }
+        mStream = new StreamBuffer(
+                new URL(url),
+                mCurrentMedia.getLong(MediaMetadataCompat.METADATA_KEY_DURATION),
+                new File(mContext.getCacheDir(), STREAM_DIRECTORY),
+                sBandwidthEstimator);
+        mStream.start();
+        return mStreamingProxy.register(mStream);
+    }
+
+    private void closeStream() {
+        if (mStream != null) {
+            mStreamingProxy.unregister(mStream);
+            mStream.close();
+            mStream = null;
+        }
+        mStalled = false;
     }
 
     @Override
@@ -138,27 +387,87 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
 
     private void release() {
         if (mMediaPlayer != null) {
+            if (mPreparing) {
+                sPreparesAborted.increment();
+            }
             mMediaPlayer.release();
             mMediaPlayer = null;
         }
+        mPreparing = false;
+        mPlayWhenPrepared = false;
+        mPreparedAhead = false;
+        mHandler.removeCallbacks(mReleasePreparedAhead);
+        cancelPlayToAudio();
+        closeStream();
+        if (mStreamingProxy != null) {
+            mStreamingProxy.release();
+            mStreamingProxy = null;
+        }
+    }
+
+    private boolean isPrepared() {
+        return mMediaPlayer != null && !mPreparing;
+    }
+
+    @Override
+    protected long getCurrentPosition() {
+        return isPrepared() ? mMediaPlayer.getCurrentPosition() : 0;
+    }
+
+    @Override
+    protected boolean isStreaming() {
+        return mStream != null;
+    }
+
+    @Override
+    protected boolean holdsWakeLock() {
+        // The MediaPlayer's wake lock isn't held while it's preparing.
+        return mState == PlaybackStateCompat.STATE_PLAYING;
     }
 
     @Override
     public boolean isPlaying() {
-        return mMediaPlayer != null && mMediaPlayer.isPlaying();
+        return isPrepared() && mMediaPlayer.isPlaying();
     }
 
     @Override
     protected void onPlay() {
-        if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
-            mMediaPlayer.start();
-            setNewState(PlaybackStateCompat.STATE_PLAYING);
+        if (mPreparing) {
+            mPlayWhenPrepared = true;
+            if (mState != PlaybackStateCompat.STATE_BUFFERING) {
+                // Was being prepared ahead, and isn't ready yet.
+                setNewState(PlaybackStateCompat.STATE_BUFFERING);
+            }
+        } else if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
+            start();
+        }
+    }
+
+    private void start() {
+        mMediaPlayer.start();
+        if (mPlayToAudio != null) {
+            // The position only moves once audio is coming out.
+            mFirstAudioStartPosition = mMediaPlayer.getCurrentPosition();
+            mFirstAudioDeadline = SystemClock.uptimeMillis() + FIRST_AUDIO_TIMEOUT_MS;
+            mHandler.postDelayed(mFirstAudioCheck, FIRST_AUDIO_POLL_MS);
+        }
+        setNewState(PlaybackStateCompat.STATE_PLAYING);
+        if (!mStartedCurrentMedia) {
+            mStartedCurrentMedia = true;
+            mPlaybackInfoListener.onMediaStarted(mCurrentMedia);
         }
     }
 
     @Override
     protected void onPause() {
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
+        cancelPlayToAudio();
+        if (mPreparing) {
+            if (mPlayWhenPrepared) {
+                mPlayWhenPrepared = false;
+                setNewState(PlaybackStateCompat.STATE_PAUSED);
+            }
+        } else if (mMediaPlayer != null && (mMediaPlayer.isPlaying() || mStalled)) {
+            mStalled = false;
             mMediaPlayer.pause();
             setNewState(PlaybackStateCompat.STATE_PAUSED);
         }
@@ -166,7 +475,12 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
 
     // This is the main reducer for the player state machine.
     private void setNewState(@PlaybackStateCompat.State int newPlayerState) {
+        if (newPlayerState != mState) {
+            logStateChange(newPlayerState);
+        }
         mState = newPlayerState;
+        setAudioFlowing(mState == PlaybackStateCompat.STATE_PLAYING
+                        || mState == PlaybackStateCompat.STATE_BUFFERING);
 
         // Whether playback goes to completion, or whether it is stopped, the
         // mCurrentMediaPlayedToCompletion is set to true.
@@ -183,7 +497,7 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
                 mSeekWhileNotPlaying = -1;
             }
         } else {
-            reportPosition = mMediaPlayer == null ? 0 : mMediaPlayer.getCurrentPosition();
+            reportPosition = getCurrentPosition();
         }
 
         final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder();
@@ -195,6 +509,20 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
         mPlaybackInfoListener.onPlaybackStateChange(stateBuilder.build());
     }
 
+    private void logStateChange(@PlaybackStateCompat.State int newPlayerState) {
+        switch (newPlayerState) {
+            case PlaybackStateCompat.STATE_PLAYING:
+                logEvent(PlaybackEventLog.EVENT_START, getCurrentPosition());
+                break;
+            case PlaybackStateCompat.STATE_PAUSED:
+                logEvent(PlaybackEventLog.EVENT_PAUSE, getCurrentPosition());
+                break;
+            case PlaybackStateCompat.STATE_STOPPED:
+                logEvent(PlaybackEventLog.EVENT_STOP, getCurrentPosition());
+                break;
+        }
+    }
+
     /**
      * Set the current capabilities available on this session. Note: If a capability is not
      * listed in the bitmask of capabilities then the MediaSession will not handle it. For
@@ -233,10 +561,14 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
     @Override
     public void seekTo(long position) {
         if (mMediaPlayer != null) {
-            if (!mMediaPlayer.isPlaying()) {
+            if (!isPlaying()) {
                 mSeekWhileNotPlaying = (int) position;
             }
-            mMediaPlayer.seekTo((int) position);
+            if (!mPreparing) {
+                // Otherwise it's done once prepared.
+                mMediaPlayer.seekTo((int) position);
+            }
+            logEvent(PlaybackEventLog.EVENT_SEEK, position);
 
             // Set the state (to the current state) because the position changed and should
             // be reported to clients.
@@ -246,7 +578,7 @@ public final class MediaPlayerAdapter extends PlayerAdapter {
 
     @Override
     public void setVolume(float volume) {
-        if (mMediaPlayer != null) {
+        if (isPrepared()) {
             mMediaPlayer.setVolume(volume, volume);
         }
     }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlists;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Gauge;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports a playlist into a queue. The playlist is parsed on a background thread, a chunk of
+ * {@link #CHUNK_SIZE} entries at a time, and each chunk is resolved against the
+ * {@link MusicLibrary} on the main thread and handed to the {@link Callback}, so that playback
+ * can start as soon as the first chunk is in. Parsing waits while {@link #MAX_PENDING_CHUNKS}
+ * chunks are waiting for the main thread, which bounds the memory an import takes, whatever the
+ * size of the playlist.
+ */
+public final class PlaylistImporter {
+
+    private static final String TAG = "MS_PlaylistImporter";
+
+    /**
+     * Result keys. The rates are doubles, in entries per second.
+     */
+    public static final String KEY_ENTRIES = "entries";
+    public static final String KEY_QUEUED = "queued";
+    public static final String KEY_UNRESOLVED = "unresolved";
+    // A boolean, false if the playlist couldn't be read to the end.
+    public static final String KEY_COMPLETE = "complete";
+    public static final String KEY_FIRST_CHUNK_MS = "first_chunk_ms";
+    public static final String KEY_TOTAL_MS = "total_ms";
+    public static final String KEY_PARSE_RATE = "parse_rate";
+    public static final String KEY_RESOLVE_RATE = "resolve_rate";
+
+    static final int CHUNK_SIZE = 500;
+    static final int MAX_PENDING_CHUNKS = 2;
+
+    private static final Counter sEntries = Metrics.counter("playlist.entries");
+    private static final Counter sUnresolved = Metrics.counter("playlist.unresolved");
+    private static final Gauge sParseRate = Metrics.gauge("playlist.parse_rate");
+    private static final Gauge sResolveRate = Metrics.gauge("playlist.resolve_rate");
+    private static final Histogram sFirstChunkLatency = Metrics.latency("playlist.first_chunk");
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param mediaIds the tracks of the next chunk of the playlist, in order. Entries that
+         *                 aren't in the catalog are left out.
+         */
+        void onChunk(@NonNull List<String> mediaIds);
+
+        /**
+         * @param result the KEY_ values. Not called if the import was cancelled.
+         */
+        void onFinished(@NonNull Bundle result);
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Semaphore mPendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private final Thread mThread;
+    private volatile boolean mCancelled;
+
+    // Only accessed on the main thread.
+    private long mStartNanos;
+    private long mFirstChunkNanos = -1;
+    private long mResolveNanos;
+    private int mQueued;
+    private int mUnresolved;
+
+    public PlaylistImporter(Context context, Uri uri, Callback callback) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mCallback = callback;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse();
+            }
+        }, "PlaylistImporter");
+    }
+
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mThread.start();
+    }
+
+    /**
+     * Stops the import. Chunks that have been handed over stay in the queue.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mThread.interrupt();
+    }
+
+    // Runs on the import thread.
+    private void parse() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        int entries = 0;
+        long parseNanos = 0;
+        boolean complete = false;
+        PlaylistParser parser = null;
+        try {
+            InputStream input = mContext.getContentResolver().openInputStream(mUri);
+            if (input == null) {
+                throw new IOException("Can't open " + mUri);
+            }
+            parser = PlaylistParser.open(input);
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            long start = System.nanoTime();
+            String location;
+            while (!mCancelled && (location = parser.next()) != null) {
+                chunk.add(location);
+                entries++;
+                if (chunk.size() == CHUNK_SIZE) {
+                    // Time spent waiting for the main thread isn't parsing.
+                    parseNanos += System.nanoTime() - start;
+                    handOver(chunk);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                    start = System.nanoTime();
+                }
+            }
+            parseNanos += System.nanoTime() - start;
+            if (!chunk.isEmpty()) {
+                handOver(chunk);
+            }
+            complete = !mCancelled;
+        } catch (IOException | RuntimeException e) {
+            // Including malformed JSON, which JsonReader reports as IllegalStateException.
+            Log.w(TAG, "parse: Can't read " + mUri, e);
+        } catch (InterruptedException e) {
+            // Cancelled.
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    // Nothing else to do.
+                }
+            }
+        }
+
+        final int parsedEntries = entries;
+        final long parsedNanos = parseNanos;
+        final boolean parsedAll = complete;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish(parsedEntries, parsedNanos, parsedAll);
+            }
+        });
+    }
+
+    private void handOver(final List<String> chunk) throws InterruptedException {
+        mPendingChunks.acquire();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingChunks.release();
+                if (!mCancelled) {
+                    resolve(chunk);
+                }
+            }
+        });
+    }
+
+    private void resolve(List<String> locations) {
+        long start = System.nanoTime();
+        List<String> mediaIds = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            String mediaId = MusicLibrary.resolve(location);
+            if (mediaId != null) {
+                mediaIds.add(mediaId);
+            }
+        }
+        mResolveNanos += System.nanoTime() - start;
+        int unresolved = locations.size() - mediaIds.size();
+        mUnresolved += unresolved;
+        sEntries.add(locations.size());
+        sUnresolved.add(unresolved);
+
+        if (!mediaIds.isEmpty()) {
+            mQueued += mediaIds.size();
+            mCallback.onChunk(mediaIds);
+            if (mFirstChunkNanos < 0) {
+                mFirstChunkNanos = System.nanoTime() - mStartNanos;
+                sFirstChunkLatency.record(mFirstChunkNanos);
+            }
+        }
+    }
+
+    private void finish(int entries, long parseNanos, boolean complete) {
+        if (mCancelled) {
+            return;
+        }
+        double parseRate = getRate(entries, parseNanos);
+        double resolveRate = getRate(entries, mResolveNanos);
+        sParseRate.set((long) parseRate);
+        sResolveRate.set((long) resolveRate);
+
+        Bundle result = new Bundle();
+        result.putInt(KEY_ENTRIES, entries);
+        result.putInt(KEY_QUEUED, mQueued);
+        result.putInt(KEY_UNRESOLVED, mUnresolved);
+        result.putBoolean(KEY_COMPLETE, complete);
+        result.putLong(KEY_FIRST_CHUNK_MS, mFirstChunkNanos < 0
+                                           ? -1
+                                           : TimeUnit.NANOSECONDS.toMillis(mFirstChunkNanos));
+        result.putLong(KEY_TOTAL_MS,
+                       TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos));
+        result.putDouble(KEY_PARSE_RATE, parseRate);
+        result.putDouble(KEY_RESOLVE_RATE, resolveRate);
+        Log.d(TAG, "finish: " + mUri + " " + result);
+        mCallback.onFinished(result);
+    }
+
+    private static double getRate(int entries, long nanos) {
+        return nanos <= 0 ? 0 : entries * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlists;
+
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the entries of a playlist one at a time, so that playlists of any size can be read in
+ * constant memory. Understands M3U (and extended M3U), PLS, and JSON, which is either an array of
+ * entries, or an object with such an array as its "tracks" member. A JSON entry is either a
+ * location, or an object with a "location" or "mediaId" member.
+ */
+abstract class PlaylistParser implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Enough to tell the formats apart.
+    private static final int SNIFF_SIZE = 64;
+
+    /**
+     * @return the location of the next entry, or null at the end of the playlist.
+     */
+    @Nullable
+    abstract String next() throws IOException;
+
+    /**
+     * Works out the format of the playlist from its first few bytes.
+     */
+    static PlaylistParser open(InputStream input) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input);
+        buffered.mark(SNIFF_SIZE);
+        byte[] head = new byte[SNIFF_SIZE];
+        int length = 0;
+        int count;
+        while (length < head.length
+               && (count = buffered.read(head, length, head.length - length)) >= 0) {
+            length += count;
+        }
+        buffered.reset();
+
+        String start = new String(head, 0, length, UTF_8);
+        if (start.startsWith("\uFEFF")) {
+            // JsonReader doesn't skip byte order marks.
+            start = start.substring(1);
+            buffered.skip(3);
+        }
+        start = start.trim();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(buffered, UTF_8));
+        if (start.regionMatches(true, 0, "[playlist]", 0, 10)) {
+            return new Pls(reader);
+        } else if (start.startsWith("[") || start.startsWith("{")) {
+            return new Json(reader);
+        }
+        return new M3u(reader);
+    }
+
+    // One location per line, with comments and #EXTINF lines starting with '#'.
+    private static final class M3u extends PlaylistParser {
+
+        private final BufferedReader mReader;
+
+        M3u(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Nullable
+        @Override
+        String next() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && line.charAt(0) != '#') {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    // FileN=location lines, read in the order they appear; the titles and lengths are ignored.
+    private static final class Pls extends PlaylistParser {
+
+        private final BufferedReader mReader;
+
+        Pls(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Nullable
+        @Override
+        String next() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                line = line.trim();
+                int separator = line.indexOf('=');
+                if (separator > 0 && line.regionMatches(true, 0, "file", 0, 4)) {
+                    String location = line.substring(separator + 1).trim();
+                    if (!location.isEmpty()) {
+                        return location;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    private static final class Json extends PlaylistParser {
+
+        private final JsonReader mReader;
+        private boolean mStarted;
+        private boolean mEnded;
+
+        Json(BufferedReader reader) {
+            mReader = new JsonReader(reader);
+        }
+
+        @Nullable
+        @Override
+        String next() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                mEnded = !findEntries();
+            }
+            while (!mEnded && mReader.hasNext()) {
+                String location = null;
+                if (mReader.peek() == JsonToken.STRING) {
+                    location = mReader.nextString();
+                } else if (mReader.peek() == JsonToken.BEGIN_OBJECT) {
+                    location = readEntry();
+                } else {
+                    mReader.skipValue();
+                }
+                if (location != null && !location.isEmpty()) {
+                    return location;
+                }
+            }
+            mEnded = true;
+            return null;
+        }
+
+        // Moves into the array of entries.
+        private boolean findEntries() throws IOException {
+            if (mReader.peek() == JsonToken.BEGIN_OBJECT) {
+                mReader.beginObject();
+                while (true) {
+                    if (!mReader.hasNext()) {
+                        return false;
+                    }
+                    if (mReader.nextName().equals("tracks")
+                        && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                        break;
+                    }
+                    mReader.skipValue();
+                }
+            }
+            mReader.beginArray();
+            return true;
+        }
+
+        @Nullable
+        private String readEntry() throws IOException {
+            String location = null;
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                if ((name.equals("location") || name.equals("mediaId"))
+                    && mReader.peek() == JsonToken.STRING) {
+                    location = mReader.nextString();
+                } else {
+                    mReader.skipValue();
+                }
+            }
+            mReader.endObject();
+            return location;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+import com.example.android.mediasession.service.diagnostics.Gauge;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+/**
+ * Estimates the download throughput from samples of bytes received over time. Keeps two
+ * exponentially weighted moving averages, weighted by the duration of each sample, one that
+ * follows changes quickly and one that smooths them out, and reports the lower of the two, so
+ * that it reacts to drops right away but to recoveries only once they last. Thread safe.
+ */
+public final class BandwidthEstimator {
+
+    /**
+     * What's assumed, in bytes per second, until enough has been downloaded to tell: about
+     * 512kbps.
+     */
+    public static final long DEFAULT_ESTIMATE = 64 * 1024;
+
+    private static final double FAST_HALF_LIFE_SECONDS = 2;
+    private static final double SLOW_HALF_LIFE_SECONDS = 5;
+    // Below this, a sample mostly measures latency rather than throughput.
+    static final long MIN_SAMPLE_BYTES = 16 * 1024;
+    private static final long MIN_TOTAL_BYTES = 128 * 1024;
+
+    private static final Gauge sEstimateKbps = Metrics.gauge("stream.bandwidth_kbps");
+
+    private final Ewma mFast = new Ewma(FAST_HALF_LIFE_SECONDS);
+    private final Ewma mSlow = new Ewma(SLOW_HALF_LIFE_SECONDS);
+    private long mTotalBytes;
+
+    /**
+     * Adds a sample of {@code bytes} received in {@code durationMs}. Samples under
+     * {@link #MIN_SAMPLE_BYTES} are ignored.
+     */
+    public synchronized void addSample(long bytes, long durationMs) {
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        double seconds = Math.max(1, durationMs) / 1000.0;
+        double bytesPerSecond = bytes / seconds;
+        mFast.add(seconds, bytesPerSecond);
+        mSlow.add(seconds, bytesPerSecond);
+        mTotalBytes += bytes;
+        sEstimateKbps.set(getEstimate() * 8 / 1000);
+    }
+
+    /**
+     * @return the estimated throughput in bytes per second.
+     */
+    public synchronized long getEstimate() {
+        if (mTotalBytes < MIN_TOTAL_BYTES) {
+            return DEFAULT_ESTIMATE;
+        }
+        return (long) Math.min(mFast.get(), mSlow.get());
+    }
+
+    private static final class Ewma {
+
+        // How much of the estimate is left after a second's worth of samples.
+        private final double mAlpha;
+        private double mEstimate;
+        private double mTotalWeight;
+
+        Ewma(double halfLifeSeconds) {
+            mAlpha = Math.exp(Math.log(0.5) / halfLifeSeconds);
+        }
+
+        void add(double weight, double value) {
+            double alpha = Math.pow(mAlpha, weight);
+            mEstimate = value * (1 - alpha) + mEstimate * alpha;
+            mTotalWeight += weight;
+        }
+
+        // The estimate starts out at 0, so early on it's scaled up by how much of it is real.
+        double get() {
+            return mEstimate / (1 - Math.pow(mAlpha, mTotalWeight));
+        }
+    }
+}
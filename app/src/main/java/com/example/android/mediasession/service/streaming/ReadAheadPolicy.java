@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+/**
+ * Decides how far ahead of playback to download, and how much to have buffered before playback
+ * starts or resumes after a stall, from the estimated bandwidth and the stream's byte rate. The
+ * closer the bandwidth is to the byte rate, the more a dip in it hurts, so the more is read
+ * ahead; on a fast connection little is, so that skipping a track wastes little.
+ */
+public final class ReadAheadPolicy {
+
+    static final long MIN_READ_AHEAD_MS = 10000;
+    static final long MAX_READ_AHEAD_MS = 120000;
+    // Bandwidth this many times the byte rate only needs the minimum.
+    private static final double COMFORTABLE_HEADROOM = 4;
+    // Only this much of the estimate is counted on.
+    private static final double SAFETY_FACTOR = 0.8;
+
+    private static final long START_BUFFER_MS = 1500;
+    // More than at the start, so that a stall isn't followed by another right away.
+    private static final long REBUFFER_MS = 5000;
+    private static final long MAX_RESUME_MS = 30000;
+
+    private ReadAheadPolicy() {
+    }
+
+    /**
+     * @param bandwidth in bytes per second.
+     * @param byteRate  of the stream, in bytes per second.
+     * @return how much to have buffered ahead of playback before pausing the download.
+     */
+    public static long getReadAheadMs(long bandwidth, long byteRate) {
+        double headroom = getHeadroom(bandwidth, byteRate);
+        if (headroom >= COMFORTABLE_HEADROOM) {
+            return MIN_READ_AHEAD_MS;
+        }
+        if (headroom <= 1) {
+            return MAX_READ_AHEAD_MS;
+        }
+        return MIN_READ_AHEAD_MS + (long) ((MAX_READ_AHEAD_MS - MIN_READ_AHEAD_MS)
+                                           * (COMFORTABLE_HEADROOM - headroom)
+                                           / (COMFORTABLE_HEADROOM - 1));
+    }
+
+    /**
+     * @return how little may be buffered before the paused download starts again. Half the
+     * read-ahead, so that the download runs in bursts that let the radio sleep in between.
+     */
+    public static long getRefillMs(long readAheadMs) {
+        return readAheadMs / 2;
+    }
+
+    /**
+     * @param remainingMs how much of the stream is left to play.
+     * @param rebuffering whether playback stalled, as opposed to not having started yet.
+     * @return how much to have buffered before playback starts, or resumes.
+     */
+    public static long getResumeMs(long bandwidth,
+                                   long byteRate,
+                                   long remainingMs,
+                                   boolean rebuffering) {
+        long resumeMs = rebuffering ? REBUFFER_MS : START_BUFFER_MS;
+        double headroom = getHeadroom(bandwidth, byteRate);
+        if (headroom < 1) {
+            // The download can't keep up, so buffer enough to play the rest without stalling,
+            // as far as that's reasonable.
+            resumeMs = Math.max(resumeMs, (long) (remainingMs * (1 - headroom)));
+        }
+        return Math.min(resumeMs, MAX_RESUME_MS);
+    }
+
+    private static double getHeadroom(long bandwidth, long byteRate) {
+        return byteRate <= 0 ? 0 : SAFETY_FACTOR * bandwidth / byteRate;
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.service.diagnostics.Counter;
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads a stream into a temporary file, ahead of whoever reads it, e.g. the MediaPlayer
+ * through {@link StreamingProxy}. The download pauses once {@link ReadAheadPolicy} says enough
+ * is buffered ahead of the read position, and starts again with a range request once that has
+ * been played down to the refill level. Reads block while their data isn't there yet, and once
+ * they had to, i.e. playback stalled, until enough is buffered to resume. The stream is
+ * downloaded in order, so reads past what has been downloaded wait for the download to get
+ * there.
+ */
+public final class StreamBuffer {
+
+    private static final String TAG = "MS_StreamBuffer";
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int TIMEOUT_MS = 10000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 1000;
+    // Assumed while the length or duration of the stream isn't known: 128kbps.
+    private static final long DEFAULT_BYTE_RATE = 16000;
+    private static final long SAMPLE_BYTES = 4 * BandwidthEstimator.MIN_SAMPLE_BYTES;
+
+    private static final Counter sConnections = Metrics.counter("stream.connections");
+    private static final Counter sRebuffers = Metrics.counter("stream.rebuffers");
+    private static final Histogram sStartupDelay = Metrics.latency("stream.startup_delay");
+
+    private final URL mUrl;
+    private final long mDurationMs;
+    private final File mFile;
+    private final RandomAccessFile mReadFile;
+    private final BandwidthEstimator mEstimator;
+    private final Thread mThread;
+    private long mStartNanos;
+    @Nullable
+    private volatile HttpURLConnection mConnection;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private boolean mHeadersReceived;
+    private long mLength = -1;
+    private long mDownloaded;
+    private long mReadPosition;
+    private boolean mComplete;
+    private boolean mStarted;
+    // Reads are held back until enough is buffered, which they are before playback starts too.
+    private boolean mStalled = true;
+    private int mRebuffers;
+    private int mConnections;
+    @Nullable
+    private IOException mError;
+    private boolean mClosed;
+
+    /**
+     * @param durationMs the duration of the stream, if known, which gives its byte rate.
+     * @param directory  where to put the temporary file.
+     * @param estimator  fed with the throughput of the download, and shared by all streams.
+     */
+    public StreamBuffer(URL url, long durationMs, File directory, BandwidthEstimator estimator)
+            throws IOException {
+        mUrl = url;
+        mDurationMs = durationMs;
+        mEstimator = estimator;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        mFile = File.createTempFile("stream", null, directory);
+        mReadFile = new RandomAccessFile(mFile, "r");
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                download();
+            }
+        }, "StreamBuffer");
+    }
+
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mThread.start();
+    }
+
+    /**
+     * Stops the download, wakes up blocked reads, which then fail, and deletes the file.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mThread.interrupt();
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            // Unblocks the download thread if it's waiting for the network.
+            connection.disconnect();
+        }
+        synchronized (mReadFile) {
+            close(mReadFile);
+        }
+        if (!mFile.delete()) {
+            Log.w(TAG, "close: Can't delete " + mFile);
+        }
+    }
+
+    /**
+     * Waits until the response headers have come in.
+     *
+     * @return the length of the stream, or -1 if the server didn't say.
+     */
+    public long awaitLength() throws IOException {
+        synchronized (mLock) {
+            while (!mHeadersReceived && !mClosed && mError == null) {
+                waitLocked();
+            }
+            checkLocked();
+            return mLength;
+        }
+    }
+
+    /**
+     * Reads up to {@code length} bytes at {@code position}, blocking as described above.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        long available;
+        synchronized (mLock) {
+            mReadPosition = position;
+            mLock.notifyAll();
+            while (true) {
+                checkLocked();
+                if (mStalled) {
+                    if (mComplete || getBufferedMsLocked() >= getResumeMsLocked()) {
+                        onResumedLocked();
+                    }
+                } else if (position >= mDownloaded && !mComplete) {
+                    mStalled = true;
+                    mRebuffers++;
+                    sRebuffers.increment();
+                    Log.d(TAG, "read: Stalled at " + position + " of " + mLength);
+                }
+                if (!mStalled) {
+                    break;
+                }
+                waitLocked();
+            }
+            if (position >= mDownloaded) {
+                return -1;
+            }
+            available = mDownloaded - position;
+        }
+
+        int count = (int) Math.min(length, available);
+        synchronized (mReadFile) {
+            mReadFile.seek(position);
+            mReadFile.readFully(buffer, offset, count);
+        }
+        synchronized (mLock) {
+            mReadPosition = position + count;
+            // The download may have to start again.
+            mLock.notifyAll();
+        }
+        return count;
+    }
+
+    /**
+     * @return how much is buffered ahead of the read position.
+     */
+    public long getBufferedMs() {
+        synchronized (mLock) {
+            return getBufferedMsLocked();
+        }
+    }
+
+    /**
+     * @return the number of times reads stalled after playback started.
+     */
+    public int getRebuffers() {
+        synchronized (mLock) {
+            return mRebuffers;
+        }
+    }
+
+    /**
+     * @return the number of connections made, i.e. download bursts and retries.
+     */
+    public int getConnections() {
+        synchronized (mLock) {
+            return mConnections;
+        }
+    }
+
+    private void onResumedLocked() {
+        mStalled = false;
+        if (!mStarted) {
+            mStarted = true;
+            sStartupDelay.recordSince(mStartNanos);
+        }
+    }
+
+    private void download() {
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(mFile, "rw");
+            int failures = 0;
+            while (awaitRefill()) {
+                long downloaded = getDownloaded();
+                try {
+                    fetch(output);
+                } catch (IOException e) {
+                    if (isClosed()) {
+                        return;
+                    }
+                    if (getDownloaded() > downloaded) {
+                        failures = 0;
+                    }
+                    if (++failures >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    Log.w(TAG, "download: Retrying " + mUrl, e);
+                    Thread.sleep(RETRY_DELAY_MS * failures);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "download: Can't download " + mUrl, e);
+            synchronized (mLock) {
+                mError = e;
+                mLock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } finally {
+            close(output);
+        }
+    }
+
+    // Waits until enough has been played to download more.
+    private boolean awaitRefill() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mClosed
+                   && !mComplete
+                   && getBufferedMsLocked() > ReadAheadPolicy.getRefillMs(getReadAheadMsLocked())) {
+                mLock.wait();
+            }
+            return !mClosed && !mComplete;
+        }
+    }
+
+    // Downloads until enough is buffered, the stream ends, or the connection fails.
+    private void fetch(RandomAccessFile output) throws IOException {
+        long position = getDownloaded();
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        mConnection = connection;
+        synchronized (mLock) {
+            mConnections++;
+        }
+        sConnections.increment();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (position > 0) {
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+            }
+            int code = connection.getResponseCode();
+            InputStream input = connection.getInputStream();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                onHeaders(parseTotalLength(connection.getHeaderField("Content-Range")));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                onHeaders(parseLong(connection.getHeaderField("Content-Length")));
+                // The server ignored the range, so skip what's been downloaded already.
+                long skipped = 0;
+                while (skipped < position) {
+                    long count = input.skip(position - skipped);
+                    if (count <= 0) {
+                        throw new IOException("Ended at " + skipped + " of " + position);
+                    }
+                    skipped += count;
+                }
+            } else {
+                throw new IOException("HTTP " + code + " for " + mUrl);
+            }
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long sampleStart = SystemClock.elapsedRealtime();
+            long sampleBytes = 0;
+            while (true) {
+                int count = input.read(chunk);
+                if (count < 0) {
+                    onEndOfStream(position);
+                    return;
+                }
+                output.seek(position);
+                output.write(chunk, 0, count);
+                position += count;
+
+                sampleBytes += count;
+                if (sampleBytes >= SAMPLE_BYTES) {
+                    long now = SystemClock.elapsedRealtime();
+                    mEstimator.addSample(sampleBytes, now - sampleStart);
+                    sampleStart = now;
+                    sampleBytes = 0;
+                }
+
+                synchronized (mLock) {
+                    mDownloaded = position;
+                    mLock.notifyAll();
+                    if (mClosed) {
+                        return;
+                    }
+                    if (mLength >= 0 && position >= mLength) {
+                        mComplete = true;
+                        return;
+                    }
+                    if (getBufferedMsLocked() >= getReadAheadMsLocked()) {
+                        // Drop the connection rather than let it idle, see awaitRefill().
+                        return;
+                    }
+                }
+            }
+        } finally {
+            mConnection = null;
+            connection.disconnect();
+        }
+    }
+
+    private void onHeaders(long length) {
+        synchronized (mLock) {
+            if (mLength < 0) {
+                mLength = length;
+            }
+            mHeadersReceived = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void onEndOfStream(long position) throws IOException {
+        synchronized (mLock) {
+            if (mLength < 0) {
+                mLength = position;
+            } else if (position < mLength) {
+                throw new IOException("Ended at " + position + " of " + mLength);
+            }
+            mComplete = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private long getDownloaded() {
+        synchronized (mLock) {
+            return mDownloaded;
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (mLock) {
+            return mClosed;
+        }
+    }
+
+    private void checkLocked() throws IOException {
+        if (mClosed) {
+            throw new IOException("Closed");
+        }
+        if (mError != null) {
+            throw new IOException(mError);
+        }
+    }
+
+    private void waitLocked() throws IOException {
+        try {
+            mLock.wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private long getByteRateLocked() {
+        return mLength > 0 && mDurationMs > 0 ? mLength * 1000 / mDurationMs : DEFAULT_BYTE_RATE;
+    }
+
+    private long getBufferedMsLocked() {
+        return Math.max(0, mDownloaded - mReadPosition) * 1000 / getByteRateLocked();
+    }
+
+    private long getReadAheadMsLocked() {
+        return ReadAheadPolicy.getReadAheadMs(mEstimator.getEstimate(), getByteRateLocked());
+    }
+
+    private long getResumeMsLocked() {
+        long remainingMs = mLength >= 0
+                           ? (mLength - mReadPosition) * 1000 / getByteRateLocked()
+                           : ReadAheadPolicy.MAX_READ_AHEAD_MS;
+        return ReadAheadPolicy.getResumeMs(
+                mEstimator.getEstimate(), getByteRateLocked(), remainingMs, mStarted);
+    }
+
+    // "bytes 0-99/1000", where the total may be "*".
+    private static long parseTotalLength(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        return parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+    }
+
+    private static long parseLong(@Nullable String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void close(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing else to do.
+            }
+        }
+    }
+}
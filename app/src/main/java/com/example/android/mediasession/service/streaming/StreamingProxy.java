@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.streaming;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A minimal HTTP server on the loopback interface that serves {@link StreamBuffer}s to the
+ * MediaPlayer, which can only be given a URL to stream from (MediaDataSource needs API 23). It
+ * supports the open ended range requests the MediaPlayer makes when it seeks, and nothing else.
+ * Any app on the device can connect to it, so each stream is served at an unguessable path.
+ */
+public final class StreamingProxy {
+
+    private static final String TAG = "MS_StreamingProxy";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String RANGE_PREFIX = "range: bytes=";
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int TOKEN_BITS = 128;
+
+    private final ServerSocket mServerSocket;
+    private final ConcurrentHashMap<String, StreamBuffer> mStreams = new ConcurrentHashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+
+    public StreamingProxy() throws IOException {
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "StreamingProxy").start();
+    }
+
+    /**
+     * @return the URL the MediaPlayer can read the stream from.
+     */
+    public String register(StreamBuffer stream) {
+        String path;
+        do {
+            path = "/" + new BigInteger(TOKEN_BITS, mRandom).toString(Character.MAX_RADIX);
+        } while (mStreams.putIfAbsent(path, stream) != null);
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public void unregister(StreamBuffer stream) {
+        mStreams.values().remove(stream);
+    }
+
+    /**
+     * Stops accepting connections. Connections that are open end once their stream is closed.
+     */
+    public void release() {
+        mStreams.clear();
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing else to do.
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Released.
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "StreamingProxy-connection").start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            String requestLine = reader.readLine();
+            long position = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                String header = line.toLowerCase(Locale.US);
+                if (header.startsWith(RANGE_PREFIX)) {
+                    String range = header.substring(RANGE_PREFIX.length());
+                    position = Long.parseLong(range.substring(0, range.indexOf('-')).trim());
+                }
+            }
+            String[] request = requestLine == null ? new String[0] : requestLine.split(" ");
+            StreamBuffer stream = request.length < 2 ? null : mStreams.get(request[1]);
+            OutputStream output = socket.getOutputStream();
+            if (stream == null || !"GET".equals(request[0])) {
+                output.write("HTTP/1.1 404 Not Found\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+                return;
+            }
+
+            long length = stream.awaitLength();
+            StringBuilder headers = new StringBuilder();
+            if (length < 0) {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            } else if (position > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                       .append("Content-Range: bytes ").append(position).append('-')
+                       .append(length - 1).append('/').append(length).append("\r\n")
+                       .append("Content-Length: ").append(length - position).append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n")
+                       .append("Content-Length: ").append(length).append("\r\n");
+            }
+            headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+            output.write(headers.toString().getBytes(ASCII));
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = stream.read(position, chunk, 0, chunk.length)) >= 0) {
+                output.write(chunk, 0, count);
+                position += count;
+            }
+            output.flush();
+        } catch (SocketException e) {
+            // The MediaPlayer closes its connection when it seeks, or is reset.
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "serve: Failed", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do.
+            }
+        }
+    }
+}
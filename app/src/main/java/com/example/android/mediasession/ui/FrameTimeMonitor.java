@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.example.android.mediasession.service.diagnostics.Histogram;
+import com.example.android.mediasession.service.diagnostics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures frame times while the user skips through tracks. Every skip starts or extends a
+ * sequence; once no skip has happened for {@link #QUIET_PERIOD_MS} the sequence ends, and the
+ * number of frames, janky frames (over one and a half frame budgets) and the worst frame of it
+ * are logged. Every frame interval also goes into the "ui.skip_frame_ns" histogram.
+ */
+class FrameTimeMonitor implements Choreographer.FrameCallback {
+
+    private static final String TAG = "MS_FrameTimeMonitor";
+
+    private static final long QUIET_PERIOD_MS = 1000;
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+    private static final long JANK_THRESHOLD_NANOS = FRAME_BUDGET_NANOS * 3 / 2;
+
+    private static final Histogram sFrameTime = Metrics.latency("ui.skip_frame_ns");
+
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private long mEndNanos;
+    private int mSkips;
+    private int mFrames;
+    private int mJankyFrames;
+    private long mWorstFrameNanos;
+
+    /**
+     * Called on every skip, on the main thread.
+     */
+    void onSkip() {
+        mSkips++;
+        mEndNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD_MS);
+        if (!mRunning) {
+            mRunning = true;
+            mLastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    void stop() {
+        if (mRunning) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            finish();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            sFrameTime.record(interval);
+            mFrames++;
+            if (interval > JANK_THRESHOLD_NANOS) {
+                mJankyFrames++;
+            }
+            mWorstFrameNanos = Math.max(mWorstFrameNanos, interval);
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        if (frameTimeNanos < mEndNanos) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            finish();
+        }
+    }
+
+    private void finish() {
+        Log.d(TAG, String.format(
+                "skip sequence: skips=%d, frames=%d, janky=%d, worst=%.1fms",
+                mSkips, mFrames, mJankyFrames,
+                mWorstFrameNanos / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        mRunning = false;
+        mSkips = 0;
+        mFrames = 0;
+        mJankyFrames = 0;
+        mWorstFrameNanos = 0;
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.mediasession.ui;
 
 import android.os.Bundle;
 import android.support.annotation.Nullable;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -28,8 +29,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.android.mediasession.R;
+import com.example.android.mediasession.client.AlbumArtLoader;
 import com.example.android.mediasession.client.MediaBrowserAdapter;
-import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.client.QueuePrefetcher;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -41,17 +43,25 @@ public class MainActivity extends AppCompatActivity {
 
     private MediaBrowserAdapter mMediaBrowserAdapter;
     private MediaBrowserListener mMediaBrowserListener;
+    private AlbumArtLoader mAlbumArtLoader;
+    private QueuePrefetcher mQueuePrefetcher;
+    private final FrameTimeMonitor mFrameTimeMonitor = new FrameTimeMonitor();
 
     private boolean mIsPlaying;
+    // Skips made since the metadata last changed.
+    private int mPendingSkips;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         initializeUI();
+        mAlbumArtLoader = new AlbumArtLoader(this);
         mMediaBrowserAdapter = new MediaBrowserAdapter(this);
         mMediaBrowserListener = new MediaBrowserListener();
         mMediaBrowserAdapter.addListener(mMediaBrowserListener);
+        mQueuePrefetcher = new QueuePrefetcher(this, mAlbumArtLoader, mAlbumArt);
+        mMediaBrowserAdapter.addListener(mQueuePrefetcher);
     }
 
     private void initializeUI() {
@@ -66,6 +76,8 @@ public class MainActivity extends AppCompatActivity {
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
+                        mFrameTimeMonitor.onSkip();
+                        showSkipTarget(--mPendingSkips);
                         mMediaBrowserAdapter.getTransportControls().skipToPrevious();
                     }
                 });
@@ -88,15 +100,33 @@ public class MainActivity extends AppCompatActivity {
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View view) {
+                        mFrameTimeMonitor.onSkip();
+                        showSkipTarget(++mPendingSkips);
                         mMediaBrowserAdapter.getTransportControls().skipToNext();
                     }
                 });
     }
 
+    // Shows the item being skipped to right away, from what the prefetcher already has, rather
+    // than waiting for the session to publish its metadata.
+    private void showSkipTarget(int offset) {
+        MediaDescriptionCompat description = mQueuePrefetcher.peek(offset);
+        if (description == null) {
+            return;
+        }
+        mTitleTextView.setText(description.getTitle());
+        mArtistTextView.setText(description.getSubtitle());
+        mAlbumArtLoader.load(mAlbumArt,
+                             description.getIconUri() == null
+                             ? null
+                             : description.getIconUri().toString());
+    }
+
     @Override
     public void onStart() {
         super.onStart();
         mMediaBrowserAdapter.onStart();
+        mQueuePrefetcher.onStart();
     }
 
     @Override
@@ -104,6 +134,14 @@ public class MainActivity extends AppCompatActivity {
         super.onStop();
         mSeekBarAudio.disconnectController();
         mMediaBrowserAdapter.onStop();
+        mQueuePrefetcher.onStop();
+        mFrameTimeMonitor.stop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mAlbumArtLoader.release();
     }
 
     public class MediaBrowserListener extends MediaBrowserAdapter.MediaBrowserChangeListener {
@@ -126,13 +164,12 @@ public class MainActivity extends AppCompatActivity {
             if (mediaMetadata == null) {
                 return;
             }
+            mPendingSkips = 0;
             mTitleTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
             mArtistTextView.setText(
                     mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
-            mAlbumArt.setImageBitmap(MusicLibrary.getAlbumBitmap(
-                    MainActivity.this,
-                    mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)));
+            mAlbumArtLoader.load(mAlbumArt, mediaMetadata);
         }
     }
 }
\ No newline at end of file
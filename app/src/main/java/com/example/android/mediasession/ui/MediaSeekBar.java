@@ -16,21 +16,26 @@
 
 package com.example.android.mediasession.ui;
 
-import android.animation.ValueAnimator;
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v7.widget.AppCompatSeekBar;
 import android.util.AttributeSet;
-import android.util.Log;
-import android.view.animation.LinearInterpolator;
+import android.view.Choreographer;
+import android.view.View;
 import android.widget.SeekBar;
 
+import com.example.android.mediasession.service.analysis.TrackAnalysis;
+
 /**
  * SeekBar that can be used with a {@link MediaSessionCompat} to track and seek in playing
- * media.
+ * media. Draws the waveform of the media behind the bar once the service has analysed it.
  */
 
 public class MediaSeekBar extends AppCompatSeekBar {
@@ -54,21 +59,37 @@ public class MediaSeekBar extends AppCompatSeekBar {
             mIsTracking = false;
         }
     };
-    private ValueAnimator mProgressAnimator;
+    private final PositionTicker mPositionTicker = new PositionTicker();
+
+    private static final int WAVEFORM_COLOR = Color.argb(0x60, 0x80, 0x80, 0x80);
+    private static final float WAVEFORM_BAR_WIDTH_DP = 2;
+
+    private final Paint mWaveformPaint = new Paint();
+    private String mMediaId;
+    private byte[] mPeaks;
+    // Start and end points of the waveform's bars, worked out when the peaks or size change.
+    private float[] mWaveformLines;
 
     public MediaSeekBar(Context context) {
         super(context);
-        super.setOnSeekBarChangeListener(mOnSeekBarChangeListener);
+        init();
     }
 
     public MediaSeekBar(Context context, AttributeSet attrs) {
         super(context, attrs);
-        super.setOnSeekBarChangeListener(mOnSeekBarChangeListener);
+        init();
     }
 
     public MediaSeekBar(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
         super.setOnSeekBarChangeListener(mOnSeekBarChangeListener);
+        mWaveformPaint.setColor(WAVEFORM_COLOR);
+        mWaveformPaint.setStrokeWidth(
+                WAVEFORM_BAR_WIDTH_DP * getResources().getDisplayMetrics().density);
     }
 
     @Override
@@ -80,6 +101,9 @@ public class MediaSeekBar extends AppCompatSeekBar {
         if (mediaController != null) {
             mControllerCallback = new ControllerCallback();
             mediaController.registerCallback(mControllerCallback);
+            // The controller may come from a warm connection, so catch up with the session.
+            mControllerCallback.onMetadataChanged(mediaController.getMetadata());
+            mControllerCallback.onPlaybackStateChanged(mediaController.getPlaybackState());
         } else if (mMediaController != null) {
             mMediaController.unregisterCallback(mControllerCallback);
             mControllerCallback = null;
@@ -93,11 +117,82 @@ public class MediaSeekBar extends AppCompatSeekBar {
             mControllerCallback = null;
             mMediaController = null;
         }
+        mPositionTicker.stop();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateWaveform();
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        if (mWaveformLines != null) {
+            canvas.drawLines(mWaveformLines, mWaveformPaint);
+        }
+        super.onDraw(canvas);
+    }
+
+    private void setPeaks(byte[] peaks) {
+        if (peaks != mPeaks) {
+            mPeaks = peaks;
+            updateWaveform();
+            invalidate();
+        }
     }
 
-    private class ControllerCallback
-            extends MediaControllerCompat.Callback
-            implements ValueAnimator.AnimatorUpdateListener {
+    // One bar per gap of two bar widths, each as high as the loudest peak it covers.
+    private void updateWaveform() {
+        int left = getPaddingLeft();
+        int width = getWidth() - left - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (mPeaks == null || mPeaks.length == 0 || width <= 0 || height <= 0) {
+            mWaveformLines = null;
+            return;
+        }
+        float barSpacing = mWaveformPaint.getStrokeWidth() * 2;
+        int bars = Math.max(1, Math.min(mPeaks.length, (int) (width / barSpacing)));
+        float centerY = getPaddingTop() + height / 2f;
+        float[] lines = new float[bars * 4];
+        for (int bar = 0; bar < bars; bar++) {
+            int peak = 0;
+            int end = (bar + 1) * mPeaks.length / bars;
+            for (int i = bar * mPeaks.length / bars; i < end; i++) {
+                peak = Math.max(peak, mPeaks[i] & 0xff);
+            }
+            float x = left + (bar + 0.5f) * width / bars;
+            float halfHeight = Math.max(0.5f, peak / 255f * height / 2);
+            lines[bar * 4] = x;
+            lines[bar * 4 + 1] = centerY - halfHeight;
+            lines[bar * 4 + 2] = x;
+            lines[bar * 4 + 3] = centerY + halfHeight;
+        }
+        mWaveformLines = lines;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mPositionTicker.resume();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mPositionTicker.pause();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        // Catch up at once when shown again, rather than at the next throttled frame.
+        if (visibility == VISIBLE) {
+            mPositionTicker.resume();
+        }
+    }
+
+    private class ControllerCallback extends MediaControllerCompat.Callback {
 
         @Override
         public void onSessionDestroyed() {
@@ -107,31 +202,7 @@ public class MediaSeekBar extends AppCompatSeekBar {
         @Override
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
             super.onPlaybackStateChanged(state);
-
-            // If there's an ongoing animation, stop it now.
-            if (mProgressAnimator != null) {
-                mProgressAnimator.cancel();
-                mProgressAnimator = null;
-            }
-
-            final int progress = state != null
-                    ? (int) state.getPosition()
-                    : 0;
-            setProgress(progress);
-            Log.d("nicole", "Set progress to: " + (progress / 1000.0f));
-
-            // If the media is playing then the seekbar should follow it, and the easiest
-            // way to do that is to create a ValueAnimator to update it so the bar reaches
-            // the end of the media the same time as playback gets there (or close enough).
-            if (state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING) {
-                final int timeToEnd = (int) ((getMax() - progress) / state.getPlaybackSpeed());
-
-                mProgressAnimator = ValueAnimator.ofInt(progress, getMax())
-                        .setDuration(timeToEnd);
-                mProgressAnimator.setInterpolator(new LinearInterpolator());
-                mProgressAnimator.addUpdateListener(this);
-                mProgressAnimator.start();
-            }
+            mPositionTicker.setPlaybackState(state);
         }
 
         @Override
@@ -141,20 +212,126 @@ public class MediaSeekBar extends AppCompatSeekBar {
             final int max = metadata != null
                     ? (int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)
                     : 0;
-            setProgress(0);
+            // The metadata of the same media is published again as its art and waveform are
+            // added, which mustn't send the thumb back to the start.
+            String mediaId = metadata != null ? metadata.getDescription().getMediaId() : null;
+            if (mediaId == null || !mediaId.equals(mMediaId)) {
+                setProgress(0);
+            }
+            mMediaId = mediaId;
             setMax(max);
+            setPeaks(TrackAnalysis.getPeaks(metadata));
+        }
+    }
+
+    /**
+     * Moves the progress along with playback. The position is extrapolated on every frame from
+     * the last reported position, the time it was reported at and the playback speed, so the bar
+     * doesn't drift from the player however late a state update arrives. The progress is only
+     * set when it moves the thumb by at least a pixel, no allocation happens per frame, and
+     * while the bar isn't shown it only wakes up a couple of times a second.
+     */
+    private final class PositionTicker implements Choreographer.FrameCallback {
+
+        private static final long HIDDEN_FRAME_INTERVAL_MS = 500;
+
+        private long mPosition;
+        private long mUpdateTime;
+        private float mSpeed;
+        private boolean mPlaying;
+        private boolean mPosted;
+        private int mLastPixel = -1;
+
+        void setPlaybackState(PlaybackStateCompat state) {
+            if (state == null) {
+                mPosition = 0;
+                mPlaying = false;
+            } else {
+                mPosition = state.getPosition();
+                mUpdateTime = state.getLastPositionUpdateTime();
+                mSpeed = state.getPlaybackSpeed();
+                mPlaying = state.getState() == PlaybackStateCompat.STATE_PLAYING;
+            }
+            // Always reflect an explicit update (e.g. a seek while paused) right away.
+            mLastPixel = -1;
+            update(SystemClock.elapsedRealtime());
+            if (mPlaying) {
+                resume();
+            } else {
+                stop();
+            }
+        }
+
+        void resume() {
+            if (mPlaying && isAttachedToWindow()) {
+                removeCallback();
+                post(0);
+            }
+        }
+
+        void pause() {
+            removeCallback();
+        }
+
+        void stop() {
+            mPlaying = false;
+            removeCallback();
         }
 
         @Override
-        public void onAnimationUpdate(final ValueAnimator valueAnimator) {
-            // If the user is changing the slider, cancel the animation.
+        public void doFrame(long frameTimeNanos) {
+            mPosted = false;
+            if (!mPlaying) {
+                return;
+            }
+            if (isShown()) {
+                update(SystemClock.elapsedRealtime());
+                post(0);
+            } else {
+                post(HIDDEN_FRAME_INTERVAL_MS);
+            }
+        }
+
+        private void update(long now) {
+            // Leave the thumb where the user is dragging it.
             if (mIsTracking) {
-                valueAnimator.cancel();
                 return;
             }
+            long position = mPosition;
+            if (mPlaying && mUpdateTime > 0) {
+                position += (long) ((now - mUpdateTime) * mSpeed);
+            }
+            int max = getMax();
+            int progress = (int) Math.max(0, max > 0 ? Math.min(position, max) : position);
+            int pixel = toPixel(progress, max);
+            if (pixel != mLastPixel) {
+                mLastPixel = pixel;
+                setProgress(progress);
+            }
+        }
+
+        // The horizontal offset of the thumb for the given progress, or the progress itself
+        // if the bar hasn't been laid out yet.
+        private int toPixel(int progress, int max) {
+            int width = getWidth() - getPaddingLeft() - getPaddingRight();
+            if (width <= 0 || max <= 0) {
+                return progress;
+            }
+            return (int) ((long) progress * width / max);
+        }
 
-            final int animatedIntValue = (int) valueAnimator.getAnimatedValue();
-            setProgress(animatedIntValue);
+        private void post(long delayMs) {
+            if (!mPosted) {
+                mPosted = true;
+                Choreographer.getInstance().postFrameCallbackDelayed(this, delayMs);
+            }
+        }
+
+        private void removeCallback() {
+            if (mPosted) {
+                mPosted = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
         }
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.diagnostics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    // Half of the 32 sub-buckets split every power of two, so a bucket spans at most 1/16 of
+    // its lower bound.
+    private static final double PRECISION = 1.0 / 16;
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_NANOS);
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_NANOS);
+        for (int value = 1; value <= 20; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(20, histogram.getCount());
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(18, histogram.getPercentile(90));
+        assertEquals(20, histogram.getPercentile(100));
+        assertEquals(20, histogram.getMax());
+        // The sum of 1..20 is 210.
+        assertEquals(10, histogram.getMean());
+    }
+
+    @Test
+    public void bucketsBoundTheirValuesWithinPrecision() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long upperBound = Histogram.bucketUpperBound(Histogram.bucketIndex(value));
+            assertTrue(value + " over " + upperBound, value <= upperBound);
+            assertTrue(value + " far below " + upperBound,
+                       upperBound - value <= value * PRECISION);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 1; index < Histogram.bucketIndex(Long.MAX_VALUE); index++) {
+            long lowerBound = Histogram.bucketUpperBound(index - 1) + 1;
+            assertEquals(index, Histogram.bucketIndex(lowerBound));
+            assertEquals(index, Histogram.bucketIndex(Histogram.bucketUpperBound(index)));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinPrecisionAndMax() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_NANOS);
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertWithinPrecision(5000000, histogram.getPercentile(50));
+        assertWithinPrecision(9900000, histogram.getPercentile(99));
+        // Never above the largest value recorded, even though its bucket reaches further.
+        assertEquals(10000000, histogram.getPercentile(100));
+        assertEquals(10000000, histogram.getMax());
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_NANOS);
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void largestValuesDontOverflow() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_BYTES);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        Histogram histogram = new Histogram("test", Histogram.UNIT_NANOS);
+        histogram.record(1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+        histogram.record(10);
+        assertEquals(10, histogram.getMean());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue(actual + " isn't about " + expected,
+                   actual >= expected && actual - expected <= expected * PRECISION);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+/**
+ * A stage of a {@link DspChain}, processing interleaved float PCM in place.
+ */
+public interface AudioProcessor {
+
+    /**
+     * Sets the format of the audio to come, and allocates whatever processing it needs. Called
+     * before processing starts and whenever the format changes, not on the audio thread.
+     */
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * Processes the given interleaved frames in place. Runs on the audio thread, so it mustn't
+     * allocate, take locks or block. Parameters changed meanwhile are picked up here, from a
+     * {@link ParameterMailbox}.
+     */
+    void process(float[] samples, int frameCount);
+
+    /**
+     * Clears the state kept between buffers, e.g. after a seek.
+     */
+    void reset();
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how long each DSP stage, and the whole chain, takes per frame of 48kHz stereo audio,
+ * processing buffers of the size an AudioTrack would be written in. Takes a few seconds.
+ */
+final class DspBenchmark {
+
+    /**
+     * Result keys, with the nanoseconds per frame.
+     */
+    static final String KEY_GAIN_NS_PER_FRAME = "gain_ns_per_frame";
+    static final String KEY_EQ_NS_PER_FRAME = "eq_ns_per_frame";
+    static final String KEY_LIMITER_NS_PER_FRAME = "limiter_ns_per_frame";
+    static final String KEY_CHAIN_NS_PER_FRAME = "chain_ns_per_frame";
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES_PER_BUFFER = 1024;
+    private static final int WARM_UP_BUFFERS = 500;
+    private static final int MEASURED_BUFFERS = 5000;
+
+    private DspBenchmark() {
+    }
+
+    static Map<String, Double> run() {
+        // Loud enough for the limiter to work, as after an EQ boost.
+        float[] source = new float[FRAMES_PER_BUFFER * CHANNELS];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            double t = (double) (i / CHANNELS) / SAMPLE_RATE;
+            source[i] = (float) (0.8 * Math.sin(2 * Math.PI * 220 * t)
+                                 + 0.3 * (random.nextFloat() * 2 - 1));
+        }
+
+        // Copying the source into the work buffer is part of every run, so take it out.
+        double copyNanos = measure(new NoOp(), source);
+        Map<String, Double> result = new LinkedHashMap<>();
+        result.put(KEY_GAIN_NS_PER_FRAME, measure(createGain(), source) - copyNanos);
+        result.put(KEY_EQ_NS_PER_FRAME, measure(createEq(), source) - copyNanos);
+        result.put(KEY_LIMITER_NS_PER_FRAME, measure(createLimiter(), source) - copyNanos);
+        result.put(KEY_CHAIN_NS_PER_FRAME,
+                   measure(new DspChain(createGain(), createEq(), createLimiter()), source)
+                   - copyNanos);
+        return result;
+    }
+
+    private static Gain createGain() {
+        Gain gain = new Gain();
+        gain.setGainDb(-3f);
+        return gain;
+    }
+
+    private static ParametricEq createEq() {
+        ParametricEq eq = new ParametricEq();
+        eq.setBands(new ParametricEq.Band(ParametricEq.TYPE_LOW_SHELF, 100, 4, 0.707f),
+                    new ParametricEq.Band(ParametricEq.TYPE_PEAK, 400, -2, 1f),
+                    new ParametricEq.Band(ParametricEq.TYPE_PEAK, 1500, 1.5f, 1f),
+                    new ParametricEq.Band(ParametricEq.TYPE_PEAK, 4000, 3, 2f),
+                    new ParametricEq.Band(ParametricEq.TYPE_HIGH_SHELF, 10000, 2, 0.707f));
+        return eq;
+    }
+
+    private static LookAheadLimiter createLimiter() {
+        LookAheadLimiter limiter = new LookAheadLimiter();
+        limiter.setSettings(new LookAheadLimiter.Settings(-1f, 5f, 100f));
+        return limiter;
+    }
+
+    // Nanoseconds per frame.
+    private static double measure(AudioProcessor processor, float[] source) {
+        processor.configure(SAMPLE_RATE, CHANNELS);
+        float[] buffer = new float[source.length];
+        for (int i = 0; i < WARM_UP_BUFFERS; i++) {
+            System.arraycopy(source, 0, buffer, 0, source.length);
+            processor.process(buffer, FRAMES_PER_BUFFER);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_BUFFERS; i++) {
+            System.arraycopy(source, 0, buffer, 0, source.length);
+            processor.process(buffer, FRAMES_PER_BUFFER);
+        }
+        return (double) (System.nanoTime() - start) / ((long) MEASURED_BUFFERS * FRAMES_PER_BUFFER);
+    }
+
+    private static final class NoOp implements AudioProcessor {
+
+        @Override
+        public void configure(int sampleRate, int channelCount) {
+        }
+
+        @Override
+        public void process(float[] samples, int frameCount) {
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.dsp;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the {@link DspBenchmark} and prints its numbers, which are only checked for being there,
+ * since they depend on the machine.
+ */
+public class DspBenchmarkTest {
+
+    @Test
+    public void measuresEveryStage() {
+        Map<String, Double> result = DspBenchmark.run();
+        System.out.println("DspBenchmark: " + result);
+
+        assertEquals(4, result.size());
+        for (Map.Entry<String, Double> entry : result.entrySet()) {
+            assertFalse(entry.getKey(), Double.isNaN(entry.getValue()));
+            assertFalse(entry.getKey(), Double.isInfinite(entry.getValue()));
+        }
+    }
+}
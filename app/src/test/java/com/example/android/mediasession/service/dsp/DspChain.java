@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Runs PCM through a fixed series of {@link AudioProcessor}s, in place, in a float buffer that's
+ * allocated once. Meant for a player that decodes audio itself and writes it out, such as one
+ * built on MediaCodec and AudioTrack, e.g. gain normalization, then EQ, then a limiter to catch
+ * what the EQ pushed over.
+ */
+public final class DspChain implements AudioProcessor {
+
+    private static final float SHORT_SCALE = 32768f;
+
+    private final AudioProcessor[] mStages;
+    private float[] mBuffer = new float[0];
+    private int mChannels = 1;
+
+    public DspChain(AudioProcessor... stages) {
+        mStages = stages.clone();
+    }
+
+    /**
+     * Configures every stage, and allocates a buffer for up to the given number of frames.
+     */
+    public void configure(int sampleRate, int channelCount, int maxFrames) {
+        configure(sampleRate, channelCount);
+        mBuffer = new float[maxFrames * channelCount];
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mChannels = channelCount;
+        for (AudioProcessor stage : mStages) {
+            stage.configure(sampleRate, channelCount);
+        }
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        for (AudioProcessor stage : mStages) {
+            stage.process(samples, frameCount);
+        }
+    }
+
+    /**
+     * Processes interleaved 16 bit PCM in place, through the chain's float buffer.
+     *
+     * @return the number of frames processed, at most the number of frames the chain was
+     * configured for.
+     */
+    public int process(ShortBuffer pcm) {
+        int position = pcm.position();
+        int sampleCount = Math.min(pcm.remaining(), mBuffer.length);
+        sampleCount -= sampleCount % mChannels;
+        for (int i = 0; i < sampleCount; i++) {
+            mBuffer[i] = pcm.get(position + i) / SHORT_SCALE;
+        }
+        process(mBuffer, sampleCount / mChannels);
+        for (int i = 0; i < sampleCount; i++) {
+            float sample = mBuffer[i] * SHORT_SCALE;
+            pcm.put(position + i,
+                    (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+        }
+        return sampleCount / mChannels;
+    }
+
+    @Override
+    public void reset() {
+        for (AudioProcessor stage : mStages) {
+            stage.reset();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.dsp;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DspChainTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    @Test
+    public void emptyChainKeepsPcm() {
+        DspChain chain = new DspChain();
+        chain.configure(SAMPLE_RATE, CHANNELS, 4);
+        short[] pcm = {0, 1, -1, 12345, Short.MAX_VALUE, Short.MIN_VALUE, 100, -100};
+
+        assertEquals(4, chain.process(ShortBuffer.wrap(pcm)));
+
+        assertEquals(12345, pcm[3]);
+        assertEquals(Short.MAX_VALUE, pcm[4]);
+        assertEquals(Short.MIN_VALUE, pcm[5]);
+    }
+
+    @Test
+    public void stagesRunInOrder() {
+        List<String> order = new ArrayList<>();
+        DspChain chain = new DspChain(new Recorder("first", order), new Recorder("second", order));
+        chain.configure(SAMPLE_RATE, CHANNELS, 4);
+
+        chain.process(ShortBuffer.wrap(new short[8]));
+        chain.reset();
+
+        assertEquals("configure first, configure second, process first, process second, "
+                     + "reset first, reset second", join(order));
+    }
+
+    @Test
+    public void boostedPcmIsClamped() {
+        DspChain chain = new DspChain(new Scale(4f));
+        chain.configure(SAMPLE_RATE, CHANNELS, 2);
+        short[] pcm = {20000, -20000, 1000, -1000};
+
+        chain.process(ShortBuffer.wrap(pcm));
+
+        assertEquals(Short.MAX_VALUE, pcm[0]);
+        assertEquals(Short.MIN_VALUE, pcm[1]);
+        assertEquals(4000, pcm[2]);
+        assertEquals(-4000, pcm[3]);
+    }
+
+    @Test
+    public void processesAtMostConfiguredFramesFromPosition() {
+        DspChain chain = new DspChain(new Scale(0f));
+        chain.configure(SAMPLE_RATE, CHANNELS, 2);
+        short[] pcm = {1, 1, 1, 1, 1, 1, 1, 1, 1};
+        ShortBuffer buffer = ShortBuffer.wrap(pcm);
+        buffer.position(1);
+
+        assertEquals(2, chain.process(buffer));
+
+        // Only the frames it was configured for, from the buffer's position on, which doesn't
+        // move.
+        assertEquals(1, buffer.position());
+        assertEquals(1, pcm[0]);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(0, pcm[i]);
+        }
+        for (int i = 5; i < pcm.length; i++) {
+            assertEquals(1, pcm[i]);
+        }
+    }
+
+    @Test
+    public void partialFramesAreLeftAlone() {
+        DspChain chain = new DspChain(new Scale(0f));
+        chain.configure(SAMPLE_RATE, CHANNELS, 4);
+        short[] pcm = {1, 1, 1};
+
+        assertEquals(1, chain.process(ShortBuffer.wrap(pcm)));
+
+        assertEquals(0, pcm[1]);
+        assertEquals(1, pcm[2]);
+    }
+
+    private static String join(List<String> items) {
+        StringBuilder builder = new StringBuilder();
+        for (String item : items) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(item);
+        }
+        return builder.toString();
+    }
+
+    private static final class Recorder implements AudioProcessor {
+
+        private final String mName;
+        private final List<String> mOrder;
+
+        Recorder(String name, List<String> order) {
+            mName = name;
+            mOrder = order;
+        }
+
+        @Override
+        public void configure(int sampleRate, int channelCount) {
+            mOrder.add("configure " + mName);
+        }
+
+        @Override
+        public void process(float[] samples, int frameCount) {
+            mOrder.add("process " + mName);
+        }
+
+        @Override
+        public void reset() {
+            mOrder.add("reset " + mName);
+        }
+    }
+
+    private static final class Scale implements AudioProcessor {
+
+        private final float mFactor;
+        private int mChannels = 1;
+
+        Scale(float factor) {
+            mFactor = factor;
+        }
+
+        @Override
+        public void configure(int sampleRate, int channelCount) {
+            mChannels = channelCount;
+        }
+
+        @Override
+        public void process(float[] samples, int frameCount) {
+            for (int i = 0; i < frameCount * mChannels; i++) {
+                samples[i] *= mFactor;
+            }
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}
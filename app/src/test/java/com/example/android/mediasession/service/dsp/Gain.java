@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+/**
+ * Applies a gain, e.g. to normalize the loudness of tracks. Changes are ramped over a few
+ * milliseconds so that they don't click.
+ */
+public final class Gain implements AudioProcessor {
+
+    private static final int RAMP_MS = 10;
+
+    private final ParameterMailbox<Float> mMailbox = new ParameterMailbox<>();
+    private int mChannels = 1;
+    private int mRampFrames = 1;
+    private float mGain = 1f;
+    private float mTarget = 1f;
+    private float mStep;
+    private int mRampRemaining;
+
+    /**
+     * Sets the gain, as a factor. Can be called from any thread.
+     */
+    public void setGain(float gain) {
+        mMailbox.post(Math.max(0f, gain));
+    }
+
+    public void setGainDb(float gainDb) {
+        setGain((float) Math.pow(10, gainDb / 20));
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mChannels = channelCount;
+        mRampFrames = Math.max(1, sampleRate * RAMP_MS / 1000);
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        Float target = mMailbox.take();
+        if (target != null && target != mTarget) {
+            mTarget = target;
+            mStep = (mTarget - mGain) / mRampFrames;
+            mRampRemaining = mRampFrames;
+        }
+        if (mRampRemaining == 0 && mGain == 1f) {
+            return;
+        }
+        int index = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            if (mRampRemaining > 0) {
+                mGain = --mRampRemaining == 0 ? mTarget : mGain + mStep;
+            }
+            float gain = mGain;
+            for (int end = index + mChannels; index < end; index++) {
+                samples[index] *= gain;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        mGain = mTarget;
+        mRampRemaining = 0;
+    }
+}
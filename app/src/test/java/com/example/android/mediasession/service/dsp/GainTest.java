@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GainTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    // As Gain ramps over 10ms.
+    private static final int RAMP_FRAMES = SAMPLE_RATE / 100;
+
+    private Gain mGain;
+
+    @Before
+    public void setUp() {
+        mGain = new Gain();
+        mGain.configure(SAMPLE_RATE, CHANNELS);
+    }
+
+    @Test
+    public void unityGainLeavesSamplesAlone() {
+        float[] samples = constant(256, 0.5f);
+
+        mGain.process(samples, 256);
+
+        assertArrayEquals(constant(256, 0.5f), samples, 0f);
+    }
+
+    @Test
+    public void gainIsRampedToItsTarget() {
+        mGain.setGain(0.5f);
+        float[] samples = constant(RAMP_FRAMES * 2, 1f);
+
+        mGain.process(samples, RAMP_FRAMES * 2);
+
+        // Falls steadily over the ramp, without jumping at its start.
+        assertTrue(samples[0] > 0.99f);
+        for (int frame = 1; frame < RAMP_FRAMES; frame++) {
+            assertTrue(samples[frame * CHANNELS] <= samples[(frame - 1) * CHANNELS]);
+            assertEquals(samples[frame * CHANNELS], samples[frame * CHANNELS + 1], 0f);
+        }
+        for (int frame = RAMP_FRAMES - 1; frame < RAMP_FRAMES * 2; frame++) {
+            assertEquals(0.5f, samples[frame * CHANNELS], 0f);
+        }
+    }
+
+    @Test
+    public void gainInDecibels() {
+        mGain.setGainDb(-6.0206f);
+        float[] samples = constant(RAMP_FRAMES * 2, 1f);
+
+        mGain.process(samples, RAMP_FRAMES * 2);
+
+        assertEquals(0.5f, samples[samples.length - 1], 1e-4f);
+    }
+
+    @Test
+    public void resetSkipsTheRamp() {
+        mGain.setGain(0.25f);
+        mGain.process(constant(1, 1f), 1);
+        mGain.reset();
+        float[] samples = constant(16, 1f);
+
+        mGain.process(samples, 16);
+
+        assertArrayEquals(constant(16, 0.25f), samples, 0f);
+    }
+
+    @Test
+    public void negativeGainIsSilence() {
+        mGain.setGain(-1f);
+        float[] samples = constant(RAMP_FRAMES * 2, 1f);
+
+        mGain.process(samples, RAMP_FRAMES * 2);
+
+        assertEquals(0f, samples[samples.length - 1], 0f);
+    }
+
+    private static float[] constant(int frames, float value) {
+        float[] samples = new float[frames * CHANNELS];
+        Arrays.fill(samples, value);
+        return samples;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+/**
+ * Look-ahead peak limiter. Audio is delayed by the look-ahead time, so that the gain can come
+ * down smoothly before a peak over the threshold gets out, rather than clipping it. The loudest
+ * peak within the look-ahead window is tracked with a monotonic queue, in constant time per
+ * frame.
+ */
+public final class LookAheadLimiter implements AudioProcessor {
+
+    public static final float MAX_LOOK_AHEAD_MS = 20;
+
+    /**
+     * Settings of the limiter.
+     */
+    public static final class Settings {
+
+        final float mThresholdDb;
+        final float mLookAheadMs;
+        final float mReleaseMs;
+
+        public Settings(float thresholdDb, float lookAheadMs, float releaseMs) {
+            mThresholdDb = thresholdDb;
+            mLookAheadMs = Math.max(0, Math.min(MAX_LOOK_AHEAD_MS, lookAheadMs));
+            mReleaseMs = Math.max(1, releaseMs);
+        }
+    }
+
+    private final ParameterMailbox<Settings> mMailbox = new ParameterMailbox<>();
+    private Settings mSettings = new Settings(-1f, 5f, 100f);
+
+    private int mSampleRate;
+    private int mChannels;
+    private float mThreshold;
+    private float mAttack;
+    private float mRelease;
+    private float mGain = 1f;
+
+    // The delayed audio, a ring of look-ahead frames.
+    private float[] mDelay = new float[0];
+    private int mDelayFrames;
+    private int mDelayPosition;
+
+    // The window's peaks, in decreasing order, with the frame each one is from.
+    private float[] mQueuePeaks = new float[0];
+    private long[] mQueueFrames = new long[0];
+    private int mQueueHead;
+    private int mQueueSize;
+    private long mFrame;
+
+    /**
+     * Can be called from any thread.
+     */
+    public void setSettings(Settings settings) {
+        mMailbox.post(settings);
+    }
+
+    /**
+     * @return how long the limiter delays the audio, in frames.
+     */
+    public int getLatencyFrames() {
+        return mDelayFrames;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannels = channelCount;
+        int maxFrames = (int) Math.ceil(sampleRate * MAX_LOOK_AHEAD_MS / 1000) + 1;
+        mDelay = new float[maxFrames * channelCount];
+        mQueuePeaks = new float[maxFrames + 1];
+        mQueueFrames = new long[maxFrames + 1];
+        applySettings(mSettings);
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        Settings settings = mMailbox.take();
+        if (settings != null) {
+            applySettings(settings);
+        }
+        int channels = mChannels;
+        int capacity = mQueuePeaks.length;
+        long window = mDelayFrames + 1;
+        for (int frame = 0, index = 0; frame < frameCount; frame++, index += channels) {
+            float peak = 0f;
+            for (int channel = 0; channel < channels; channel++) {
+                peak = Math.max(peak, Math.abs(samples[index + channel]));
+            }
+
+            // Add this frame's peak to the window, and drop what has left it.
+            while (mQueueSize > 0
+                   && mQueuePeaks[(mQueueHead + mQueueSize - 1) % capacity] <= peak) {
+                mQueueSize--;
+            }
+            int tail = (mQueueHead + mQueueSize) % capacity;
+            mQueuePeaks[tail] = peak;
+            mQueueFrames[tail] = mFrame;
+            mQueueSize++;
+            if (mQueueFrames[mQueueHead] <= mFrame - window) {
+                mQueueHead = (mQueueHead + 1) % capacity;
+                mQueueSize--;
+            }
+            mFrame++;
+
+            float windowPeak = mQueuePeaks[mQueueHead];
+            float target = windowPeak > mThreshold ? mThreshold / windowPeak : 1f;
+            mGain += (target - mGain) * (target < mGain ? mAttack : mRelease);
+
+            float gain = mGain;
+            float threshold = mThreshold;
+            int delayIndex = mDelayPosition * channels;
+            for (int channel = 0; channel < channels; channel++) {
+                float input = samples[index + channel];
+                float output = mDelayFrames == 0 ? input : mDelay[delayIndex + channel];
+                mDelay[delayIndex + channel] = input;
+                // The gain has all but converged when the peak gets out; clamp the remainder.
+                samples[index + channel] =
+                        Math.max(-threshold, Math.min(threshold, output * gain));
+            }
+            if (mDelayFrames > 0) {
+                mDelayPosition = (mDelayPosition + 1) % mDelayFrames;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mDelay.length; i++) {
+            mDelay[i] = 0f;
+        }
+        mDelayPosition = 0;
+        mQueueHead = 0;
+        mQueueSize = 0;
+        mGain = 1f;
+    }
+
+    private void applySettings(Settings settings) {
+        mSettings = settings;
+        if (mSampleRate == 0) {
+            return;
+        }
+        mThreshold = (float) Math.pow(10, settings.mThresholdDb / 20);
+        int delayFrames = Math.round(mSampleRate * settings.mLookAheadMs / 1000);
+        // Converges to within 1% of the target over the look-ahead.
+        mAttack = delayFrames == 0 ? 1f : (float) (1 - Math.exp(-5.0 / delayFrames));
+        mRelease = (float) (1 - Math.exp(-1000.0 / (settings.mReleaseMs * mSampleRate)));
+        if (delayFrames != mDelayFrames) {
+            mDelayFrames = delayFrames;
+            reset();
+        }
+    }
+}
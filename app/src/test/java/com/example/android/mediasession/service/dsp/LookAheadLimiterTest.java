@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.dsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LookAheadLimiterTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = SAMPLE_RATE / 4;
+    // The default settings: -1dB, with 5ms of look-ahead.
+    private static final float DEFAULT_THRESHOLD = (float) Math.pow(10, -1 / 20.0);
+    private static final int DEFAULT_LATENCY_FRAMES = SAMPLE_RATE * 5 / 1000;
+
+    private LookAheadLimiter mLimiter;
+
+    @Before
+    public void setUp() {
+        mLimiter = new LookAheadLimiter();
+        mLimiter.configure(SAMPLE_RATE, CHANNELS);
+    }
+
+    @Test
+    public void quietAudioIsOnlyDelayed() {
+        assertEquals(DEFAULT_LATENCY_FRAMES, mLimiter.getLatencyFrames());
+        float[] input = sine(440, 0.5f);
+        float[] samples = input.clone();
+
+        mLimiter.process(samples, FRAMES);
+
+        for (int i = 0; i < DEFAULT_LATENCY_FRAMES * CHANNELS; i++) {
+            assertEquals(0f, samples[i], 0f);
+        }
+        for (int i = DEFAULT_LATENCY_FRAMES * CHANNELS; i < samples.length; i++) {
+            assertEquals(input[i - DEFAULT_LATENCY_FRAMES * CHANNELS], samples[i], 0f);
+        }
+    }
+
+    @Test
+    public void loudAudioStaysUnderThreshold() {
+        float[] samples = sine(440, 2f);
+
+        mLimiter.process(samples, FRAMES);
+
+        float peak = peak(samples, 0);
+        assertTrue("peak " + peak, peak <= DEFAULT_THRESHOLD);
+        // Limited, not silenced.
+        assertTrue("peak " + peak, peak(samples, FRAMES / 2) > DEFAULT_THRESHOLD * 0.9f);
+    }
+
+    @Test
+    public void gainComesDownAheadOfPeak() {
+        float[] samples = new float[FRAMES * CHANNELS];
+        Arrays.fill(samples, 0.1f);
+        int peakFrame = FRAMES / 2;
+        samples[peakFrame * CHANNELS] = 4f;
+
+        mLimiter.process(samples, FRAMES);
+
+        int peakOut = (peakFrame + DEFAULT_LATENCY_FRAMES) * CHANNELS;
+        assertTrue("limited to " + samples[peakOut],
+                   samples[peakOut] > DEFAULT_THRESHOLD * 0.9f
+                   && samples[peakOut] <= DEFAULT_THRESHOLD);
+        // The audio just before the peak was already brought down with it, and the audio
+        // long before it wasn't.
+        assertTrue(samples[peakOut - CHANNELS] < 0.05f);
+        assertEquals(0.1f, samples[peakOut - DEFAULT_LATENCY_FRAMES * 2 * CHANNELS], 0f);
+    }
+
+    @Test
+    public void newSettingsApplyOnNextBuffer() {
+        mLimiter.setSettings(new LookAheadLimiter.Settings(-6f, 0f, 50f));
+        float[] samples = sine(440, 1f);
+
+        mLimiter.process(samples, FRAMES);
+
+        assertEquals(0, mLimiter.getLatencyFrames());
+        float threshold = (float) Math.pow(10, -6 / 20.0);
+        assertTrue(peak(samples, 0) <= threshold);
+    }
+
+    @Test
+    public void lookAheadIsCapped() {
+        mLimiter.setSettings(new LookAheadLimiter.Settings(-1f, 1000f, 50f));
+        mLimiter.process(new float[CHANNELS], 1);
+
+        assertEquals(Math.round(SAMPLE_RATE * LookAheadLimiter.MAX_LOOK_AHEAD_MS / 1000),
+                     mLimiter.getLatencyFrames());
+    }
+
+    @Test
+    public void resetClearsDelayedAudio() {
+        float[] samples = sine(440, 0.5f);
+        mLimiter.process(samples, FRAMES);
+        mLimiter.reset();
+
+        float[] silence = new float[DEFAULT_LATENCY_FRAMES * CHANNELS];
+        mLimiter.process(silence, DEFAULT_LATENCY_FRAMES);
+
+        assertEquals(0f, peak(silence, 0), 0f);
+    }
+
+    private static float[] sine(float frequency, float amplitude) {
+        float[] samples = new float[FRAMES * CHANNELS];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            float sample = (float) (amplitude
+                                    * Math.sin(2 * Math.PI * frequency * frame / SAMPLE_RATE));
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                samples[frame * CHANNELS + channel] = sample;
+            }
+        }
+        return samples;
+    }
+
+    private static float peak(float[] samples, int fromFrame) {
+        float peak = 0f;
+        for (int i = fromFrame * CHANNELS; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+}
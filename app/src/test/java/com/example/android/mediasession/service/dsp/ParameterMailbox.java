@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands immutable parameters from the thread that changes them to the audio thread without
+ * locking. Only the latest parameters posted are kept, and the audio thread takes them at the
+ * start of a buffer.
+ */
+public final class ParameterMailbox<T> {
+
+    private final AtomicReference<T> mPending = new AtomicReference<>();
+
+    /**
+     * Replaces whatever parameters haven't been taken yet.
+     */
+    public void post(@NonNull T parameters) {
+        mPending.set(parameters);
+    }
+
+    /**
+     * @return the parameters posted since the last call, or null. Doesn't allocate.
+     */
+    @Nullable
+    public T take() {
+        // A plain read in the common case, where nothing changed.
+        return mPending.get() == null ? null : mPending.getAndSet(null);
+    }
+}
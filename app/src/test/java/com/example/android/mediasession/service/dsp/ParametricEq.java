@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.dsp;
+
+/**
+ * Parametric equalizer: up to {@link #MAX_BANDS} peaking or shelving biquad filters in series,
+ * with coefficients as in the RBJ Audio EQ Cookbook. Bands can be changed while playing, which
+ * keeps the filters' state so that it doesn't click.
+ */
+public final class ParametricEq implements AudioProcessor {
+
+    public static final int MAX_BANDS = 8;
+
+    public static final int TYPE_PEAK = 0;
+    public static final int TYPE_LOW_SHELF = 1;
+    public static final int TYPE_HIGH_SHELF = 2;
+
+    /**
+     * One band of the equalizer.
+     */
+    public static final class Band {
+
+        final int mType;
+        final float mFrequency;
+        final float mGainDb;
+        final float mQ;
+
+        /**
+         * @param type      one of the TYPE_ constants.
+         * @param frequency the center frequency, or the corner frequency of a shelf, in Hz.
+         * @param q         the quality, or the slope of a shelf (where 0.707 is the steepest
+         *                  without overshoot).
+         */
+        public Band(int type, float frequency, float gainDb, float q) {
+            mType = type;
+            mFrequency = frequency;
+            mGainDb = gainDb;
+            mQ = q;
+        }
+    }
+
+    private final ParameterMailbox<Band[]> mMailbox = new ParameterMailbox<>();
+    private Band[] mBands = new Band[0];
+
+    private int mSampleRate;
+    private int mChannels;
+
+    private final double[] mB0 = new double[MAX_BANDS];
+    private final double[] mB1 = new double[MAX_BANDS];
+    private final double[] mB2 = new double[MAX_BANDS];
+    private final double[] mA1 = new double[MAX_BANDS];
+    private final double[] mA2 = new double[MAX_BANDS];
+    // Transposed direct form II state, by band and channel.
+    private double[] mZ1 = new double[0];
+    private double[] mZ2 = new double[0];
+
+    /**
+     * Replaces the bands. Can be called from any thread.
+     */
+    public void setBands(Band... bands) {
+        if (bands.length > MAX_BANDS) {
+            throw new IllegalArgumentException("At most " + MAX_BANDS + " bands");
+        }
+        mMailbox.post(bands.clone());
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannels = channelCount;
+        mZ1 = new double[MAX_BANDS * channelCount];
+        mZ2 = new double[MAX_BANDS * channelCount];
+        updateCoefficients();
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        Band[] bands = mMailbox.take();
+        if (bands != null) {
+            if (bands.length != mBands.length) {
+                // Bands that come and go would otherwise start from stale state.
+                reset();
+            }
+            mBands = bands;
+            updateCoefficients();
+        }
+        int channels = mChannels;
+        for (int band = 0; band < mBands.length; band++) {
+            double b0 = mB0[band];
+            double b1 = mB1[band];
+            double b2 = mB2[band];
+            double a1 = mA1[band];
+            double a2 = mA2[band];
+            for (int channel = 0; channel < channels; channel++) {
+                int state = band * channels + channel;
+                double z1 = mZ1[state];
+                double z2 = mZ2[state];
+                for (int i = channel, end = frameCount * channels; i < end; i += channels) {
+                    double x = samples[i];
+                    double y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    samples[i] = (float) y;
+                }
+                mZ1[state] = z1;
+                mZ2[state] = z2;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mZ1.length; i++) {
+            mZ1[i] = 0;
+            mZ2[i] = 0;
+        }
+    }
+
+    private void updateCoefficients() {
+        if (mSampleRate == 0) {
+            return;
+        }
+        for (int band = 0; band < mBands.length; band++) {
+            Band b = mBands[band];
+            double a = Math.pow(10, b.mGainDb / 40);
+            double w0 = 2 * Math.PI * Math.min(b.mFrequency, mSampleRate * 0.49) / mSampleRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * Math.max(b.mQ, 0.01f));
+            double b0, b1, b2, a0, a1, a2;
+            switch (b.mType) {
+                case TYPE_LOW_SHELF: {
+                    double sq = 2 * Math.sqrt(a) * alpha;
+                    b0 = a * ((a + 1) - (a - 1) * cos + sq);
+                    b1 = 2 * a * ((a - 1) - (a + 1) * cos);
+                    b2 = a * ((a + 1) - (a - 1) * cos - sq);
+                    a0 = (a + 1) + (a - 1) * cos + sq;
+                    a1 = -2 * ((a - 1) + (a + 1) * cos);
+                    a2 = (a + 1) + (a - 1) * cos - sq;
+                    break;
+                }
+                case TYPE_HIGH_SHELF: {
+                    double sq = 2 * Math.sqrt(a) * alpha;
+                    b0 = a * ((a + 1) + (a - 1) * cos + sq);
+                    b1 = -2 * a * ((a - 1) + (a + 1) * cos);
+                    b2 = a * ((a + 1) + (a - 1) * cos - sq);
+                    a0 = (a + 1) - (a - 1) * cos + sq;
+                    a1 = 2 * ((a - 1) - (a + 1) * cos);
+                    a2 = (a + 1) - (a - 1) * cos - sq;
+                    break;
+                }
+                default:
+                    b0 = 1 + alpha * a;
+                    b1 = -2 * cos;
+                    b2 = 1 - alpha * a;
+                    a0 = 1 + alpha / a;
+                    a1 = -2 * cos;
+                    a2 = 1 - alpha / a;
+                    break;
+            }
+            mB0[band] = b0 / a0;
+            mB1[band] = b1 / a0;
+            mB2[band] = b2 / a0;
+            mA1[band] = a1 / a0;
+            mA2[band] = a2 / a0;
+        }
+    }
+}
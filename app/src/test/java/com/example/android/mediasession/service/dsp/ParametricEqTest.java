@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.dsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParametricEqTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = SAMPLE_RATE / 2;
+    // +6dB, as a factor.
+    private static final float DOUBLE = 1.9953f;
+
+    private ParametricEq mEq;
+
+    @Before
+    public void setUp() {
+        mEq = new ParametricEq();
+        mEq.configure(SAMPLE_RATE, CHANNELS);
+    }
+
+    @Test
+    public void noBandsLeavesSamplesAlone() {
+        float[] samples = sine(1000, 0.5f);
+        float[] expected = samples.clone();
+
+        mEq.process(samples, FRAMES);
+
+        assertArrayEquals(expected, samples, 0f);
+    }
+
+    @Test
+    public void flatBandLeavesSamplesAlone() {
+        mEq.setBands(new ParametricEq.Band(ParametricEq.TYPE_PEAK, 1000, 0, 1));
+        float[] samples = sine(1000, 0.5f);
+        float[] expected = samples.clone();
+
+        mEq.process(samples, FRAMES);
+
+        assertArrayEquals(expected, samples, 1e-5f);
+    }
+
+    @Test
+    public void peakBoostsItsFrequencyOnly() {
+        mEq.setBands(new ParametricEq.Band(ParametricEq.TYPE_PEAK, 1000, 6, 2));
+
+        assertEquals(DOUBLE, gainAt(1000), 0.02f);
+        assertEquals(1f, gainAt(50), 0.02f);
+        assertEquals(1f, gainAt(15000), 0.02f);
+    }
+
+    @Test
+    public void lowShelfBoostsBelowItsCorner() {
+        mEq.setBands(new ParametricEq.Band(ParametricEq.TYPE_LOW_SHELF, 200, 6, 0.707f));
+
+        assertEquals(DOUBLE, gainAt(20), 0.02f);
+        assertEquals(1f, gainAt(10000), 0.02f);
+    }
+
+    @Test
+    public void highShelfCutsAboveItsCorner() {
+        mEq.setBands(new ParametricEq.Band(ParametricEq.TYPE_HIGH_SHELF, 4000, -6, 0.707f));
+
+        assertEquals(1 / DOUBLE, gainAt(18000), 0.02f);
+        assertEquals(1f, gainAt(100), 0.02f);
+    }
+
+    @Test
+    public void channelsAreFilteredIndependently() {
+        mEq.setBands(new ParametricEq.Band(ParametricEq.TYPE_PEAK, 1000, 12, 1));
+        float[] samples = sine(1000, 0.5f);
+        for (int i = 1; i < samples.length; i += CHANNELS) {
+            samples[i] = 0f;
+        }
+
+        mEq.process(samples, FRAMES);
+
+        for (int i = 1; i < samples.length; i += CHANNELS) {
+            assertEquals(0f, samples[i], 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyBandsAreRejected() {
+        ParametricEq.Band[] bands = new ParametricEq.Band[ParametricEq.MAX_BANDS + 1];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = new ParametricEq.Band(ParametricEq.TYPE_PEAK, 1000, 0, 1);
+        }
+        mEq.setBands(bands);
+    }
+
+    // The gain of a sine of the given frequency, once the filters have settled.
+    private float gainAt(float frequency) {
+        mEq.reset();
+        float[] samples = sine(frequency, 0.25f);
+        mEq.process(samples, FRAMES);
+        return peak(samples, FRAMES / 2) / 0.25f;
+    }
+
+    private static float[] sine(float frequency, float amplitude) {
+        float[] samples = new float[FRAMES * CHANNELS];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            float sample = (float) (amplitude
+                                    * Math.sin(2 * Math.PI * frequency * frame / SAMPLE_RATE));
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                samples[frame * CHANNELS + channel] = sample;
+            }
+        }
+        return samples;
+    }
+
+    private static float peak(float[] samples, int fromFrame) {
+        float peak = 0f;
+        for (int i = fromFrame * CHANNELS; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+}
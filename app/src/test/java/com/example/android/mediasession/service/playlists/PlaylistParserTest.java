@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.playlists;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers M3U and PLS playlists. JSON playlists are read with the framework's JsonReader, which
+ * isn't available to JVM tests.
+ */
+public class PlaylistParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void readsM3u() throws IOException {
+        assertEquals(Arrays.asList("a.mp3", "/sdcard/Music/b.mp3", "https://example.com/c.mp3"),
+                     read("a.mp3\n/sdcard/Music/b.mp3\r\nhttps://example.com/c.mp3"));
+    }
+
+    @Test
+    public void skipsM3uCommentsAndBlankLines() throws IOException {
+        assertEquals(Arrays.asList("a.mp3", "b.mp3"),
+                     read("#EXTM3U\n\n#EXTINF:123,Artist - Title\n  a.mp3  \n\n"
+                          + "# a comment\nb.mp3\n"));
+    }
+
+    @Test
+    public void readsPls() throws IOException {
+        assertEquals(Arrays.asList("a.mp3", "b.mp3"),
+                     read("[playlist]\nFile1=a.mp3\nTitle1=A\nLength1=123\n"
+                          + "file2 = b.mp3\nFile3=\nNumberOfEntries=3\nVersion=2\n"));
+    }
+
+    @Test
+    public void plsHeaderIsCaseInsensitive() throws IOException {
+        assertEquals(Arrays.asList("a.mp3"), read("\n  [Playlist]\nFile1=a.mp3\n"));
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws IOException {
+        assertEquals(Arrays.asList("a.mp3"), read("\uFEFF#EXTM3U\na.mp3\n"));
+        assertEquals(Arrays.asList("a.mp3"), read("\uFEFF[playlist]\nFile1=a.mp3\n"));
+    }
+
+    @Test
+    public void readsLongPlaylistsPastTheSniffedBytes() throws IOException {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            playlist.append("track_").append(i).append(".mp3\n");
+            expected.add("track_" + i + ".mp3");
+        }
+
+        assertEquals(expected, read(playlist.toString()));
+    }
+
+    @Test
+    public void emptyPlaylistHasNoEntries() throws IOException {
+        assertEquals(new ArrayList<String>(), read(""));
+    }
+
+    private static List<String> read(String playlist) throws IOException {
+        List<String> locations = new ArrayList<>();
+        PlaylistParser parser =
+                PlaylistParser.open(new ByteArrayInputStream(playlist.getBytes(UTF_8)));
+        try {
+            String location;
+            while ((location = parser.next()) != null) {
+                locations.add(location);
+            }
+        } finally {
+            parser.close();
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.service.streaming;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthEstimatorTest {
+
+    private static final long SAMPLE_BYTES = 64 * 1024;
+    private static final long FAST = 1024 * 1024;
+    private static final long SLOW = 128 * 1024;
+
+    private BandwidthEstimator mEstimator;
+
+    @Before
+    public void setUp() {
+        mEstimator = new BandwidthEstimator();
+    }
+
+    @Test
+    public void defaultEstimateUntilEnoughIsReceived() {
+        assertEquals(BandwidthEstimator.DEFAULT_ESTIMATE, mEstimator.getEstimate());
+
+        // 64K so far, of the 128K it takes.
+        addSamples(1, FAST);
+        assertEquals(BandwidthEstimator.DEFAULT_ESTIMATE, mEstimator.getEstimate());
+
+        addSamples(1, FAST);
+        assertWithin(FAST, mEstimator.getEstimate(), 0.01);
+    }
+
+    @Test
+    public void smallSamplesAreIgnored() {
+        for (int i = 0; i < 100; i++) {
+            mEstimator.addSample(BandwidthEstimator.MIN_SAMPLE_BYTES - 1, 1);
+        }
+
+        assertEquals(BandwidthEstimator.DEFAULT_ESTIMATE, mEstimator.getEstimate());
+    }
+
+    @Test
+    public void steadyRateIsEstimated() {
+        addSamples(50, SLOW);
+
+        assertWithin(SLOW, mEstimator.getEstimate(), 0.01);
+    }
+
+    @Test
+    public void dropsAreFollowedQuicklyAndRecoveriesSlowly() {
+        // A minute at each rate.
+        addSeconds(60, FAST);
+        addSeconds(2, SLOW);
+        long afterDrop = mEstimator.getEstimate();
+        addSeconds(60, SLOW);
+        addSeconds(2, FAST);
+        long afterRecovery = mEstimator.getEstimate();
+
+        // Two seconds is the fast average's half life, and the slower one's is longer.
+        assertWithin((FAST + SLOW) / 2, afterDrop, 0.01);
+        assertTrue(afterRecovery + " should still be well under " + (FAST + SLOW) / 2,
+                   afterRecovery < (FAST + SLOW) / 2 * 0.8);
+    }
+
+    @Test
+    public void zeroDurationsDontDivideByZero() {
+        addSamples(2, FAST);
+        mEstimator.addSample(SAMPLE_BYTES, 0);
+
+        assertTrue(mEstimator.getEstimate() > 0);
+    }
+
+    // Samples of SAMPLE_BYTES received at bytesPerSecond.
+    private void addSamples(int count, long bytesPerSecond) {
+        for (int i = 0; i < count; i++) {
+            mEstimator.addSample(SAMPLE_BYTES, SAMPLE_BYTES * 1000 / bytesPerSecond);
+        }
+    }
+
+    private void addSeconds(int seconds, long bytesPerSecond) {
+        addSamples((int) (seconds * bytesPerSecond / SAMPLE_BYTES), bytesPerSecond);
+    }
+
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        assertTrue(actual + " isn't about " + expected,
+                   Math.abs(actual - expected) <= expected * tolerance);
+    }
+}
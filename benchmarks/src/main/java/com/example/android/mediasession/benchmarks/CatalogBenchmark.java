@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.benchmarks;
+
+import com.example.android.mediasession.catalog.CatalogDelta;
+import com.example.android.mediasession.catalog.TrackCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link TrackCatalog}: building a catalog in one batch, resolving playlist entries,
+ * telling the changes since a version, and walking the tracks as a browse of the root does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+
+    // Tracks updated after the catalog was built, which the journal holds.
+    private static final int UPDATES = 1000;
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private TrackCatalog<Track> mCatalog;
+    private long mVersionBeforeUpdates;
+    private String[] mMediaIds;
+    private String[] mPaths;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCatalog = build(tracks);
+        mVersionBeforeUpdates = mCatalog.getVersion();
+        mCatalog.beginBatch();
+        for (int i = 0; i < UPDATES; i++) {
+            int track = i * (tracks / UPDATES);
+            mCatalog.put(mediaId(track), fileName(track), new Track(mediaId(track), "Updated"));
+        }
+        mCatalog.endBatch();
+
+        Random random = new Random(1);
+        mMediaIds = new String[LOOKUPS];
+        mPaths = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int track = random.nextInt(tracks);
+            mMediaIds[i] = mediaId(track);
+            mPaths[i] = "/sdcard/Music/" + fileName(track);
+        }
+    }
+
+    @Benchmark
+    public TrackCatalog<Track> build() {
+        return build(tracks);
+    }
+
+    @Benchmark
+    public String resolveMediaId() {
+        return mCatalog.resolve(mMediaIds[mNext++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public String resolvePath() {
+        return mCatalog.resolve(mPaths[mNext++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public CatalogDelta getChangesSince() {
+        return mCatalog.getChangesSince(mVersionBeforeUpdates);
+    }
+
+    @Benchmark
+    public void walkTracks(Blackhole blackhole) {
+        for (Track track : mCatalog.getTracks()) {
+            blackhole.consume(track);
+        }
+    }
+
+    private static TrackCatalog<Track> build(int tracks) {
+        TrackCatalog<Track> catalog = new TrackCatalog<>(0);
+        catalog.beginBatch();
+        for (int i = 0; i < tracks; i++) {
+            catalog.put(mediaId(i), fileName(i), new Track(mediaId(i), "Track " + i));
+        }
+        catalog.endBatch();
+        return catalog;
+    }
+
+    private static String mediaId(int track) {
+        return "Test_Track_" + track;
+    }
+
+    private static String fileName(int track) {
+        return "track_" + track + ".mp3";
+    }
+
+    // Stands in for the MediaMetadataCompat the app keeps per track.
+    static final class Track {
+
+        final String mMediaId;
+        final String mTitle;
+
+        Track(String mediaId, String title) {
+            mMediaId = mediaId;
+            mTitle = title;
+        }
+    }
+}
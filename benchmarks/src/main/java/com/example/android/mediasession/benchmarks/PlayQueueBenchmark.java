@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.benchmarks;
+
+import com.example.android.mediasession.catalog.PlayQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link PlayQueue}: queueing a whole catalog as a client that subscribes does,
+ * adding it again as a client that resubscribes does, removing items and adding them back at
+ * the end, and skipping.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayQueueBenchmark {
+
+    private static final PlayQueue.MediaIds<Item> MEDIA_IDS = new PlayQueue.MediaIds<Item>() {
+        @Override
+        public String getMediaId(Item item) {
+            return item.mMediaId;
+        }
+    };
+
+    @Param({"1000", "10000"})
+    public int items;
+
+    private Item[] mItems;
+    private PlayQueue<Item> mQueue;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mItems = new Item[items];
+        for (int i = 0; i < items; i++) {
+            mItems[i] = new Item("Test_Track_" + i);
+        }
+        mQueue = new PlayQueue<>(MEDIA_IDS);
+        for (Item item : mItems) {
+            mQueue.add(item);
+        }
+    }
+
+    @Benchmark
+    public PlayQueue<Item> queueCatalog() {
+        PlayQueue<Item> queue = new PlayQueue<>(MEDIA_IDS);
+        for (Item item : mItems) {
+            queue.addIfAbsent(item);
+        }
+        return queue;
+    }
+
+    @Benchmark
+    public int requeueCatalog() {
+        int added = 0;
+        for (Item item : mItems) {
+            if (mQueue.addIfAbsent(item)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    @Benchmark
+    public boolean removeAndAdd() {
+        Item item = mItems[mNext++ % items];
+        boolean removed = mQueue.remove(item.mMediaId);
+        mQueue.add(item);
+        return removed;
+    }
+
+    @Benchmark
+    public int skipToNext() {
+        mQueue.setIndex(mQueue.getNextIndex());
+        return mQueue.getIndex();
+    }
+
+    // Stands in for the QueueItem the app queues.
+    static final class Item {
+
+        final String mMediaId;
+
+        Item(String mediaId) {
+            mMediaId = mediaId;
+        }
+    }
+}
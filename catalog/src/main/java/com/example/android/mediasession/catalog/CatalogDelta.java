@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tracks added, updated and removed between two versions of a {@link TrackCatalog}.
+ */
+public final class CatalogDelta {
+
+    private final long mFromVersion;
+    private final long mToVersion;
+    final List<String> mAdded = new ArrayList<>();
+    final List<String> mUpdated = new ArrayList<>();
+    final List<String> mRemoved = new ArrayList<>();
+
+    CatalogDelta(long fromVersion, long toVersion) {
+        mFromVersion = fromVersion;
+        mToVersion = toVersion;
+    }
+
+    public long getFromVersion() {
+        return mFromVersion;
+    }
+
+    public long getToVersion() {
+        return mToVersion;
+    }
+
+    public List<String> getAdded() {
+        return mAdded;
+    }
+
+    public List<String> getUpdated() {
+        return mUpdated;
+    }
+
+    public List<String> getRemoved() {
+        return mRemoved;
+    }
+
+    public int size() {
+        return mAdded.size() + mUpdated.size() + mRemoved.size();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The play queue: items in play order, and the index of the current one, which is -1 only
+ * while the queue is empty. Holds the items as whatever type the platform represents them by,
+ * and reads their media ids through {@link MediaIds}. Keeps a count per media id, so that
+ * telling whether a media id is queued doesn't have to walk the queue.
+ *
+ * <p>Not thread safe.
+ */
+public final class PlayQueue<T> {
+
+    /**
+     * Tells the media id of a queue item.
+     */
+    public interface MediaIds<T> {
+
+        String getMediaId(T item);
+    }
+
+    private final MediaIds<T> mMediaIds;
+    private final ArrayList<T> mItems = new ArrayList<>();
+    private final List<T> mItemsView = Collections.unmodifiableList(mItems);
+    private final HashMap<String, Integer> mCounts = new HashMap<>();
+    private int mIndex = -1;
+
+    public PlayQueue(MediaIds<T> mediaIds) {
+        mMediaIds = mediaIds;
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    public T get(int index) {
+        return mItems.get(index);
+    }
+
+    /**
+     * @return the items, as a view that follows the queue.
+     */
+    public List<T> getItems() {
+        return mItemsView;
+    }
+
+    /**
+     * @return the index of the current item, or -1 if the queue is empty.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public void setIndex(int index) {
+        if (index < 0 || index >= mItems.size()) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mItems.size());
+        }
+        mIndex = index;
+    }
+
+    /**
+     * @return the current item, or null if the queue is empty.
+     */
+    public T getCurrent() {
+        return mIndex < 0 ? null : mItems.get(mIndex);
+    }
+
+    /**
+     * @return the index after the current one, going round to the start at the end.
+     */
+    public int getNextIndex() {
+        return (mIndex + 1) % mItems.size();
+    }
+
+    /**
+     * @return the index before the current one, going round to the end at the start.
+     */
+    public int getPreviousIndex() {
+        return mIndex > 0 ? mIndex - 1 : mItems.size() - 1;
+    }
+
+    public boolean contains(String mediaId) {
+        return mCounts.containsKey(mediaId);
+    }
+
+    /**
+     * @return the index of the first item with the given media id, or -1.
+     */
+    public int indexOf(String mediaId) {
+        if (!contains(mediaId)) {
+            return -1;
+        }
+        for (int i = 0; i < mItems.size(); i++) {
+            if (mMediaIds.getMediaId(mItems.get(i)).equals(mediaId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends an item, which becomes the current one if the queue was empty.
+     */
+    public void add(T item) {
+        mItems.add(item);
+        String mediaId = mMediaIds.getMediaId(item);
+        Integer count = mCounts.get(mediaId);
+        mCounts.put(mediaId, count == null ? 1 : count + 1);
+        if (mIndex == -1) {
+            mIndex = 0;
+        }
+    }
+
+    /**
+     * Appends an item unless an item with the same media id is queued already.
+     *
+     * @return true if the item was added.
+     */
+    public boolean addIfAbsent(T item) {
+        if (contains(mMediaIds.getMediaId(item))) {
+            return false;
+        }
+        add(item);
+        return true;
+    }
+
+    /**
+     * Replaces the item at the given index with one for the same media id, e.g. because the
+     * track's metadata changed.
+     */
+    public void set(int index, T item) {
+        String mediaId = mMediaIds.getMediaId(item);
+        if (!mediaId.equals(mMediaIds.getMediaId(mItems.get(index)))) {
+            throw new IllegalArgumentException(
+                    "Item for " + mediaId + " can't replace the one at " + index);
+        }
+        mItems.set(index, item);
+    }
+
+    /**
+     * Removes the first item with the given media id. The current item stays current, unless
+     * it's the one removed, in which case the item after it becomes current.
+     *
+     * @return true if an item was removed.
+     */
+    public boolean remove(String mediaId) {
+        int index = indexOf(mediaId);
+        if (index < 0) {
+            return false;
+        }
+        mItems.remove(index);
+        Integer count = mCounts.get(mediaId);
+        if (count == 1) {
+            mCounts.remove(mediaId);
+        } else {
+            mCounts.put(mediaId, count - 1);
+        }
+        if (mItems.isEmpty()) {
+            mIndex = -1;
+        } else if (index < mIndex) {
+            mIndex--;
+        } else if (mIndex >= mItems.size()) {
+            mIndex = 0;
+        }
+        return true;
+    }
+}
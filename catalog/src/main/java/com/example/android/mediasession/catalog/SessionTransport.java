@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The transport state machine of a media session, over its {@link PlayQueue}: the queue is
+ * published once per round of edits rather than once per edit, skips only publish the track
+ * skipped to until skipping has settled, and tracks removed from the catalog are pruned from the
+ * queue. Holds queue items as {@code T} and the media prepared to play as {@code M}, whatever
+ * types the platform represents them by, and leaves publishing and playing to a {@link Session}
+ * and a {@link Player}.
+ *
+ * <p>Not thread safe: it's meant to be used on the thread its {@link Scheduler} runs tasks on.
+ */
+public final class SessionTransport<T, M> {
+
+    /**
+     * Playback of the track skipped to waits until skipping has stopped for this long, so that
+     * a burst of skips only prepares the last track.
+     */
+    public static final long SKIP_SETTLE_MS = 150;
+
+    /**
+     * Runs tasks later, on the thread the transport is used on.
+     */
+    public interface Scheduler {
+
+        /**
+         * Runs {@code task} after {@code delayMs}, instead of when it was scheduled for if it
+         * is already.
+         */
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    /**
+     * What the transport needs of the catalog, and publishes to controllers.
+     */
+    public interface Session<T, M> {
+
+        boolean isInCatalog(String mediaId);
+
+        /**
+         * @return an item for the same track and queue position as {@code item}, with what the
+         * catalog holds for the track now.
+         */
+        T refreshQueueItem(T item);
+
+        /**
+         * Publishes the metadata of a track that is about to be played.
+         *
+         * @return the media to play the track with.
+         */
+        M prepareMedia(String mediaId);
+
+        /**
+         * Publishes that the session is skipping to the given track, which will be played once
+         * skipping has settled.
+         */
+        void onSkipping(String mediaId, boolean toPrevious);
+
+        void publishQueue(List<T> queue);
+    }
+
+    public interface Player<M> {
+
+        /**
+         * Loads media ahead of playing it.
+         */
+        void prepareFromMedia(M media);
+
+        void playFromMedia(M media);
+
+        void pause();
+
+        void stop();
+
+        void seekTo(long positionMs);
+
+        /**
+         * @return true if the given track is playing.
+         */
+        boolean isPlaying(String mediaId);
+    }
+
+    private final PlayQueue.MediaIds<T> mQueueItemIds;
+    private final PlayQueue<T> mQueue;
+    private final PlayQueue.MediaIds<M> mMediaIds;
+    private final Session<T, M> mSession;
+    private final Player<M> mPlayer;
+    private final Scheduler mScheduler;
+    private M mPreparedMedia;
+
+    private boolean mQueuePublishPending;
+    private final Runnable mPublishQueue = new Runnable() {
+        @Override
+        public void run() {
+            mQueuePublishPending = false;
+            mSession.publishQueue(new ArrayList<>(mQueue.getItems()));
+        }
+    };
+
+    private boolean mSkipPending;
+    private final Runnable mPlaySkipTarget = new Runnable() {
+        @Override
+        public void run() {
+            mSkipPending = false;
+            playSkipTarget();
+        }
+    };
+
+    public SessionTransport(PlayQueue.MediaIds<T> queueItemIds,
+                            PlayQueue.MediaIds<M> mediaIds,
+                            Session<T, M> session,
+                            Player<M> player,
+                            Scheduler scheduler) {
+        mQueueItemIds = queueItemIds;
+        mQueue = new PlayQueue<>(queueItemIds);
+        mMediaIds = mediaIds;
+        mSession = session;
+        mPlayer = player;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Cancels what's scheduled.
+     */
+    public void release() {
+        mScheduler.cancel(mPublishQueue);
+        cancelPendingSkip();
+    }
+
+    /**
+     * @return the queue, which is only to be edited through the transport.
+     */
+    public PlayQueue<T> getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * @return the media prepared to play, or null if there's none, e.g. while skipping.
+     */
+    public M getPreparedMedia() {
+        return mPreparedMedia;
+    }
+
+    /**
+     * Replaces the prepared media with another version of it, e.g. with its album art.
+     *
+     * @return false if other media is prepared by now, in which case nothing changed.
+     */
+    public boolean updatePreparedMedia(M media) {
+        if (mPreparedMedia == null
+            || !mMediaIds.getMediaId(media).equals(mMediaIds.getMediaId(mPreparedMedia))) {
+            return false;
+        }
+        mPreparedMedia = media;
+        return true;
+    }
+
+    public boolean isSkipPending() {
+        return mSkipPending;
+    }
+
+    public boolean isQueuePublishPending() {
+        return mQueuePublishPending;
+    }
+
+    /**
+     * Queues an item, unless its track is queued already or isn't in the catalog.
+     */
+    public void addQueueItem(T item) {
+        if (addIfPlayable(item)) {
+            onQueueChanged();
+        }
+    }
+
+    /**
+     * Queues the items whose tracks aren't queued already and are in the catalog, and publishes
+     * the queue once.
+     */
+    public void addQueueItems(Collection<T> items) {
+        boolean changed = false;
+        for (T item : items) {
+            changed |= addIfPlayable(item);
+        }
+        if (changed) {
+            onQueueChanged();
+        }
+    }
+
+    private boolean addIfPlayable(T item) {
+        return mSession.isInCatalog(mQueueItemIds.getMediaId(item))
+               && mQueue.addIfAbsent(item);
+    }
+
+    /**
+     * Appends the items, even if their tracks are queued already, as playlists may hold a track
+     * more than once. The queue is published within {@code publishDelayMs}, along with whatever
+     * else changes meanwhile.
+     */
+    public void appendToQueue(Collection<T> items, long publishDelayMs) {
+        for (T item : items) {
+            mQueue.add(item);
+        }
+        if (!items.isEmpty()) {
+            publishQueue(publishDelayMs);
+        }
+    }
+
+    public void removeQueueItem(String mediaId) {
+        if (mQueue.remove(mediaId)) {
+            onQueueChanged();
+        }
+    }
+
+    public void removeQueueItems(Collection<String> mediaIds) {
+        boolean changed = false;
+        for (String mediaId : mediaIds) {
+            changed |= mQueue.remove(mediaId);
+        }
+        if (changed) {
+            onQueueChanged();
+        }
+    }
+
+    /**
+     * Removes the tracks that are no longer in the catalog from the queue, and refreshes the
+     * items of the tracks that were updated.
+     */
+    public void onCatalogChanged(Collection<String> mediaIds) {
+        boolean queueChanged = false;
+        Set<String> updated = new HashSet<>();
+        for (String mediaId : mediaIds) {
+            if (mSession.isInCatalog(mediaId)) {
+                if (mQueue.contains(mediaId)) {
+                    updated.add(mediaId);
+                }
+                continue;
+            }
+            // Imported playlists can hold a track more than once.
+            while (mQueue.remove(mediaId)) {
+                queueChanged = true;
+            }
+            if (mPreparedMedia != null
+                && mediaId.equals(mMediaIds.getMediaId(mPreparedMedia))) {
+                mPreparedMedia = null;
+            }
+        }
+        // One pass over the queue, however many of its tracks were updated.
+        for (int i = 0; !updated.isEmpty() && i < mQueue.size(); i++) {
+            T item = mQueue.get(i);
+            if (updated.contains(mQueueItemIds.getMediaId(item))) {
+                mQueue.set(i, mSession.refreshQueueItem(item));
+                queueChanged = true;
+            }
+        }
+        if (queueChanged) {
+            onQueueChanged();
+        }
+    }
+
+    private void onQueueChanged() {
+        publishQueue(0);
+    }
+
+    private void publishQueue(long delayMs) {
+        if (!mQueuePublishPending) {
+            mQueuePublishPending = true;
+            mScheduler.schedule(mPublishQueue, delayMs);
+        }
+    }
+
+    /**
+     * Publishes the queue now if it's waiting to be published.
+     */
+    public void publishPendingQueue() {
+        if (mQueuePublishPending) {
+            mScheduler.cancel(mPublishQueue);
+            mPublishQueue.run();
+        }
+    }
+
+    /**
+     * Prepares the current track, or the first one after it that is still in the catalog, and
+     * loads it in the player so that playing it only has to start it.
+     */
+    public void prepare() {
+        prepareWithoutLoading();
+        if (mPreparedMedia != null) {
+            mPlayer.prepareFromMedia(mPreparedMedia);
+        }
+    }
+
+    /**
+     * Prepares the current track, or the first one after it that is still in the catalog,
+     * without loading it in the player.
+     */
+    public void prepareWithoutLoading() {
+        if (mQueue.isEmpty() || !moveToPlayableItem(mQueue.getIndex(), 1)) {
+            // Nothing to play.
+            return;
+        }
+        mPreparedMedia =
+                mSession.prepareMedia(mQueueItemIds.getMediaId(mQueue.getCurrent()));
+    }
+
+    // Makes the first item from the given index on, in the given direction, that is still in
+    // the catalog the current one. Returns false if there's none.
+    private boolean moveToPlayableItem(int index, int step) {
+        int size = mQueue.size();
+        for (int i = 0; i < size; i++) {
+            int candidate = ((index + i * step) % size + size) % size;
+            if (mSession.isInCatalog(mQueueItemIds.getMediaId(mQueue.get(candidate)))) {
+                mQueue.setIndex(candidate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void play() {
+        cancelPendingSkip();
+        playCurrent();
+    }
+
+    /**
+     * Plays the item at the given index of the queue.
+     */
+    public void playFrom(int index) {
+        cancelPendingSkip();
+        mQueue.setIndex(index);
+        mPreparedMedia = null;
+        playCurrent();
+    }
+
+    private void playCurrent() {
+        if (mQueue.isEmpty()) {
+            // Nothing to play.
+            return;
+        }
+        if (mPreparedMedia == null) {
+            prepareWithoutLoading();
+            if (mPreparedMedia == null) {
+                // None of the queue is in the catalog any more.
+                return;
+            }
+        }
+        mPlayer.playFromMedia(mPreparedMedia);
+    }
+
+    public void pause() {
+        cancelPendingSkip();
+        mPlayer.pause();
+    }
+
+    public void stop() {
+        cancelPendingSkip();
+        mPlayer.stop();
+    }
+
+    public void seekTo(long positionMs) {
+        mPlayer.seekTo(positionMs);
+    }
+
+    public void skipToNext() {
+        if (!mQueue.isEmpty()) {
+            skipTo(mQueue.getNextIndex(), false);
+        }
+    }
+
+    public void skipToPrevious() {
+        if (!mQueue.isEmpty()) {
+            skipTo(mQueue.getPreviousIndex(), true);
+        }
+    }
+
+    // Only publishes the track skipped to, and leaves playing it until skipping has stopped.
+    private void skipTo(int index, boolean toPrevious) {
+        if (!moveToPlayableItem(index, toPrevious ? -1 : 1)) {
+            return;
+        }
+        mPreparedMedia = null;
+        mSession.onSkipping(mQueueItemIds.getMediaId(mQueue.getCurrent()), toPrevious);
+        mScheduler.schedule(mPlaySkipTarget, SKIP_SETTLE_MS);
+        mSkipPending = true;
+    }
+
+    private void playSkipTarget() {
+        if (mQueue.isEmpty()) {
+            // The queue was emptied by tracks being removed from the catalog.
+            return;
+        }
+        boolean alreadyPlaying =
+                mPlayer.isPlaying(mQueueItemIds.getMediaId(mQueue.getCurrent()));
+        playCurrent();
+        if (alreadyPlaying) {
+            // Skipped all the way round the queue, so start the track over.
+            mPlayer.seekTo(0);
+        }
+    }
+
+    private void cancelPendingSkip() {
+        if (mSkipPending) {
+            mSkipPending = false;
+            mScheduler.cancel(mPlaySkipTarget);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The catalog of tracks, sorted by media id, along with the music file of every track and the
+ * reverse index from files to tracks. Holds the tracks as whatever type the platform represents
+ * them by. Every mutation, or batch of them, moves the catalog to a new version, and recent
+ * mutations are journaled so that the changes since an older version can be told.
+ *
+ * <p>Not thread safe.
+ */
+public final class TrackCatalog<T> {
+
+    /**
+     * Notified after tracks were added, updated or removed.
+     */
+    public interface Listener {
+
+        /**
+         * @param version  the new version of the catalog.
+         * @param mediaIds the media ids of the tracks that changed.
+         */
+        void onCatalogChanged(long version, Collection<String> mediaIds);
+    }
+
+    // Recent mutations, oldest first, so that clients holding an older version of the catalog
+    // can be sent what changed instead of all of it.
+    private static final int MAX_JOURNAL_ENTRIES = 4096;
+
+    private final TreeMap<String, T> mTracks = new TreeMap<>();
+    private final HashMap<String, String> mMusicFileNames = new HashMap<>();
+    // The reverse of mMusicFileNames, for resolving playlist entries. Tracks can share a file,
+    // in which case the first one added is found.
+    private final HashMap<String, String> mMediaIdByFileName = new HashMap<>();
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private long mVersion;
+    private final ArrayDeque<Change> mJournal = new ArrayDeque<>();
+    // Changes up to this version have been dropped from the journal.
+    private long mJournalStartVersion;
+
+    // Media ids changed in the current batch, while there is one.
+    private int mBatchDepth;
+    private final Set<String> mBatchMediaIds = new LinkedHashSet<>();
+
+    /**
+     * @param version the version to start at, which should be newer than any version of an
+     *                earlier instance that clients may have cached.
+     */
+    public TrackCatalog(long version) {
+        mVersion = version;
+        mJournalStartVersion = version;
+    }
+
+    /**
+     * @return the version of the catalog, which changes whenever a track is added, updated or
+     * removed.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts a batch of mutations, which bumps the version and notifies listeners only once,
+     * in {@link #endBatch()}. Batches can be nested.
+     */
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    public void endBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        }
+        if (--mBatchDepth == 0 && !mBatchMediaIds.isEmpty()) {
+            List<String> mediaIds = new ArrayList<>(mBatchMediaIds);
+            mBatchMediaIds.clear();
+            notifyChanged(mediaIds);
+        }
+    }
+
+    /**
+     * Adds a track without it counting as a change, for the tracks the catalog starts with.
+     */
+    public void load(String mediaId, String musicFileName, T track) {
+        mTracks.put(mediaId, track);
+        unmapFileName(mediaId, mMusicFileNames.put(mediaId, musicFileName));
+        if (!mMediaIdByFileName.containsKey(musicFileName)) {
+            mMediaIdByFileName.put(musicFileName, mediaId);
+        }
+    }
+
+    /**
+     * Adds a track, or replaces the track with the same media id.
+     */
+    public void put(String mediaId, String musicFileName, T track) {
+        boolean existed = mTracks.containsKey(mediaId);
+        load(mediaId, musicFileName, track);
+        onChanged(mediaId, existed);
+    }
+
+    /**
+     * @return the track removed, or null if the catalog didn't contain it.
+     */
+    public T remove(String mediaId) {
+        T track = mTracks.remove(mediaId);
+        if (track == null) {
+            return null;
+        }
+        unmapFileName(mediaId, mMusicFileNames.remove(mediaId));
+        onChanged(mediaId, true);
+        return track;
+    }
+
+    public T get(String mediaId) {
+        return mTracks.get(mediaId);
+    }
+
+    public boolean contains(String mediaId) {
+        return mTracks.containsKey(mediaId);
+    }
+
+    public int size() {
+        return mTracks.size();
+    }
+
+    /**
+     * @return the tracks, in the order of their media ids.
+     */
+    public Collection<T> getTracks() {
+        return Collections.unmodifiableCollection(mTracks.values());
+    }
+
+    public String getMusicFileName(String mediaId) {
+        return mMusicFileNames.get(mediaId);
+    }
+
+    /**
+     * @return true if the given music file is a http(s) URL to stream, rather than an asset.
+     */
+    public static boolean isStreamed(String musicFileName) {
+        return musicFileName != null
+               && (musicFileName.startsWith("http://") || musicFileName.startsWith("https://"));
+    }
+
+    /**
+     * Finds the track a playlist entry refers to, by its media id, its music file (or URL), or
+     * the name of the file at the end of a path.
+     *
+     * @return the media id of the track, or null if it isn't in the catalog.
+     */
+    public String resolve(String location) {
+        if (mTracks.containsKey(location)) {
+            return location;
+        }
+        String mediaId = mMediaIdByFileName.get(location);
+        if (mediaId == null && !isStreamed(location)) {
+            int start = Math.max(location.lastIndexOf('/'), location.lastIndexOf('\\')) + 1;
+            mediaId = mMediaIdByFileName.get(location.substring(start));
+        }
+        return mediaId;
+    }
+
+    /**
+     * Returns what changed in the catalog since the given version, or null if that is no longer
+     * known, in which case the whole catalog has to be sent.
+     */
+    public CatalogDelta getChangesSince(long version) {
+        if (version < mJournalStartVersion || version > mVersion) {
+            return null;
+        }
+        // Whether each changed track existed at the given version, in order of first change.
+        Map<String, Boolean> existedBefore = new LinkedHashMap<>();
+        for (Iterator<Change> it = mJournal.descendingIterator(); it.hasNext(); ) {
+            Change change = it.next();
+            if (change.mVersion <= version) {
+                break;
+            }
+            // Walking backwards, so the last put is the earliest change.
+            existedBefore.put(change.mMediaId, change.mExistedBefore);
+        }
+        CatalogDelta delta = new CatalogDelta(version, mVersion);
+        for (Map.Entry<String, Boolean> entry : existedBefore.entrySet()) {
+            boolean existsNow = mTracks.containsKey(entry.getKey());
+            if (entry.getValue()) {
+                (existsNow ? delta.mUpdated : delta.mRemoved).add(entry.getKey());
+            } else if (existsNow) {
+                delta.mAdded.add(entry.getKey());
+            }
+        }
+        return delta;
+    }
+
+    private void unmapFileName(String mediaId, String musicFileName) {
+        if (musicFileName != null && mediaId.equals(mMediaIdByFileName.get(musicFileName))) {
+            mMediaIdByFileName.remove(musicFileName);
+        }
+    }
+
+    private void onChanged(String mediaId, boolean existedBefore) {
+        // Journaled under the version the change will be published as.
+        mJournal.addLast(new Change(mVersion + 1, mediaId, existedBefore));
+        if (mJournal.size() > MAX_JOURNAL_ENTRIES) {
+            mJournalStartVersion = mJournal.removeFirst().mVersion;
+        }
+        if (mBatchDepth > 0) {
+            mBatchMediaIds.add(mediaId);
+        } else {
+            notifyChanged(Collections.singleton(mediaId));
+        }
+    }
+
+    private void notifyChanged(Collection<String> mediaIds) {
+        mVersion++;
+        for (Listener listener : mListeners) {
+            listener.onCatalogChanged(mVersion, mediaIds);
+        }
+    }
+
+    private static final class Change {
+
+        private final long mVersion;
+        private final String mMediaId;
+        private final boolean mExistedBefore;
+
+        Change(long version, String mediaId, boolean existedBefore) {
+            mVersion = version;
+            mMediaId = mediaId;
+            mExistedBefore = existedBefore;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import com.example.android.mediasession.catalog.simulation.Track;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how much heap a {@link TrackCatalog} and a {@link PlayQueue} retain per track, for
+ * synthetic catalogs of increasing size, against a budget of bytes per track. Each is measured
+ * as the growth of the used heap between garbage collections, before and after building it,
+ * while it's still referenced. Catalogs and queues are built in isolation, so nothing else
+ * grows meanwhile.
+ *
+ * <p>The tracks are {@link Track}s, which are smaller than the MediaMetadataCompat the app
+ * holds, so the budgets are of the engines themselves: their maps, indexes and journal. The
+ * app's MemoryBudgetTest checks its own on a device.
+ */
+public class MemoryBudgetTest {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+    private static final int GC_PASSES = 4;
+
+    // A track, its title and media id, the music file name, an entry in the sorted map, an
+    // entry in each of the file name maps, and a share of the journal at the smallest size.
+    private static final long CATALOG_BUDGET_BYTES_PER_TRACK = 640;
+    // Queue items share the tracks of the catalog, so it's a slot of the list and an entry in
+    // the counts.
+    private static final long QUEUE_BUDGET_BYTES_PER_TRACK = 96;
+
+    @Test
+    public void catalogStaysWithinBudget() {
+        List<String> failures = new ArrayList<>();
+        for (int tracks : SIZES) {
+            long before = usedHeap();
+            TrackCatalog<Track> catalog = Track.newCatalog(tracks);
+            long after = usedHeap();
+            check(failures, tracks, "catalog", before, after, CATALOG_BUDGET_BYTES_PER_TRACK);
+            // Keeps the catalog reachable until it's been measured.
+            assertEquals(tracks, catalog.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void queueStaysWithinBudget() {
+        List<String> failures = new ArrayList<>();
+        for (int tracks : SIZES) {
+            TrackCatalog<Track> catalog = Track.newCatalog(tracks);
+            long before = usedHeap();
+            // As the session queues a whole catalog.
+            PlayQueue<Track> queue = new PlayQueue<>(Track.MEDIA_IDS);
+            for (Track track : catalog.getTracks()) {
+                queue.addIfAbsent(track);
+            }
+            long after = usedHeap();
+            check(failures, tracks, "queue", before, after, QUEUE_BUDGET_BYTES_PER_TRACK);
+            assertEquals(tracks, queue.size());
+            assertEquals(tracks, catalog.size());
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private static void check(List<String> failures, int tracks, String structure, long before,
+                              long after, long budget) {
+        long bytesPerTrack = Math.max(0, after - before) / tracks;
+        System.out.println(tracks + "." + structure + ".bytes_per_track=" + bytesPerTrack
+                           + " (budget " + budget + ")");
+        if (bytesPerTrack > budget) {
+            failures.add(tracks + "." + structure + ": " + bytesPerTrack
+                         + " bytes per track, over the budget of " + budget);
+        }
+    }
+
+    // After collecting whatever is garbage, so that only what's retained is left.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_PASSES; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
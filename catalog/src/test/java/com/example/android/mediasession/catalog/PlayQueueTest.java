@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import com.example.android.mediasession.catalog.simulation.Track;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlayQueueTest {
+
+    private PlayQueue<Track> mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new PlayQueue<>(Track.MEDIA_IDS);
+    }
+
+    @Test
+    public void emptyQueueHasNoCurrentItem() {
+        assertTrue(mQueue.isEmpty());
+        assertEquals(-1, mQueue.getIndex());
+        assertNull(mQueue.getCurrent());
+    }
+
+    @Test
+    public void firstItemAddedBecomesCurrent() {
+        add("a", "b");
+
+        assertEquals(0, mQueue.getIndex());
+        assertEquals("a", mQueue.getCurrent().getMediaId());
+    }
+
+    @Test
+    public void addIfAbsentSkipsQueuedMediaIds() {
+        assertTrue(mQueue.addIfAbsent(track("a")));
+        assertFalse(mQueue.addIfAbsent(track("a")));
+        assertTrue(mQueue.addIfAbsent(track("b")));
+
+        assertEquals(2, mQueue.size());
+        assertEquals(1, mQueue.indexOf("b"));
+        assertEquals(-1, mQueue.indexOf("c"));
+    }
+
+    @Test
+    public void removingBeforeCurrentKeepsCurrentItem() {
+        add("a", "b", "c");
+        mQueue.setIndex(2);
+
+        assertTrue(mQueue.remove("a"));
+
+        assertEquals(1, mQueue.getIndex());
+        assertEquals("c", mQueue.getCurrent().getMediaId());
+    }
+
+    @Test
+    public void removingAfterCurrentKeepsCurrentItem() {
+        add("a", "b", "c");
+        mQueue.setIndex(1);
+
+        assertTrue(mQueue.remove("c"));
+
+        assertEquals(1, mQueue.getIndex());
+        assertEquals("b", mQueue.getCurrent().getMediaId());
+    }
+
+    @Test
+    public void removingCurrentMakesNextItemCurrent() {
+        add("a", "b", "c");
+        mQueue.setIndex(1);
+
+        assertTrue(mQueue.remove("b"));
+
+        assertEquals("c", mQueue.getCurrent().getMediaId());
+    }
+
+    @Test
+    public void removingLastItemWhileCurrentWrapsToStart() {
+        add("a", "b", "c");
+        mQueue.setIndex(2);
+
+        assertTrue(mQueue.remove("c"));
+
+        assertEquals(0, mQueue.getIndex());
+        assertEquals("a", mQueue.getCurrent().getMediaId());
+    }
+
+    @Test
+    public void removingOnlyItemEmptiesQueue() {
+        add("a");
+
+        assertTrue(mQueue.remove("a"));
+
+        assertTrue(mQueue.isEmpty());
+        assertEquals(-1, mQueue.getIndex());
+        assertFalse(mQueue.contains("a"));
+        assertFalse(mQueue.remove("a"));
+    }
+
+    @Test
+    public void duplicatesAreRemovedOneAtATime() {
+        add("a", "b", "a");
+
+        assertTrue(mQueue.remove("a"));
+        assertTrue(mQueue.contains("a"));
+        assertEquals(1, mQueue.indexOf("a"));
+
+        assertTrue(mQueue.remove("a"));
+        assertFalse(mQueue.contains("a"));
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void nextAndPreviousIndexesWrapAround() {
+        add("a", "b", "c");
+
+        assertEquals(1, mQueue.getNextIndex());
+        assertEquals(2, mQueue.getPreviousIndex());
+
+        mQueue.setIndex(2);
+        assertEquals(0, mQueue.getNextIndex());
+        assertEquals(1, mQueue.getPreviousIndex());
+    }
+
+    @Test
+    public void singleItemIsItsOwnNextAndPrevious() {
+        add("a");
+
+        assertEquals(0, mQueue.getNextIndex());
+        assertEquals(0, mQueue.getPreviousIndex());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void setIndexPastEndThrows() {
+        add("a");
+        mQueue.setIndex(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void setIndexOnEmptyQueueThrows() {
+        mQueue.setIndex(0);
+    }
+
+    @Test
+    public void setReplacesItemOfSameMediaId() {
+        add("a", "b");
+        Track updated = new Track("b", "Updated", 1000);
+
+        mQueue.set(1, updated);
+
+        assertSame(updated, mQueue.get(1));
+        assertTrue(mQueue.contains("b"));
+        assertEquals(2, mQueue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRejectsOtherMediaId() {
+        add("a", "b");
+        mQueue.set(1, track("c"));
+    }
+
+    @Test
+    public void itemsViewFollowsQueue() {
+        add("a");
+        int sizeBefore = mQueue.getItems().size();
+
+        add("b");
+
+        assertEquals(sizeBefore + 1, mQueue.getItems().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void itemsViewIsReadOnly() {
+        mQueue.getItems().add(track("a"));
+    }
+
+    private void add(String... mediaIds) {
+        for (String mediaId : mediaIds) {
+            mQueue.add(track(mediaId));
+        }
+    }
+
+    private static Track track(String mediaId) {
+        return new Track(mediaId, mediaId, 1000);
+    }
+}
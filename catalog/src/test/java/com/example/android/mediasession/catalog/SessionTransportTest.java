@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.mediasession.catalog;
+
+import com.example.android.mediasession.catalog.simulation.SimulatedClock;
+import com.example.android.mediasession.catalog.simulation.SimulatedPlayer;
+import com.example.android.mediasession.catalog.simulation.SimulatedSession;
+import com.example.android.mediasession.catalog.simulation.Track;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTransportTest {
+
+    private static final long PREPARE_MS = 100;
+
+    private TrackCatalog<Track> mCatalog;
+    private SimulatedClock mClock;
+    private SimulatedSession mSession;
+    private SessionTransport<Track, Track> mTransport;
+
+    @Before
+    public void setUp() {
+        mCatalog = Track.newCatalog(5);
+        mClock = new SimulatedClock();
+        mSession = new SimulatedSession(mCatalog, mClock, PREPARE_MS);
+        mTransport = mSession.getTransport();
+    }
+
+    @After
+    public void tearDown() {
+        mSession.release();
+    }
+
+    @Test
+    public void queueEditsArePublishedOnce() {
+        for (int i = 0; i < 5; i++) {
+            mSession.addQueueItem(Track.mediaId(i));
+        }
+        mTransport.removeQueueItem(Track.mediaId(0));
+        assertEquals(0, mSession.getQueuesPublished());
+
+        mClock.advance(0);
+
+        assertEquals(1, mSession.getQueuesPublished());
+        mSession.checkInvariants();
+    }
+
+    @Test
+    public void tracksNotInCatalogAreNotQueued() {
+        mSession.addQueueItem("missing");
+
+        assertTrue(mTransport.getQueue().isEmpty());
+    }
+
+    @Test
+    public void skipsOnlyPlayOnceSettled() {
+        queueAll();
+        mTransport.play();
+        mClock.advance(PREPARE_MS);
+        long metadata = mSession.getMetadataPublished();
+
+        mTransport.skipToNext();
+        mClock.advance(SessionTransport.SKIP_SETTLE_MS / 2);
+        mTransport.skipToNext();
+        mClock.advance(SessionTransport.SKIP_SETTLE_MS / 2);
+        mTransport.skipToNext();
+        assertTrue(mTransport.isSkipPending());
+        assertNull(mTransport.getPreparedMedia());
+
+        mClock.advance(SessionTransport.SKIP_SETTLE_MS + PREPARE_MS);
+
+        assertFalse(mTransport.isSkipPending());
+        assertEquals(3, mTransport.getQueue().getIndex());
+        assertEquals(Track.mediaId(3), mSession.getPlayer().getCurrentMedia().getMediaId());
+        assertEquals(SimulatedPlayer.STATE_PLAYING, mSession.getPlayer().getState());
+        // One per skip, and the track finally played.
+        assertEquals(metadata + 4, mSession.getMetadataPublished());
+    }
+
+    @Test
+    public void pauseCancelsPendingSkip() {
+        queueAll();
+        mTransport.skipToNext();
+
+        mTransport.pause();
+        mClock.advance(SessionTransport.SKIP_SETTLE_MS);
+
+        assertFalse(mTransport.isSkipPending());
+        assertNull(mSession.getPlayer().getCurrentMedia());
+    }
+
+    @Test
+    public void skipsPastTracksRemovedFromCatalog() {
+        queueAll();
+        mCatalog.beginBatch();
+        mCatalog.remove(Track.mediaId(1));
+        mCatalog.remove(Track.mediaId(2));
+        mCatalog.endBatch();
+
+        mTransport.skipToNext();
+
+        assertEquals(Track.mediaId(3), mTransport.getQueue().getCurrent().getMediaId());
+    }
+
+    @Test
+    public void removedTracksArePrunedAndUpdatedOnesRefreshed() {
+        queueAll();
+        mTransport.prepare();
+        Track updated = new Track(Track.mediaId(4), "Updated", 1000);
+
+        mCatalog.beginBatch();
+        mCatalog.remove(Track.mediaId(0));
+        mCatalog.put(Track.mediaId(4), "track_4.mp3", updated);
+        mCatalog.endBatch();
+
+        assertFalse(mTransport.getQueue().contains(Track.mediaId(0)));
+        assertNull(mTransport.getPreparedMedia());
+        assertEquals(updated, mTransport.getQueue().get(3));
+        mClock.advance(0);
+        mSession.checkInvariants();
+    }
+
+    @Test
+    public void appendedItemsCanRepeatAndArePublishedLater() {
+        queueAll();
+        mClock.advance(0);
+        long published = mSession.getQueuesPublished();
+
+        mTransport.appendToQueue(Arrays.asList(mCatalog.get(Track.mediaId(0)),
+                                               mCatalog.get(Track.mediaId(0))), 1000);
+        mClock.advance(999);
+        assertEquals(published, mSession.getQueuesPublished());
+        mTransport.publishPendingQueue();
+
+        assertEquals(published + 1, mSession.getQueuesPublished());
+        assertEquals(7, mTransport.getQueue().size());
+        mClock.advance(1);
+        assertEquals(published + 1, mSession.getQueuesPublished());
+    }
+
+    @Test
+    public void playFromPlaysGivenIndex() {
+        queueAll();
+        mTransport.prepare();
+
+        mTransport.playFrom(2);
+        mClock.advance(PREPARE_MS);
+
+        assertEquals(Track.mediaId(2), mSession.getPlayer().getCurrentMedia().getMediaId());
+        assertTrue(mSession.getPlayer().isPlaying());
+    }
+
+    @Test
+    public void updatePreparedMediaOnlyReplacesSameTrack() {
+        queueAll();
+        mTransport.prepare();
+
+        assertFalse(mTransport.updatePreparedMedia(new Track(Track.mediaId(1), "Other", 1)));
+        Track withArt = new Track(Track.mediaId(0), "With art", 1);
+        assertTrue(mTransport.updatePreparedMedia(withArt));
+        assertEquals(withArt, mTransport.getPreparedMedia());
+    }
+
+    private void queueAll() {
+        for (int i = 0; i < mCatalog.size(); i++) {
+            mSession.addQueueItem(Track.mediaId(i));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackCatalogTest {
+
+    private static final long START_VERSION = 100;
+    // As TrackCatalog.MAX_JOURNAL_ENTRIES.
+    private static final int MAX_JOURNAL_ENTRIES = 4096;
+
+    private TrackCatalog<String> mCatalog;
+    // The media ids of every notification, and the version each one was for.
+    private final List<List<String>> mNotified = new ArrayList<>();
+    private final List<Long> mNotifiedVersions = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mCatalog = new TrackCatalog<>(START_VERSION);
+        mCatalog.addListener(new TrackCatalog.Listener() {
+            @Override
+            public void onCatalogChanged(long version, Collection<String> mediaIds) {
+                mNotified.add(new ArrayList<>(mediaIds));
+                mNotifiedVersions.add(version);
+            }
+        });
+    }
+
+    @Test
+    public void loadDoesNotChangeVersion() {
+        mCatalog.load("a", "a.mp3", "A");
+
+        assertEquals("A", mCatalog.get("a"));
+        assertEquals(START_VERSION, mCatalog.getVersion());
+        assertTrue(mNotified.isEmpty());
+    }
+
+    @Test
+    public void everyMutationBumpsVersionAndNotifies() {
+        mCatalog.put("a", "a.mp3", "A");
+        mCatalog.put("a", "a.mp3", "A2");
+        mCatalog.remove("a");
+
+        assertEquals(START_VERSION + 3, mCatalog.getVersion());
+        assertEquals(Arrays.asList(START_VERSION + 1, START_VERSION + 2, START_VERSION + 3),
+                     mNotifiedVersions);
+        assertEquals(Collections.singletonList("a"), mNotified.get(2));
+    }
+
+    @Test
+    public void removingMissingTrackChangesNothing() {
+        assertNull(mCatalog.remove("a"));
+
+        assertEquals(START_VERSION, mCatalog.getVersion());
+        assertTrue(mNotified.isEmpty());
+    }
+
+    @Test
+    public void batchBumpsVersionOnceAndNotifiesEachTrackOnce() {
+        mCatalog.beginBatch();
+        mCatalog.put("a", "a.mp3", "A");
+        mCatalog.put("b", "b.mp3", "B");
+        // Nested, as callers that batch themselves may be called within a batch.
+        mCatalog.beginBatch();
+        mCatalog.put("a", "a.mp3", "A2");
+        mCatalog.endBatch();
+        assertTrue(mNotified.isEmpty());
+        assertEquals(START_VERSION, mCatalog.getVersion());
+        mCatalog.endBatch();
+
+        assertEquals(START_VERSION + 1, mCatalog.getVersion());
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b")), mNotified);
+        assertEquals("A2", mCatalog.get("a"));
+    }
+
+    @Test
+    public void emptyBatchChangesNothing() {
+        mCatalog.beginBatch();
+        mCatalog.endBatch();
+
+        assertEquals(START_VERSION, mCatalog.getVersion());
+        assertTrue(mNotified.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endBatchWithoutBeginThrows() {
+        mCatalog.endBatch();
+    }
+
+    @Test
+    public void tracksAreSortedByMediaId() {
+        mCatalog.put("c", "c.mp3", "C");
+        mCatalog.put("a", "a.mp3", "A");
+        mCatalog.put("b", "b.mp3", "B");
+
+        assertEquals(Arrays.asList("A", "B", "C"), new ArrayList<>(mCatalog.getTracks()));
+    }
+
+    @Test
+    public void resolvesMediaIdsFileNamesAndPaths() {
+        mCatalog.put("a", "a.mp3", "A");
+        mCatalog.put("stream", "https://example.com/a.mp3", "S");
+
+        assertEquals("a", mCatalog.resolve("a"));
+        assertEquals("a", mCatalog.resolve("a.mp3"));
+        assertEquals("a", mCatalog.resolve("/sdcard/Music/a.mp3"));
+        assertEquals("a", mCatalog.resolve("C:\\Music\\a.mp3"));
+        assertEquals("stream", mCatalog.resolve("https://example.com/a.mp3"));
+        // The file name at the end of a URL isn't a local file.
+        assertNull(mCatalog.resolve("https://example.org/a.mp3"));
+        assertNull(mCatalog.resolve("b.mp3"));
+    }
+
+    @Test
+    public void resolvesRenamedAndRemovedFiles() {
+        mCatalog.put("a", "a.mp3", "A");
+        mCatalog.put("a", "renamed.mp3", "A");
+        assertNull(mCatalog.resolve("a.mp3"));
+        assertEquals("a", mCatalog.resolve("renamed.mp3"));
+
+        mCatalog.remove("a");
+        assertNull(mCatalog.resolve("renamed.mp3"));
+    }
+
+    @Test
+    public void changesSinceVersionTellAddedUpdatedAndRemoved() {
+        mCatalog.put("kept", "kept.mp3", "K");
+        mCatalog.put("updated", "updated.mp3", "U");
+        mCatalog.put("removed", "removed.mp3", "R");
+        long version = mCatalog.getVersion();
+
+        mCatalog.beginBatch();
+        mCatalog.put("updated", "updated.mp3", "U2");
+        mCatalog.remove("removed");
+        mCatalog.put("added", "added.mp3", "A");
+        // Added and removed since, so the client never had it.
+        mCatalog.put("transient", "transient.mp3", "T");
+        mCatalog.remove("transient");
+        mCatalog.endBatch();
+        // Updated after it was added, which is still an addition.
+        mCatalog.put("added", "added.mp3", "A2");
+
+        CatalogDelta delta = mCatalog.getChangesSince(version);
+        assertEquals(version, delta.getFromVersion());
+        assertEquals(mCatalog.getVersion(), delta.getToVersion());
+        assertEquals(Collections.singletonList("added"), delta.getAdded());
+        assertEquals(Collections.singletonList("updated"), delta.getUpdated());
+        assertEquals(Collections.singletonList("removed"), delta.getRemoved());
+        assertEquals(3, delta.size());
+    }
+
+    @Test
+    public void changesSinceCurrentVersionAreEmpty() {
+        mCatalog.put("a", "a.mp3", "A");
+
+        assertEquals(0, mCatalog.getChangesSince(mCatalog.getVersion()).size());
+    }
+
+    @Test
+    public void changesSinceUnknownVersionsAreNull() {
+        mCatalog.put("a", "a.mp3", "A");
+
+        // From before this catalog, and from the future.
+        assertNull(mCatalog.getChangesSince(START_VERSION - 1));
+        assertNull(mCatalog.getChangesSince(mCatalog.getVersion() + 1));
+    }
+
+    @Test
+    public void changesSinceVersionsDroppedFromJournalAreNull() {
+        long version = mCatalog.getVersion();
+        mCatalog.beginBatch();
+        for (int i = 0; i < MAX_JOURNAL_ENTRIES; i++) {
+            mCatalog.put("track" + i, "track" + i + ".mp3", "T" + i);
+        }
+        mCatalog.endBatch();
+        // The journal holds exactly the batch.
+        assertEquals(MAX_JOURNAL_ENTRIES, mCatalog.getChangesSince(version).size());
+
+        long batchVersion = mCatalog.getVersion();
+        mCatalog.put("one_more", "one_more.mp3", "O");
+
+        assertNull(mCatalog.getChangesSince(version));
+        // The versions still in the journal can still be told.
+        CatalogDelta delta = mCatalog.getChangesSince(batchVersion);
+        assertEquals(Collections.singletonList("one_more"), delta.getAdded());
+        assertFalse(delta.getAdded().contains("track0"));
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.SessionTransport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the session state machine: a number of simulated controllers send
+ * transport commands (play, pause, seek, skip and queue edits) to the {@link SessionTransport}
+ * of a {@link SimulatedSession}, each at random, Poisson distributed times averaging a given
+ * rate. The clock is advanced in ticks, as fast as the session handles them, and the
+ * controllers draw from seeded generators, so every run issues the same commands and the
+ * session publishes the same.
+ *
+ * <p>Measures the latency of every command, and what the thread allocated meanwhile, which
+ * includes the work the commands scheduled on the clock. Optionally checks the invariants of
+ * the session after every command.
+ */
+public final class LoadGenerator {
+
+    public static final int DEFAULT_CONTROLLERS = 20;
+    public static final double DEFAULT_COMMANDS_PER_SECOND = 5;
+    public static final long DEFAULT_DURATION_MS = 10000;
+    private static final long TICK_MS = 10;
+    private static final long SEED = 1;
+    // Where seeks go, in the first few minutes of a track.
+    private static final long MAX_SEEK_POSITION_MS = TimeUnit.MINUTES.toMillis(3);
+
+    static final int COMMAND_PLAY = 0;
+    static final int COMMAND_PAUSE = 1;
+    static final int COMMAND_SEEK = 2;
+    static final int COMMAND_SKIP_TO_NEXT = 3;
+    static final int COMMAND_SKIP_TO_PREVIOUS = 4;
+    static final int COMMAND_ADD_QUEUE_ITEM = 5;
+    static final int COMMAND_REMOVE_QUEUE_ITEM = 6;
+    static final String[] COMMAND_NAMES = {
+            "play", "pause", "seek", "skip_to_next", "skip_to_previous", "add_queue_item",
+            "remove_queue_item"};
+    // How often controllers send each command, relative to the others.
+    private static final int[] COMMAND_WEIGHTS = {20, 15, 20, 15, 5, 15, 10};
+
+    private final SimulatedClock mClock;
+    private final SimulatedSession mSession;
+    private final SessionTransport<Track, Track> mTransport;
+    private final List<String> mMediaIds;
+    private final double mCommandsPerSecond;
+    private final long mDurationMs;
+    private final boolean mCheckInvariants;
+
+    private final Random[] mControllers;
+    // The clock time each controller sends its next command at.
+    private final long[] mNextCommandMs;
+    private final Latencies[] mLatencies = new Latencies[COMMAND_NAMES.length];
+    private final int mTotalWeight;
+
+    /**
+     * @param session           the session to load, which plays on {@code clock}.
+     * @param mediaIds          what to add to, and remove from, the queue.
+     * @param controllers       the number of simulated controllers.
+     * @param commandsPerSecond the average rate each controller sends commands at.
+     * @param checkInvariants   whether to check the session after every command, which takes
+     *                          time in the order of the queue's size, and adds to the
+     *                          allocations measured.
+     */
+    public LoadGenerator(SimulatedClock clock, SimulatedSession session, List<String> mediaIds,
+                         int controllers, double commandsPerSecond, long durationMs,
+                         boolean checkInvariants) {
+        mClock = clock;
+        mSession = session;
+        mTransport = session.getTransport();
+        mMediaIds = new ArrayList<>(mediaIds);
+        mCommandsPerSecond = Math.max(0.01, commandsPerSecond);
+        mDurationMs = durationMs;
+        mCheckInvariants = checkInvariants;
+        mControllers = new Random[Math.max(1, controllers)];
+        mNextCommandMs = new long[mControllers.length];
+        for (int i = 0; i < mControllers.length; i++) {
+            mControllers[i] = new Random(SEED + i);
+        }
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            mLatencies[i] = new Latencies();
+        }
+        int totalWeight = 0;
+        for (int weight : COMMAND_WEIGHTS) {
+            totalWeight += weight;
+        }
+        mTotalWeight = totalWeight;
+    }
+
+    /**
+     * Queues all the media ids and prepares them, then sends commands for the duration.
+     */
+    public Result run() {
+        for (String mediaId : mMediaIds) {
+            mSession.addQueueItem(mediaId);
+        }
+        mTransport.prepare();
+
+        long now = mClock.now();
+        for (int i = 0; i < mControllers.length; i++) {
+            mNextCommandMs[i] = now + nextInterval(mControllers[i]);
+        }
+        long endMs = now + mDurationMs;
+        long playbackStatesAtStart = mSession.getPlaybackStatesPublished();
+        long metadataAtStart = mSession.getMetadataPublished();
+        long queuesAtStart = mSession.getQueuesPublished();
+        long allocatedAtStart = getAllocatedBytes();
+        long startNanos = System.nanoTime();
+
+        while (now < endMs) {
+            mClock.advance(TICK_MS);
+            now = mClock.now();
+            for (int i = 0; i < mControllers.length; i++) {
+                while (mNextCommandMs[i] <= now) {
+                    issue(mControllers[i]);
+                    mNextCommandMs[i] += nextInterval(mControllers[i]);
+                }
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long allocated = getAllocatedBytes();
+        Latencies all = new Latencies();
+        for (Latencies latencies : mLatencies) {
+            all.addAll(latencies);
+        }
+        return new Result(all, mLatencies.clone(),
+                          mSession.getPlaybackStatesPublished() - playbackStatesAtStart,
+                          mSession.getMetadataPublished() - metadataAtStart,
+                          mSession.getQueuesPublished() - queuesAtStart,
+                          allocatedAtStart < 0 ? -1 : allocated - allocatedAtStart,
+                          elapsedNanos);
+    }
+
+    private long nextInterval(Random random) {
+        // Exponentially distributed, for Poisson arrivals.
+        return (long) (-Math.log(1 - random.nextDouble()) * 1000 / mCommandsPerSecond);
+    }
+
+    private void issue(Random random) {
+        int command = pickCommand(random);
+        String mediaId = mMediaIds.isEmpty()
+                         ? null
+                         : mMediaIds.get(random.nextInt(mMediaIds.size()));
+        long seekPosition = (long) (random.nextDouble() * MAX_SEEK_POSITION_MS);
+        long start = System.nanoTime();
+        switch (command) {
+            case COMMAND_PLAY:
+                mTransport.play();
+                break;
+            case COMMAND_PAUSE:
+                mTransport.pause();
+                break;
+            case COMMAND_SEEK:
+                mTransport.seekTo(seekPosition);
+                break;
+            case COMMAND_SKIP_TO_NEXT:
+                mTransport.skipToNext();
+                break;
+            case COMMAND_SKIP_TO_PREVIOUS:
+                mTransport.skipToPrevious();
+                break;
+            case COMMAND_ADD_QUEUE_ITEM:
+                if (mediaId != null) {
+                    mSession.addQueueItem(mediaId);
+                }
+                break;
+            case COMMAND_REMOVE_QUEUE_ITEM:
+                if (mediaId != null) {
+                    mTransport.removeQueueItem(mediaId);
+                }
+                break;
+        }
+        mLatencies[command].add(System.nanoTime() - start);
+        if (mCheckInvariants) {
+            mSession.checkInvariants();
+        }
+    }
+
+    private int pickCommand(Random random) {
+        int pick = random.nextInt(mTotalWeight);
+        for (int i = 0; i < COMMAND_WEIGHTS.length; i++) {
+            pick -= COMMAND_WEIGHTS[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return COMMAND_PLAY;
+    }
+
+    // The bytes the current thread has allocated, or -1 if the JVM doesn't tell.
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpotThreads =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (hotSpotThreads.isThreadAllocatedMemorySupported()
+                && hotSpotThreads.isThreadAllocatedMemoryEnabled()) {
+                return hotSpotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The latencies of a run, in nanoseconds.
+     */
+    public static final class Latencies {
+
+        private long[] mValues = new long[64];
+        private int mCount;
+
+        void add(long nanos) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mValues[mCount++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.mCount; i++) {
+                add(other.mValues[i]);
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the latency that the given percentage of commands took at most, or 0 if there
+         * were none.
+         */
+        public long getPercentile(double percent) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(mValues, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100 * mCount) - 1;
+            return sorted[Math.max(0, Math.min(mCount - 1, index))];
+        }
+
+        public long getMax() {
+            return getPercentile(100);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                   + ", p50=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(50)) + "us"
+                   + ", p99=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(99)) + "us"
+                   + ", max=" + TimeUnit.NANOSECONDS.toMicros(getMax()) + "us";
+        }
+    }
+
+    /**
+     * What a run measured.
+     */
+    public static final class Result {
+
+        private final Latencies mAll;
+        private final Latencies[] mByCommand;
+        private final long mPlaybackStatesPublished;
+        private final long mMetadataPublished;
+        private final long mQueuesPublished;
+        private final long mAllocatedBytes;
+        private final long mElapsedNanos;
+
+        Result(Latencies all, Latencies[] byCommand, long playbackStatesPublished,
+               long metadataPublished, long queuesPublished, long allocatedBytes,
+               long elapsedNanos) {
+            mAll = all;
+            mByCommand = byCommand;
+            mPlaybackStatesPublished = playbackStatesPublished;
+            mMetadataPublished = metadataPublished;
+            mQueuesPublished = queuesPublished;
+            mAllocatedBytes = allocatedBytes;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public Latencies getAll() {
+            return mAll;
+        }
+
+        /**
+         * @param command one of the COMMAND_ constants.
+         */
+        public Latencies get(int command) {
+            return mByCommand[command];
+        }
+
+        public long getPlaybackStatesPublished() {
+            return mPlaybackStatesPublished;
+        }
+
+        public long getMetadataPublished() {
+            return mMetadataPublished;
+        }
+
+        public long getQueuesPublished() {
+            return mQueuesPublished;
+        }
+
+        /**
+         * @return the bytes allocated per command, or -1 if the JVM doesn't tell.
+         */
+        public long getAllocatedBytesPerCommand() {
+            return mAllocatedBytes < 0 || mAll.getCount() == 0
+                   ? -1
+                   : mAllocatedBytes / mAll.getCount();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("all: ").append(mAll);
+            for (int i = 0; i < mByCommand.length; i++) {
+                builder.append('\n').append(COMMAND_NAMES[i]).append(": ").append(mByCommand[i]);
+            }
+            builder.append("\nplayback_states_published=").append(mPlaybackStatesPublished)
+                   .append(", metadata_published=").append(mMetadataPublished)
+                   .append(", queues_published=").append(mQueuesPublished)
+                   .append(", allocated_bytes_per_command=")
+                   .append(getAllocatedBytesPerCommand())
+                   .append(", elapsed_ms=")
+                   .append(TimeUnit.NANOSECONDS.toMillis(mElapsedNanos));
+            return builder.toString();
+        }
+    }
+}
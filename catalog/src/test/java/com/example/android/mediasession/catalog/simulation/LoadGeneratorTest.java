@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.SessionTransport;
+import com.example.android.mediasession.catalog.TrackCatalog;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link LoadGenerator} against the {@link SessionTransport} of a
+ * {@link SimulatedSession}, with
+ *   ./gradlew :catalog:test --tests '*LoadGeneratorTest'
+ * which prints what each run measured. Latencies depend on the machine, so they're reported
+ * rather than checked, and what's checked is what the commands did.
+ */
+public class LoadGeneratorTest {
+
+    private static final int TRACKS = 10000;
+    private static final long PREPARE_MS = 100;
+
+    @Test
+    public void keepsSessionConsistentUnderLoad() {
+        TrackCatalog<Track> catalog = Track.newCatalog(TRACKS);
+        SimulatedClock clock = new SimulatedClock();
+        SimulatedSession session = new SimulatedSession(catalog, clock, PREPARE_MS);
+        LoadGenerator.Result result = newLoadGenerator(clock, session, catalog, true).run();
+        System.out.println("keepsSessionConsistentUnderLoad:\n" + result);
+
+        assertTrue(result.getAll().getCount() > 0);
+        assertTrue(session.getTracksStarted() > 0);
+        // Edits made within a tick are published as one queue.
+        assertTrue(result.getQueuesPublished()
+                   <= result.get(LoadGenerator.COMMAND_ADD_QUEUE_ITEM).getCount()
+                      + result.get(LoadGenerator.COMMAND_REMOVE_QUEUE_ITEM).getCount());
+        session.release();
+    }
+
+    @Test
+    public void prunesTracksRemovedFromCatalogUnderLoad() {
+        TrackCatalog<Track> catalog = Track.newCatalog(TRACKS);
+        SimulatedClock clock = new SimulatedClock();
+        SimulatedSession session = new SimulatedSession(catalog, clock, PREPARE_MS);
+        newLoadGenerator(clock, session, catalog, true).run();
+
+        // Every other track, including whatever is prepared or playing.
+        catalog.beginBatch();
+        for (int i = 0; i < TRACKS; i += 2) {
+            catalog.remove(Track.mediaId(i));
+        }
+        catalog.endBatch();
+        clock.advance(SessionTransport.SKIP_SETTLE_MS);
+        session.checkInvariants();
+
+        // Still asks for the removed tracks, which the session mustn't queue or play.
+        List<String> mediaIds = new ArrayList<>();
+        for (int i = 0; i < TRACKS; i++) {
+            mediaIds.add(Track.mediaId(i));
+        }
+        LoadGenerator.Result result =
+                new LoadGenerator(clock, session, mediaIds, LoadGenerator.DEFAULT_CONTROLLERS,
+                                  LoadGenerator.DEFAULT_COMMANDS_PER_SECOND,
+                                  LoadGenerator.DEFAULT_DURATION_MS, true).run();
+        System.out.println("prunesTracksRemovedFromCatalogUnderLoad:\n" + result);
+        assertTrue(session.getQueue().size() <= TRACKS / 2);
+        session.release();
+    }
+
+    @Test
+    public void runsDeterministically() {
+        LoadGenerator.Result first = runOnce(1000, true);
+        LoadGenerator.Result second = runOnce(1000, true);
+
+        assertEquals(first.getAll().getCount(), second.getAll().getCount());
+        assertEquals(first.getPlaybackStatesPublished(), second.getPlaybackStatesPublished());
+        assertEquals(first.getMetadataPublished(), second.getMetadataPublished());
+        assertEquals(first.getQueuesPublished(), second.getQueuesPublished());
+    }
+
+    @Test
+    public void publishesAtMostWhatCommandsCallFor() {
+        LoadGenerator.Result result = runOnce(TRACKS, false);
+        System.out.println("publishesAtMostWhatCommandsCallFor:\n" + result);
+
+        // Playing publishes the track it prepares, if it isn't prepared already. Skipping
+        // publishes the track skipped to, and once skipping settles, the track it plays.
+        long skips = result.get(LoadGenerator.COMMAND_SKIP_TO_NEXT).getCount()
+                     + result.get(LoadGenerator.COMMAND_SKIP_TO_PREVIOUS).getCount();
+        assertTrue(result.getMetadataPublished()
+                   <= result.get(LoadGenerator.COMMAND_PLAY).getCount() + 2 * skips);
+        for (int command = 0; command < LoadGenerator.COMMAND_NAMES.length; command++) {
+            assertTrue(LoadGenerator.COMMAND_NAMES[command] + " never sent",
+                       result.get(command).getCount() > 0);
+        }
+    }
+
+    private static LoadGenerator.Result runOnce(int tracks, boolean checkInvariants) {
+        TrackCatalog<Track> catalog = Track.newCatalog(tracks);
+        SimulatedClock clock = new SimulatedClock();
+        SimulatedSession session = new SimulatedSession(catalog, clock, PREPARE_MS);
+        try {
+            return newLoadGenerator(clock, session, catalog, checkInvariants).run();
+        } finally {
+            session.release();
+        }
+    }
+
+    private static LoadGenerator newLoadGenerator(SimulatedClock clock, SimulatedSession session,
+                                                  TrackCatalog<Track> catalog,
+                                                  boolean checkInvariants) {
+        List<String> mediaIds = new ArrayList<>();
+        for (Track track : catalog.getTracks()) {
+            mediaIds.add(track.getMediaId());
+        }
+        return new LoadGenerator(clock, session, mediaIds, LoadGenerator.DEFAULT_CONTROLLERS,
+                                 LoadGenerator.DEFAULT_COMMANDS_PER_SECOND,
+                                 LoadGenerator.DEFAULT_DURATION_MS, checkInvariants);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.SessionTransport;
+
+import java.util.Arrays;
+
+/**
+ * Virtual time for simulations. Time only moves when {@link #advance(long)} is called, which
+ * runs the tasks that came due meanwhile in the order of their due times, and of scheduling for
+ * equal times, so that a simulation driven by the same calls always plays out the same.
+ * Scheduling doesn't allocate, so it doesn't show up in the allocations of what's simulated.
+ * Not thread safe: it's meant to be used from one thread.
+ */
+public final class SimulatedClock implements SessionTransport.Scheduler {
+
+    // Sorted by due time.
+    private Runnable[] mTasks = new Runnable[8];
+    private long[] mDueTimes = new long[8];
+    private int mCount;
+    private long mNowMs;
+
+    public long now() {
+        return mNowMs;
+    }
+
+    /**
+     * Runs {@code task} once the clock has advanced by {@code delayMs}. Scheduling a task that's
+     * already scheduled moves it.
+     */
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        cancel(task);
+        if (mCount == mTasks.length) {
+            mTasks = Arrays.copyOf(mTasks, mCount * 2);
+            mDueTimes = Arrays.copyOf(mDueTimes, mCount * 2);
+        }
+        long due = mNowMs + Math.max(0, delayMs);
+        // After the tasks due at the same time.
+        int index = mCount;
+        while (index > 0 && mDueTimes[index - 1] > due) {
+            mTasks[index] = mTasks[index - 1];
+            mDueTimes[index] = mDueTimes[index - 1];
+            index--;
+        }
+        mTasks[index] = task;
+        mDueTimes[index] = due;
+        mCount++;
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTasks[i] == task) {
+                removeAt(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the clock forward by {@code ms}, running the tasks due up to then. Tasks run with
+     * the clock at their due time, and may schedule more.
+     */
+    public void advance(long ms) {
+        long target = mNowMs + Math.max(0, ms);
+        while (mCount > 0 && mDueTimes[0] <= target) {
+            Runnable task = mTasks[0];
+            mNowMs = Math.max(mNowMs, mDueTimes[0]);
+            removeAt(0);
+            task.run();
+        }
+        mNowMs = target;
+    }
+
+    private void removeAt(int index) {
+        mCount--;
+        System.arraycopy(mTasks, index + 1, mTasks, index, mCount - index);
+        System.arraycopy(mDueTimes, index + 1, mDueTimes, index, mCount - index);
+        mTasks[mCount] = null;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.SessionTransport;
+
+/**
+ * A player that plays nothing, going through the same states as the app's MediaPlayerAdapter,
+ * but on a {@link SimulatedClock}: preparing media takes a fixed simulated time, and media plays
+ * to completion once its duration has passed on the clock.
+ */
+public final class SimulatedPlayer implements SessionTransport.Player<Track> {
+
+    /**
+     * The states of the player, with the values of the PlaybackStateCompat states.
+     */
+    public static final int STATE_NONE = 0;
+    public static final int STATE_STOPPED = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_PLAYING = 3;
+    public static final int STATE_BUFFERING = 6;
+
+    /**
+     * Told what the player does, like the app's PlaybackInfoListener.
+     */
+    public interface Listener {
+
+        void onStateChanged(int state, long positionMs);
+
+        void onMediaStarted(Track track);
+    }
+
+    private final Listener mListener;
+    private final SimulatedClock mClock;
+    private final long mPrepareMs;
+
+    private Track mCurrentMedia;
+    private int mState = STATE_NONE;
+    private boolean mLoaded;
+    private boolean mPreparing;
+    private boolean mPlayWhenPrepared;
+    private boolean mStartedCurrentMedia;
+    private boolean mPlaying;
+    // The position when playback last started or was moved, and the clock time then.
+    private long mBasePosition;
+    private long mBaseTime;
+
+    private final Runnable mPrepared = new Runnable() {
+        @Override
+        public void run() {
+            mPreparing = false;
+            if (mPlayWhenPrepared) {
+                mPlayWhenPrepared = false;
+                start();
+            } else if (mState == STATE_BUFFERING) {
+                setNewState(STATE_PAUSED);
+            }
+        }
+    };
+
+    private final Runnable mCompleted = new Runnable() {
+        @Override
+        public void run() {
+            mBasePosition = getDuration();
+            mPlaying = false;
+            mLoaded = false;
+            setNewState(STATE_STOPPED);
+        }
+    };
+
+    /**
+     * @param prepareMs how long preparing media takes on the clock.
+     */
+    public SimulatedPlayer(Listener listener, SimulatedClock clock, long prepareMs) {
+        mListener = listener;
+        mClock = clock;
+        mPrepareMs = prepareMs;
+    }
+
+    @Override
+    public void playFromMedia(Track track) {
+        if (isLoaded(track)) {
+            if (!mPlaying) {
+                play();
+            }
+            return;
+        }
+        mCurrentMedia = track;
+        load();
+        setNewState(STATE_BUFFERING);
+        play();
+    }
+
+    /**
+     * Loads media ahead of playing it, unless the player is busy with other media.
+     */
+    @Override
+    public void prepareFromMedia(Track track) {
+        if (mState == STATE_PLAYING || mState == STATE_BUFFERING || isLoaded(track)) {
+            return;
+        }
+        mCurrentMedia = track;
+        load();
+    }
+
+    private boolean isLoaded(Track track) {
+        return mLoaded && mCurrentMedia != null
+               && mCurrentMedia.getMediaId().equals(track.getMediaId());
+    }
+
+    private void load() {
+        mClock.cancel(mCompleted);
+        mPlaying = false;
+        mLoaded = true;
+        mPreparing = true;
+        mPlayWhenPrepared = false;
+        mStartedCurrentMedia = false;
+        mBasePosition = 0;
+        mClock.schedule(mPrepared, mPrepareMs);
+    }
+
+    public Track getCurrentMedia() {
+        return mCurrentMedia;
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    @Override
+    public boolean isPlaying(String mediaId) {
+        return mPlaying && mCurrentMedia != null && mCurrentMedia.getMediaId().equals(mediaId);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getCurrentPosition() {
+        if (!mPlaying) {
+            return mBasePosition;
+        }
+        return Math.min(getDuration(), mBasePosition + mClock.now() - mBaseTime);
+    }
+
+    private long getDuration() {
+        return mCurrentMedia == null ? 0 : mCurrentMedia.getDurationMs();
+    }
+
+    public void play() {
+        if (mPreparing) {
+            mPlayWhenPrepared = true;
+            if (mState != STATE_BUFFERING) {
+                setNewState(STATE_BUFFERING);
+            }
+        } else if (mLoaded && !mPlaying) {
+            start();
+        }
+    }
+
+    private void start() {
+        mPlaying = true;
+        mBaseTime = mClock.now();
+        mClock.schedule(mCompleted, getDuration() - mBasePosition);
+        setNewState(STATE_PLAYING);
+        if (!mStartedCurrentMedia) {
+            mStartedCurrentMedia = true;
+            mListener.onMediaStarted(mCurrentMedia);
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (mPreparing) {
+            if (mPlayWhenPrepared) {
+                mPlayWhenPrepared = false;
+                setNewState(STATE_PAUSED);
+            }
+        } else if (mPlaying) {
+            mBasePosition = getCurrentPosition();
+            mPlaying = false;
+            mClock.cancel(mCompleted);
+            setNewState(STATE_PAUSED);
+        }
+    }
+
+    @Override
+    public void stop() {
+        setNewState(STATE_STOPPED);
+        mClock.cancel(mPrepared);
+        mClock.cancel(mCompleted);
+        mPlaying = false;
+        mLoaded = false;
+        mPreparing = false;
+        mPlayWhenPrepared = false;
+    }
+
+    @Override
+    public void seekTo(long position) {
+        if (!mLoaded) {
+            return;
+        }
+        mBasePosition = Math.max(0, Math.min(getDuration(), position));
+        mBaseTime = mClock.now();
+        if (mPlaying) {
+            mClock.schedule(mCompleted, getDuration() - mBasePosition);
+        }
+        setNewState(mState);
+    }
+
+    private void setNewState(int newState) {
+        mState = newState;
+        mListener.onStateChanged(mState, getCurrentPosition());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.PlayQueue;
+import com.example.android.mediasession.catalog.SessionTransport;
+import com.example.android.mediasession.catalog.TrackCatalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Hosts the {@link SessionTransport} the app's MediaSessionCallback delegates to, over a
+ * {@link TrackCatalog} of {@link Track}s and a {@link SimulatedPlayer}, as the callback does
+ * over the app's catalog and MediaPlayerAdapter. What the transport publishes is counted rather
+ * than sent, and checked to be consistent by {@link #checkInvariants()}.
+ *
+ * <p>Runs on a {@link SimulatedClock}, on the thread that advances it.
+ */
+public final class SimulatedSession {
+
+    private final TrackCatalog<Track> mCatalog;
+    private final SimulatedClock mClock;
+    private final SimulatedPlayer mPlayer;
+    private final SessionTransport<Track, Track> mTransport;
+
+    private long mPlaybackStatesPublished;
+    private long mMetadataPublished;
+    private long mQueuesPublished;
+    private long mTracksStarted;
+    private List<Track> mPublishedQueue = new ArrayList<>();
+
+    private final SessionTransport.Session<Track, Track> mSession =
+            new SessionTransport.Session<Track, Track>() {
+                @Override
+                public boolean isInCatalog(String mediaId) {
+                    return mCatalog.contains(mediaId);
+                }
+
+                @Override
+                public Track refreshQueueItem(Track item) {
+                    return mCatalog.get(item.getMediaId());
+                }
+
+                @Override
+                public Track prepareMedia(String mediaId) {
+                    Track track = mCatalog.get(mediaId);
+                    publishMetadata(track);
+                    return track;
+                }
+
+                @Override
+                public void onSkipping(String mediaId, boolean toPrevious) {
+                    publishMetadata(mCatalog.get(mediaId));
+                    mPlaybackStatesPublished++;
+                }
+
+                @Override
+                public void publishQueue(List<Track> queue) {
+                    mPublishedQueue = queue;
+                    mQueuesPublished++;
+                }
+            };
+
+    private final TrackCatalog.Listener mCatalogListener = new TrackCatalog.Listener() {
+        @Override
+        public void onCatalogChanged(long version, Collection<String> mediaIds) {
+            mTransport.onCatalogChanged(mediaIds);
+        }
+    };
+
+    private final SimulatedPlayer.Listener mPlayerListener = new SimulatedPlayer.Listener() {
+        @Override
+        public void onStateChanged(int state, long positionMs) {
+            mPlaybackStatesPublished++;
+        }
+
+        @Override
+        public void onMediaStarted(Track track) {
+            mTracksStarted++;
+        }
+    };
+
+    /**
+     * @param prepareMs how long the player takes to prepare media.
+     */
+    public SimulatedSession(TrackCatalog<Track> catalog, SimulatedClock clock, long prepareMs) {
+        mCatalog = catalog;
+        mClock = clock;
+        mPlayer = new SimulatedPlayer(mPlayerListener, clock, prepareMs);
+        mTransport = new SessionTransport<>(Track.MEDIA_IDS, Track.MEDIA_IDS, mSession, mPlayer,
+                                            clock);
+        catalog.addListener(mCatalogListener);
+    }
+
+    /**
+     * Stops following the catalog.
+     */
+    public void release() {
+        mCatalog.removeListener(mCatalogListener);
+        mTransport.release();
+        mPlayer.stop();
+    }
+
+    public SessionTransport<Track, Track> getTransport() {
+        return mTransport;
+    }
+
+    public PlayQueue<Track> getQueue() {
+        return mTransport.getQueue();
+    }
+
+    public SimulatedPlayer getPlayer() {
+        return mPlayer;
+    }
+
+    public long getPlaybackStatesPublished() {
+        return mPlaybackStatesPublished;
+    }
+
+    public long getMetadataPublished() {
+        return mMetadataPublished;
+    }
+
+    public long getQueuesPublished() {
+        return mQueuesPublished;
+    }
+
+    public long getTracksStarted() {
+        return mTracksStarted;
+    }
+
+    /**
+     * Queues a track, unless it's queued already or isn't in the catalog. Unlike the app, which
+     * is sent the description of the track, only has its media id.
+     */
+    public void addQueueItem(String mediaId) {
+        Track track = mCatalog.get(mediaId);
+        mTransport.addQueueItem(track != null ? track : new Track(mediaId, mediaId, 0));
+    }
+
+    private void publishMetadata(Track track) {
+        if (track == null) {
+            throw new IllegalStateException("Metadata published for a track not in the catalog");
+        }
+        mMetadataPublished++;
+    }
+
+    /**
+     * Checks that the queue only holds tracks of the catalog, that its current index is valid,
+     * that the media prepared to play is in the catalog, and that the queue controllers were
+     * last sent is the queue, unless it's waiting to be published.
+     *
+     * @throws IllegalStateException if it isn't so.
+     */
+    public void checkInvariants() {
+        PlayQueue<Track> queue = mTransport.getQueue();
+        int index = queue.getIndex();
+        if (queue.isEmpty() ? index != -1 : index < 0 || index >= queue.size()) {
+            throw new IllegalStateException("Index " + index + " of " + queue.size());
+        }
+        for (Track track : queue.getItems()) {
+            if (!mCatalog.contains(track.getMediaId())) {
+                throw new IllegalStateException(track.getMediaId() + " queued, not in catalog");
+            }
+        }
+        Track prepared = mTransport.getPreparedMedia();
+        if (prepared != null && !mCatalog.contains(prepared.getMediaId())) {
+            throw new IllegalStateException(prepared.getMediaId() + " prepared");
+        }
+        if (!mTransport.isQueuePublishPending() && mPublishedQueue.size() != queue.size()) {
+            throw new IllegalStateException("Queue of " + queue.size() + " published as "
+                                            + mPublishedQueue.size());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Nazmul Idris. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.catalog.simulation;
+
+import com.example.android.mediasession.catalog.PlayQueue;
+import com.example.android.mediasession.catalog.TrackCatalog;
+
+/**
+ * Stands in for the MediaMetadataCompat the app keeps per track, and the QueueItem it queues.
+ */
+public final class Track {
+
+    public static final PlayQueue.MediaIds<Track> MEDIA_IDS = new PlayQueue.MediaIds<Track>() {
+        @Override
+        public String getMediaId(Track item) {
+            return item.mMediaId;
+        }
+    };
+
+    final String mMediaId;
+    final String mTitle;
+    final long mDurationMs;
+
+    public Track(String mediaId, String title, long durationMs) {
+        mMediaId = mediaId;
+        mTitle = title;
+        mDurationMs = durationMs;
+    }
+
+    public String getMediaId() {
+        return mMediaId;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @return a catalog of synthetic tracks, of a few minutes each.
+     */
+    public static TrackCatalog<Track> newCatalog(int tracks) {
+        TrackCatalog<Track> catalog = new TrackCatalog<>(0);
+        catalog.beginBatch();
+        for (int i = 0; i < tracks; i++) {
+            catalog.put(mediaId(i), "track_" + i + ".mp3",
+                        new Track(mediaId(i), "Track " + i, 120000 + (i % 180) * 1000));
+        }
+        catalog.endBatch();
+        return catalog;
+    }
+
+    public static String mediaId(int track) {
+        return "Test_Track_" + track;
+    }
+}